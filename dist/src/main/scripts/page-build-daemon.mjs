@@ -0,0 +1,183 @@
+#!/usr/bin/env node
+// Build daemon for page workspaces. Protocol: see BuildDaemon in the server.
+//
+// Reads one JSON request per line from stdin, e.g. {"dir": "/works/1000", "command": ["pnpm", "run", "build"]},
+// writes the build output and then the line "__BUILD_EXIT__ <code>". Build scripts made of `tsc [-b] [--noEmit]`
+// and `vite build` steps run in this process, reusing the TypeScript compiler and the parsed source files of the
+// project from its previous build. Anything else is run as a child process.
+
+import {createInterface} from 'node:readline';
+import {spawn} from 'node:child_process';
+import {createRequire} from 'node:module';
+import {readFileSync, statSync} from 'node:fs';
+import {join, resolve} from 'node:path';
+import {pathToFileURL} from 'node:url';
+
+const EXIT_MARKER = '__BUILD_EXIT__ ';
+const MAX_PROJECTS = Number(process.env.KIWI_BUILD_DAEMON_PROJECTS || 8);
+
+// Whether the output so far ends with a line break, so that the exit marker starts a line of its own
+let atLineStart = true;
+const write = process.stdout.write.bind(process.stdout);
+process.stdout.write = (chunk, ...args) => {
+    const text = String(chunk);
+    if (text.length)
+        atLineStart = text.endsWith('\n');
+    return write(chunk, ...args);
+};
+
+// Warm state per project directory, least recently used first
+const projects = new Map();
+
+function getProject(dir) {
+    let project = projects.get(dir);
+    if (project)
+        projects.delete(dir);
+    else
+        project = {sourceFiles: new Map()};
+    projects.set(dir, project);
+    while (projects.size > MAX_PROJECTS)
+        projects.delete(projects.keys().next().value);
+    return project;
+}
+
+function parseSteps(script) {
+    const steps = [];
+    for (const part of script.split('&&').map(s => s.trim())) {
+        const args = part.split(/\s+/);
+        if (args[0] === 'vite' && args[1] === 'build' && args.length === 2)
+            steps.push({kind: 'vite'});
+        else if (args[0] === 'tsc') {
+            const configs = [];
+            let noEmit = false;
+            for (const arg of args.slice(1)) {
+                if (arg === '-b' || arg === '--build')
+                    continue;
+                if (arg === '--noEmit')
+                    noEmit = true;
+                else if (arg.startsWith('-'))
+                    return null;
+                else
+                    configs.push(arg);
+            }
+            steps.push({kind: 'tsc', configs: configs.length ? configs : ['tsconfig.json'], noEmit});
+        } else
+            return null;
+    }
+    return steps;
+}
+
+function runTsc(dir, project, step) {
+    const require = createRequire(join(dir, 'package.json'));
+    const ts = require('typescript');
+    const diagnostics = [];
+    const host = ts.createSolutionBuilderHost(ts.sys, ts.createSemanticDiagnosticsBuilderProgram,
+        d => diagnostics.push(d), () => {});
+    const getSourceFile = host.getSourceFile;
+    host.getSourceFile = (fileName, languageVersion, onError, shouldCreate) => {
+        let mtime;
+        try {
+            mtime = statSync(fileName).mtimeMs;
+        } catch {
+            return getSourceFile.call(host, fileName, languageVersion, onError, shouldCreate);
+        }
+        const key = fileName + '|' + JSON.stringify(languageVersion);
+        const cached = project.sourceFiles.get(key);
+        if (cached && cached.mtime === mtime)
+            return cached.sourceFile;
+        const sourceFile = getSourceFile.call(host, fileName, languageVersion, onError, shouldCreate);
+        if (sourceFile)
+            project.sourceFiles.set(key, {mtime, sourceFile});
+        return sourceFile;
+    };
+    const builder = ts.createSolutionBuilder(host, step.configs.map(c => resolve(dir, c)),
+        {noEmit: step.noEmit || undefined});
+    const status = builder.build();
+    const formatHost = {
+        getCanonicalFileName: f => f,
+        getCurrentDirectory: () => dir,
+        getNewLine: () => '\n'
+    };
+    if (diagnostics.length)
+        process.stdout.write(ts.formatDiagnostics(diagnostics, formatHost));
+    return status === ts.ExitStatus.Success ? 0 : 2;
+}
+
+async function runVite(dir) {
+    const require = createRequire(join(dir, 'package.json'));
+    const vite = await import(pathToFileURL(require.resolve('vite')).href);
+    try {
+        await vite.build({root: dir, logLevel: 'warn'});
+        return 0;
+    } catch (e) {
+        process.stdout.write(String(e && e.stack || e) + '\n');
+        return 1;
+    }
+}
+
+function runProcess(dir, command) {
+    return new Promise(resolve => {
+        const child = spawn(command[0], command.slice(1), {cwd: dir, stdio: ['ignore', 'pipe', 'pipe']});
+        child.stdout.on('data', d => process.stdout.write(d));
+        child.stderr.on('data', d => process.stdout.write(d));
+        child.on('error', e => {
+            process.stdout.write(String(e) + '\n');
+            resolve(127);
+        });
+        child.on('close', code => resolve(code ?? 1));
+    });
+}
+
+async function build(dir, command) {
+    let steps = null;
+    if (command.join(' ') === 'pnpm run build') {
+        const pkg = JSON.parse(readFileSync(join(dir, 'package.json'), 'utf8'));
+        if (pkg.scripts && typeof pkg.scripts.build === 'string')
+            steps = parseSteps(pkg.scripts.build);
+    }
+    if (!steps)
+        return runProcess(dir, command);
+    const project = getProject(dir);
+    process.chdir(dir);
+    for (const step of steps) {
+        const code = step.kind === 'tsc' ? runTsc(dir, project, step) : await runVite(dir);
+        if (code !== 0)
+            return code;
+    }
+    return 0;
+}
+
+const lines = createInterface({input: process.stdin});
+const queue = [];
+let running = false;
+
+async function drain() {
+    if (running)
+        return;
+    running = true;
+    while (queue.length) {
+        const line = queue.shift();
+        let code;
+        try {
+            const request = JSON.parse(line);
+            code = await build(request.dir, request.command);
+        } catch (e) {
+            process.stdout.write(String(e && e.stack || e) + '\n');
+            code = 1;
+        }
+        process.stdout.write((atLineStart ? '' : '\n') + EXIT_MARKER + code + '\n');
+    }
+    running = false;
+}
+
+lines.on('line', line => {
+    if (line.trim()) {
+        queue.push(line);
+        drain();
+    }
+});
+lines.on('close', async () => {
+    while (running || queue.length)
+        await new Promise(r => setTimeout(r, 50));
+    process.exit(0);
+});
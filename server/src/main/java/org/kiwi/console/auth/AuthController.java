@@ -17,10 +17,12 @@ public class AuthController {
 
     private final UserClient userClient;
     private final KiwiUserClient kiwiUserClient;
+    private final SocketTicketService socketTicketService;
 
-    public AuthController(UserClient userClient, KiwiUserClient kiwiUserClient) {
+    public AuthController(UserClient userClient, KiwiUserClient kiwiUserClient, SocketTicketService socketTicketService) {
         this.userClient = userClient;
         this.kiwiUserClient = kiwiUserClient;
+        this.socketTicketService = socketTicketService;
     }
 
     @PostMapping("/login")
@@ -55,6 +57,11 @@ public class AuthController {
         return new SsoCodeResult(userClient.generateSsoCode(new UserIdRequest(userId)));
     }
 
+    @PostMapping("/socket-ticket")
+    public SocketTicketResult issueSocketTicket(@AuthenticationPrincipal String userId) {
+        return new SocketTicketResult(socketTicketService.issue(userId));
+    }
+
     @PostMapping("/login-with-sso-code")
     public LoginResult loginWithSsoCode(@RequestBody LoginWithSsoCodeRequest request) {
         var userId = userClient.loginWithSsoCode(new org.kiwi.console.kiwi.LoginWithSsoCodeRequest(request.code()));
@@ -11,18 +11,23 @@ import org.springframework.security.web.authentication.WebAuthenticationDetailsS
 import org.springframework.stereotype.Component;
 import org.springframework.web.filter.OncePerRequestFilter;
 
+import javax.annotation.Nullable;
 import java.io.IOException;
 import java.util.List;
 
 @Component
 public class AuthenticateFilter extends OncePerRequestFilter {
 
+    private static final String WEB_SOCKET_PATH = "/generate/ws";
+
     private final UserClient userClient;
     private final KiwiUserClient kiwiUserClient;
+    private final SocketTicketService socketTicketService;
 
-    public AuthenticateFilter(UserClient userClient, KiwiUserClient kiwiUserClient) {
+    public AuthenticateFilter(UserClient userClient, KiwiUserClient kiwiUserClient, SocketTicketService socketTicketService) {
         this.userClient = userClient;
         this.kiwiUserClient = kiwiUserClient;
+        this.socketTicketService = socketTicketService;
     }
 
     @Override
@@ -31,15 +36,8 @@ public class AuthenticateFilter extends OncePerRequestFilter {
             filterChain.doFilter(request, response);
             return;
         }
-        var auth = request.getHeader("Authorization");
-        if (auth == null || !auth.startsWith("Bearer ")) {
-            filterChain.doFilter(request, response);
-            return;
-        }
-        var token = auth.substring(7);
-        var kiwiUserId = kiwiUserClient.authenticate(new SysAuthenticateRequest(token));
-        if (kiwiUserId != null) {
-            var userId = userClient.getByKiwiUserId(new GetByKiwiUserIdRequest(kiwiUserId));
+        var userId = getUserId(request);
+        if (userId != null) {
             var authToken = new UsernamePasswordAuthenticationToken(userId, null, List.of());
             authToken.setDetails(new WebAuthenticationDetailsSource().buildDetails(request));
             SecurityContextHolder.getContext().setAuthentication(authToken);
@@ -47,4 +45,19 @@ public class AuthenticateFilter extends OncePerRequestFilter {
         filterChain.doFilter(request, response);
     }
 
+    private @Nullable String getUserId(HttpServletRequest request) {
+        var auth = request.getHeader("Authorization");
+        if (auth != null && auth.startsWith("Bearer ")) {
+            var kiwiUserId = kiwiUserClient.authenticate(new SysAuthenticateRequest(auth.substring(7)));
+            return kiwiUserId != null ? userClient.getByKiwiUserId(new GetByKiwiUserIdRequest(kiwiUserId)) : null;
+        }
+        // Browsers can't set headers on a WebSocket handshake. A one-time ticket goes in the URL instead of the
+        // token, which would end up in proxy and access logs.
+        if (WEB_SOCKET_PATH.equals(request.getServletPath())) {
+            var ticket = request.getParameter("ticket");
+            return ticket != null ? socketTicketService.redeem(ticket) : null;
+        }
+        return null;
+    }
+
 }
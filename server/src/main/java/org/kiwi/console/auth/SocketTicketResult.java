@@ -0,0 +1,4 @@
+package org.kiwi.console.auth;
+
+public record SocketTicketResult(String ticket) {
+}
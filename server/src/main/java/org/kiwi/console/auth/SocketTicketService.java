@@ -0,0 +1,53 @@
+package org.kiwi.console.auth;
+
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Nullable;
+import java.security.SecureRandom;
+import java.util.Base64;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Issues the tickets that authenticate WebSocket handshakes. Browsers can't set headers on a handshake, so the
+ * credential has to go in the URL, where proxies and access logs keep it. A ticket is only good for one
+ * handshake within a few seconds, so a logged one is worthless.
+ */
+@Component
+public class SocketTicketService {
+
+    private static final long DEFAULT_TTL_MILLIS = 30_000;
+
+    private final long ttlMillis;
+    private final SecureRandom random = new SecureRandom();
+    private final Map<String, Ticket> tickets = new ConcurrentHashMap<>();
+
+    public SocketTicketService() {
+        this(DEFAULT_TTL_MILLIS);
+    }
+
+    SocketTicketService(long ttlMillis) {
+        this.ttlMillis = ttlMillis;
+    }
+
+    public String issue(String userId) {
+        var now = System.currentTimeMillis();
+        tickets.values().removeIf(t -> t.expiresAt <= now);
+        var bytes = new byte[32];
+        random.nextBytes(bytes);
+        var ticket = Base64.getUrlEncoder().withoutPadding().encodeToString(bytes);
+        tickets.put(ticket, new Ticket(userId, now + ttlMillis));
+        return ticket;
+    }
+
+    /**
+     * Returns the user the ticket was issued to, or null if it is unknown, expired or already redeemed.
+     */
+    public @Nullable String redeem(String ticket) {
+        var t = tickets.remove(ticket);
+        return t != null && t.expiresAt > System.currentTimeMillis() ? t.userId : null;
+    }
+
+    private record Ticket(String userId, long expiresAt) {}
+
+}
@@ -3,34 +3,53 @@ package org.kiwi.console.generate;
 import jakarta.annotation.Nullable;
 import lombok.SneakyThrows;
 import lombok.extern.slf4j.Slf4j;
+import org.kiwi.console.generate.daemon.BuildDaemonPool;
 import org.kiwi.console.util.Utils;
 
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.time.Duration;
 import java.util.List;
 
 @Slf4j
 public abstract class AbstractCompiler implements Compiler {
 
     protected final Path baseDir;
+    private @Nullable WorkspacePool workspacePool;
+    private @Nullable BuildDaemonPool buildDaemons;
 
     public AbstractCompiler(Path baseDir) {
         this.baseDir = baseDir;
     }
 
     @Override
-    public DeployResult run(long appId, String projectName, List<SourceFile> sourceFiles, List<Path> removedFiles, boolean deploySource, boolean noBackup) {
+    public DeployResult run(long appId, String projectName, List<SourceFile> sourceFiles, List<Path> removedFiles, boolean deploySource, boolean noBackup, Runnable onBuilt) {
+        apply(projectName, sourceFiles, removedFiles);
+        var workDir = getWorkDir(projectName);
+        var r = build(workDir);
+        if (r.successful()) {
+            onBuilt.run();
+            return deploy(appId, projectName, deploySource, noBackup);
+        }
+        else
+            return new DeployResult(false, r.message());
+    }
+
+    @Override
+    public void apply(String projectName, List<SourceFile> sourceFiles, List<Path> removedFiles) {
         var workDir = getWorkDir(projectName);
         for (Path removedFile : removedFiles) {
             if (workDir.exist(removedFile))
                 workDir.removeFile(removedFile);
         }
         sourceFiles.forEach(f -> writeSourceFile(workDir, f));
-        var r = build(workDir);
-        if (r.successful())
-            return deploy(appId, projectName, deploySource, noBackup);
-        else
-            return new DeployResult(false, r.message());
+    }
+
+    @SneakyThrows
+    @Override
+    public @Nullable String readFile(String projectName, Path path) {
+        var file = getWorkDir(projectName).root().resolve(path);
+        return Files.isRegularFile(file) ? Files.readString(file) : null;
     }
 
     @Override
@@ -63,6 +82,39 @@ public abstract class AbstractCompiler implements Compiler {
         Utils.executeCommand(workDir.root(), "git", "revert", "HEAD");
     }
 
+    /**
+     * Keeps {@code size} workspaces of each template that has been used ready for new projects, see
+     * {@link WorkspacePool}.
+     */
+    public void enableWorkspacePool(int size, Duration checkInterval) {
+        workspacePool = new WorkspacePool(baseDir.resolve(".pool"), size, checkInterval, this::createWorkspace);
+    }
+
+    /**
+     * Runs builds on warm daemons, see {@link BuildDaemonPool}.
+     */
+    public void enableBuildDaemons(String name, BuildDaemonPool.Settings settings) {
+        buildDaemons = new BuildDaemonPool(name, settings);
+    }
+
+    /**
+     * Stops the workspace pool and the build daemons, if enabled.
+     */
+    public void close() {
+        if (workspacePool != null)
+            workspacePool.close();
+        if (buildDaemons != null)
+            buildDaemons.close();
+    }
+
+    /**
+     * Runs a build command, on a daemon if enabled.
+     */
+    protected Utils.CommandResult runBuild(WorkDir workDir, List<String> command) {
+        return buildDaemons != null ? buildDaemons.execute(workDir.root(), command) :
+                Utils.executeCommand(workDir.root(), command);
+    }
+
     @Override
     public void reset(String projectName, String templateRepo, String branch) {
         var dir = baseDir.resolve(projectName);
@@ -70,17 +122,36 @@ public abstract class AbstractCompiler implements Compiler {
             Utils.executeCommand(getWorkDir(projectName).root(), "git", "reset", "--hard", "HEAD");
             Utils.executeCommand(getWorkDir(projectName).root(), "git", "clean", "-fdx", "--exclude=node_modules", "--exclude=dist");
         } else {
-            Utils.executeCommand(baseDir, "git", "clone", templateRepo, projectName);
-            var workdir = getWorkDir(projectName);
-            Utils.executeCommand(workdir.root(), "git", "checkout", branch);
-            initWorkDir(workdir, projectName);
+            if (workspacePool == null || !workspacePool.claim(templateRepo, branch, dir))
+                createWorkspace(dir, templateRepo, branch);
+            initWorkDir(getWorkDir(projectName), projectName);
         }
     }
 
+    @SneakyThrows
+    private void createWorkspace(Path dir, String templateRepo, String branch) {
+        Files.createDirectories(dir.getParent());
+        var r = Utils.executeCommand(dir.getParent(), "git", "clone", templateRepo, dir.getFileName().toString());
+        if (r.exitCode() != 0)
+            throw new RuntimeException("Failed to clone " + templateRepo + ": " + r.output());
+        Utils.executeCommand(dir, "git", "checkout", branch);
+        prepareWorkDir(new WorkDir(dir));
+    }
+
     protected WorkDir getWorkDir(String projectName) {
         return WorkDir.from(baseDir, projectName);
     }
 
+    /**
+     * Prepares a fresh clone of the template before it is assigned to a project, which may happen ahead of time
+     * in the workspace pool.
+     */
+    protected void prepareWorkDir(WorkDir workDir) {
+    }
+
+    /**
+     * Sets a workspace up for the project it has just been assigned to.
+     */
     protected void initWorkDir(WorkDir workDir, String projectName) {
     }
 
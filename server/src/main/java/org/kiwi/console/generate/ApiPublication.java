@@ -0,0 +1,152 @@
+package org.kiwi.console.generate;
+
+import lombok.SneakyThrows;
+import org.kiwi.console.util.BusinessException;
+import org.kiwi.console.util.ErrorCode;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Tracks whether the API of a module can be consumed by its dependents while the module is being generated.
+ * <p>
+ * The API is published as soon as the module builds, which is before its deployment finishes, so that
+ * dependents can start generating early. A failed deployment revokes the publication. Every revocation bumps
+ * the version, which lets a dependent tell whether the API it consumed is still current.
+ */
+public class ApiPublication {
+
+    private static final long POLL_INTERVAL = 1000;
+
+    public enum State {
+        PENDING,
+        PUBLISHED,
+        COMPLETED,
+        FAILED
+    }
+
+    private final String moduleName;
+    private State state = State.COMPLETED;
+    private int version;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition changed = lock.newCondition();
+
+    public ApiPublication(String moduleName) {
+        this.moduleName = moduleName;
+    }
+
+    public void begin() {
+        lock.lock();
+        try {
+            state = State.PENDING;
+            version++;
+            changed.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return true if the API was not published before
+     */
+    public boolean publish() {
+        lock.lock();
+        try {
+            if (state != State.PENDING)
+                return false;
+            state = State.PUBLISHED;
+            changed.signalAll();
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void revoke() {
+        lock.lock();
+        try {
+            if (state == State.PUBLISHED) {
+                state = State.PENDING;
+                version++;
+                changed.signalAll();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void complete() {
+        lock.lock();
+        try {
+            state = State.COMPLETED;
+            changed.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void fail() {
+        lock.lock();
+        try {
+            state = State.FAILED;
+            changed.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public boolean isCurrent(int version) {
+        lock.lock();
+        try {
+            return this.version == version && (state == State.PUBLISHED || state == State.COMPLETED);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public State getState() {
+        lock.lock();
+        try {
+            return state;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Waits until the API is published and returns the version of the publication.
+     */
+    public int awaitPublished(AbortController abortController) {
+        lock.lock();
+        try {
+            await(State.PUBLISHED, abortController);
+            return version;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void awaitCompleted(AbortController abortController) {
+        lock.lock();
+        try {
+            await(State.COMPLETED, abortController);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @SneakyThrows
+    private void await(State target, AbortController abortController) {
+        for (;;) {
+            if (state == State.FAILED)
+                throw new DependencyFailedException("Generation of dependency " + moduleName + " failed");
+            if (state == State.COMPLETED || state == target)
+                return;
+            if (abortController.isAborted())
+                throw new BusinessException(ErrorCode.TASK_CANCELLED);
+            changed.await(POLL_INTERVAL, TimeUnit.MILLISECONDS);
+        }
+    }
+
+}
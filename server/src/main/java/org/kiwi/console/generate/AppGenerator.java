@@ -5,22 +5,28 @@ import lombok.extern.slf4j.Slf4j;
 import org.kiwi.console.file.File;
 import org.kiwi.console.generate.data.DataAgent;
 import org.kiwi.console.generate.event.GenerationListener;
+import org.kiwi.console.generate.event.ProgressStream;
 import org.kiwi.console.generate.rest.ExchangeDTO;
 import org.kiwi.console.kiwi.*;
 import org.kiwi.console.util.BusinessException;
 import org.kiwi.console.util.ErrorCode;
+import org.kiwi.console.util.ProcessRunner;
 import org.kiwi.console.util.Utils;
 
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
 import java.util.*;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.function.Function;
 import java.util.function.Supplier;
 
 @Slf4j
-public class AppGenerator implements Task, AbortController, CodeAgentListener {
+public class AppGenerator implements Task, AbortController {
     private static final int MAX_AUTO_FIXES = 6;
-    private final List<GenerationListener> listeners = Collections.synchronizedList(new ArrayList<>());
+    private final List<GenerationListener> listeners = new CopyOnWriteArrayList<>();
+    private boolean listenersClosed;
     private final ExchangeRT exchange;
     final AppRT app;
     final String sourceCodeUrlTempl;
@@ -33,9 +39,13 @@ public class AppGenerator implements Task, AbortController, CodeAgentListener {
     final List<File> attachments;
     private final User user;
     private int numTests;
+    private final ProgressStream progressStream;
     private final Function<String, Model> getModel;
+    private final UsageLedger usageLedger;
     private final Function<Tech, CodeAgent> getCodeAgent;
     private final Function<Tech, TestTaskFactory> getTestRunnerFactory;
+    private final ModuleTaskScheduler moduleTaskScheduler;
+    private final boolean pipelineModules;
 
     public AppGenerator(ExchangeRT exchange,
                         AppRT app,
@@ -47,8 +57,13 @@ public class AppGenerator implements Task, AbortController, CodeAgentListener {
                         String productUrlTempl,
                         String managementUrlTempl, DataAgent dataAgent,
                         Function<String, Model> getModel,
+                        UsageLedger usageLedger,
                         Function<Tech, CodeAgent> getCodeAgent,
-                        Function<Tech, TestTaskFactory> getTestRunnerFactory
+                        Function<Tech, TestTaskFactory> getTestRunnerFactory,
+                        Executor moduleExecutor,
+                        int moduleParallelism,
+                        boolean pipelineModules,
+                        int progressReplayCapacity
                         ) {
         this.attachments = attachments;
         this.sourceCodeUrlTempl = sourceCodeUrlTempl;
@@ -61,15 +76,24 @@ public class AppGenerator implements Task, AbortController, CodeAgentListener {
         this.exchange = exchange;
         this.showAttempts = showAttempts;
         this.getModel = getModel;
+        this.usageLedger = usageLedger;
         this.getCodeAgent = getCodeAgent;
         this.getTestRunnerFactory = getTestRunnerFactory;
+        this.moduleTaskScheduler = new ModuleTaskScheduler(moduleExecutor, moduleParallelism, this);
+        this.pipelineModules = pipelineModules;
+        this.progressStream = new ProgressStream(progressReplayCapacity);
         exchange.setListener(this::onProgress);
     }
 
     ExchangeTaskRT createExchangeTask(ModuleRT module, ExchangeTaskType type) {
-        if (exchange.getStatus() == ExchangeStatus.PLANNING)
-            exchange.setStatus(ExchangeStatus.GENERATING);
-        return exchange.startTask(module, type);
+        exchange.getLock().lock();
+        try {
+            if (exchange.getStatus() == ExchangeStatus.PLANNING)
+                exchange.setStatus(ExchangeStatus.GENERATING);
+            return exchange.startTask(module, type);
+        } finally {
+            exchange.getLock().unlock();
+        }
     }
 
     public void run(boolean retry) {
@@ -84,6 +108,9 @@ public class AppGenerator implements Task, AbortController, CodeAgentListener {
             if (!exchange.isCancelled())
                 exchange.abort(e.getMessage());
             throw e;
+        } finally {
+            if (usageLedger.getUsage().calls() > 0)
+                log.info("Model usage of exchange {}: {}", exchange.getId(), usageLedger);
         }
     }
 
@@ -144,8 +171,16 @@ public class AppGenerator implements Task, AbortController, CodeAgentListener {
     private boolean runTasks(String requirement, List<File> attachments, List<Plan.Task> tasks, boolean noBackup) {
         try {
             var kiwiAppId = app.getKiwiAppId();
-            for (Plan.Task task : tasks) {
-                if (!runTask(requirement, attachments, noBackup, task))
+            var i = 0;
+            while (i < tasks.size()) {
+                if (tasks.get(i) instanceof Plan.GenerateTask) {
+                    var batch = new ArrayList<Plan.GenerateTask>();
+                    while (i < tasks.size() && tasks.get(i) instanceof Plan.GenerateTask genTask) {
+                        batch.add(genTask);
+                        i++;
+                    }
+                    runGenerateTasks(requirement, attachments, batch, noBackup);
+                } else if (!runTask(requirement, attachments, noBackup, tasks.get(i++)))
                     return false;
             }
             var sourceCodeUrl = user.isAllowSourceCodeDownload() ?
@@ -166,19 +201,60 @@ public class AppGenerator implements Task, AbortController, CodeAgentListener {
         }
     }
 
-    private void runModifyModuleTask(String requirement, List<File> attachments, Plan.ModifyModuleTask task, boolean noBackup) {
-        var modGen = getModuleGeneratorByName(task.moduleName());
-        executeGen(() -> modGen.generate(requirement, task.suggestion(), attachments, noBackup));
+    /**
+     * Runs a run of consecutive create/modify tasks. Modules are created upfront so that the dependency graph
+     * is complete, then the generations are scheduled along it: a module waits for the modules it depends on
+     * (and for earlier tasks on the same module), while independent modules are generated in parallel.
+     * In pipelined mode, a module only waits until the APIs of its dependencies are published, while their
+     * deployments finish in the background.
+     */
+    private void runGenerateTasks(String requirement, List<File> attachments, List<Plan.GenerateTask> tasks, boolean noBackup) {
+        var modGens = new ArrayList<ModuleGenerator>();
+        var nodes = new ArrayList<ModuleTaskScheduler.Node>();
+        for (var task : tasks) {
+            var modGen = switch (task) {
+                case Plan.CreateModuleTask t -> createModule(t.moduleName(), t.description(), t.tech(), t.dependencyNames());
+                case Plan.ModifyModuleTask t -> getModuleGeneratorByName(t.moduleName());
+            };
+            var create = task instanceof Plan.CreateModuleTask;
+            var node = new ModuleTaskScheduler.Node(nodes.size(), modGen.getModule().name(), n -> {
+                var firstTask = new AtomicReference<>(modGen.startTask());
+                return () -> {
+                    try {
+                        if (create)
+                            ProcessRunner.withAbortController(this, modGen::reset);
+                        executeGen(() -> {
+                            var exchTask = firstTask.getAndSet(null);
+                            modGen.generate(exchTask != null ? exchTask : modGen.startTask(),
+                                    requirement, task.suggestion(), attachments, noBackup && !create, n::release);
+                        });
+                    } catch (Exception e) {
+                        modGen.getApiPublication().fail();
+                        throw e;
+                    }
+                };
+            });
+            for (int j = 0; j < nodes.size(); j++) {
+                var other = modGens.get(j);
+                if (other == modGen)
+                    node.addDependency(nodes.get(j));
+                else if (modGen.dependsOn(other)) {
+                    if (pipelineModules)
+                        node.addPipelinedDependency(nodes.get(j));
+                    else
+                        node.addDependency(nodes.get(j));
+                }
+            }
+            modGens.add(modGen);
+            nodes.add(node);
+        }
+        moduleTaskScheduler.run(nodes);
     }
 
     private boolean runTask(String requirement, List<File> attachments, boolean noBackup, Plan.Task task) {
         return switch (task) {
-            case Plan.CreateModuleTask createModuleTask -> {
-                runCreateModuleTask(requirement, attachments, createModuleTask);
-                yield true;
-            }
-            case Plan.ModifyModuleTask modifyModuleTask -> {
-                runModifyModuleTask(requirement, attachments, modifyModuleTask, noBackup);
+            case Plan.GenerateTask generateTask -> {
+                runGenerateTasks(requirement, attachments, List.of(generateTask), noBackup);
                 yield true;
             }
             case Plan.DeleteModuleTask deleteModuleTask -> {
@@ -193,13 +269,6 @@ public class AppGenerator implements Task, AbortController, CodeAgentListener {
         };
     }
 
-    private void runCreateModuleTask(String requirement, List<File> attachments, Plan.CreateModuleTask task) {
-        var modGen = createModule(task.moduleName(), task.description(), task.tech(), task.dependencyNames());
-        modGen.reset();
-        executeGen(() -> modGen.generate(requirement, task.suggestion(), attachments, false));
-    }
-
-
     private ModuleGenerator createModule(String name, String description, Tech tech, List<String> dependencyNames) {
         var deps = Utils.map(dependencyNames, app::getModuleByName);
         var mod = app.addModule(name, description, tech, deps);
@@ -283,9 +352,11 @@ public class AppGenerator implements Task, AbortController, CodeAgentListener {
         var wait = 1000;
         for (var i = 0; i < 6; i++) {
             try {
-                return run.get();
+                return ProcessRunner.withAbortController(this, run);
             } catch (AgentException e) {
                 log.error("Agent internal error", e);
+                if (e instanceof RateLimitedException rle)
+                    wait = (int) Math.max(wait, rle.getRetryAfterMillis());
                 Thread.sleep(wait);
                 wait *= 2;
             }
@@ -299,21 +370,6 @@ public class AppGenerator implements Task, AbortController, CodeAgentListener {
         setupDependencies();
     }
 
-    void startAttempt() {
-        currentStage().addAttempt();
-    }
-
-    void finishAttempt(boolean successful, @Nullable String errorMsg) {
-        var attempt = currentAttempt();
-        if (successful) {
-            attempt.setStatus(AttemptStatus.SUCCESSFUL);
-            currentStage().setStatus(ExchangeTaskStatus.SUCCESSFUL);
-        } else {
-            attempt.setStatus(AttemptStatus.FAILED);
-            attempt.setErrorMessage(errorMsg);
-        }
-    }
-
     void finishGeneration(String productUrl, String managementUrl,String sourceCodeUrl) {
         exchange.setManagementURL(managementUrl);
         exchange.setProductURL(productUrl);
@@ -329,14 +385,6 @@ public class AppGenerator implements Task, AbortController, CodeAgentListener {
     void destroy() {
     }
 
-    private AttemptRT currentAttempt() {
-        return exchange.getTasks().getLast().getAttempts().getLast();
-    }
-
-    private ExchangeTaskRT currentStage() {
-        return exchange.getTasks().getLast();
-    }
-
     @Override
     public List<File> getAttachments() {
         return attachments;
@@ -362,7 +410,6 @@ public class AppGenerator implements Task, AbortController, CodeAgentListener {
 
     @Override
     public void onThought(String thoughtChunk) {
-        System.out.print(thoughtChunk);
         for (var listener : listeners) {
             listener.onThought(thoughtChunk);
         }
@@ -370,27 +417,85 @@ public class AppGenerator implements Task, AbortController, CodeAgentListener {
 
     @Override
     public void onContent(String contentChunk) {
-        System.out.print(contentChunk);
         for (var listener : listeners) {
             listener.onContent(contentChunk);
         }
     }
 
     private void onProgress(ExchangeDTO exchange) {
-        var it = listeners.iterator();
-        while (it.hasNext()) {
-            var l = it.next();
+        var event = progressStream.next(exchange);
+        for (var l : listeners) {
             try {
-                l.onProgress(exchange);
+                l.onProgress(event);
             } catch (Exception e) {
                 log.error("Failed to notify generation listener", e);
-                it.remove();
+                removeListener(l);
+                continue;
             }
+            if (l.isClosed())
+                removeListener(l);
         }
     }
 
+    private void removeListener(GenerationListener listener) {
+        if (listeners.remove(listener))
+            listener.close();
+    }
+
     public void addListener(GenerationListener listener) {
-        listeners.add(listener);
+        exchange.getLock().lock();
+        try {
+            if (listenersClosed)
+                listener.close();
+            else
+                listeners.add(listener);
+        } finally {
+            exchange.getLock().unlock();
+        }
+    }
+
+    /**
+     * Closes the listeners once generation has ended, after the events already published to them. Listeners
+     * attached afterward are closed right away.
+     */
+    public void closeListeners() {
+        exchange.getLock().lock();
+        try {
+            listenersClosed = true;
+            listeners.forEach(this::removeListener);
+        } finally {
+            exchange.getLock().unlock();
+        }
+    }
+
+    /**
+     * Attaches a listener of a reconnecting client. If the client resumes from a retained progress event,
+     * only the events it missed are replayed; otherwise it receives a snapshot.
+     */
+    public void reconnect(GenerationListener listener, @Nullable String lastEventId) {
+        exchange.getLock().lock();
+        try {
+            if (listenersClosed) {
+                listener.close();
+                return;
+            }
+            var missed = lastEventId != null && listener.isIncrementalProgress()
+                    ? progressStream.replay(lastEventId) : null;
+            if (missed != null)
+                missed.forEach(listener::onProgress);
+            else {
+                var snapshot = progressStream.snapshot();
+                if (snapshot == null) {
+                    listeners.add(listener);
+                    sendProgress();
+                    return;
+                }
+                listener.onProgress(snapshot);
+            }
+            listeners.add(listener);
+        } finally {
+            exchange.getLock().unlock();
+        }
     }
 
     public void cancel() {
@@ -406,21 +511,6 @@ public class AppGenerator implements Task, AbortController, CodeAgentListener {
         return isCancelled();
     }
 
-    @Override
-    public void onAttemptStart() {
-        startAttempt();
-    }
-
-    @Override
-    public void onAttemptSuccess() {
-        finishAttempt(true, null);
-    }
-
-    @Override
-    public void onAttemptFailure(String error) {
-        finishAttempt(false, error);
-    }
-
     public ModuleGenerator getModuleGeneratorByName(String name) {
         return Utils.findRequired(moduleGenerators, mg -> mg.getModule().name().equals(name),
                 () -> new IllegalStateException("No module found for name: " + name));
@@ -441,6 +531,10 @@ public class AppGenerator implements Task, AbortController, CodeAgentListener {
     }
 
 
+    UsageLedger getUsageLedger() {
+        return usageLedger;
+    }
+
     public ExchangeRT getExchange() {
         return exchange;
     }
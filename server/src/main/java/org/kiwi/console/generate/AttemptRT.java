@@ -2,14 +2,17 @@ package org.kiwi.console.generate;
 
 import org.kiwi.console.kiwi.Attempt;
 import org.kiwi.console.kiwi.AttemptStatus;
+import org.kiwi.console.kiwi.Usage;
 
 import javax.annotation.Nullable;
+import java.util.Objects;
 
 public class AttemptRT {
 
     private final String id;
     private AttemptStatus status;
     private @Nullable String errorMessage;
+    private Usage usage = Usage.ZERO;
     private final ExchangeTaskRT task;
 
     public AttemptRT(String id, ExchangeTaskRT task) {
@@ -18,17 +21,29 @@ public class AttemptRT {
     }
 
     public void setStatus(AttemptStatus status) {
-        this.status = status;
-        task.getExchange().onChange();
+        var exchange = task.getExchange();
+        exchange.getLock().lock();
+        try {
+            this.status = status;
+            exchange.onChange();
+        } finally {
+            exchange.getLock().unlock();
+        }
     }
 
     public void setErrorMessage(@Nullable String errorMsg) {
-        this.errorMessage = errorMsg;
-        task.getExchange().onChange();
+        var exchange = task.getExchange();
+        exchange.getLock().lock();
+        try {
+            this.errorMessage = errorMsg;
+            exchange.onChange();
+        } finally {
+            exchange.getLock().unlock();
+        }
     }
 
     public Attempt build() {
-        return new Attempt(id, status, errorMessage);
+        return new Attempt(id, status, errorMessage, usage.calls() > 0 ? usage : null);
     }
 
     public String getId() {
@@ -38,10 +53,27 @@ public class AttemptRT {
     public void update(Attempt attempt) {
         status = attempt.getStatus();
         errorMessage = attempt.getErrorMessage();
+        usage = Objects.requireNonNullElse(attempt.getUsage(), Usage.ZERO);
+    }
+
+    /**
+     * Called with the exchange locked
+     */
+    void addUsage(Usage usage) {
+        this.usage = this.usage.plus(usage);
+    }
+
+    boolean isRunning() {
+        return status == AttemptStatus.RUNNING;
     }
 
     public void fail(String error) {
-        status = AttemptStatus.FAILED;
-        errorMessage = error;
+        task.getExchange().getLock().lock();
+        try {
+            status = AttemptStatus.FAILED;
+            errorMessage = error;
+        } finally {
+            task.getExchange().getLock().unlock();
+        }
     }
 }
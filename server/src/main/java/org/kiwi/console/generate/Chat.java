@@ -8,4 +8,14 @@ public interface Chat {
 
     void send(String text, List<File> attachments, ChatStreamListener listener, ChatController ctrl);
 
+    /**
+     * @param cachePrefixLength length of the leading part of {@code text} that is likely to be sent again unchanged,
+     *                          such as the head of a prompt template. Providers that support prompt caching mark it
+     *                          as cacheable.
+     */
+    default void send(String text, int cachePrefixLength, List<File> attachments, ChatStreamListener listener,
+                      ChatController ctrl) {
+        send(text, attachments, listener, ctrl);
+    }
+
 }
@@ -4,4 +4,23 @@ public interface ChatController {
 
     boolean isAborted();
 
+    /**
+     * Whether the caller has received everything it needs. The chat then stops reading the response, closes
+     * the upstream stream and returns normally.
+     */
+    default boolean isCompleted() {
+        return false;
+    }
+
+    /**
+     * Whether the response must come from the model even if an identical request has been answered before.
+     */
+    default boolean isCacheBypassed() {
+        return false;
+    }
+
+    default ChatPriority getPriority() {
+        return ChatPriority.INTERACTIVE;
+    }
+
 }
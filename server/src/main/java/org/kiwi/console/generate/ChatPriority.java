@@ -0,0 +1,15 @@
+package org.kiwi.console.generate;
+
+/**
+ * Order in which messages waiting for a rate-limited provider are sent.
+ */
+public enum ChatPriority {
+    /**
+     * Generation that a user is waiting for
+     */
+    INTERACTIVE,
+    /**
+     * Work that can wait, such as test steps
+     */
+    BACKGROUND
+}
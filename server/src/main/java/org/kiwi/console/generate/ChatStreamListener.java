@@ -6,5 +6,23 @@ public interface ChatStreamListener {
 
     void onContent(String contentChunk);
 
-}
+    /**
+     * Called when the provider reports token usage. Some providers report it in parts, so this may be called
+     * more than once for a response, in which case the counts add up.
+     */
+    default void onUsage(TokenUsage usage) {
+    }
+
+    /**
+     * Called with the rate limits that the provider reported along with the response, before any content.
+     */
+    default void onRateLimits(RateLimits limits) {
+    }
 
+    /**
+     * Called before a response is replayed from a response cache instead of coming from the model.
+     */
+    default void onReplay() {
+    }
+
+}
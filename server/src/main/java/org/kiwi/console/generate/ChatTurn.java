@@ -0,0 +1,11 @@
+package org.kiwi.console.generate;
+
+import org.kiwi.console.file.File;
+
+import java.util.List;
+
+/**
+ * A message sent in a chat together with the content of its response.
+ */
+public record ChatTurn(String text, List<File> attachments, String response) {
+}
@@ -1,15 +1,27 @@
 package org.kiwi.console.generate;
 
+import lombok.SneakyThrows;
 import lombok.extern.slf4j.Slf4j;
+import org.kiwi.console.generate.context.ContextBuilder;
+import org.kiwi.console.generate.context.ProjectContext;
 import org.kiwi.console.kiwi.Tech;
+import org.kiwi.console.patch.Patch;
 import org.kiwi.console.patch.PatchReader;
 import org.kiwi.console.util.Utils;
 
 import java.util.List;
+import java.util.Set;
+import java.util.stream.Collectors;
 
 @Slf4j
 public abstract class CodeAgent {
 
+    protected final ContextBuilder contextBuilder;
+
+    protected CodeAgent(ContextBuilder contextBuilder) {
+        this.contextBuilder = contextBuilder;
+    }
+
     public abstract void generate(GenerationRequest request);
 
     public void deploy(long appId, String projectName, boolean deploySource, boolean noBackup) {
@@ -17,20 +29,54 @@ public abstract class CodeAgent {
     }
 
     protected DeployResult generateCode(Chat chat, String prompt, GenerationRequest request) {
-        try {
-            var patch = new PatchReader(Models.generateContent(chat, prompt, request.getAttachments(), request.getAbortController())).read();
-            return getCompiler().run(request.getAppId(), request.getProjectName(), patch.addedFiles(), patch.removedFiles(), request.isDeploySource(), request.isNoBackup());
+        return generateCode(chat, prompt, 0, request);
+    }
+
+    /**
+     * Files of the patch are written as soon as the model finishes them and checked while it goes on. If a check
+     * fails, the build is skipped. If the patch does not complete, the files written ahead are restored, so that
+     * a retry does not read them back as existing code.
+     *
+     * @param cachePrefixLength see {@link Chat#send(String, int, List, ChatStreamListener, ChatController)}
+     */
+    @SneakyThrows
+    protected DeployResult generateCode(Chat chat, String prompt, int cachePrefixLength, GenerationRequest request) {
+        try (var writer = new StreamingPatchWriter(getCompiler(), request.getProjectName())) {
+            Patch patch;
+            try {
+                patch = new PatchReader(Models.generateContent(chat, prompt, cachePrefixLength, request.getAttachments(),
+                        request.getAbortController(), writer::accept)).read();
+            } catch (MalformedHunkException e) {
+                writer.restore(Set.of());
+                return new DeployResult(false, e.getMessage());
+            } catch (Throwable e) {
+                writer.restore(Set.of());
+                throw e;
+            }
+            writer.restore(patch.addedFiles().stream().map(SourceFile::path).collect(Collectors.toSet()));
+            var errors = writer.getErrors(patch);
+            if (errors != null) {
+                getCompiler().apply(request.getProjectName(), patch.addedFiles(), patch.removedFiles());
+                return new DeployResult(false, errors);
+            }
+            return getCompiler().run(request.getAppId(), request.getProjectName(), patch.addedFiles(), patch.removedFiles(),
+                    request.isDeploySource(), request.isNoBackup(), request.getListener()::onBuildSuccess);
         } catch (MalformedHunkException e) {
             return new DeployResult(false, e.getMessage());
         }
     }
 
+    /**
+     * @param context the project code sent with the first prompt. Files it left out are added to the fix prompt
+     *                when the error mentions them.
+     */
     protected void fix(String error,
                      Chat chat,
-                     GenerationRequest request) {
+                     GenerationRequest request,
+                     ProjectContext context) {
         for (int i = 0; i < 5; i++) {
             request.getListener().onAttemptStart();
-            var fixPrompt = Format.format(request.getFixTemplate(), error);
+            var fixPrompt = Format.format(request.getFixTemplate(), context.expand(error));
             log.info("Fix prompt:\n{}", fixPrompt);
             var r = generateCode(chat, fixPrompt, request);
             if (r.successful()) {
@@ -43,6 +89,10 @@ public abstract class CodeAgent {
         throw new RuntimeException("Failed to fix compilation errors after 5 attempts: " + error);
     }
 
+    protected String buildQuery(GenerationRequest request) {
+        return request.getSuggestion() != null ? request.getRequirement() + "\n" + request.getSuggestion() : request.getRequirement();
+    }
+
     protected abstract Compiler getCompiler();
 
     public void commit(String projectName, String message) {
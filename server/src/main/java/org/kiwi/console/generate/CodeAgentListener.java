@@ -8,4 +8,7 @@ public interface CodeAgentListener {
 
     void onAttemptFailure(String error);
 
+    default void onBuildSuccess() {
+    }
+
 }
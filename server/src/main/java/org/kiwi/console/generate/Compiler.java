@@ -1,14 +1,43 @@
 package org.kiwi.console.generate;
 
+import javax.annotation.Nullable;
 import java.nio.file.Path;
 import java.util.List;
 
 public interface Compiler {
 
-    DeployResult run(long appId, String projectName, List<SourceFile> sourceFiles, List<Path> removedFiles, boolean deploySource, boolean noBackup);
+    default DeployResult run(long appId, String projectName, List<SourceFile> sourceFiles, List<Path> removedFiles, boolean deploySource, boolean noBackup) {
+        return run(appId, projectName, sourceFiles, removedFiles, deploySource, noBackup, () -> {});
+    }
+
+    /**
+     * @param onBuilt invoked once the build succeeds, before the deployment starts
+     */
+    DeployResult run(long appId, String projectName, List<SourceFile> sourceFiles, List<Path> removedFiles, boolean deploySource, boolean noBackup, Runnable onBuilt);
+
+    /**
+     * Writes and removes files without building.
+     */
+    void apply(String projectName, List<SourceFile> sourceFiles, List<Path> removedFiles);
+
+    /**
+     * Runs a check on a single file that is cheap enough to be done while the rest of a patch is still being
+     * generated. Problems that need the other files of the patch to be seen must be left to the build.
+     *
+     * @return the errors found, or null if there are none or the file type has no such check
+     */
+    default @Nullable String check(String projectName, SourceFile file) {
+        return null;
+    }
 
     List<SourceFile> getSourceFiles(String projectName);
 
+    /**
+     * @param path relative to the work directory
+     * @return the content of the file, or null if it does not exist
+     */
+    @Nullable String readFile(String projectName, Path path);
+
     void addFile(String projectName, SourceFile file);
 
     DeployResult deploy(long appId, String projectName, boolean deploySource, boolean noBackup);
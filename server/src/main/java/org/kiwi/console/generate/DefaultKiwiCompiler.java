@@ -1,14 +1,22 @@
 package org.kiwi.console.generate;
 
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Metrics;
 import lombok.SneakyThrows;
 import lombok.extern.slf4j.Slf4j;
 import org.kiwi.console.util.*;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.security.MessageDigest;
 import java.util.ArrayList;
+import java.util.HexFormat;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 @Slf4j
 public class DefaultKiwiCompiler extends AbstractCompiler implements KiwiCompiler {
@@ -20,7 +28,9 @@ public class DefaultKiwiCompiler extends AbstractCompiler implements KiwiCompile
                     2. Trying to remove an enum constant that is being referenced by other objects.
                     3. Trying to remove a class whose instances are being referenced by other objects.
                     """;
-
+    private final Map<Path, ApiArtifact> apiCache = new ConcurrentHashMap<>();
+    private final Counter apiCacheHits = apiCacheCounter("hit");
+    private final Counter apiCacheMisses = apiCacheCounter("miss");
 
     public DefaultKiwiCompiler(Path baseDir, DeployService deployService) {
         super(baseDir);
@@ -56,14 +66,68 @@ public class DefaultKiwiCompiler extends AbstractCompiler implements KiwiCompile
         deployService.revert(appId);
     }
 
-    @SneakyThrows
+    /**
+     * Returns the API of the project, generated at most once per state of its sources and {@code .version}.
+     */
     public String generateApi(String projectName) {
         var wd = WorkDir.from(baseDir, projectName);
-        var version = getVersion(wd);
-        var r = Utils.executeCommand(wd.root(), "manul", "gen-api", "--version", Long.toString(version));
+        var hash = hashSources(wd);
+        var cached = apiCache.get(wd.root());
+        if (cached != null && cached.sourceHash.equals(hash)) {
+            apiCacheHits.increment();
+            return cached.api;
+        }
+        apiCacheMisses.increment();
+        return cacheApi(wd, hash);
+    }
+
+    private String cacheApi(WorkDir workDir, String hash) {
+        var api = runGenApi(workDir);
+        // Sources changed while generating, so the API may not be that of the hash
+        if (hashSources(workDir).equals(hash))
+            apiCache.put(workDir.root(), new ApiArtifact(hash, api));
+        return api;
+    }
+
+    @SneakyThrows
+    String runGenApi(WorkDir workDir) {
+        var version = getVersion(workDir);
+        var r = runBuild(workDir, List.of("manul", "gen-api", "--version", Long.toString(version)));
         if (r.exitCode() != 0)
             throw new RuntimeException("Failed to generate API: " + r.output());
-        return Files.readString(wd.root().resolve("apigen").resolve("api.ts"));
+        return Files.readString(workDir.root().resolve("apigen").resolve("api.ts"));
+    }
+
+    /**
+     * Digest of the files under {@code src} and of {@code .version}, which are all that the API depends on.
+     */
+    @SneakyThrows
+    String hashSources(WorkDir workDir) {
+        var digest = MessageDigest.getInstance("SHA-256");
+        var files = new ArrayList<Path>();
+        if (Files.isDirectory(workDir.getSrcPath())) {
+            try (var paths = Files.walk(workDir.getSrcPath())) {
+                paths.filter(Files::isRegularFile).forEach(files::add);
+            }
+        }
+        files.sort(null);
+        var versionPath = workDir.root().resolve(".version");
+        if (Files.exists(versionPath))
+            files.add(versionPath);
+        for (var file : files) {
+            digest.update(workDir.root().relativize(file).toString().getBytes(StandardCharsets.UTF_8));
+            digest.update((byte) 0);
+            var bytes = Files.readAllBytes(file);
+            digest.update(ByteBuffer.allocate(Long.BYTES).putLong(bytes.length).flip());
+            digest.update(bytes);
+        }
+        return HexFormat.of().formatHex(digest.digest());
+    }
+
+    @Override
+    public void delete(String projectName) {
+        apiCache.remove(getWorkDir(projectName).root());
+        super.delete(projectName);
     }
 
     @SneakyThrows
@@ -72,9 +136,16 @@ public class DefaultKiwiCompiler extends AbstractCompiler implements KiwiCompile
         var command = new ArrayList<>(List.of("manul", "build"));
         if (version > 1)
             command.add("--sense-lint");
-        var r = Utils.executeCommand(workDir.root(), command);
-        if (r.output().isEmpty())
+        var r = runBuild(workDir, command);
+        if (r.output().isEmpty()) {
+            // Dependents ask for the API as soon as the build succeeds
+            try {
+                cacheApi(workDir, hashSources(workDir));
+            } catch (RuntimeException e) {
+                log.warn("Failed to generate API of {} after build", workDir.root(), e);
+            }
             return new BuildResult(true, null);
+        }
         log.info("Build failed: {}", r.output());
         return new BuildResult(false, r.output());
     }
@@ -93,6 +164,16 @@ public class DefaultKiwiCompiler extends AbstractCompiler implements KiwiCompile
         }
     }
 
+    private static Counter apiCacheCounter(String result) {
+        return Counter.builder("generation.api.cache")
+                .description("Requests for the generated API of Kiwi projects")
+                .tag("result", result)
+                .register(Metrics.globalRegistry);
+    }
+
+    private record ApiArtifact(String sourceHash, String api) {
+    }
+
     public static void main(String[] args) {
         var compiler = new DefaultKiwiCompiler(Path.of("/tmp/kiwi-works"), new MockDeployService());
         var code = "class Foo(var name: string)";
@@ -1,19 +1,45 @@
 package org.kiwi.console.generate;
 
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.Timer;
 import lombok.SneakyThrows;
 import lombok.extern.slf4j.Slf4j;
 import org.kiwi.console.util.Utils;
 
 import javax.annotation.Nullable;
-import java.nio.file.Files;
-import java.nio.file.Path;
+import java.io.IOException;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
 import java.util.ArrayList;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
 
 @Slf4j
 public class DefaultPageCompiler extends AbstractCompiler implements PageCompiler {
 
+    private static final Pattern SYNTAX_ERROR = Pattern.compile("error TS1\\d{3}:");
+    /**
+     * Hash of the package.json that node_modules was installed from
+     */
+    private static final String INSTALL_STAMP = ".kiwi-installed";
+
+    private final Path storeDir;
+
     public DefaultPageCompiler(Path baseDir) {
+        this(baseDir, baseDir.resolve(".pnpm-store"));
+    }
+
+    /**
+     * @param storeDir the pnpm store shared by all workspaces. On the same file system as the workspaces,
+     *                 packages are reflinked or hard-linked from it rather than copied.
+     */
+    public DefaultPageCompiler(Path baseDir, Path storeDir) {
         super(baseDir);
+        this.storeDir = storeDir;
     }
 
     @Override
@@ -28,21 +54,161 @@ public class DefaultPageCompiler extends AbstractCompiler implements PageCompile
         return new DeployResult(true, null);
     }
 
+    @Override
+    protected void prepareWorkDir(WorkDir workDir) {
+        var r = install(workDir, "prepare");
+        if (r.exitCode() != 0)
+            throw new RuntimeException("Failed to run `pnpm install`: " + r.output());
+    }
+
+    /**
+     * Installs dependencies again if package.json has changed since they were last installed, which is the
+     * case when the generated code adds a dependency to the template.
+     */
+    private @Nullable String ensureDependencies(WorkDir workDir) {
+        var hash = hashManifest(workDir);
+        if (hash == null || hash.equals(readStamp(workDir)))
+            return null;
+        log.info("package.json of {} changed, installing dependencies", workDir.root());
+        var r = install(workDir, "changed");
+        return r.exitCode() == 0 ? null : r.output();
+    }
+
+    private Utils.CommandResult install(WorkDir workDir, String reason) {
+        var sample = Timer.start();
+        var r = runInstall(workDir);
+        if (r.exitCode() != 0 && r.output().contains("ERR_PNPM_UNEXPECTED_STORE")) {
+            // Installed from another store before the shared one was configured
+            Utils.executeCommand(workDir.root(), "rm", "-rf", "node_modules");
+            r = runInstall(workDir);
+        }
+        sample.stop(Timer.builder("generation.page.install")
+                .description("Time to install the dependencies of page workspaces")
+                .tag("reason", reason)
+                .tag("result", r.exitCode() == 0 ? "success" : "failure")
+                .register(Metrics.globalRegistry));
+        if (r.exitCode() == 0) {
+            writeStamp(workDir, hashManifest(workDir));
+            recordDiskUsage(workDir);
+        }
+        return r;
+    }
+
+    private Utils.CommandResult runInstall(WorkDir workDir) {
+        return Utils.executeCommand(workDir.root(), "pnpm", "install",
+                "--store-dir", storeDir.toAbsolutePath().toString(),
+                "--package-import-method", "auto",
+                "--prefer-offline");
+    }
+
+    @SneakyThrows
+    private static @Nullable String hashManifest(WorkDir workDir) {
+        var manifest = workDir.root().resolve("package.json");
+        if (!Files.isRegularFile(manifest))
+            return null;
+        return HexFormat.of().formatHex(MessageDigest.getInstance("SHA-256").digest(Files.readAllBytes(manifest)));
+    }
+
+    @SneakyThrows
+    private static @Nullable String readStamp(WorkDir workDir) {
+        var stamp = workDir.root().resolve("node_modules").resolve(INSTALL_STAMP);
+        return Files.isRegularFile(stamp) ? Files.readString(stamp).trim() : null;
+    }
+
+    @SneakyThrows
+    private static void writeStamp(WorkDir workDir, @Nullable String hash) {
+        var nodeModules = workDir.root().resolve("node_modules");
+        if (hash != null && Files.isDirectory(nodeModules))
+            Files.writeString(nodeModules.resolve(INSTALL_STAMP), hash);
+    }
+
+    private static void recordDiskUsage(WorkDir workDir) {
+        try {
+            var usage = measure(workDir.root().resolve("node_modules"));
+            DistributionSummary.builder("generation.page.node-modules")
+                    .description("Size of the files in node_modules after an install, by whether they are shared with the store")
+                    .baseUnit("bytes")
+                    .tag("storage", "shared")
+                    .register(Metrics.globalRegistry)
+                    .record(usage.sharedBytes());
+            DistributionSummary.builder("generation.page.node-modules")
+                    .description("Size of the files in node_modules after an install, by whether they are shared with the store")
+                    .baseUnit("bytes")
+                    .tag("storage", "own")
+                    .register(Metrics.globalRegistry)
+                    .record(usage.ownBytes());
+            log.info("node_modules of {}: {} KB shared with the store, {} KB of its own", workDir.root(),
+                    usage.sharedBytes() / 1024, usage.ownBytes() / 1024);
+        } catch (IOException | RuntimeException e) {
+            log.warn("Failed to measure node_modules of {}", workDir.root(), e);
+        }
+    }
+
+    record DiskUsage(long sharedBytes, long ownBytes) {
+    }
+
+    /**
+     * Files with more than one link are shared with the store. Reflinked files cannot be told apart from copies
+     * and count as the workspace's own.
+     */
+    static DiskUsage measure(Path dir) throws IOException {
+        var shared = new long[1];
+        var own = new long[1];
+        Files.walkFileTree(dir, new SimpleFileVisitor<>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                if (attrs.isRegularFile()) {
+                    var links = (Integer) Files.getAttribute(file, "unix:nlink", LinkOption.NOFOLLOW_LINKS);
+                    if (links > 1)
+                        shared[0] += attrs.size();
+                    else
+                        own[0] += attrs.size();
+                }
+                return FileVisitResult.CONTINUE;
+            }
+        });
+        return new DiskUsage(shared[0], own[0]);
+    }
+
     @SneakyThrows
     @Override
     protected void initWorkDir(WorkDir workDir, String projectName) {
-        var r1 = Utils.executeCommand(workDir.root(), "pnpm", "install");
-        if (r1.exitCode() != 0)
-            throw new RuntimeException("Failed to run `pnpm install`: " + r1.output());
         var envFilePath = workDir.getSrcPath().resolve("env.ts");
         Files.writeString(envFilePath, "export const APP_ID = " + projectName);
         Utils.executeCommand(workDir.root(), "git", "add", "src/env.ts");
         Utils.executeCommand(workDir.root(), "git", "commit", "-m", "\"Add env.ts\"");
     }
 
+    /**
+     * Reports the syntax errors (TS1xxx) of a TypeScript file. With {@code --noResolve}, the file is compiled
+     * on its own, so errors that depend on other files are left to the build.
+     */
+    @Override
+    public @Nullable String check(String projectName, SourceFile file) {
+        var name = file.path().getFileName().toString();
+        if (!name.endsWith(".ts") && !name.endsWith(".tsx"))
+            return null;
+        var workDir = getWorkDir(projectName);
+        var tsc = workDir.root().resolve("node_modules").resolve(".bin").resolve("tsc");
+        if (!Files.isExecutable(tsc))
+            return null;
+        var r = Utils.executeCommand(workDir.root(), tsc.toString(), "--noEmit", "--noResolve", "--skipLibCheck",
+                "--jsx", "preserve", "--target", "esnext", "--module", "esnext",
+                file.path().toString());
+        var errors = r.output().lines()
+                .filter(l -> SYNTAX_ERROR.matcher(l).find())
+                .collect(Collectors.joining("\n"));
+        return errors.isEmpty() ? null : errors;
+    }
+
     protected BuildResult build(WorkDir workDir) {
+        var installError = ensureDependencies(workDir);
+        if (installError != null) {
+            log.info("Install failed: {}", installError);
+            return new BuildResult(false, installError);
+        }
         Utils.CommandResult r;
-        r = Utils.executeCommand(workDir.root(), "pnpm", "run", "build");
+        r = runBuild(workDir, List.of("pnpm", "run", "build"));
         if (r.exitCode() == 0)
             return new BuildResult(true, null);
         log.info("Build failed: {}", r.output());
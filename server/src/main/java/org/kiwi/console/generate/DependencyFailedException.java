@@ -0,0 +1,13 @@
+package org.kiwi.console.generate;
+
+/**
+ * Thrown by a module task whose dependency failed. It is a consequence of another failure, which is the one
+ * that gets reported.
+ */
+public class DependencyFailedException extends RuntimeException {
+
+    public DependencyFailedException(String message) {
+        super(message);
+    }
+
+}
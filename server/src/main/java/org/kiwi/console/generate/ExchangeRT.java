@@ -1,5 +1,6 @@
 package org.kiwi.console.generate;
 
+import lombok.extern.slf4j.Slf4j;
 import org.kiwi.console.generate.rest.ExchangeDTO;
 import org.kiwi.console.kiwi.*;
 import org.kiwi.console.util.BusinessException;
@@ -8,16 +9,35 @@ import org.kiwi.console.util.Utils;
 
 import javax.annotation.Nullable;
 import java.util.ArrayList;
-import java.util.Collections;
 import java.util.List;
 import java.util.Objects;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.function.Consumer;
 
+/**
+ * Runtime view of an exchange. Module generators may run concurrently, so every mutation, together with
+ * the save and the progress notification it triggers, happens under the exchange's lock. Tasks and
+ * attempts lock their owning exchange. A {@link ReentrantLock} is used instead of a monitor because the
+ * save is a blocking call, which would pin the carrier when running on virtual threads.
+ * <p>
+ * Changes are not saved one by one. They are coalesced within {@code saveDelayMillis} and saved without reading
+ * the exchange back. Only starting a task or an attempt saves and reads back immediately, because their ids are
+ * assigned by the server. Terminal states are saved synchronously.
+ * <p>
+ * With {@code deltaSaves}, a save sends an {@link ExchangePatch} against the last saved state instead of the whole
+ * exchange. This requires a Kiwi server that merges tasks and attempts of a patch by id.
+ */
+@Slf4j
 public class ExchangeRT {
 
-    public static ExchangeRT from(Exchange exchange, AppRT app, ExchangeClient exchClient) {
-        var exch = new ExchangeRT(exchange.getId(), app, exchClient);
+    public static ExchangeRT from(Exchange exchange, AppRT app, ExchangeClient exchClient,
+                                  ScheduledExecutorService saveScheduler, long saveDelayMillis, boolean deltaSaves) {
+        var exch = new ExchangeRT(exchange.getId(), app, exchClient, saveScheduler, saveDelayMillis, deltaSaves);
         exch.update(exchange);
+        exch.saved = exch.build();
         return exch;
     }
 
@@ -25,7 +45,7 @@ public class ExchangeRT {
     private String appId;
     private String userId;
     private String requirement;
-    private ExchangeStatus status;
+    private volatile ExchangeStatus status;
     private List<String> attachmentUrls;
     private String productURL;
     private String managementURL;
@@ -34,15 +54,31 @@ public class ExchangeRT {
     private boolean first;
     private long lastHeartBeatAt;
     private @Nullable String pageId;
+    private @Nullable Integer queuePosition;
+    private Usage usage = Usage.ZERO;
     private final ExchangeClient exchClient;
     private Consumer<ExchangeDTO> listener;
     private final List<ExchangeTaskRT> tasks = new ArrayList<>();
     private final AppRT app;
-
-    public ExchangeRT(String id, AppRT app, ExchangeClient exchClient) {
+    private final ReentrantLock lock = new ReentrantLock();
+    private final ScheduledExecutorService saveScheduler;
+    private final long saveDelayMillis;
+    private final boolean deltaSaves;
+    private Exchange saved;
+    private @Nullable ScheduledFuture<?> pendingSave;
+
+    public ExchangeRT(String id, AppRT app, ExchangeClient exchClient,
+                      ScheduledExecutorService saveScheduler, long saveDelayMillis, boolean deltaSaves) {
         this.id = id;
         this.exchClient = exchClient;
         this.app = app;
+        this.saveScheduler = saveScheduler;
+        this.saveDelayMillis = saveDelayMillis;
+        this.deltaSaves = deltaSaves;
+    }
+
+    ReentrantLock getLock() {
+        return lock;
     }
 
     String getAppId() {
@@ -54,15 +90,63 @@ public class ExchangeRT {
     }
 
     void onChange(boolean ensureNotCancelled) {
-        if (ensureNotCancelled)
-            ensureNotCancelled();
-        lastHeartBeatAt = System.currentTimeMillis();
-        var exch = saveExchange(build());
-        listener.accept(exch.toDTO(pageId));
+        lock.lock();
+        try {
+            if (ensureNotCancelled)
+                ensureNotCancelled();
+            lastHeartBeatAt = System.currentTimeMillis();
+            var exch = build();
+            if (isRunning())
+                scheduleSave();
+            else
+                save(exch);
+            listener.accept(exch.toDTO(pageId, queuePosition));
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void scheduleSave() {
+        if (pendingSave == null)
+            pendingSave = saveScheduler.schedule(this::flush, saveDelayMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Saves pending changes, if any.
+     */
+    public void flush() {
+        lock.lock();
+        try {
+            save(build());
+        } catch (Exception e) {
+            log.warn("Failed to save exchange {}", id, e);
+        } finally {
+            lock.unlock();
+        }
     }
 
-    private Exchange saveExchange(Exchange exch) {
-        return exchClient.get(exchClient.save(exch));
+    private void save(Exchange exch) {
+        if (pendingSave != null) {
+            pendingSave.cancel(false);
+            pendingSave = null;
+        }
+        if (exch.equals(saved))
+            return;
+        var patch = deltaSaves ? ExchangePatch.diff(saved, exch) : null;
+        if (patch != null)
+            exchClient.patch(id, patch);
+        else
+            exchClient.update(id, exch);
+        saved = exch;
+    }
+
+    /**
+     * Saves the exchange and reads it back to pick up the ids of new tasks and attempts.
+     */
+    private void saveAndReload(Exchange exch) {
+        save(exch);
+        update(exchClient.get(id));
+        saved = build();
     }
 
     private Exchange build() {
@@ -83,7 +167,8 @@ public class ExchangeRT {
                 null,
                 0,
                 false,
-                Utils.map(tasks, ExchangeTaskRT::build)
+                Utils.map(tasks, ExchangeTaskRT::build),
+                usage.calls() > 0 ? usage : null
         );
     }
 
@@ -92,40 +177,67 @@ public class ExchangeRT {
     }
 
     public void setStatus(ExchangeStatus status) {
-        this.status = status;
-        onChange();
+        lock.lock();
+        try {
+            this.status = status;
+            onChange();
+        } finally {
+            lock.unlock();
+        }
     }
 
     public List<ExchangeTaskRT> getTasks() {
-        return Collections.unmodifiableList(tasks);
+        lock.lock();
+        try {
+            return List.copyOf(tasks);
+        } finally {
+            lock.unlock();
+        }
     }
 
     public @Nullable ExchangeTaskRT findLastTaskByModule(String moduleId) {
-        ExchangeTaskRT found = null;
-        for (ExchangeTaskRT task : tasks) {
-            if (moduleId.equals(task.getModuleId()))
-                found = task;
+        lock.lock();
+        try {
+            ExchangeTaskRT found = null;
+            for (ExchangeTaskRT task : tasks) {
+                if (moduleId.equals(task.getModuleId()))
+                    found = task;
+            }
+            return found;
+        } finally {
+            lock.unlock();
         }
-        return found;
     }
 
     public ExchangeTaskRT startTask(ModuleRT module, ExchangeTaskType type) {
-        var exch = build();
-        exch.addTask(new ExchangeTask(module.id(), module.name(), type));
-        exch = saveExchange(exch);
-        update(exch);
-        onChange();
-        return getTasks().getLast();
+        lock.lock();
+        try {
+            ensureNotCancelled();
+            lastHeartBeatAt = System.currentTimeMillis();
+            var exch = build();
+            exch.addTask(new ExchangeTask(module.id(), module.name(), type));
+            saveAndReload(exch);
+            sendProgress();
+            return tasks.getLast();
+        } finally {
+            lock.unlock();
+        }
     }
 
     public AttemptRT startAttempt(ExchangeTaskRT task) {
-        var exch = build();
-        var t = Utils.findRequired(exch.getTasks(), s -> s.getId().equals(task.getId()));
-        t.addAttempt(Attempt.create());
-        exch = saveExchange(exch);
-        update(exch);
-        onChange();
-        return task.getAttempts().getLast();
+        lock.lock();
+        try {
+            ensureNotCancelled();
+            lastHeartBeatAt = System.currentTimeMillis();
+            var exch = build();
+            var t = Utils.findRequired(exch.getTasks(), s -> s.getId().equals(task.getId()));
+            t.addAttempt(Attempt.create());
+            saveAndReload(exch);
+            sendProgress();
+            return task.getAttempts().getLast();
+        } finally {
+            lock.unlock();
+        }
     }
 
     public String getRequirement() {
@@ -137,14 +249,19 @@ public class ExchangeRT {
     }
 
     public boolean isTesting() {
-        for (ExchangeTaskRT task : tasks) {
-            var mod = app.getModule(task.getModuleId());
-            if (mod.type().isTestable() &&
-                    (task.getType() == ExchangeTaskType.TEST || task.getStatus() == ExchangeTaskStatus.SUCCESSFUL)) {
-                return true;
+        lock.lock();
+        try {
+            for (ExchangeTaskRT task : tasks) {
+                var mod = app.getModule(task.getModuleId());
+                if (mod.type().isTestable() &&
+                        (task.getType() == ExchangeTaskType.TEST || task.getStatus() == ExchangeTaskStatus.SUCCESSFUL)) {
+                    return true;
+                }
             }
+            return false;
+        } finally {
+            lock.unlock();
         }
-        return false;
     }
 
     public String getProductURL() {
@@ -152,23 +269,43 @@ public class ExchangeRT {
     }
 
     public void setManagementURL(String managementURL) {
-        this.managementURL = managementURL;
+        lock.lock();
+        try {
+            this.managementURL = managementURL;
+        } finally {
+            lock.unlock();
+        }
     }
 
     public void setProductURL(String productUrl) {
-        this.productURL = productUrl;
-        onChange();
+        lock.lock();
+        try {
+            this.productURL = productUrl;
+            onChange();
+        } finally {
+            lock.unlock();
+        }
     }
 
     public void setSourceCodeURL(String sourceCodeUrl) {
-        this.sourceCodeURL = sourceCodeUrl;
-        onChange();
+        lock.lock();
+        try {
+            this.sourceCodeURL = sourceCodeUrl;
+            onChange();
+        } finally {
+            lock.unlock();
+        }
     }
 
     public void fail(String errorMsg) {
-        this.status = ExchangeStatus.FAILED;
-        this.errorMessage = errorMsg;
-        onChange();
+        lock.lock();
+        try {
+            this.status = ExchangeStatus.FAILED;
+            this.errorMessage = errorMsg;
+            onChange();
+        } finally {
+            lock.unlock();
+        }
     }
 
     public boolean isRunning() {
@@ -180,8 +317,15 @@ public class ExchangeRT {
     }
 
     public void reload() {
-        update(exchClient.get(id));
-        onChange(false);
+        lock.lock();
+        try {
+            flush();
+            update(exchClient.get(id));
+            saved = build();
+            sendProgress();
+        } finally {
+            lock.unlock();
+        }
     }
 
     private void ensureNotCancelled() {
@@ -190,7 +334,24 @@ public class ExchangeRT {
     }
 
     public void setPageId(@Nullable String pageId) {
-        this.pageId = pageId;
+        lock.lock();
+        try {
+            this.pageId = pageId;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void setQueuePosition(@Nullable Integer queuePosition) {
+        lock.lock();
+        try {
+            if (!Objects.equals(this.queuePosition, queuePosition)) {
+                this.queuePosition = queuePosition;
+                sendProgress();
+            }
+        } finally {
+            lock.unlock();
+        }
     }
 
     private void update(Exchange exchange) {
@@ -205,6 +366,7 @@ public class ExchangeRT {
         errorMessage = exchange.getErrorMessage();
         first = exchange.isFirst();
         lastHeartBeatAt = exchange.getLastHeartBeatAt();
+        usage = Objects.requireNonNullElse(exchange.getUsage(), Usage.ZERO);
         var taskMap = Utils.toMap(tasks, ExchangeTaskRT::getId);
         tasks.clear();
         for (ExchangeTask exchangeTask : exchange.getTasks()) {
@@ -217,8 +379,31 @@ public class ExchangeRT {
         }
     }
 
+    /**
+     * Adds the usage of a model call. Usage keeps being recorded after the exchange is cancelled, since calls
+     * that were under way still cost.
+     */
+    public void addUsage(Usage usage) {
+        lock.lock();
+        try {
+            this.usage = this.usage.plus(usage);
+            onChange(false);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public Usage getUsage() {
+        return usage;
+    }
+
     public void sendProgress() {
-        listener.accept(build().toDTO(pageId));
+        lock.lock();
+        try {
+            listener.accept(build().toDTO(pageId, queuePosition));
+        } finally {
+            lock.unlock();
+        }
     }
 
     public boolean isCancelled() {
@@ -230,14 +415,24 @@ public class ExchangeRT {
     }
 
     public void cancel() {
-        ensureNotCancelled();
-        status = ExchangeStatus.CANCELLED;
-        onChange(false);
+        lock.lock();
+        try {
+            ensureNotCancelled();
+            status = ExchangeStatus.CANCELLED;
+            onChange(false);
+        } finally {
+            lock.unlock();
+        }
     }
 
     public void abort(String errorMessage) {
-        status = ExchangeStatus.FAILED;
-        this.errorMessage = errorMessage;
-        onChange();
+        lock.lock();
+        try {
+            status = ExchangeStatus.FAILED;
+            this.errorMessage = errorMessage;
+            onChange();
+        } finally {
+            lock.unlock();
+        }
     }
 }
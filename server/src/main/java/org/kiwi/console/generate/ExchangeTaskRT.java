@@ -4,13 +4,14 @@ import org.kiwi.console.kiwi.Attempt;
 import org.kiwi.console.kiwi.ExchangeTask;
 import org.kiwi.console.kiwi.ExchangeTaskStatus;
 import org.kiwi.console.kiwi.ExchangeTaskType;
+import org.kiwi.console.kiwi.Usage;
 import org.kiwi.console.util.Utils;
 
 import javax.annotation.Nullable;
 import java.util.ArrayList;
-import java.util.Collections;
 import java.util.List;
 import java.util.NoSuchElementException;
+import java.util.Objects;
 import java.util.function.Function;
 import java.util.stream.Collectors;
 
@@ -23,6 +24,7 @@ public class ExchangeTaskRT {
     private @Nullable String errorMessage;
     private final ExchangeRT exchange;
     private final List<AttemptRT> attempts = new ArrayList<>();
+    private Usage usage = Usage.ZERO;
 
     public ExchangeTaskRT(String id, ExchangeRT exchange) {
         this.id = id;
@@ -30,18 +32,48 @@ public class ExchangeTaskRT {
     }
 
     public List<AttemptRT> getAttempts() {
-        return Collections.unmodifiableList(attempts);
+        exchange.getLock().lock();
+        try {
+            return List.copyOf(attempts);
+        } finally {
+            exchange.getLock().unlock();
+        }
     }
 
     public AttemptRT getLastAttempt() {
-        if (attempts.isEmpty())
-            throw new NoSuchElementException("Task " + id + " has no attempts");
-        return attempts.getLast();
+        exchange.getLock().lock();
+        try {
+            if (attempts.isEmpty())
+                throw new NoSuchElementException("Task " + id + " has no attempts");
+            return attempts.getLast();
+        } finally {
+            exchange.getLock().unlock();
+        }
     }
 
     public void fail(String errMsg) {
-        status = ExchangeTaskStatus.FAILED;
-        errorMessage = errMsg;
+        exchange.getLock().lock();
+        try {
+            status = ExchangeTaskStatus.FAILED;
+            errorMessage = errMsg;
+        } finally {
+            exchange.getLock().unlock();
+        }
+    }
+
+    /**
+     * Adds the usage of a model call to this task, to its running attempt, if any, and to the exchange.
+     */
+    public void addUsage(Usage usage) {
+        exchange.getLock().lock();
+        try {
+            this.usage = this.usage.plus(usage);
+            if (!attempts.isEmpty() && attempts.getLast().isRunning())
+                attempts.getLast().addUsage(usage);
+            exchange.addUsage(usage);
+        } finally {
+            exchange.getLock().unlock();
+        }
     }
 
     public void addAttempt() {
@@ -49,8 +81,13 @@ public class ExchangeTaskRT {
     }
 
     public void setStatus(ExchangeTaskStatus status) {
-        this.status = status;
-        exchange.onChange();
+        exchange.getLock().lock();
+        try {
+            this.status = status;
+            exchange.onChange();
+        } finally {
+            exchange.getLock().unlock();
+        }
     }
 
     public ExchangeTaskType getType() {
@@ -69,7 +106,8 @@ public class ExchangeTaskRT {
                 type,
                 status,
                 errorMessage,
-                Utils.map(attempts, AttemptRT::build)
+                Utils.map(attempts, AttemptRT::build),
+                usage.calls() > 0 ? usage : null
         );
     }
 
@@ -91,6 +129,7 @@ public class ExchangeTaskRT {
         type = exchangeTask.getType();
         status = exchangeTask.getStatus();
         errorMessage = exchangeTask.getErrorMessage();
+        usage = Objects.requireNonNullElse(exchangeTask.getUsage(), Usage.ZERO);
         var attemptMap = attempts.stream().collect(Collectors.toUnmodifiableMap(AttemptRT::getId, Function.identity()));
         attempts.clear();
         for (Attempt attempt : exchangeTask.getAttempts()) {
@@ -40,4 +40,24 @@ public class Format {
         return formatKeyed(template, "", args);
     }
 
+    /**
+     * Returns the length of the leading part of {@code format(template, args)} that ends with the {@code n}th
+     * argument, or with the text before the first placeholder if {@code n} is 0.
+     */
+    public static int prefixLength(String template, int n, Object...args) {
+        var end = 0;
+        var remaining = n;
+        while (end < template.length()) {
+            if (isPlaceholder(template, end, "")) {
+                if (remaining-- == 0)
+                    break;
+                end += 2;
+                if (remaining == 0)
+                    break;
+            } else
+                end++;
+        }
+        return format(template.substring(0, end), args).length();
+    }
+
 }
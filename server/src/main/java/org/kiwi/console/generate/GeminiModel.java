@@ -1,8 +1,10 @@
 package org.kiwi.console.generate;
 
 import com.google.genai.Client;
+import com.google.genai.errors.ApiException;
 import com.google.genai.types.Content;
 import com.google.genai.types.GenerateContentConfig;
+import com.google.genai.types.GenerateContentResponseUsageMetadata;
 import com.google.genai.types.Part;
 import com.google.genai.types.ThinkingConfig;
 import lombok.extern.slf4j.Slf4j;
@@ -25,14 +27,26 @@ public class GeminiModel implements Model {
 
     @Override
     public Chat createChat(boolean outputThought) {
-        return new GeminiChat(client.chats.create(model, GenerateContentConfig
+        return newChat(outputThought);
+    }
+
+    @Override
+    public Chat createChat(boolean outputThought, List<ChatTurn> history) {
+        var chat = newChat(outputThought);
+        for (var turn : history)
+            chat.addTurn(turn.text(), turn.attachments(), turn.response());
+        return chat;
+    }
+
+    private GeminiChat newChat(boolean outputThought) {
+        return new GeminiChat(client, model, GenerateContentConfig
                 .builder()
                 .thinkingConfig(
                         ThinkingConfig.builder()
                                 .includeThoughts(outputThought)
                                 .build()
                 )
-                .build()));
+                .build());
     }
 
     @Override
@@ -40,27 +54,41 @@ public class GeminiModel implements Model {
         return model;
     }
 
+    /**
+     * Keeps the conversation itself rather than using the SDK chat, which only records a turn once its response
+     * has been read to the end. A response the caller completes early is recorded as far as it was read.
+     */
     @Slf4j
     private static class GeminiChat implements Chat {
 
-        private final com.google.genai.Chat chat;
+        private final Client client;
+        private final String model;
+        private final GenerateContentConfig config;
+        private final List<Content> history = new ArrayList<>();
+
+        public GeminiChat(Client client, String model, GenerateContentConfig config) {
+            this.client = client;
+            this.model = model;
+            this.config = config;
+        }
 
-        public GeminiChat(com.google.genai.Chat chat) {
-            this.chat = chat;
+        private void addTurn(String text, List<File> attachments, String response) {
+            history.addAll(toContents(text, attachments));
+            history.add(Content.builder().role("model").parts(List.of(Part.fromText(response))).build());
         }
 
         @Override
         public void send(String text, List<File> attachments, ChatStreamListener listener, ChatController ctrl) {
-            var contents = new ArrayList<Content>();
-            contents.add(Content.fromParts(Part.fromText(text)));
-            for (File file : attachments) {
-                if (file.bytes().length > 0)
-                    contents.add(Content.fromParts(Part.fromBytes(file.bytes(), convertMimeType(file.mimeType()))));
-            }
-            try (var stream = chat.sendMessageStream(contents)) {
+            var contents = new ArrayList<>(history);
+            contents.addAll(toContents(text, attachments));
+            var response = new StringBuilder();
+            GenerateContentResponseUsageMetadata usage = null;
+            try (var stream = client.models.generateContentStream(model, contents, config)) {
                 for (var resp : stream) {
                     if (ctrl.isAborted())
                         throw new BusinessException(ErrorCode.TASK_CANCELLED);
+                    if (resp.usageMetadata().isPresent())
+                        usage = resp.usageMetadata().get();
                     var content = resp.candidates().orElseThrow().getFirst().content().orElseThrow();
                     if (content.parts().isEmpty())
                         continue;
@@ -69,13 +97,34 @@ public class GeminiModel implements Model {
                         if (part.text().isPresent()) {
                             if (part.thought().orElse(false))
                                 listener.onThought(part.text().get());
-                            else
+                            else {
+                                response.append(part.text().get());
                                 listener.onContent(part.text().get());
+                            }
                         }
                     }
+                    if (ctrl.isCompleted())
+                        break;
+                }
+                addTurn(text, attachments, response.toString());
+                // Every chunk carries the counts so far, so only the last one is reported. Gemini caches
+                // prompt prefixes implicitly, and the hits show up as cached content tokens.
+                if (usage != null) {
+                    listener.onUsage(new TokenUsage(
+                            usage.promptTokenCount().orElse(0),
+                            usage.candidatesTokenCount().orElse(0) + usage.thoughtsTokenCount().orElse(0),
+                            usage.cachedContentTokenCount().orElse(0),
+                            0,
+                            usage.thoughtsTokenCount().orElse(0)
+                    ));
                 }
             } catch (BusinessException e) {
                 throw e;
+            } catch (ApiException e) {
+                // The SDK does not expose the response headers, so there is no retry delay to pass on
+                if (e.code() == 429 || e.code() == 503)
+                    throw new RateLimitedException("Gemini rate limited: " + e.getMessage(), e);
+                throw new AgentException("Gemini internal error", e);
             } catch (Exception e) {
                 throw new AgentException("Gemini internal error", e);
             }
@@ -83,6 +132,16 @@ public class GeminiModel implements Model {
 
     }
 
+    private static List<Content> toContents(String text, List<File> attachments) {
+        var contents = new ArrayList<Content>();
+        contents.add(Content.fromParts(Part.fromText(text)));
+        for (File file : attachments) {
+            if (file.bytes().length > 0)
+                contents.add(Content.fromParts(Part.fromBytes(file.bytes(), convertMimeType(file.mimeType()))));
+        }
+        return contents;
+    }
+
     private static String convertMimeType(String mimeType) {
         if ("application/json".equals(mimeType))
             return "text/plain";
@@ -0,0 +1,259 @@
+package org.kiwi.console.generate;
+
+import lombok.extern.slf4j.Slf4j;
+import org.kiwi.console.util.ErrorCode;
+import org.kiwi.console.util.ThrottledException;
+
+import javax.annotation.Nullable;
+import java.util.*;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.Consumer;
+import java.util.function.ToIntFunction;
+
+/**
+ * Admits generation jobs and runs them with bounded global and per-user concurrency.
+ * <p>
+ * Jobs that cannot start immediately wait in a bounded queue. The queue is served with weighted fair queuing
+ * across users: every job gets a virtual finish tag of {@code max(virtualTime, lastFinishOfUser) + 1 / weight},
+ * and the runnable job with the smallest tag goes first, so a user submitting many jobs cannot starve the
+ * others. Queued jobs are notified whenever their position in the queue changes. When the queue is full,
+ * submissions are rejected with a {@link ThrottledException} that carries a retry-after estimate.
+ */
+@Slf4j
+public class GenerationScheduler {
+
+    private static final double DURATION_SMOOTHING = 0.2;
+
+    private final Executor executor;
+    private final int maxRunning;
+    private final int maxRunningPerUser;
+    private final int maxQueued;
+    private final int maxQueuedPerUser;
+    private final ToIntFunction<String> getWeight;
+    private final Map<String, UserState> users = new HashMap<>();
+    private final Map<String, Entry> entries = new HashMap<>();
+    private final NavigableSet<Entry> queue = new TreeSet<>(
+            Comparator.comparingDouble((Entry e) -> e.finishTag).thenComparingLong(e -> e.seq)
+    );
+    private int running;
+    private double virtualTime;
+    private long nextSeq;
+    private double avgDurationMillis = 60_000;
+
+    public GenerationScheduler(Executor executor, int maxRunning, int maxRunningPerUser, int maxQueued, int maxQueuedPerUser,
+                               ToIntFunction<String> getWeight) {
+        if (maxRunning < 1 || maxRunningPerUser < 1)
+            throw new IllegalArgumentException("Concurrency limits must be positive");
+        this.executor = executor;
+        this.maxRunning = maxRunning;
+        this.maxRunningPerUser = maxRunningPerUser;
+        this.maxQueued = maxQueued;
+        this.maxQueuedPerUser = maxQueuedPerUser;
+        this.getWeight = getWeight;
+    }
+
+    /**
+     * Fails fast if a job submitted by the user right now would be rejected.
+     */
+    public synchronized void ensureAdmissible(String userId) {
+        var user = users.get(userId);
+        if (canStart(user))
+            return;
+        if (queue.size() >= maxQueued || user != null && user.queued.size() >= maxQueuedPerUser)
+            throw new ThrottledException(ErrorCode.GENERATION_QUEUE_FULL, estimateRetryAfterSeconds());
+    }
+
+    public void submit(Job job) {
+        synchronized (this) {
+            if (entries.containsKey(job.id()))
+                throw new IllegalStateException("Job " + job.id() + " is already scheduled");
+            var user = users.computeIfAbsent(job.userId(), UserState::new);
+            if (!canStart(user) && (queue.size() >= maxQueued || user.queued.size() >= maxQueuedPerUser))
+                throw new ThrottledException(ErrorCode.GENERATION_QUEUE_FULL, estimateRetryAfterSeconds());
+            var weight = Math.max(1, getWeight.applyAsInt(job.userId()));
+            var startTag = Math.max(virtualTime, user.lastFinishTag);
+            var entry = new Entry(job, user, startTag, startTag + 1.0 / weight, nextSeq++);
+            user.lastFinishTag = entry.finishTag;
+            user.queued.add(entry);
+            queue.add(entry);
+            entries.put(job.id(), entry);
+        }
+        dispatch();
+    }
+
+    /**
+     * Removes a job that hasn't started yet.
+     *
+     * @return true if the job was waiting in the queue
+     */
+    public boolean cancel(String jobId) {
+        synchronized (this) {
+            var entry = entries.get(jobId);
+            if (entry == null || entry.started)
+                return false;
+            removeQueued(entry);
+        }
+        notifyPositions();
+        return true;
+    }
+
+    public synchronized @Nullable Integer getQueuePosition(String jobId) {
+        var entry = entries.get(jobId);
+        return entry != null ? entry.position : null;
+    }
+
+    public synchronized int getRunningCount() {
+        return running;
+    }
+
+    public synchronized int getQueuedCount() {
+        return queue.size();
+    }
+
+    private void dispatch() {
+        for (;;) {
+            Entry entry;
+            synchronized (this) {
+                entry = pollRunnable();
+                if (entry == null)
+                    break;
+                entry.started = true;
+                entry.position = null;
+                running++;
+                entry.user.running++;
+                virtualTime = Math.max(virtualTime, entry.startTag);
+            }
+            entry.job.onQueuePositionChange().accept(null);
+            try {
+                executor.execute(() -> run(entry));
+            } catch (RejectedExecutionException e) {
+                // The job was admitted long ago, possibly for another caller, so it's failed rather than thrown
+                log.error("Failed to start generation job {}", entry.job.id(), e);
+                finish(entry, 0);
+                try {
+                    entry.job.onRejected().accept(e);
+                } catch (Exception e1) {
+                    log.warn("Failed to fail rejected generation job {}", entry.job.id(), e1);
+                }
+            }
+        }
+        notifyPositions();
+    }
+
+    private void run(Entry entry) {
+        var start = System.currentTimeMillis();
+        try {
+            entry.job.task().run();
+        } finally {
+            finish(entry, System.currentTimeMillis() - start);
+            dispatch();
+        }
+    }
+
+    private void finish(Entry entry, long durationMillis) {
+        synchronized (this) {
+            running--;
+            entry.user.running--;
+            entries.remove(entry.job.id());
+            if (durationMillis > 0)
+                avgDurationMillis += DURATION_SMOOTHING * (durationMillis - avgDurationMillis);
+            removeUserIfIdle(entry.user);
+        }
+    }
+
+    private @Nullable Entry pollRunnable() {
+        if (running >= maxRunning)
+            return null;
+        for (Entry entry : queue) {
+            if (entry.user.running < maxRunningPerUser) {
+                queue.remove(entry);
+                entry.user.queued.remove(entry);
+                return entry;
+            }
+        }
+        return null;
+    }
+
+    private void removeQueued(Entry entry) {
+        queue.remove(entry);
+        entry.user.queued.remove(entry);
+        entries.remove(entry.job.id());
+        removeUserIfIdle(entry.user);
+    }
+
+    private void removeUserIfIdle(UserState user) {
+        if (user.running == 0 && user.queued.isEmpty() && user.lastFinishTag <= virtualTime)
+            users.remove(user.userId);
+    }
+
+    private boolean canStart(@Nullable UserState user) {
+        return running < maxRunning && queue.isEmpty() && (user == null || user.running < maxRunningPerUser);
+    }
+
+    private long estimateRetryAfterSeconds() {
+        var waves = (double) (queue.size() + 1) / maxRunning;
+        return Math.max(1, (long) Math.ceil(waves * avgDurationMillis / 1000));
+    }
+
+    private void notifyPositions() {
+        var changed = new ArrayList<PositionChange>();
+        synchronized (this) {
+            var position = 1;
+            for (Entry entry : queue) {
+                if (!Objects.equals(entry.position, position)) {
+                    entry.position = position;
+                    changed.add(new PositionChange(entry.job, position));
+                }
+                position++;
+            }
+        }
+        for (var change : changed) {
+            try {
+                change.job.onQueuePositionChange().accept(change.position);
+            } catch (Exception e) {
+                log.warn("Failed to report queue position of generation job {}", change.job.id(), e);
+            }
+        }
+    }
+
+    /**
+     * @param onQueuePositionChange receives the 1-based queue position while the job waits, and {@code null}
+     *                              once it starts
+     * @param onRejected            called instead of the task if the executor refuses to run it
+     */
+    public record Job(String id, String userId, Runnable task, Consumer<Integer> onQueuePositionChange,
+                      Consumer<RejectedExecutionException> onRejected) {}
+
+    private record PositionChange(Job job, int position) {}
+
+    private static class UserState {
+        private final String userId;
+        private final List<Entry> queued = new ArrayList<>();
+        private int running;
+        private double lastFinishTag;
+
+        private UserState(String userId) {
+            this.userId = userId;
+        }
+    }
+
+    private static class Entry {
+        private final Job job;
+        private final UserState user;
+        private final double startTag;
+        private final double finishTag;
+        private final long seq;
+        private boolean started;
+        private @Nullable Integer position;
+
+        private Entry(Job job, UserState user, double startTag, double finishTag, long seq) {
+            this.job = job;
+            this.user = user;
+            this.startTag = startTag;
+            this.finishTag = finishTag;
+            this.seq = seq;
+        }
+    }
+
+}
@@ -4,12 +4,14 @@ import feign.Feign;
 import feign.RequestInterceptor;
 import feign.gson.GsonDecoder;
 import feign.gson.GsonEncoder;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
 import lombok.SneakyThrows;
 import lombok.extern.slf4j.Slf4j;
 import org.kiwi.console.file.File;
 import org.kiwi.console.file.UrlFetcher;
 import org.kiwi.console.generate.data.DataAgent;
 import org.kiwi.console.generate.data.DataAgentImpl;
+import org.kiwi.console.generate.event.GenerationEventHub;
 import org.kiwi.console.generate.event.GenerationListener;
 import org.kiwi.console.generate.rest.CancelRequest;
 import org.kiwi.console.generate.rest.ExchangeDTO;
@@ -20,19 +22,24 @@ import org.kiwi.console.kiwi.*;
 import org.kiwi.console.util.BusinessException;
 import org.kiwi.console.util.Constants;
 import org.kiwi.console.util.ErrorCode;
+import org.kiwi.console.util.ThrottledException;
 import org.kiwi.console.util.Utils;
 import org.springframework.core.task.SyncTaskExecutor;
-import org.springframework.core.task.TaskExecutor;
 import org.springframework.scheduling.annotation.Scheduled;
 
+import javax.annotation.Nullable;
 import java.io.IOException;
 import java.net.http.HttpClient;
 import java.nio.file.Files;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.function.Function;
 import java.util.stream.Collectors;
 
@@ -71,7 +78,15 @@ public class GenerationService {
     private final ExchangeClient exchClient;
     private final UrlFetcher urlFetcher;
     private final Map<String, AppGenerator> runningTasks = new ConcurrentHashMap<>();
-    private final TaskExecutor taskExecutor;
+    private final GenerationScheduler generationScheduler;
+    private final Executor moduleExecutor;
+    private final int moduleParallelism;
+    private final boolean pipelineModules;
+    private final ScheduledExecutorService saveScheduler;
+    private final long saveDelayMillis;
+    private final boolean deltaSaves;
+    private final GenerationEventHub eventHub;
+    private final int progressReplayCapacity;
 
     public GenerationService(
             List<Model> models,
@@ -87,7 +102,15 @@ public class GenerationService {
             String managementUrlTempl,
             String sourceCodeUrlTempl,
             UrlFetcher urlFetcher,
-            TaskExecutor taskExecutor
+            GenerationScheduler generationScheduler,
+            Executor moduleExecutor,
+            int moduleParallelism,
+            boolean pipelineModules,
+            ScheduledExecutorService saveScheduler,
+            long saveDelayMillis,
+            boolean deltaSaves,
+            GenerationEventHub eventHub,
+            int progressReplayCapacity
     ) {
         this.models = models.stream().collect(Collectors.toUnmodifiableMap(Model::getName, Function.identity()));
         this.planAgent = planAgent;
@@ -104,10 +127,19 @@ public class GenerationService {
         this.sourceCodeUrlTempl = sourceCodeUrlTempl;
         this.exchClient = exchClient;
         this.urlFetcher = urlFetcher;
-        this.taskExecutor = taskExecutor;
+        this.generationScheduler = generationScheduler;
+        this.moduleExecutor = moduleExecutor;
+        this.moduleParallelism = moduleParallelism;
+        this.pipelineModules = pipelineModules;
+        this.saveScheduler = saveScheduler;
+        this.saveDelayMillis = saveDelayMillis;
+        this.deltaSaves = deltaSaves;
+        this.eventHub = eventHub;
+        this.progressReplayCapacity = progressReplayCapacity;
     }
 
     public String generate(GenerationRequest request, String userId, GenerationListener listener) {
+        generationScheduler.ensureAdmissible(userId);
         boolean creating;
         String appId;
         if (request.appId() != null) {
@@ -142,30 +174,60 @@ public class GenerationService {
         var task = createAppGenerator(exchange, app, user,
                 planConfig,
                 attachments, listener);
-        taskExecutor.execute(() -> run(task, false));
+        submit(task, false);
+    }
+
+    private void submit(AppGenerator gen, boolean retry) {
+        var exchange = gen.getExchange();
+        try {
+            generationScheduler.submit(new GenerationScheduler.Job(
+                    exchange.getId(),
+                    gen.getUser().getId(),
+                    () -> run(gen, retry),
+                    exchange::setQueuePosition,
+                    e -> {
+                        runningTasks.remove(exchange.getId());
+                        exchange.fail("Failed to start generation");
+                        gen.closeListeners();
+                    }
+            ));
+        } catch (ThrottledException e) {
+            runningTasks.remove(exchange.getId());
+            exchange.fail(e.getMessage());
+            gen.closeListeners();
+            throw e;
+        }
     }
 
     private AppGenerator createAppGenerator(Exchange exch, App app, User user, PlanConfig planConfig,
                                             List<File> attachments, GenerationListener listener
                                                 ) {
         var appRT = AppRT.from(app, appConfigClient.get(user.getAppConfigId()), moduleTypeClient, appClient);
+        var exchange = ExchangeRT.from(exch, appRT, exchClient, saveScheduler, saveDelayMillis, deltaSaves);
+        var usageLedger = new UsageLedger(exchange);
+        Function<String, Model> resolveModel = this::getModel;
         var gen = new AppGenerator(
-                ExchangeRT.from(exch, appRT, exchClient),
+                exchange,
                 appRT,
                 user,
                 false,
                 attachments,
-                listener,
+                eventHub.subscribe(listener),
                 sourceCodeUrlTempl,
                 productUrlTempl,
                 managementUrlTempl,
                 dataAgent,
-                this::getModel,
+                resolveModel,
+                usageLedger,
                 codeAgentMap::get,
-                testRunnerFactoryMap::get
+                testRunnerFactoryMap::get,
+                moduleExecutor,
+                moduleParallelism,
+                pipelineModules,
+                progressReplayCapacity
         );
         new Planner(
-                getModel(planConfig.getModel()),
+                usageLedger.wrap(getModel(planConfig.getModel())),
                 planConfig.getCreatePromptTemplate(),
                 planConfig.getUpdatePromptTemplate(),
                 planAgent,
@@ -176,8 +238,8 @@ public class GenerationService {
             new ModuleGenerator(
                     module,
                     user.isAllowSourceCodeDownload(),
-                    getModel(modType.getCodeModel()),
-                    Utils.safeCall(modType.getTestModel(), this::getModel),
+                    resolveModel.apply(modType.getCodeModel()),
+                    Utils.safeCall(modType.getTestModel(), resolveModel),
                     Objects.requireNonNull(codeAgentMap.get(module.tech()), () -> "Cannot find code agent for tech: " + module.tech()),
                     dataAgent,
                     testRunnerFactoryMap.get(module.tech()),
@@ -216,6 +278,7 @@ public class GenerationService {
             gen.run(retry);
         } finally {
             runningTasks.remove(gen.getExchange().getId());
+            gen.closeListeners();
         }
     }
 
@@ -245,21 +308,40 @@ public class GenerationService {
     }
 
     public void reconnect(String exchangeId, GenerationListener listener) {
+        reconnect(exchangeId, listener, null);
+    }
+
+    public void reconnect(String exchangeId, GenerationListener listener, @Nullable String lastEventId) {
         var task = runningTasks.get(exchangeId);
         if (task == null)
             throw new BusinessException(ErrorCode.TASK_NOT_RUNNING);
-        task.addListener(listener);
-        task.sendProgress();
+        task.reconnect(eventHub.subscribe(listener, lastEventId != null), lastEventId);
+    }
+
+    public List<String> getRunningExchangeIds(String userId) {
+        var ids = new ArrayList<String>();
+        runningTasks.forEach((exchangeId, task) -> {
+            if (task.getUser().getId().equals(userId))
+                ids.add(exchangeId);
+        });
+        return ids;
     }
 
     public void cancel(CancelRequest request) {
         exchClient.cancel(request.exchangeId());
+        var dequeued = generationScheduler.cancel(request.exchangeId());
         var task = runningTasks.get(request.exchangeId());
         if (task != null)
             task.cancel();
+        if (dequeued) {
+            runningTasks.remove(request.exchangeId());
+            if (task != null)
+                task.closeListeners();
+        }
     }
 
     public void retry(String userId, RetryRequest request, GenerationListener listener) {
+        generationScheduler.ensureAdmissible(userId);
         var exch = exchClient.get(request.exchangeId());
         var app = appClient.get(exch.getAppId());
         ensureNotGenerating(app.getId());
@@ -271,7 +353,7 @@ public class GenerationService {
         var task = createAppGenerator(exch, app, user,
                 planConfig,
                 attachments, listener);
-        taskExecutor.execute(() -> run(task, true));
+        submit(task, true);
     }
 
     public void revert(String exchangeId) {
@@ -327,7 +409,11 @@ public class GenerationService {
                 "https://{}.metavm.test",
                 "https://metavm.test/{}",
                 "https://admin.metavm.test/source-{}.zip",
-                new UrlFetcher("https://1000061024.metavm.test"), new SyncTaskExecutor());
+                new UrlFetcher("https://1000061024.metavm.test"),
+                new GenerationScheduler(new SyncTaskExecutor(), 1, 1, 0, 0, userId -> 1),
+                Executors.newCachedThreadPool(), 4, false,
+                Executors.newSingleThreadScheduledExecutor(), 200, false,
+                new GenerationEventHub(Runnable::run, 256, 100, 4096, new SimpleMeterRegistry()), 256);
 //        System.out.println(kiwiCompiler.generateApi(TEST_APP_ID));
         testNewApp(service);
 //        testUpdateApp(service);
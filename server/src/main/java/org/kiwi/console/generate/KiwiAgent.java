@@ -2,7 +2,7 @@ package org.kiwi.console.generate;
 
 import lombok.extern.slf4j.Slf4j;
 import org.kiwi.console.kiwi.Tech;
-import org.kiwi.console.patch.PatchReader;
+import org.kiwi.console.generate.context.ContextBuilder;
 
 import java.nio.file.Path;
 import java.util.List;
@@ -13,21 +13,31 @@ public class KiwiAgent extends CodeAgent {
     private final KiwiCompiler compiler;
 
     public KiwiAgent(KiwiCompiler compiler) {
+        this(compiler, new ContextBuilder(ContextBuilder.DEFAULT_TOKEN_BUDGET));
+    }
+
+    public KiwiAgent(KiwiCompiler compiler, ContextBuilder contextBuilder) {
+        super(contextBuilder);
         this.compiler = compiler;
     }
 
     @Override
     public void generate(GenerationRequest request) {
+        String template;
         String prompt;
         request.getListener().onAttemptStart();
         var existingFiles = compiler.getSourceFiles(request.getProjectName());
-        if (existingFiles.isEmpty())
-            prompt = buildCreatePrompt(request.getCreateTemplate(), request.getRequirement());
-        else
-            prompt = buildUpdatePrompt(request.getUpdateTemplate(), request.getRequirement(), request.getSuggestion(), PatchReader.buildCode(existingFiles));
+        var context = contextBuilder.build(existingFiles, buildQuery(request));
+        if (existingFiles.isEmpty()) {
+            template = request.getCreateTemplate();
+            prompt = buildCreatePrompt(template, request.getRequirement());
+        } else {
+            template = request.getUpdateTemplate();
+            prompt = buildUpdatePrompt(template, request.getRequirement(), request.getSuggestion(), context.getCode());
+        }
         log.info("Kiwi generation prompt: \n{}", prompt);
         var chat = request.getModel().createChat(false);
-        var r = generateCode(chat, prompt, request);
+        var r = generateCode(chat, prompt, Format.prefixLength(template, 0), request);
 //        if (existingFiles == null) {
 //            var appName = extractAppName(resp);
 //            if (appName != null)
@@ -35,7 +45,7 @@ public class KiwiAgent extends CodeAgent {
 //        }
         if (!r.successful()) {
             request.getListener().onAttemptFailure(r.output());
-            fix(r.output(), chat, request);
+            fix(r.output(), chat, request, context);
         } else
             request.getListener().onAttemptSuccess();
         log.info("Kiwi deployed successfully");
@@ -1,9 +1,17 @@
 package org.kiwi.console.generate;
 
+import java.util.List;
+
 public interface Model {
 
     Chat createChat(boolean outputThought);
 
+    /**
+     * Creates a chat that continues from turns that did not go through it, such as responses replayed from
+     * the response cache.
+     */
+    Chat createChat(boolean outputThought, List<ChatTurn> history);
+
     String getName();
 
 }
@@ -1,44 +1,215 @@
 package org.kiwi.console.generate;
 
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.Timer;
 import lombok.extern.slf4j.Slf4j;
 import org.kiwi.console.file.File;
 
+import java.time.Duration;
 import java.util.List;
+import java.util.function.Consumer;
 
 @Slf4j
 public class Models {
 
+    private static final String END_MARKER = "@@@@";
+
+    private static final Counter endMarkerStops = Counter.builder("generation.end-marker.stops")
+            .description("Model responses closed as soon as the end marker arrived")
+            .register(Metrics.globalRegistry);
+    private static final DistributionSummary discardedChars = DistributionSummary.builder("generation.end-marker.discarded")
+            .description("Characters received after the end marker")
+            .baseUnit("chars")
+            .register(Metrics.globalRegistry);
+    private static final Timer timeToEndMarker = Timer.builder("generation.end-marker.time")
+            .description("Time from sending a prompt until its end marker arrived")
+            .register(Metrics.globalRegistry);
+
     private Models() {
     }
 
     public static String generateContent(Model model, String prompt, List<File> attachments, AbortController abortController) {
-        return generateContent(model.createChat(false), prompt, attachments, abortController);
+        return generateContent(model, prompt, 0, attachments, abortController, false);
+    }
+
+    /**
+     * @param bypassCache see {@link ChatController#isCacheBypassed()}
+     */
+    public static String generateContent(Model model, String prompt, int cachePrefixLength, List<File> attachments,
+                                         AbortController abortController, boolean bypassCache) {
+        return generateContent(model.createChat(false), prompt, cachePrefixLength, attachments, abortController,
+                bypassCache, chunk -> {});
     }
 
     public static String generateContent(Chat chat, String prompt, List<File> attachments, AbortController abortController) {
-        var buf = new StringBuilder();
-        send(chat, prompt, attachments, abortController, buf);
+        return generateContent(chat, prompt, 0, attachments, abortController, false, chunk -> {});
+    }
+
+    /**
+     * @param cachePrefixLength see {@link Chat#send(String, int, List, ChatStreamListener, ChatController)}
+     * @param contentListener receives the content as it streams in, up to and including the end marker line
+     */
+    public static String generateContent(Chat chat, String prompt, int cachePrefixLength, List<File> attachments,
+                                         AbortController abortController, Consumer<String> contentListener) {
+        return generateContent(chat, prompt, cachePrefixLength, attachments, abortController, false, contentListener);
+    }
+
+    /**
+     * Sends the messages of the model's chats with the given priority, see {@link ChatController#getPriority()}.
+     */
+    public static Model withPriority(Model model, ChatPriority priority) {
+        return new Model() {
+            @Override
+            public Chat createChat(boolean outputThought) {
+                return withPriority(model.createChat(outputThought), priority);
+            }
+
+            @Override
+            public Chat createChat(boolean outputThought, List<ChatTurn> history) {
+                return withPriority(model.createChat(outputThought, history), priority);
+            }
+
+            @Override
+            public String getName() {
+                return model.getName();
+            }
+        };
+    }
+
+    private static Chat withPriority(Chat chat, ChatPriority priority) {
+        return new Chat() {
+            @Override
+            public void send(String text, List<File> attachments, ChatStreamListener listener, ChatController ctrl) {
+                send(text, 0, attachments, listener, ctrl);
+            }
+
+            @Override
+            public void send(String text, int cachePrefixLength, List<File> attachments, ChatStreamListener listener,
+                             ChatController ctrl) {
+                chat.send(text, cachePrefixLength, attachments, listener, new ChatController() {
+                    @Override
+                    public boolean isAborted() {
+                        return ctrl.isAborted();
+                    }
+
+                    @Override
+                    public boolean isCompleted() {
+                        return ctrl.isCompleted();
+                    }
+
+                    @Override
+                    public boolean isCacheBypassed() {
+                        return ctrl.isCacheBypassed();
+                    }
+
+                    @Override
+                    public ChatPriority getPriority() {
+                        return priority;
+                    }
+                });
+            }
+        };
+    }
+
+    private static String generateContent(Chat chat, String prompt, int cachePrefixLength, List<File> attachments,
+                                          AbortController abortController, boolean bypassCache,
+                                          Consumer<String> contentListener) {
+        var reader = new ContentReader(abortController, bypassCache, contentListener);
+        send(chat, prompt, cachePrefixLength, attachments, reader);
+        var buf = reader.buf;
         int endPos = getEndPosition(buf);
 //        while ((endPos = getEndPosition(buf)) == -1) {
 //            log.info("Continue generation");
-//            send(chat, "Continue generation", attachments, abortController, buf);
+//            send(chat, "Continue generation", 0, attachments, reader);
 //        }
         return endPos == -1 ? buf.toString() : buf.substring(0, endPos);
     }
 
-    private static void send(Chat chat, String text, List<File> attachments, AbortController abortController, StringBuilder buf) {
-        chat.send(text, attachments, new ChatStreamListener() {
-            @Override
-            public void onThought(String thoughtChunk) {
-            }
+    private static void send(Chat chat, String text, int cachePrefixLength, List<File> attachments, ContentReader reader) {
+        var start = System.nanoTime();
+        chat.send(text, cachePrefixLength, attachments, reader, reader);
+        if (reader.completed) {
+            var elapsed = Duration.ofNanos(System.nanoTime() - start);
+            endMarkerStops.increment();
+            discardedChars.record(reader.discarded);
+            timeToEndMarker.record(elapsed);
+            log.info("Closed model response at end marker after {} ms, discarding {} trailing chars",
+                    elapsed.toMillis(), reader.discarded);
+        }
+    }
 
-            @Override
-            public void onContent(String contentChunk) {
-                System.out.print(contentChunk);
-                buf.append(contentChunk);
+    /**
+     * Collects the content of a response and completes the chat once a line holding only the end marker
+     * has arrived, so that whatever the model produces afterward is neither waited for nor paid for.
+     */
+    private static class ContentReader implements ChatStreamListener, ChatController {
+
+        private final AbortController abortController;
+        private final boolean bypassCache;
+        private final Consumer<String> contentListener;
+        private final StringBuilder buf = new StringBuilder();
+        private int lineStart;
+        private boolean completed;
+        private long discarded;
+
+        private ContentReader(AbortController abortController, boolean bypassCache, Consumer<String> contentListener) {
+            this.abortController = abortController;
+            this.bypassCache = bypassCache;
+            this.contentListener = contentListener;
+        }
+
+        @Override
+        public void onThought(String thoughtChunk) {
+        }
+
+        @Override
+        public void onContent(String contentChunk) {
+            if (completed) {
+                discarded += contentChunk.length();
+                return;
+            }
+            System.out.print(contentChunk);
+            var offset = buf.length();
+            buf.append(contentChunk);
+            for (int i = offset; i < buf.length(); i++) {
+                if (buf.charAt(i) == '\n') {
+                    if (isEndMarker(lineStart, i)) {
+                        discarded += buf.length() - i - 1;
+                        buf.setLength(i + 1);
+                        completed = true;
+                        contentListener.accept(buf.substring(offset));
+                        return;
+                    }
+                    lineStart = i + 1;
+                }
             }
-        }, abortController::isAborted);
+            contentListener.accept(contentChunk);
+        }
+
+        private boolean isEndMarker(int start, int end) {
+            while (start < end && Character.isWhitespace(buf.charAt(start)))
+                start++;
+            while (end > start && Character.isWhitespace(buf.charAt(end - 1)))
+                end--;
+            return end - start == END_MARKER.length() && buf.indexOf(END_MARKER, start) == start;
+        }
+
+        @Override
+        public boolean isAborted() {
+            return abortController.isAborted();
+        }
 
+        @Override
+        public boolean isCompleted() {
+            return completed;
+        }
+
+        @Override
+        public boolean isCacheBypassed() {
+            return bypassCache;
+        }
     }
 
     private static int getEndPosition(CharSequence output) {
@@ -1,5 +1,6 @@
 package org.kiwi.console.generate;
 
+import lombok.extern.slf4j.Slf4j;
 import org.kiwi.console.file.File;
 import org.kiwi.console.generate.data.DataAgent;
 import org.kiwi.console.generate.data.DataManipulationRequest;
@@ -12,6 +13,7 @@ import java.util.Collections;
 import java.util.List;
 import java.util.Objects;
 
+@Slf4j
 public class ModuleGenerator {
 
     private final ModuleRT module;
@@ -31,6 +33,11 @@ public class ModuleGenerator {
     private final @Nullable TestTaskFactory testTaskFactory;
     private List<ModuleGenerator> dependencies;
     private final AppGenerator appGenerator;
+    private final ApiPublication apiPublication;
+    /**
+     * The task that model usage is recorded against
+     */
+    private volatile @Nullable ExchangeTaskRT currentTask;
 
     public ModuleGenerator(ModuleRT module,
                            boolean deploySource,
@@ -56,11 +63,14 @@ public class ModuleGenerator {
         this.testable = modType.isTestable();
         this.deploySource = deploySource;
         this.outputThinking = modType.isOutputThinking();
-        this.codeModel = codeModel;
-        this.testModel = testModel;
+        this.codeModel = appGenerator.getUsageLedger().wrap(codeModel, () -> currentTask);
+        // Test steps give way to generation when the provider is busy
+        this.testModel = testModel != null ? appGenerator.getUsageLedger().wrap(
+                Models.withPriority(testModel, ChatPriority.BACKGROUND), () -> currentTask) : null;
         this.appGenerator = appGenerator;
         this.codeAgent = codeAgent;
         this.testTaskFactory = testTaskFactory;
+        this.apiPublication = new ApiPublication(module.name());
         appGenerator.addModuleGenerator(this);
     }
 
@@ -72,39 +82,114 @@ public class ModuleGenerator {
         return codeAgent.getSourceFiles(module.projectName());
     }
 
-    void generate(String requirement, String suggestion, List<File> attachments, boolean noBackup) {
-        var task = appGenerator.createExchangeTask(module, ExchangeTaskType.GENERATION);
+    ExchangeTaskRT startTask() {
+        apiPublication.begin();
+        return appGenerator.createExchangeTask(module, ExchangeTaskType.GENERATION);
+    }
+
+    /**
+     * Generates the module. Dependencies may still be deploying when this starts, in which case the generation
+     * builds on their published APIs. If a dependency revokes its API, e.g. because its deployment aborted,
+     * the generation is cancelled, the work directory is rolled back and the generation starts over.
+     *
+     * @param onApiPublished invoked when this module's own API becomes available to dependents
+     */
+    void generate(ExchangeTaskRT task, String requirement, String suggestion, List<File> attachments, boolean noBackup,
+                  Runnable onApiPublished) {
+        currentTask = task;
         try {
-            var apiSources = new ArrayList<SourceFile>();
-            for (ModuleGenerator dependency : dependencies) {
-                apiSources.addAll(dependency.generateApiSources());
+            var listener = new GenerationAttemptListener(task, onApiPublished);
+            for (;;) {
+                var apiVersions = awaitDependencyApis();
+                var apiSources = new ArrayList<SourceFile>();
+                for (ModuleGenerator dependency : dependencies) {
+                    apiSources.addAll(dependency.generateApiSources());
+                }
+                try {
+                    codeAgent.generate(new GenerationRequest(
+                            codeModel,
+                            appGenerator.getAppId(),
+                            module.projectName(),
+                            appGenerator.getAppName(),
+                            createPromptTpl,
+                            updatePromptTpl,
+                            fixPromptTpl,
+                            requirement,
+                            suggestion,
+                            attachments,
+                            () -> appGenerator.isCancelled() || !isDependencyApiCurrent(apiVersions),
+                            deploySource,
+                            outputThinking,
+                            noBackup,
+                            apiSources,
+                            listener
+                    ));
+                } catch (Exception e) {
+                    if (appGenerator.isCancelled() || isDependencyApiCurrent(apiVersions))
+                        throw e;
+                    log.info("API of a dependency of module {} changed during generation, restarting", module.name());
+                    listener.abortAttempt("API of a dependency changed");
+                    rollback(false);
+                    continue;
+                }
+                if (awaitDependencies(apiVersions))
+                    break;
+                log.info("API of a dependency of module {} changed after generation, regenerating", module.name());
+                rollback(false);
             }
-            codeAgent.generate(new GenerationRequest(
-                    codeModel,
-                    appGenerator.getAppId(),
-                    module.projectName(),
-                    appGenerator.getAppName(),
-                    createPromptTpl,
-                    updatePromptTpl,
-                    fixPromptTpl,
-                    requirement,
-                    suggestion,
-                    attachments,
-                    () -> appGenerator.getExchange().getStatus() == ExchangeStatus.CANCELLED,
-                    deploySource,
-                    outputThinking,
-                    noBackup,
-                    apiSources,
-                    new AttemptListener(task)
-            ));
             commit();
+            apiPublication.complete();
             task.setStatus(ExchangeTaskStatus.SUCCESSFUL);
         } catch (Exception e) {
+            apiPublication.revoke();
             task.fail(e.getMessage());
             throw e;
         }
     }
 
+    private int[] awaitDependencyApis() {
+        var versions = new int[dependencies.size()];
+        for (int i = 0; i < versions.length; i++) {
+            versions[i] = dependencies.get(i).apiPublication.awaitPublished(appGenerator);
+        }
+        return versions;
+    }
+
+    private boolean isDependencyApiCurrent(int[] versions) {
+        for (int i = 0; i < versions.length; i++) {
+            if (!dependencies.get(i).apiPublication.isCurrent(versions[i]))
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Waits for the dependencies to finish and checks that their APIs haven't changed since they were consumed.
+     * If a dependency fails, the deployment made against its API is rolled back.
+     */
+    private boolean awaitDependencies(int[] versions) {
+        try {
+            for (ModuleGenerator dependency : dependencies) {
+                dependency.apiPublication.awaitCompleted(appGenerator);
+            }
+        } catch (DependencyFailedException e) {
+            rollback(true);
+            throw e;
+        }
+        return isDependencyApiCurrent(versions);
+    }
+
+    private void rollback(boolean redeploy) {
+        apiPublication.revoke();
+        reset();
+        if (redeploy)
+            deploy(true);
+    }
+
+    ApiPublication getApiPublication() {
+        return apiPublication;
+    }
+
     public void reset() {
         codeAgent.reset(module.projectName(), templateRepo, branch);
     }
@@ -133,11 +218,20 @@ public class ModuleGenerator {
         return Collections.unmodifiableList(dependencies);
     }
 
+    public boolean dependsOn(ModuleGenerator other) {
+        for (ModuleGenerator dependency : dependencies) {
+            if (dependency == other || dependency.dependsOn(other))
+                return true;
+        }
+        return false;
+    }
+
     public boolean isTestable() {
         return testable;
     }
 
     public TestTask createTestTask(String requirement, ExchangeTaskRT task) {
+        currentTask = task;
         return Objects.requireNonNull(testTaskFactory).createTestTask(
                 appGenerator.getAppId(),
                 module.projectName(),
@@ -155,6 +249,7 @@ public class ModuleGenerator {
 
     public void runDataTask(String requirement, Plan.DataTask dataTask) {
         var exchTask = appGenerator.getExchange().startTask(module, ExchangeTaskType.DATA);
+        currentTask = exchTask;
         try {
             dataAgent.run(
                     new DataManipulationRequest(
@@ -179,6 +274,47 @@ public class ModuleGenerator {
         return PatchReader.buildCode(codeAgent.getSourceFiles(module.projectName()));
     }
 
+    private class GenerationAttemptListener implements CodeAgentListener {
+        private final ExchangeTaskRT task;
+        private final Runnable onApiPublished;
+        private boolean attemptOpen;
+
+        private GenerationAttemptListener(ExchangeTaskRT task, Runnable onApiPublished) {
+            this.task = task;
+            this.onApiPublished = onApiPublished;
+        }
+
+        @Override
+        public void onAttemptStart() {
+            task.addAttempt();
+            attemptOpen = true;
+        }
+
+        @Override
+        public void onBuildSuccess() {
+            if (apiPublication.publish())
+                onApiPublished.run();
+        }
+
+        @Override
+        public void onAttemptSuccess() {
+            attemptOpen = false;
+            task.getLastAttempt().setStatus(AttemptStatus.SUCCESSFUL);
+        }
+
+        @Override
+        public void onAttemptFailure(String error) {
+            attemptOpen = false;
+            apiPublication.revoke();
+            task.getLastAttempt().fail(error);
+        }
+
+        void abortAttempt(String error) {
+            if (attemptOpen)
+                onAttemptFailure(error);
+        }
+    }
+
     private record AttemptListener(ExchangeTaskRT task) implements CodeAgentListener {
         @Override
         public void onAttemptStart() {
@@ -2,10 +2,12 @@ package org.kiwi.console.generate;
 
 import org.kiwi.console.kiwi.Tech;
 
+import java.util.List;
+
 public record ModuleInfo(
         String name,
         Tech tech,
         String description,
-        String code
+        List<SourceFile> sourceFiles
 ) {
 }
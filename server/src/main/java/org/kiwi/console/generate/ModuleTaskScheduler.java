@@ -0,0 +1,190 @@
+package org.kiwi.console.generate;
+
+import lombok.SneakyThrows;
+import lombok.extern.slf4j.Slf4j;
+import org.kiwi.console.util.BusinessException;
+import org.kiwi.console.util.ErrorCode;
+
+import javax.annotation.Nullable;
+import java.util.*;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.Function;
+
+/**
+ * Runs module tasks along their dependency graph. A task is started as soon as all of its dependencies
+ * have finished, with at most {@code parallelism} tasks running at the same time. A pipelined dependency is
+ * already satisfied once the dependency {@link Node#release() releases} its node, e.g. when its API is known
+ * while its deployment is still in progress.
+ * <p>
+ * Tasks are started on the calling thread in the order they were added, so anything a task does in its
+ * start phase (e.g. creating an exchange task) keeps a deterministic order. The body returned by the start
+ * phase runs on the executor. Once a task fails or the abort controller fires, no further tasks are
+ * started; running tasks are awaited and the first failure is rethrown, preferring a root cause over a
+ * {@link DependencyFailedException}.
+ */
+@Slf4j
+public class ModuleTaskScheduler {
+
+    private final Executor executor;
+    private final int parallelism;
+    private final AbortController abortController;
+
+    public ModuleTaskScheduler(Executor executor, int parallelism, AbortController abortController) {
+        if (parallelism < 1)
+            throw new IllegalArgumentException("Parallelism must be positive: " + parallelism);
+        this.executor = executor;
+        this.parallelism = parallelism;
+        this.abortController = abortController;
+    }
+
+    public void run(List<Node> nodes) {
+        var pendingDeps = new HashMap<Node, Integer>();
+        var dependents = new HashMap<Node, List<Node>>();
+        var pipelinedDependents = new HashMap<Node, List<Node>>();
+        var ready = new PriorityQueue<Node>(Comparator.comparingInt(n -> n.index));
+        for (var node : nodes) {
+            pendingDeps.put(node, node.dependencies.size() + node.pipelinedDependencies.size());
+            for (Node dep : node.dependencies) {
+                checkScheduled(nodes, node, dep);
+                dependents.computeIfAbsent(dep, k -> new ArrayList<>()).add(node);
+            }
+            for (Node dep : node.pipelinedDependencies) {
+                checkScheduled(nodes, node, dep);
+                pipelinedDependents.computeIfAbsent(dep, k -> new ArrayList<>()).add(node);
+            }
+            if (pendingDeps.get(node) == 0)
+                ready.add(node);
+        }
+        BlockingQueue<Event> events = new LinkedBlockingQueue<>();
+        nodes.forEach(n -> n.events = events);
+        try {
+            run(nodes, pendingDeps, dependents, pipelinedDependents, ready, events);
+        } finally {
+            nodes.forEach(n -> n.events = null);
+        }
+    }
+
+    private void checkScheduled(List<Node> nodes, Node node, Node dependency) {
+        if (!nodes.contains(dependency))
+            throw new IllegalArgumentException("Dependency " + dependency.name + " of " + node.name + " is not scheduled");
+    }
+
+    @SneakyThrows
+    private void run(List<Node> nodes, Map<Node, Integer> pendingDeps,
+                     Map<Node, List<Node>> dependents, Map<Node, List<Node>> pipelinedDependents,
+                     PriorityQueue<Node> ready, BlockingQueue<Event> events) {
+        var released = new HashSet<Node>();
+        var running = 0;
+        var finished = 0;
+        Throwable failure = null;
+        for (;;) {
+            while (failure == null && running < parallelism && !ready.isEmpty() && !abortController.isAborted()) {
+                var node = ready.poll();
+                try {
+                    var body = node.start.apply(node);
+                    executor.execute(() -> {
+                        try {
+                            body.run();
+                            events.add(new Completion(node, null));
+                        } catch (Throwable e) {
+                            events.add(new Completion(node, e));
+                        }
+                    });
+                    running++;
+                } catch (RejectedExecutionException e) {
+                    failure = new IllegalStateException("Failed to schedule module task " + node.name, e);
+                } catch (Throwable e) {
+                    failure = e;
+                }
+            }
+            if (running == 0)
+                break;
+            var event = events.take();
+            if (event instanceof Released(Node node)) {
+                if (released.add(node))
+                    satisfy(pipelinedDependents.get(node), pendingDeps, ready);
+                continue;
+            }
+            var completion = (Completion) event;
+            running--;
+            if (completion.error != null) {
+                if (failure == null || failure instanceof DependencyFailedException
+                        && !(completion.error instanceof DependencyFailedException))
+                    failure = completion.error;
+                else if (failure != completion.error)
+                    log.warn("Module task {} failed after an earlier failure", completion.node.name, completion.error);
+                continue;
+            }
+            finished++;
+            satisfy(dependents.get(completion.node), pendingDeps, ready);
+            if (released.add(completion.node))
+                satisfy(pipelinedDependents.get(completion.node), pendingDeps, ready);
+        }
+        if (failure != null)
+            throw failure;
+        if (finished < nodes.size()) {
+            if (abortController.isAborted())
+                throw new BusinessException(ErrorCode.TASK_CANCELLED);
+            throw new IllegalStateException("Circular dependency detected among module tasks");
+        }
+    }
+
+    private void satisfy(@Nullable List<Node> dependents, Map<Node, Integer> pendingDeps, PriorityQueue<Node> ready) {
+        if (dependents == null)
+            return;
+        for (Node dependent : dependents) {
+            if (pendingDeps.merge(dependent, -1, Integer::sum) == 0)
+                ready.add(dependent);
+        }
+    }
+
+    public static final class Node {
+        private final int index;
+        private final String name;
+        private final Function<Node, Runnable> start;
+        private final List<Node> dependencies = new ArrayList<>();
+        private final List<Node> pipelinedDependencies = new ArrayList<>();
+        private volatile @Nullable BlockingQueue<Event> events;
+
+        /**
+         * @param start invoked on the scheduling thread when the node becomes runnable. Returns the body
+         *              to execute asynchronously.
+         */
+        public Node(int index, String name, Function<Node, Runnable> start) {
+            this.index = index;
+            this.name = name;
+            this.start = start;
+        }
+
+        public void addDependency(Node dependency) {
+            dependencies.add(dependency);
+        }
+
+        public void addPipelinedDependency(Node dependency) {
+            pipelinedDependencies.add(dependency);
+        }
+
+        /**
+         * Lets pipelined dependents start before this node finishes. Can be called from any thread.
+         */
+        public void release() {
+            var events = this.events;
+            if (events != null)
+                events.add(new Released(this));
+        }
+
+        public String getName() {
+            return name;
+        }
+    }
+
+    private sealed interface Event permits Completion, Released {}
+
+    private record Completion(Node node, @Nullable Throwable error) implements Event {}
+
+    private record Released(Node node) implements Event {}
+
+}
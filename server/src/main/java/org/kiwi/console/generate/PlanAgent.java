@@ -2,6 +2,7 @@ package org.kiwi.console.generate;
 
 import lombok.SneakyThrows;
 import lombok.extern.slf4j.Slf4j;
+import org.kiwi.console.generate.context.ContextBuilder;
 import org.kiwi.console.util.Utils;
 
 import java.io.BufferedReader;
@@ -11,6 +12,16 @@ import java.util.List;
 @Slf4j
 public class PlanAgent {
 
+    private final ContextBuilder contextBuilder;
+
+    public PlanAgent() {
+        this(new ContextBuilder(ContextBuilder.DEFAULT_TOKEN_BUDGET));
+    }
+
+    public PlanAgent(ContextBuilder contextBuilder) {
+        this.contextBuilder = contextBuilder;
+    }
+
     public Plan plan(PlanRequest request) {
         if (request.first())
             return planForCreate(request);
@@ -47,16 +58,18 @@ public class PlanAgent {
     }
 
     private String createUpdatePlanPrompt(String updatePlanTemplate, String requirement, List<ModuleInfo> modules) {
-        return Format.format(updatePlanTemplate, requirement, buildCodes(modules));
+        return Format.format(updatePlanTemplate, requirement, buildCodes(requirement, modules));
     }
 
-    private String buildCodes(List<ModuleInfo> modules) {
+    private String buildCodes(String requirement, List<ModuleInfo> modules) {
+        // Modules share the budget
+        var budget = contextBuilder.getTokenBudget() / Math.max(1, modules.size());
         var sb = new StringBuilder();
         modules.forEach(mod ->
             sb.append("#### ").append(mod.name()).append("\n\n")
                     .append("**Module Type: **").append(mod.tech()).append("\n\n")
                     .append("**Module Description**\n").append(mod.description()).append("\n\n")
-                    .append("**Module Code**\n\n").append(mod.code()).append("\n\n")
+                    .append("**Module Code**\n\n").append(contextBuilder.build(mod.sourceFiles(), requirement, budget).getCode()).append("\n\n")
         );
         return sb.toString();
     }
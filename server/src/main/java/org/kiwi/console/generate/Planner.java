@@ -1,7 +1,6 @@
 package org.kiwi.console.generate;
 
 import org.kiwi.console.file.File;
-import org.kiwi.console.patch.PatchReader;
 
 import java.util.ArrayList;
 import java.util.List;
@@ -26,7 +25,7 @@ public class Planner {
         var modules = new ArrayList<ModuleInfo>();
         for (ModuleGenerator moduleGenerator : appGenerator.getModuleGenerators()) {
             var mod = moduleGenerator.getModule();
-            modules.add(new ModuleInfo(mod.name(), mod.tech(), mod.description(), PatchReader.buildCode(moduleGenerator.getSourceFiles())));
+            modules.add(new ModuleInfo(mod.name(), mod.tech(), mod.description(), moduleGenerator.getSourceFiles()));
         }
         return agent.plan(new PlanRequest(
                 model,
@@ -0,0 +1,27 @@
+package org.kiwi.console.generate;
+
+/**
+ * Thrown when a provider refuses a request because a rate limit was hit or it is overloaded.
+ */
+public class RateLimitedException extends AgentException {
+
+    private final long retryAfterMillis;
+
+    /**
+     * @param retryAfterMillis how long the provider asked to wait, or -1 if it did not say
+     */
+    public RateLimitedException(String message, long retryAfterMillis) {
+        super(message);
+        this.retryAfterMillis = retryAfterMillis;
+    }
+
+    public RateLimitedException(String message, Throwable cause) {
+        super(message, cause);
+        this.retryAfterMillis = -1;
+    }
+
+    public long getRetryAfterMillis() {
+        return retryAfterMillis;
+    }
+
+}
@@ -0,0 +1,117 @@
+package org.kiwi.console.generate;
+
+import javax.annotation.Nullable;
+import java.time.Instant;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.function.Function;
+import java.util.regex.Pattern;
+
+/**
+ * Rate limits as reported by a provider along with a response. Limits are per minute, resets are the milliseconds
+ * until the bucket is full again, and -1 means the provider did not report the value.
+ */
+public record RateLimits(long requestLimit,
+                         long requestsRemaining,
+                         long requestsResetMillis,
+                         long tokenLimit,
+                         long tokensRemaining,
+                         long tokensResetMillis,
+                         long retryAfterMillis) {
+
+    private static final Pattern DURATION_PART = Pattern.compile("(\\d+(?:\\.\\d+)?)(ms|h|m|s)");
+
+    /**
+     * Reads the OpenAI style {@code x-ratelimit-*} headers, which Qwen and K2 send as well, the Anthropic
+     * {@code anthropic-ratelimit-*} headers and {@code retry-after}.
+     *
+     * @return null if the response carries none of them
+     */
+    public static @Nullable RateLimits parse(Function<String, String> headers, long now) {
+        var limits = new RateLimits(
+                firstNumber(headers, "x-ratelimit-limit-requests", "anthropic-ratelimit-requests-limit"),
+                firstNumber(headers, "x-ratelimit-remaining-requests", "anthropic-ratelimit-requests-remaining"),
+                firstReset(headers, now, "x-ratelimit-reset-requests", "anthropic-ratelimit-requests-reset"),
+                firstNumber(headers, "x-ratelimit-limit-tokens", "anthropic-ratelimit-tokens-limit",
+                        "anthropic-ratelimit-input-tokens-limit"),
+                firstNumber(headers, "x-ratelimit-remaining-tokens", "anthropic-ratelimit-tokens-remaining",
+                        "anthropic-ratelimit-input-tokens-remaining"),
+                firstReset(headers, now, "x-ratelimit-reset-tokens", "anthropic-ratelimit-tokens-reset",
+                        "anthropic-ratelimit-input-tokens-reset"),
+                parseRetryAfter(headers, now)
+        );
+        return limits.equals(new RateLimits(-1, -1, -1, -1, -1, -1, -1)) ? null : limits;
+    }
+
+    private static long firstNumber(Function<String, String> headers, String... names) {
+        for (var name : names) {
+            var value = headers.apply(name);
+            if (value != null) {
+                try {
+                    return (long) Double.parseDouble(value.trim());
+                } catch (NumberFormatException ignored) {
+                }
+            }
+        }
+        return -1;
+    }
+
+    private static long firstReset(Function<String, String> headers, long now, String... names) {
+        for (var name : names) {
+            var value = headers.apply(name);
+            if (value != null) {
+                var millis = parseReset(value.trim(), now);
+                if (millis >= 0)
+                    return millis;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * OpenAI sends durations such as {@code 6m0s} or {@code 20ms}, Anthropic an RFC 3339 time.
+     */
+    static long parseReset(String value, long now) {
+        var matcher = DURATION_PART.matcher(value);
+        var millis = 0.0;
+        var end = 0;
+        while (matcher.find() && matcher.start() == end) {
+            var amount = Double.parseDouble(matcher.group(1));
+            millis += switch (matcher.group(2)) {
+                case "h" -> amount * 3_600_000;
+                case "m" -> amount * 60_000;
+                case "s" -> amount * 1000;
+                default -> amount;
+            };
+            end = matcher.end();
+        }
+        if (end > 0 && end == value.length())
+            return (long) Math.ceil(millis);
+        try {
+            return Math.max(0, Instant.parse(value).toEpochMilli() - now);
+        } catch (DateTimeParseException e) {
+            return -1;
+        }
+    }
+
+    private static long parseRetryAfter(Function<String, String> headers, long now) {
+        var millis = firstNumber(headers, "retry-after-ms");
+        if (millis >= 0)
+            return millis;
+        var value = headers.apply("retry-after");
+        if (value == null)
+            return -1;
+        try {
+            return (long) (Double.parseDouble(value.trim()) * 1000);
+        } catch (NumberFormatException e) {
+            try {
+                return Math.max(0, ZonedDateTime.parse(value.trim(), DateTimeFormatter.RFC_1123_DATE_TIME)
+                        .toInstant().toEpochMilli() - now);
+            } catch (DateTimeParseException e1) {
+                return -1;
+            }
+        }
+    }
+
+}
@@ -0,0 +1,99 @@
+package org.kiwi.console.generate;
+
+import lombok.extern.slf4j.Slf4j;
+import org.kiwi.console.patch.Patch;
+import org.kiwi.console.patch.StreamingPatchReader;
+
+import javax.annotation.Nullable;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Writes the files of a patch to the work directory while the model is still generating it, and runs
+ * {@link Compiler#check} on each of them in the background. Files written ahead are restored with
+ * {@link #restore} when the patch does not complete.
+ */
+@Slf4j
+class StreamingPatchWriter implements AutoCloseable {
+
+    private final Compiler compiler;
+    private final String projectName;
+    private final StreamingPatchReader reader = new StreamingPatchReader(this::onFile);
+    private final ExecutorService checkExecutor = Executors.newVirtualThreadPerTaskExecutor();
+    private final Map<Path, String> written = new HashMap<>();
+    private final Map<Path, Optional<String>> originals = new HashMap<>();
+    private final Map<Path, Future<String>> checks = new HashMap<>();
+
+    StreamingPatchWriter(Compiler compiler, String projectName) {
+        this.compiler = compiler;
+        this.projectName = projectName;
+    }
+
+    void accept(String chunk) {
+        reader.accept(chunk);
+    }
+
+    private void onFile(SourceFile file) {
+        if (!originals.containsKey(file.path()))
+            originals.put(file.path(), Optional.ofNullable(compiler.readFile(projectName, file.path())));
+        compiler.addFile(projectName, file);
+        written.put(file.path(), file.content());
+        checks.put(file.path(), checkExecutor.submit(() -> {
+            var errors = compiler.check(projectName, file);
+            if (errors != null)
+                log.info("Check of {} failed while the patch is still streaming: {}", file.path(), errors);
+            return errors;
+        }));
+    }
+
+    /**
+     * Waits for the checks of the files that were written ahead and made it unchanged into the complete patch.
+     *
+     * @return the errors found, or null if there are none
+     */
+    @Nullable String getErrors(Patch patch) throws InterruptedException {
+        var errors = new StringBuilder();
+        for (var file : patch.addedFiles()) {
+            var check = checks.get(file.path());
+            if (check == null || !file.content().equals(written.get(file.path())))
+                continue;
+            try {
+                var e = check.get();
+                if (e != null)
+                    errors.append(e).append('\n');
+            } catch (ExecutionException e) {
+                log.warn("Failed to check {}", file.path(), e.getCause());
+            }
+        }
+        return errors.isEmpty() ? null : errors.toString();
+    }
+
+    /**
+     * Puts back what the files written ahead replaced, except for those in {@code keep}.
+     */
+    void restore(Set<Path> keep) {
+        var removed = new ArrayList<Path>();
+        for (var it = originals.entrySet().iterator(); it.hasNext(); ) {
+            var e = it.next();
+            if (keep.contains(e.getKey()))
+                continue;
+            it.remove();
+            if (e.getValue().isPresent())
+                compiler.addFile(projectName, new SourceFile(e.getKey(), e.getValue().get()));
+            else
+                removed.add(e.getKey());
+        }
+        if (!removed.isEmpty())
+            compiler.apply(projectName, List.of(), removed);
+    }
+
+    @Override
+    public void close() {
+        checkExecutor.shutdownNow();
+    }
+
+}
@@ -0,0 +1,27 @@
+package org.kiwi.console.generate;
+
+/**
+ * Tokens used by a model response. {@code inputTokens} counts the whole prompt, including the tokens that were
+ * read from or written to the provider's prompt cache. {@code outputTokens} includes {@code thoughtTokens}, which
+ * only providers that report reasoning separately fill in.
+ */
+public record TokenUsage(long inputTokens, long outputTokens, long cacheReadTokens, long cacheWriteTokens,
+                         long thoughtTokens) {
+
+    public static final TokenUsage ZERO = new TokenUsage(0, 0, 0, 0, 0);
+
+    public TokenUsage(long inputTokens, long outputTokens, long cacheReadTokens, long cacheWriteTokens) {
+        this(inputTokens, outputTokens, cacheReadTokens, cacheWriteTokens, 0);
+    }
+
+    public TokenUsage plus(TokenUsage that) {
+        return new TokenUsage(
+                inputTokens + that.inputTokens,
+                outputTokens + that.outputTokens,
+                cacheReadTokens + that.cacheReadTokens,
+                cacheWriteTokens + that.cacheWriteTokens,
+                thoughtTokens + that.thoughtTokens
+        );
+    }
+
+}
@@ -0,0 +1,254 @@
+package org.kiwi.console.generate;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.Timer;
+import lombok.extern.slf4j.Slf4j;
+import org.kiwi.console.file.File;
+import org.kiwi.console.kiwi.Usage;
+
+import javax.annotation.Nullable;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Supplier;
+
+/**
+ * Meters every message sent through the chats of the models it wraps: token usage, time to the first token,
+ * stream time and bytes received. Each call is added to the task it was made for, or, without a task, to the
+ * exchange, and counted in Micrometer tagged with the model and the stage, i.e. the task type or
+ * {@code plan}. Prompt tokens are also counted in {@code generation.prompt.tokens} by whether they were read
+ * from the prompt cache, written to it, or neither.
+ * <p>
+ * Time to the first token is only recorded for calls that received one. Responses replayed from the response
+ * cache cost nothing and would pass for instant model calls, so they are only counted in
+ * {@code generation.model.replays}.
+ */
+@Slf4j
+public class UsageLedger {
+
+    private final @Nullable ExchangeRT exchange;
+    private final AtomicReference<Usage> usage = new AtomicReference<>(Usage.ZERO);
+
+    /**
+     * @param exchange receives the usage of calls made without a task. Null to only meter.
+     */
+    public UsageLedger(@Nullable ExchangeRT exchange) {
+        this.exchange = exchange;
+    }
+
+    public Model wrap(Model model) {
+        return wrap(model, () -> null);
+    }
+
+    /**
+     * @param task the task that calls are currently made for, if any
+     */
+    public Model wrap(Model model, Supplier<ExchangeTaskRT> task) {
+        return new Model() {
+            @Override
+            public Chat createChat(boolean outputThought) {
+                return new MeteredChat(model.getName(), model.createChat(outputThought), task);
+            }
+
+            @Override
+            public Chat createChat(boolean outputThought, List<ChatTurn> history) {
+                return new MeteredChat(model.getName(), model.createChat(outputThought, history), task);
+            }
+
+            @Override
+            public String getName() {
+                return model.getName();
+            }
+        };
+    }
+
+    public Usage getUsage() {
+        return usage.get();
+    }
+
+    private void record(String model, @Nullable ExchangeTaskRT task, Usage u) {
+        usage.accumulateAndGet(u, Usage::plus);
+        var stage = getStage(task);
+        if (u.firstTokenCalls() > 0) {
+            Timer.builder("generation.model.first-token")
+                    .description("Time from sending a message until the first token arrived")
+                    .tag("model", model)
+                    .tag("stage", stage)
+                    .register(Metrics.globalRegistry)
+                    .record(Duration.ofMillis(u.firstTokenMillis()));
+        }
+        Timer.builder("generation.model.stream")
+                .description("Time from sending a message until its response ended")
+                .tag("model", model)
+                .tag("stage", stage)
+                .register(Metrics.globalRegistry)
+                .record(Duration.ofMillis(u.streamMillis()));
+        DistributionSummary.builder("generation.model.response")
+                .description("Text received per message")
+                .baseUnit("bytes")
+                .tag("model", model)
+                .tag("stage", stage)
+                .register(Metrics.globalRegistry)
+                .record(u.bytes());
+        count("generation.model.tokens", model, stage, "input", u.inputTokens());
+        count("generation.model.tokens", model, stage, "output", u.outputTokens() - u.thoughtTokens());
+        count("generation.model.tokens", model, stage, "thought", u.thoughtTokens());
+        count("generation.prompt.tokens", model, stage, "cache_read", u.cacheReadTokens());
+        count("generation.prompt.tokens", model, stage, "cache_write", u.cacheWriteTokens());
+        count("generation.prompt.tokens", model, stage, "uncached",
+                u.inputTokens() - u.cacheReadTokens() - u.cacheWriteTokens());
+        try {
+            if (task != null)
+                task.addUsage(u);
+            else if (exchange != null)
+                exchange.addUsage(u);
+        } catch (RuntimeException e) {
+            log.warn("Failed to record model usage", e);
+        }
+    }
+
+    private void recordReplay(String model, @Nullable ExchangeTaskRT task) {
+        Counter.builder("generation.model.replays")
+                .description("Messages answered from the response cache")
+                .tag("model", model)
+                .tag("stage", getStage(task))
+                .register(Metrics.globalRegistry)
+                .increment();
+    }
+
+    private static String getStage(@Nullable ExchangeTaskRT task) {
+        return task != null && task.getType() != null ? task.getType().name().toLowerCase(Locale.ROOT) : "plan";
+    }
+
+    private static void count(String name, String model, String stage, String type, long tokens) {
+        if (tokens > 0) {
+            Counter.builder(name)
+                    .description("Tokens sent to and received from models")
+                    .tag("model", model)
+                    .tag("stage", stage)
+                    .tag("type", type)
+                    .register(Metrics.globalRegistry)
+                    .increment(tokens);
+        }
+    }
+
+    @Override
+    public String toString() {
+        var u = usage.get();
+        return String.format("%d calls, %d of %d prompt tokens read from cache (%.1f%%), %d written to cache, " +
+                        "%d output tokens (%d thinking), %d ms streaming, %d ms average to first token",
+                u.calls(), u.cacheReadTokens(), u.inputTokens(),
+                u.inputTokens() > 0 ? 100.0 * u.cacheReadTokens() / u.inputTokens() : 0.0,
+                u.cacheWriteTokens(), u.outputTokens(), u.thoughtTokens(), u.streamMillis(),
+                u.firstTokenCalls() > 0 ? u.firstTokenMillis() / u.firstTokenCalls() : 0);
+    }
+
+    private class MeteredChat implements Chat {
+
+        private final String model;
+        private final Chat chat;
+        private final Supplier<ExchangeTaskRT> task;
+
+        private MeteredChat(String model, Chat chat, Supplier<ExchangeTaskRT> task) {
+            this.model = model;
+            this.chat = chat;
+            this.task = task;
+        }
+
+        @Override
+        public void send(String text, List<File> attachments, ChatStreamListener listener, ChatController ctrl) {
+            send(text, 0, attachments, listener, ctrl);
+        }
+
+        @Override
+        public void send(String text, int cachePrefixLength, List<File> attachments, ChatStreamListener listener,
+                         ChatController ctrl) {
+            var t = task.get();
+            var meter = new Meter(listener);
+            try {
+                chat.send(text, cachePrefixLength, attachments, meter, ctrl);
+            } finally {
+                // Failed and aborted calls cost too
+                if (meter.isReplay())
+                    recordReplay(model, t);
+                else
+                    record(model, t, meter.finish());
+            }
+        }
+    }
+
+    /**
+     * Listener calls may come from other threads, e.g. through a routing model, hence the synchronization.
+     */
+    private static class Meter implements ChatStreamListener {
+
+        private final ChatStreamListener listener;
+        private final long start = System.nanoTime();
+        private long firstTokenAt = -1;
+        private long bytes;
+        private TokenUsage tokens = TokenUsage.ZERO;
+        private volatile boolean replay;
+
+        private Meter(ChatStreamListener listener) {
+            this.listener = listener;
+        }
+
+        @Override
+        public void onThought(String thoughtChunk) {
+            onText(thoughtChunk);
+            listener.onThought(thoughtChunk);
+        }
+
+        @Override
+        public void onContent(String contentChunk) {
+            onText(contentChunk);
+            listener.onContent(contentChunk);
+        }
+
+        @Override
+        public void onUsage(TokenUsage usage) {
+            synchronized (this) {
+                tokens = tokens.plus(usage);
+            }
+            listener.onUsage(usage);
+        }
+
+        @Override
+        public void onReplay() {
+            replay = true;
+            listener.onReplay();
+        }
+
+        private boolean isReplay() {
+            return replay;
+        }
+
+        private synchronized void onText(String text) {
+            if (firstTokenAt == -1)
+                firstTokenAt = System.nanoTime();
+            bytes += text.getBytes(StandardCharsets.UTF_8).length;
+        }
+
+        private synchronized Usage finish() {
+            var end = System.nanoTime();
+            return new Usage(
+                    1,
+                    tokens.inputTokens(),
+                    tokens.outputTokens(),
+                    tokens.thoughtTokens(),
+                    tokens.cacheReadTokens(),
+                    tokens.cacheWriteTokens(),
+                    firstTokenAt != -1 ? 1 : 0,
+                    firstTokenAt != -1 ? Duration.ofNanos(firstTokenAt - start).toMillis() : 0,
+                    Duration.ofNanos(end - start).toMillis(),
+                    bytes
+            );
+        }
+
+    }
+
+}
@@ -2,7 +2,7 @@ package org.kiwi.console.generate;
 
 import lombok.extern.slf4j.Slf4j;
 import org.kiwi.console.kiwi.Tech;
-import org.kiwi.console.patch.PatchReader;
+import org.kiwi.console.generate.context.ContextBuilder;
 
 import java.nio.file.Path;
 import java.util.List;
@@ -15,6 +15,11 @@ public class WebAgent extends CodeAgent {
     private final PageCompiler compiler;
 
     public WebAgent(PageCompiler compiler) {
+        this(compiler, new ContextBuilder(ContextBuilder.DEFAULT_TOKEN_BUDGET));
+    }
+
+    public WebAgent(PageCompiler compiler, ContextBuilder contextBuilder) {
+        super(contextBuilder);
         this.compiler = compiler;
     }
 
@@ -26,19 +31,24 @@ public class WebAgent extends CodeAgent {
         var apiSource = request.getApiFiles().getFirst().content();
         var chat = request.getModel().createChat(request.isOutputThinking());
         var existingFiles = compiler.getSourceFiles(projName);
+        String template;
         String prompt;
-        var existingSource = PatchReader.buildCode(existingFiles);
-        if (existingFiles.stream().noneMatch(f -> f.path().toString().equals(API_TS)))
-            prompt = buildPageCreatePrompt(request.getCreateTemplate(), request.getAppName(), request.getRequirement(), existingSource, apiSource);
-        else
-            prompt = buildPageUpdatePrompt(request.getUpdateTemplate(), request.getRequirement(), existingSource, apiSource, request.getSuggestion());
+        var context = contextBuilder.build(existingFiles, buildQuery(request));
+        var existingSource = context.getCode();
+        if (existingFiles.stream().noneMatch(f -> f.path().toString().equals(API_TS))) {
+            template = request.getCreateTemplate();
+            prompt = buildPageCreatePrompt(template, request.getAppName(), request.getRequirement(), existingSource, apiSource);
+        } else {
+            template = request.getUpdateTemplate();
+            prompt = buildPageUpdatePrompt(template, request.getRequirement(), existingSource, apiSource, request.getSuggestion());
+        }
         log.info("Page generation prompt:\n{}", prompt);
         compiler.addFile(projName, new SourceFile(Path.of(API_TS), apiSource));
         request.getListener().onAttemptStart();
-        var r = generateCode(chat, prompt, request);
+        var r = generateCode(chat, prompt, Format.prefixLength(template, 0), request);
         if (!r.successful()) {
             request.getListener().onAttemptFailure(r.output());
-            fix(r.output(), chat, request);
+            fix(r.output(), chat, request, context);
         } else
             request.getListener().onAttemptSuccess();
         log.info("Pages generated successfully");
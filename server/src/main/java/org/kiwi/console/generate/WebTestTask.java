@@ -16,7 +16,7 @@ import org.kiwi.console.browser.Browser;
 import org.kiwi.console.browser.Page;
 import org.kiwi.console.file.File;
 import org.kiwi.console.kiwi.Tech;
-import org.kiwi.console.patch.PatchReader;
+import org.kiwi.console.generate.context.ContextBuilder;
 import org.kiwi.console.util.Utils;
 
 import javax.imageio.ImageIO;
@@ -40,6 +40,7 @@ public class WebTestTask implements TestTask {
     private static final DateFormat DF = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
 
     private final PageCompiler pageCompiler;
+    private final ContextBuilder contextBuilder;
     private final Path testEnvDir;
     private final Path testLogDir;
     private final boolean logOn;
@@ -59,6 +60,7 @@ public class WebTestTask implements TestTask {
 
     public WebTestTask(Browser browser,
                        PageCompiler pageCompiler,
+                       ContextBuilder contextBuilder,
                        Path testEnvDir,
                        @javax.annotation.Nullable Path testLogDir,
                        boolean logOn,
@@ -76,6 +78,7 @@ public class WebTestTask implements TestTask {
         if (logOn && testLogDir == null)
             throw new IllegalArgumentException("testLogDir cannot be null when logOn is true");
         this.pageCompiler = pageCompiler;
+        this.contextBuilder = contextBuilder;
         this.testEnvDir = testEnvDir;
         this.testLogDir = testLogDir;
         this.logOn = logOn;
@@ -175,14 +178,11 @@ public class WebTestTask implements TestTask {
                               List<Action> actions,
                               AbortController abortController) {
         var testAccounts = getTestAccounts(appId);
-        var code = PatchReader.buildCode(pageCompiler.getSourceFiles(projectName));
-        var prompt = Format.format(
-                promptTemplate,
-                requirement,
-                code,
-                testAccounts,
-                actions.stream().map(Utils::toPrettyJSONString).collect(Collectors.joining("\n"))
-        );
+        var code = contextBuilder.build(pageCompiler.getSourceFiles(projectName), requirement).getCode();
+        var pastActions = actions.stream().map(Utils::toPrettyJSONString).collect(Collectors.joining("\n"));
+        var prompt = Format.format(promptTemplate, requirement, code, testAccounts, pastActions);
+        // The requirement and the code stay the same for every step of a test run
+        var cachePrefixLength = Format.prefixLength(promptTemplate, 2, requirement, code, testAccounts, pastActions);
         if (actions.isEmpty())
             log.info("\n{}", prompt);
         var wait = 1000;
@@ -192,12 +192,15 @@ public class WebTestTask implements TestTask {
                 actionText = Models.generateContent(
                         model,
                         prompt,
+                        cachePrefixLength,
                         List.of(
                                 new File(screenshot, "image/png"),
                                 new File(dom.getBytes(StandardCharsets.UTF_8), "text/html"),
                                 new File(consoleLogs.getBytes(StandardCharsets.UTF_8), "text/plain")
                         ),
-                        abortController
+                        abortController,
+                        // A cached response would fail to parse again
+                        i > 0
                 );
                 return parseAction(actionText);
             } catch (Exception e) {
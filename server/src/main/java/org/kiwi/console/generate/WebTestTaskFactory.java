@@ -1,6 +1,7 @@
 package org.kiwi.console.generate;
 
 import org.kiwi.console.browser.Browser;
+import org.kiwi.console.generate.context.ContextBuilder;
 import org.kiwi.console.kiwi.Tech;
 
 import java.nio.file.Path;
@@ -10,13 +11,15 @@ public class WebTestTaskFactory implements TestTaskFactory {
 
     private final Browser browser;
     private final PageCompiler pageCompiler;
+    private final ContextBuilder contextBuilder;
     private final Path testEnvDir;
     private final Path testLogDir;
     private final boolean logOn;
 
-    public WebTestTaskFactory(Browser browser, PageCompiler pageCompiler, Path testEnvDir, Path testLogDir, boolean logOn) {
+    public WebTestTaskFactory(Browser browser, PageCompiler pageCompiler, ContextBuilder contextBuilder, Path testEnvDir, Path testLogDir, boolean logOn) {
         this.browser = browser;
         this.pageCompiler = pageCompiler;
+        this.contextBuilder = contextBuilder;
         this.testEnvDir = testEnvDir;
         this.testLogDir = testLogDir;
         this.logOn = logOn;
@@ -27,6 +30,7 @@ public class WebTestTaskFactory implements TestTaskFactory {
         return new WebTestTask(
                 browser,
                 pageCompiler,
+                contextBuilder,
                 testEnvDir,
                 testLogDir,
                 logOn,
@@ -0,0 +1,283 @@
+package org.kiwi.console.generate;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.Timer;
+import lombok.SneakyThrows;
+import lombok.extern.slf4j.Slf4j;
+import org.kiwi.console.util.Utils;
+
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps workspaces of project templates cloned and prepared ahead of time, so that a new project only has to move
+ * one into place. Workspaces are kept per template repository and branch, in the pool directory, which must be on
+ * the same file system as the projects for the move to be a rename. A template is pooled from its first use on,
+ * and its ready workspaces survive restarts. Workspaces whose commit is no longer the head of the template branch
+ * are discarded and replaced.
+ * <p>
+ * Workspaces are prepared one at a time on a thread of the pool's own, so that installing dependencies does not
+ * compete with builds for more than one core.
+ */
+@Slf4j
+public class WorkspacePool {
+
+    public interface Preparer {
+
+        /**
+         * Clones the template into {@code dir}, which does not exist yet, and prepares it.
+         */
+        void prepare(Path dir, String templateRepo, String branch);
+
+    }
+
+    private static final String TEMPLATE_FILE = "template";
+    private static final String READY_PREFIX = "ready-";
+    private static final String TMP_PREFIX = "tmp-";
+
+    private final Path poolDir;
+    private final int size;
+    private final Preparer preparer;
+    private final ScheduledExecutorService executor;
+    private final Map<Key, Template> templates = new ConcurrentHashMap<>();
+    private final Counter hits;
+    private final Counter misses;
+    private final Timer prepareTimer;
+
+    public WorkspacePool(Path poolDir, int size, Duration checkInterval, Preparer preparer) {
+        this.poolDir = poolDir;
+        this.size = size;
+        this.preparer = preparer;
+        var tag = poolDir.toString();
+        hits = Counter.builder("generation.workspace.claims")
+                .description("Workspaces requested for new projects")
+                .tag("pool", tag)
+                .tag("result", "hit")
+                .register(Metrics.globalRegistry);
+        misses = Counter.builder("generation.workspace.claims")
+                .description("Workspaces requested for new projects")
+                .tag("pool", tag)
+                .tag("result", "miss")
+                .register(Metrics.globalRegistry);
+        prepareTimer = Timer.builder("generation.workspace.prepare")
+                .description("Time to clone and prepare a pooled workspace")
+                .tag("pool", tag)
+                .register(Metrics.globalRegistry);
+        executor = Executors.newSingleThreadScheduledExecutor(
+                r -> Thread.ofPlatform().name("workspace-pool").daemon().unstarted(r));
+        executor.execute(this::recover);
+        executor.scheduleWithFixedDelay(this::discardStale, 0, checkInterval.toMillis(), TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Moves a ready workspace of the template to {@code target}, which must not exist, and starts preparing a
+     * replacement.
+     *
+     * @return false if no workspace was ready, in which case the caller has to create one itself
+     */
+    public boolean claim(String templateRepo, String branch, Path target) {
+        var template = templates.computeIfAbsent(new Key(templateRepo, branch), this::createTemplate);
+        Workspace workspace;
+        synchronized (template) {
+            workspace = template.ready.pollFirst();
+        }
+        refill(template);
+        if (workspace == null) {
+            misses.increment();
+            return false;
+        }
+        try {
+            Files.move(workspace.dir, target, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            log.warn("Failed to claim workspace {}", workspace.dir, e);
+            executor.execute(() -> delete(workspace.dir));
+            misses.increment();
+            return false;
+        }
+        hits.increment();
+        log.info("Claimed pooled workspace of {}#{} for {}", templateRepo, branch, target);
+        return true;
+    }
+
+    public void close() {
+        executor.shutdownNow();
+    }
+
+    int getReadyCount(String templateRepo, String branch) {
+        var template = templates.get(new Key(templateRepo, branch));
+        if (template == null)
+            return 0;
+        synchronized (template) {
+            return template.ready.size();
+        }
+    }
+
+    @SneakyThrows
+    private Template createTemplate(Key key) {
+        var dir = poolDir.resolve(key.dirName());
+        Files.createDirectories(dir);
+        Files.writeString(dir.resolve(TEMPLATE_FILE), key.templateRepo + "\n" + key.branch + "\n");
+        return new Template(key, dir);
+    }
+
+    private void refill(Template template) {
+        int missing;
+        synchronized (template) {
+            missing = Math.max(0, size - template.ready.size() - template.preparing);
+            template.preparing += missing;
+        }
+        for (int i = 0; i < missing; i++)
+            executor.execute(() -> prepare(template));
+    }
+
+    private void prepare(Template template) {
+        var id = UUID.randomUUID().toString();
+        var tmp = template.dir.resolve(TMP_PREFIX + id);
+        try {
+            var sample = Timer.start();
+            preparer.prepare(tmp, template.key.templateRepo, template.key.branch);
+            var commit = getHead(tmp);
+            var ready = template.dir.resolve(READY_PREFIX + id);
+            Files.move(tmp, ready, StandardCopyOption.ATOMIC_MOVE);
+            sample.stop(prepareTimer);
+            synchronized (template) {
+                template.ready.addLast(new Workspace(ready, commit));
+            }
+        } catch (Exception e) {
+            log.warn("Failed to prepare workspace of {}#{}", template.key.templateRepo, template.key.branch, e);
+            delete(tmp);
+        } finally {
+            synchronized (template) {
+                template.preparing--;
+            }
+        }
+    }
+
+    /**
+     * Picks up the workspaces left ready by the previous run and removes the ones it did not finish.
+     */
+    private void recover() {
+        try (var dirs = Files.list(poolDir)) {
+            for (var dir : dirs.toList()) {
+                var templateFile = dir.resolve(TEMPLATE_FILE);
+                if (!Files.isRegularFile(templateFile))
+                    continue;
+                var lines = Files.readAllLines(templateFile);
+                if (lines.size() < 2)
+                    continue;
+                var template = templates.computeIfAbsent(new Key(lines.get(0), lines.get(1)), k -> new Template(k, dir));
+                try (var workspaces = Files.list(dir)) {
+                    for (var ws : workspaces.toList()) {
+                        var name = ws.getFileName().toString();
+                        if (name.startsWith(TMP_PREFIX))
+                            delete(ws);
+                        else if (name.startsWith(READY_PREFIX)) {
+                            var workspace = new Workspace(ws, getHead(ws));
+                            synchronized (template) {
+                                template.ready.addLast(workspace);
+                            }
+                        }
+                    }
+                }
+                refill(template);
+            }
+        } catch (IOException | RuntimeException e) {
+            if (Files.isDirectory(poolDir))
+                log.warn("Failed to recover workspace pool {}", poolDir, e);
+        }
+    }
+
+    private void discardStale() {
+        for (var template : templates.values()) {
+            try {
+                var head = getRemoteHead(template.key);
+                if (head == null)
+                    continue;
+                var stale = new ArrayList<Workspace>();
+                synchronized (template) {
+                    template.ready.removeIf(ws -> {
+                        if (ws.commit.equals(head))
+                            return false;
+                        stale.add(ws);
+                        return true;
+                    });
+                }
+                if (!stale.isEmpty()) {
+                    log.info("Template {}#{} moved to {}, discarding {} pooled workspaces", template.key.templateRepo,
+                            template.key.branch, head, stale.size());
+                    stale.forEach(ws -> delete(ws.dir));
+                }
+                refill(template);
+            } catch (RuntimeException e) {
+                log.warn("Failed to check template {}#{}", template.key.templateRepo, template.key.branch, e);
+            }
+        }
+    }
+
+    private String getHead(Path dir) {
+        var r = Utils.executeCommand(dir, "git", "rev-parse", "HEAD");
+        if (r.exitCode() != 0)
+            throw new RuntimeException("Failed to read the commit of " + dir + ": " + r.output());
+        return r.output().trim();
+    }
+
+    /**
+     * @return null if the branch is not found remotely, e.g. when it is a commit hash
+     */
+    private @Nullable String getRemoteHead(Key key) {
+        var r = Utils.executeCommand(poolDir, "git", "ls-remote", key.templateRepo, key.branch);
+        if (r.exitCode() != 0)
+            throw new RuntimeException("Failed to list " + key.templateRepo + ": " + r.output());
+        var line = Utils.getFirstLine(r.output()).trim();
+        if (line.isEmpty())
+            return null;
+        return line.split("\\s+")[0];
+    }
+
+    private void delete(Path dir) {
+        var r = Utils.executeCommand(Path.of("."), "rm", "-rf", dir.toString());
+        if (r.exitCode() != 0)
+            log.warn("Failed to delete pooled workspace {}: {}", dir, r.output());
+    }
+
+    private record Key(String templateRepo, String branch) {
+
+        @SneakyThrows
+        String dirName() {
+            var digest = MessageDigest.getInstance("SHA-256")
+                    .digest((templateRepo + "#" + branch).getBytes(StandardCharsets.UTF_8));
+            return HexFormat.of().formatHex(digest, 0, 8);
+        }
+
+    }
+
+    private record Workspace(Path dir, String commit) {
+    }
+
+    private static class Template {
+
+        private final Key key;
+        private final Path dir;
+        private final Deque<Workspace> ready = new ArrayDeque<>();
+        private int preparing;
+
+        private Template(Key key, Path dir) {
+            this.key = key;
+            this.dir = dir;
+        }
+
+    }
+
+}
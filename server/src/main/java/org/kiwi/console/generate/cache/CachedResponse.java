@@ -0,0 +1,23 @@
+package org.kiwi.console.generate.cache;
+
+import java.util.List;
+
+/**
+ * A model response as stored by {@link ResponseCache}. Consecutive chunks of the same kind are merged, so a
+ * replay takes as few calls as possible.
+ */
+public record CachedResponse(long createdAt, List<Chunk> chunks) {
+
+    public String content() {
+        var sb = new StringBuilder();
+        for (var chunk : chunks) {
+            if (!chunk.thought())
+                sb.append(chunk.text());
+        }
+        return sb.toString();
+    }
+
+    public record Chunk(boolean thought, String text) {
+    }
+
+}
@@ -0,0 +1,157 @@
+package org.kiwi.console.generate.cache;
+
+import org.kiwi.console.file.File;
+import org.kiwi.console.generate.*;
+
+import javax.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Answers chat messages from a {@link ResponseCache} when an identical message has been answered before, and
+ * stores the responses of the model otherwise. A cached response is replayed to the listener in a few calls,
+ * without waiting for the model.
+ * <p>
+ * Since a replayed turn never reaches the model, a chat keeps its own record of the conversation. When a
+ * message misses the cache after earlier turns were replayed, the chat continues on a model chat created from
+ * that record.
+ */
+public class CachingModel implements Model {
+
+    private final Model model;
+    private final ResponseCache cache;
+
+    public CachingModel(Model model, ResponseCache cache) {
+        this.model = model;
+        this.cache = cache;
+    }
+
+    @Override
+    public Chat createChat(boolean outputThought) {
+        return new CachingChat(outputThought, List.of());
+    }
+
+    @Override
+    public Chat createChat(boolean outputThought, List<ChatTurn> history) {
+        return new CachingChat(outputThought, history);
+    }
+
+    @Override
+    public String getName() {
+        return model.getName();
+    }
+
+    private class CachingChat implements Chat {
+
+        private final boolean outputThought;
+        private final List<ChatTurn> turns;
+        private @Nullable Chat chat;
+        private int chatTurns;
+
+        private CachingChat(boolean outputThought, List<ChatTurn> history) {
+            this.outputThought = outputThought;
+            this.turns = new ArrayList<>(history);
+        }
+
+        @Override
+        public void send(String text, List<File> attachments, ChatStreamListener listener, ChatController ctrl) {
+            send(text, 0, attachments, listener, ctrl);
+        }
+
+        @Override
+        public void send(String text, int cachePrefixLength, List<File> attachments, ChatStreamListener listener,
+                         ChatController ctrl) {
+            String key = null;
+            if (ctrl.isCacheBypassed())
+                cache.recordBypass();
+            else {
+                key = ResponseCache.key(model.getName(), outputThought, turns, text, attachments);
+                var cached = cache.get(key);
+                if (cached != null) {
+                    replay(cached, listener, ctrl);
+                    turns.add(new ChatTurn(text, attachments, cached.content()));
+                    return;
+                }
+            }
+            if (chat == null || chatTurns < turns.size()) {
+                chat = turns.isEmpty() ? model.createChat(outputThought) : model.createChat(outputThought, turns);
+                chatTurns = turns.size();
+            }
+            var recorder = new Recorder(listener);
+            chat.send(text, cachePrefixLength, attachments, recorder, ctrl);
+            var response = new CachedResponse(System.currentTimeMillis(), recorder.finish());
+            turns.add(new ChatTurn(text, attachments, response.content()));
+            chatTurns++;
+            if (key != null)
+                cache.put(key, response);
+        }
+
+        private void replay(CachedResponse response, ChatStreamListener listener, ChatController ctrl) {
+            listener.onReplay();
+            for (var chunk : response.chunks()) {
+                if (ctrl.isAborted())
+                    throw new AgentException("Aborted");
+                if (ctrl.isCompleted())
+                    return;
+                if (chunk.thought())
+                    listener.onThought(chunk.text());
+                else
+                    listener.onContent(chunk.text());
+            }
+        }
+
+    }
+
+    /**
+     * Passes the response on to the listener while collecting it, merging consecutive chunks of the same kind.
+     */
+    private static class Recorder implements ChatStreamListener {
+
+        private final ChatStreamListener listener;
+        private final List<CachedResponse.Chunk> chunks = new ArrayList<>();
+        private final StringBuilder buf = new StringBuilder();
+        private boolean thought;
+
+        private Recorder(ChatStreamListener listener) {
+            this.listener = listener;
+        }
+
+        @Override
+        public void onThought(String thoughtChunk) {
+            append(true, thoughtChunk);
+            listener.onThought(thoughtChunk);
+        }
+
+        @Override
+        public void onContent(String contentChunk) {
+            append(false, contentChunk);
+            listener.onContent(contentChunk);
+        }
+
+        @Override
+        public void onUsage(TokenUsage usage) {
+            listener.onUsage(usage);
+        }
+
+        private void append(boolean thought, String text) {
+            if (thought != this.thought)
+                flush();
+            this.thought = thought;
+            buf.append(text);
+        }
+
+        private List<CachedResponse.Chunk> finish() {
+            flush();
+            return chunks;
+        }
+
+        private void flush() {
+            if (!buf.isEmpty()) {
+                chunks.add(new CachedResponse.Chunk(thought, buf.toString()));
+                buf.setLength(0);
+            }
+        }
+
+    }
+
+}
@@ -0,0 +1,224 @@
+package org.kiwi.console.generate.cache;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.Metrics;
+import lombok.SneakyThrows;
+import lombok.extern.slf4j.Slf4j;
+import org.kiwi.console.file.File;
+import org.kiwi.console.generate.ChatTurn;
+import org.kiwi.console.util.Utils;
+
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HexFormat;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * An on-disk store of model responses, keyed by a digest of everything that determines a response: the model,
+ * the earlier turns of the chat, the message and its attachments. Each response is a file named after its key.
+ * The least recently used responses are evicted once the store grows past {@code maxBytes}, and responses older
+ * than {@code ttl} are treated as missing. Recency survives restarts through the modification times of the files.
+ */
+@Slf4j
+public class ResponseCache {
+
+    private static final String SUFFIX = ".json";
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    private static final Counter hits = requests("hit");
+    private static final Counter misses = requests("miss");
+    private static final Counter bypasses = requests("bypass");
+    private static final Counter evictions = Counter.builder("generation.response-cache.evictions")
+            .description("Model responses evicted from the response cache")
+            .register(Metrics.globalRegistry);
+
+    private final Path dir;
+    private final long maxBytes;
+    private final Duration ttl;
+    private final ReentrantLock lock = new ReentrantLock();
+    /**
+     * File sizes by key, least recently used first.
+     */
+    private final LinkedHashMap<String, Long> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private volatile long size;
+
+    @SneakyThrows
+    public ResponseCache(Path dir, long maxBytes, Duration ttl) {
+        this.dir = dir;
+        this.maxBytes = maxBytes;
+        this.ttl = ttl;
+        Files.createDirectories(dir);
+        try (var files = Files.list(dir)) {
+            for (var file : files.sorted(Comparator.comparing(ResponseCache::getLastModified)).toList()) {
+                var name = file.getFileName().toString();
+                if (name.endsWith(SUFFIX)) {
+                    var length = Files.size(file);
+                    entries.put(name.substring(0, name.length() - SUFFIX.length()), length);
+                    size += length;
+                } else if (name.endsWith(TEMP_SUFFIX))
+                    Files.deleteIfExists(file);
+            }
+        }
+        var evicted = evict();
+        delete(evicted);
+        evictions.increment(evicted.size());
+        Gauge.builder("generation.response-cache.size", this, c -> c.size)
+                .description("Total size of the cached model responses")
+                .baseUnit("bytes")
+                .register(Metrics.globalRegistry);
+        log.info("Response cache at {} holds {} responses, {} bytes", dir, entries.size(), size);
+    }
+
+    private static Counter requests(String result) {
+        return Counter.builder("generation.response-cache.requests")
+                .description("Model requests looked up in the response cache")
+                .tag("result", result)
+                .register(Metrics.globalRegistry);
+    }
+
+    @SneakyThrows
+    public static String key(String model, boolean outputThought, List<ChatTurn> history, String text,
+                             List<File> attachments) {
+        var digest = MessageDigest.getInstance("SHA-256");
+        update(digest, model);
+        digest.update((byte) (outputThought ? 1 : 0));
+        for (var turn : history) {
+            update(digest, turn.text(), turn.attachments());
+            update(digest, turn.response());
+        }
+        update(digest, text, attachments);
+        return HexFormat.of().formatHex(digest.digest());
+    }
+
+    @SneakyThrows
+    private static void update(MessageDigest digest, String text, List<File> attachments) {
+        update(digest, text);
+        for (var attachment : attachments) {
+            update(digest, attachment.mimeType());
+            digest.update(MessageDigest.getInstance("SHA-256").digest(attachment.bytes()));
+        }
+        update(digest, "");
+    }
+
+    private static void update(MessageDigest digest, String s) {
+        var bytes = s.getBytes(StandardCharsets.UTF_8);
+        digest.update(new byte[] {
+                (byte) (bytes.length >>> 24), (byte) (bytes.length >>> 16), (byte) (bytes.length >>> 8), (byte) bytes.length
+        });
+        digest.update(bytes);
+    }
+
+    public @Nullable CachedResponse get(String key) {
+        lock.lock();
+        try {
+            if (entries.get(key) == null) {
+                misses.increment();
+                return null;
+            }
+        } finally {
+            lock.unlock();
+        }
+        var file = getPath(key);
+        try {
+            var response = Utils.getObjectMapper().readValue(file.toFile(), CachedResponse.class);
+            var now = System.currentTimeMillis();
+            if (now - response.createdAt() > ttl.toMillis()) {
+                remove(key);
+                misses.increment();
+                return null;
+            }
+            Files.setLastModifiedTime(file, FileTime.fromMillis(now));
+            hits.increment();
+            return response;
+        } catch (IOException e) {
+            log.warn("Failed to read cached response {}", key, e);
+            remove(key);
+            misses.increment();
+            return null;
+        }
+    }
+
+    public void put(String key, CachedResponse response) {
+        try {
+            var bytes = Utils.getObjectMapper().writeValueAsBytes(response);
+            if (bytes.length > maxBytes)
+                return;
+            var temp = Files.createTempFile(dir, key, TEMP_SUFFIX);
+            Files.write(temp, bytes);
+            Files.move(temp, getPath(key), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            List<String> evicted;
+            lock.lock();
+            try {
+                var old = entries.put(key, (long) bytes.length);
+                size += bytes.length - (old != null ? old : 0);
+                evicted = evict();
+            } finally {
+                lock.unlock();
+            }
+            delete(evicted);
+            evictions.increment(evicted.size());
+        } catch (IOException e) {
+            log.warn("Failed to cache response {}", key, e);
+        }
+    }
+
+    void recordBypass() {
+        bypasses.increment();
+    }
+
+    private List<String> evict() {
+        var evicted = new ArrayList<String>();
+        var it = entries.entrySet().iterator();
+        while (size > maxBytes && it.hasNext()) {
+            var eldest = it.next();
+            size -= eldest.getValue();
+            evicted.add(eldest.getKey());
+            it.remove();
+        }
+        return evicted;
+    }
+
+    private void remove(String key) {
+        lock.lock();
+        try {
+            var length = entries.remove(key);
+            if (length != null)
+                size -= length;
+        } finally {
+            lock.unlock();
+        }
+        delete(List.of(key));
+    }
+
+    private void delete(List<String> keys) {
+        for (var key : keys) {
+            try {
+                Files.deleteIfExists(getPath(key));
+            } catch (IOException e) {
+                log.warn("Failed to delete cached response {}", key, e);
+            }
+        }
+    }
+
+    private Path getPath(String key) {
+        return dir.resolve(key + SUFFIX);
+    }
+
+    @SneakyThrows
+    private static FileTime getLastModified(Path file) {
+        return Files.getLastModifiedTime(file);
+    }
+
+}
@@ -23,7 +23,17 @@ public class ClaudeModel implements Model {
 
     @Override
     public Chat createChat(boolean outputThought) {
-        return new ClaudeChat();
+        return new ClaudeChat(outputThought);
+    }
+
+    @Override
+    public Chat createChat(boolean outputThought, List<ChatTurn> history) {
+        var chat = new ClaudeChat(outputThought);
+        for (var turn : history) {
+            chat.history.add(new Message("user", toContents(turn.text(), 0, turn.attachments())));
+            chat.history.add(new Message("assistant", List.of(new TextContent(turn.response()))));
+        }
+        return chat;
     }
 
     @Override
@@ -34,47 +44,82 @@ public class ClaudeModel implements Model {
     class ClaudeChat implements Chat {
 
         private final List<Message> history = new ArrayList<>();
+        private final boolean outputThought;
+
+        ClaudeChat(boolean outputThought) {
+            this.outputThought = outputThought;
+        }
 
         @Override
         public void send(String text, List<File> attachments, ChatStreamListener listener, ChatController ctrl) {
-            var contents = new ArrayList<Content>();
-            contents.add(new TextContent(text));
-            for (File attachment : attachments) {
-                var mimeType = attachment.mimeType();
-                if (mimeType.startsWith("image/")) {
-                    contents.add(new ImageContent(new ImageSource(
-                            "base64",
-                            attachment.mimeType(),
-                            Base64.getEncoder().encodeToString(attachment.bytes())
-                    )));
-                } else if (mimeType.startsWith("text/") || mimeType.equals("application/json"))
-                    contents.add(new TextContent(new String(attachment.bytes(), StandardCharsets.UTF_8)));
-                else
-                    throw new BusinessException(ErrorCode.UNSUPPORTED_ATTACHMENT, attachment.mimeType());
-            }
-            var message = new Message("user", contents);
-            history.add(message);
-            try (var events = client.send(history)) {
-                var buf = new StringBuilder();
-                var it = events.iterator();
-                loop: while (it.hasNext()) {
-                    if (ctrl.isAborted())
-                        throw new AgentException("Aborted");
-                    var event = it.next();
-                    switch (event) {
-                        case StreamEvent.ContentDelta(String chunk) -> {
-                            listener.onContent(chunk);
-                            buf.append(chunk);
-                        }
-                        case StreamEvent.MessageStop() -> {
-                            break loop;
-                        }
-                        default -> {}
-                    }
+            send(text, 0, attachments, listener, ctrl);
+        }
+
+        /**
+         * The cacheable prefix of the text goes into a block of its own. In the request, that block and the last
+         * block of the new message are marked as cache breakpoints, so the next turn of the chat, such as a fix
+         * round, reads the whole conversation so far from the cache. Earlier messages are sent unmarked, which
+         * keeps the request within the four breakpoints allowed, while their cache entries are still found by
+         * the provider's lookback.
+         */
+        @Override
+        public void send(String text, int cachePrefixLength, List<File> attachments, ChatStreamListener listener,
+                         ChatController ctrl) {
+            var contents = toContents(text, cachePrefixLength, attachments);
+            var split = contents.size() > attachments.size() + 1;
+            var tagged = new ArrayList<>(contents);
+            if (split)
+                tagged.set(0, tagged.getFirst().cached());
+            tagged.set(tagged.size() - 1, tagged.getLast().cached());
+            var messages = new ArrayList<>(history);
+            messages.add(new Message("user", tagged));
+            var content = client.send(messages, outputThought ? listener : new ChatStreamListener() {
+                @Override
+                public void onThought(String thoughtChunk) {
                 }
-                history.add(new Message("assistant", List.of(new TextContent(buf.toString()))));
-            }
+
+                @Override
+                public void onContent(String contentChunk) {
+                    listener.onContent(contentChunk);
+                }
+
+                @Override
+                public void onUsage(TokenUsage usage) {
+                    listener.onUsage(usage);
+                }
+
+                @Override
+                public void onRateLimits(RateLimits limits) {
+                    listener.onRateLimits(limits);
+                }
+            }, ctrl);
+            // Only a message that was answered joins the history, so that the chat can be retried after a failure
+            history.add(new Message("user", contents));
+            history.add(new Message("assistant", List.of(new TextContent(content))));
+        }
+    }
+
+    private static List<Content> toContents(String text, int cachePrefixLength, List<File> attachments) {
+        var contents = new ArrayList<Content>();
+        if (cachePrefixLength > 0 && cachePrefixLength < text.length()) {
+            contents.add(new TextContent(text.substring(0, cachePrefixLength)));
+            contents.add(new TextContent(text.substring(cachePrefixLength)));
+        } else
+            contents.add(new TextContent(text));
+        for (File attachment : attachments) {
+            var mimeType = attachment.mimeType();
+            if (mimeType.startsWith("image/")) {
+                contents.add(new ImageContent(new ImageSource(
+                        "base64",
+                        attachment.mimeType(),
+                        Base64.getEncoder().encodeToString(attachment.bytes())
+                )));
+            } else if (mimeType.startsWith("text/") || mimeType.equals("application/json"))
+                contents.add(new TextContent(new String(attachment.bytes(), StandardCharsets.UTF_8)));
+            else
+                throw new BusinessException(ErrorCode.UNSUPPORTED_ATTACHMENT, attachment.mimeType());
         }
+        return contents;
     }
 
     @SneakyThrows
@@ -51,23 +51,50 @@ record Message(
     }
 }
 
-sealed interface Content permits TextContent, ImageContent {}
+sealed interface Content permits TextContent, ImageContent {
 
+    /**
+     * Returns a copy of this block marked as the end of a cacheable prompt prefix.
+     */
+    Content cached();
+
+}
+
+record CacheControl(String type) {
+
+    static final CacheControl EPHEMERAL = new CacheControl("ephemeral");
+
+}
+
+@JsonInclude(JsonInclude.Include.NON_NULL)
 record TextContent(
         String type,
-        String text
+        String text,
+        @JsonProperty("cache_control") CacheControl cacheControl
 ) implements Content {
     public TextContent(String text) {
-        this("text", text);
+        this("text", text, null);
+    }
+
+    @Override
+    public TextContent cached() {
+        return new TextContent(type, text, CacheControl.EPHEMERAL);
     }
 }
 
+@JsonInclude(JsonInclude.Include.NON_NULL)
 record ImageContent(
         String type,
-        ImageSource source
+        ImageSource source,
+        @JsonProperty("cache_control") CacheControl cacheControl
 ) implements Content {
     public ImageContent(ImageSource source) {
-        this("image", source);
+        this("image", source, null);
+    }
+
+    @Override
+    public ImageContent cached() {
+        return new ImageContent(type, source, CacheControl.EPHEMERAL);
     }
 }
 
@@ -97,29 +124,3 @@ record ImageData(
         return new ImageData("image/gif", base64Data);
     }
 }
-
-record StreamResponse(
-        String type,
-        Delta delta,
-        StreamMessage message
-) {}
-
-record Delta(String text) {}
-
-record StreamMessage(
-        String id,
-        String type,
-        String role,
-        List<Object> content,
-        String model,
-        Usage usage
-) {}
-
-sealed interface StreamEvent {
-    record MessageStart() implements StreamEvent {}
-    record ContentStart() implements StreamEvent {}
-    record ContentDelta(String text) implements StreamEvent {}
-    record ContentStop() implements StreamEvent {}
-    record MessageStop() implements StreamEvent {}
-    record Done() implements StreamEvent {}
-}
\ No newline at end of file
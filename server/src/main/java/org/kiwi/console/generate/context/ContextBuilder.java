@@ -0,0 +1,131 @@
+package org.kiwi.console.generate.context;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.Metrics;
+import lombok.extern.slf4j.Slf4j;
+import org.kiwi.console.generate.SourceFile;
+import org.kiwi.console.patch.PatchReader;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.List;
+
+/**
+ * Builds the project code that goes into a prompt. A project that fits in the token budget is included as a
+ * whole. Otherwise, files are ranked by their relevance to the query, such as a requirement, and the most
+ * relevant ones are included in full while the budget lasts. The rest are listed by their declarations only.
+ */
+@Slf4j
+public class ContextBuilder {
+
+    public static final int DEFAULT_TOKEN_BUDGET = 100_000;
+
+    static final String OMITTED_HEADER = "The following files are not shown in full, only their declarations. " +
+            "Leave them out of the output; they are kept unchanged.\n";
+
+    private static final DistributionSummary projectTokens = tokens("project");
+    private static final DistributionSummary promptTokens = tokens("prompt");
+    private static final Counter fullFiles = files("full");
+    private static final Counter summarizedFiles = files("summarized");
+
+    private final int tokenBudget;
+
+    public ContextBuilder(int tokenBudget) {
+        this.tokenBudget = tokenBudget;
+    }
+
+    private static DistributionSummary tokens(String scope) {
+        return DistributionSummary.builder("generation.context.tokens")
+                .description("Estimated tokens of project code, as a whole and as included in prompts")
+                .tag("scope", scope)
+                .register(Metrics.globalRegistry);
+    }
+
+    private static Counter files(String inclusion) {
+        return Counter.builder("generation.context.files")
+                .description("Source files included in prompts, in full or as declarations")
+                .tag("inclusion", inclusion)
+                .register(Metrics.globalRegistry);
+    }
+
+    public int getTokenBudget() {
+        return tokenBudget;
+    }
+
+    public ProjectContext build(List<SourceFile> files, String query) {
+        return build(files, query, tokenBudget);
+    }
+
+    public ProjectContext build(List<SourceFile> files, String query, int tokenBudget) {
+        var total = 0;
+        for (var file : files)
+            total += estimateTokens(file);
+        projectTokens.record(total);
+        if (total <= tokenBudget) {
+            promptTokens.record(total);
+            fullFiles.increment(files.size());
+            return new ProjectContext(PatchReader.buildCode(files), List.of());
+        }
+        var index = new SourceIndex(files);
+        var scores = index.rank(query);
+        var summaries = new IdentityHashMap<SourceIndex.Entry, String>();
+        var remaining = tokenBudget - estimateTokens(OMITTED_HEADER);
+        for (var entry : index.getEntries()) {
+            var summary = summarize(entry);
+            summaries.put(entry, summary);
+            remaining -= estimateTokens(summary);
+        }
+        var ranked = new ArrayList<>(index.getEntries());
+        ranked.sort(Comparator.comparingDouble((SourceIndex.Entry e) -> -scores.get(e))
+                .thenComparing(e -> SourceIndex.normalize(e.file.path())));
+        var included = new IdentityHashMap<SourceIndex.Entry, Boolean>();
+        for (var entry : ranked) {
+            var cost = estimateTokens(entry.file) - estimateTokens(summaries.get(entry));
+            if (cost <= remaining) {
+                included.put(entry, true);
+                remaining -= cost;
+            }
+        }
+        var shown = new ArrayList<SourceFile>();
+        var omitted = new ArrayList<SourceFile>();
+        var buf = new StringBuilder(OMITTED_HEADER);
+        for (var entry : index.getEntries()) {
+            if (included.containsKey(entry))
+                shown.add(entry.file);
+            else {
+                omitted.add(entry.file);
+                buf.append(summaries.get(entry));
+            }
+        }
+        var code = omitted.isEmpty() ? PatchReader.buildCode(shown) : PatchReader.buildCode(shown) + buf;
+        var tokens = estimateTokens(code);
+        promptTokens.record(tokens);
+        fullFiles.increment(shown.size());
+        summarizedFiles.increment(omitted.size());
+        log.info("Project code of {} tokens cut to {} for the prompt: {} files in full, {} as declarations",
+                total, tokens, shown.size(), omitted.size());
+        return new ProjectContext(code, omitted);
+    }
+
+    private static String summarize(SourceIndex.Entry entry) {
+        var buf = new StringBuilder("# ").append(SourceIndex.normalize(entry.file.path())).append('\n');
+        for (var signature : entry.signatures)
+            buf.append("    ").append(signature).append('\n');
+        return buf.toString();
+    }
+
+    static int estimateTokens(SourceFile file) {
+        // Header and trailing newline as written by PatchReader.buildCode
+        return estimateTokens(file.content()) + estimateTokens(file.path().toString()) + 2;
+    }
+
+    /**
+     * Roughly four characters per token, which holds for code in most tokenizers.
+     */
+    static int estimateTokens(String text) {
+        return (text.length() + 3) / 4;
+    }
+
+}
@@ -0,0 +1,51 @@
+package org.kiwi.console.generate.context;
+
+import org.kiwi.console.generate.SourceFile;
+import org.kiwi.console.patch.PatchReader;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Project code as included in a prompt, along with the files that were left out and listed by their
+ * declarations only.
+ */
+public class ProjectContext {
+
+    private final String code;
+    private final List<SourceFile> omitted;
+
+    ProjectContext(String code, List<SourceFile> omitted) {
+        this.code = code;
+        this.omitted = new ArrayList<>(omitted);
+    }
+
+    public String getCode() {
+        return code;
+    }
+
+    public List<SourceFile> getOmitted() {
+        return omitted;
+    }
+
+    /**
+     * Appends the full source of omitted files that the error mentions, so that the model can fix them. Each
+     * file is appended at most once.
+     */
+    public String expand(String error) {
+        var mentioned = new ArrayList<SourceFile>();
+        var it = omitted.iterator();
+        while (it.hasNext()) {
+            var file = it.next();
+            if (error.contains(SourceIndex.normalize(file.path())) || error.contains(file.path().getFileName().toString())) {
+                mentioned.add(file);
+                it.remove();
+            }
+        }
+        if (mentioned.isEmpty())
+            return error;
+        return error + "\n\nFull source of the files mentioned above, which were not shown before:\n\n"
+                + PatchReader.buildCode(mentioned);
+    }
+
+}
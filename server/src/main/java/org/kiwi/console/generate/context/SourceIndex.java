@@ -0,0 +1,221 @@
+package org.kiwi.console.generate.context;
+
+import org.kiwi.console.generate.SourceFile;
+
+import java.nio.file.Path;
+import java.util.*;
+import java.util.regex.Pattern;
+
+/**
+ * A symbol table of the declarations in Kiwi and TypeScript sources, together with the references between files:
+ * a file refers to another one when it uses a name declared there, or, for TypeScript, when it imports it.
+ */
+class SourceIndex {
+
+    private static final Pattern KIWI_DECL = Pattern.compile(
+            "^\\s*(?:@\\w+(?:\\([^)]*\\))?\\s+)*(?:(?:pub|priv|prot|static|abstract|value|deleted)\\s+)*" +
+                    "(class|interface|enum|fn|val|var)\\s+(\\w+)");
+    private static final Pattern TS_DECL = Pattern.compile(
+            "^(?:export\\s+(?:default\\s+)?)?(?:declare\\s+)?(?:async\\s+)?(function|const|let|class|interface|type|enum)\\s+(\\w+)");
+    private static final Pattern TS_IMPORT = Pattern.compile("from\\s+['\"]((?:\\.{1,2}|@)/[^'\"]+)['\"]");
+    private static final Pattern IDENTIFIER = Pattern.compile("[A-Za-z_][A-Za-z0-9_]*");
+    private static final Pattern HAN = Pattern.compile("\\p{IsHan}+");
+    private static final List<String> TS_EXTENSIONS = List.of(".ts", ".tsx", "/index.ts", "/index.tsx");
+    /**
+     * Names declared in more files than this, such as {@code Props}, link too many files to mean anything.
+     */
+    private static final int MAX_DECLARING_FILES = 3;
+
+    static class Entry {
+
+        final SourceFile file;
+        final Set<String> declarations;
+        final List<String> signatures;
+        final Set<String> terms;
+        final Set<Entry> references = new HashSet<>();
+
+        private Entry(SourceFile file, Set<String> declarations, List<String> signatures, Set<String> terms) {
+            this.file = file;
+            this.declarations = declarations;
+            this.signatures = signatures;
+            this.terms = terms;
+        }
+
+        String stem() {
+            var name = file.path().getFileName().toString();
+            var dot = name.indexOf('.');
+            return (dot > 0 ? name.substring(0, dot) : name).toLowerCase();
+        }
+
+    }
+
+    private final List<Entry> entries = new ArrayList<>();
+    private final Map<String, Integer> documentFrequencies = new HashMap<>();
+
+    SourceIndex(List<SourceFile> files) {
+        var byPath = new HashMap<String, Entry>();
+        var declaringEntries = new HashMap<String, List<Entry>>();
+        for (var file : files) {
+            var declarations = new LinkedHashSet<String>();
+            var signatures = new ArrayList<String>();
+            var pattern = isKiwi(file) ? KIWI_DECL : isTypeScript(file) ? TS_DECL : null;
+            if (pattern != null) {
+                for (var line : file.content().split("\n")) {
+                    var m = pattern.matcher(line);
+                    if (m.find() && !isLocal(m.group(1), line)) {
+                        declarations.add(m.group(2));
+                        signatures.add(toSignature(line));
+                    }
+                }
+            }
+            var entry = new Entry(file, declarations, signatures, terms(file.content()));
+            entries.add(entry);
+            byPath.put(normalize(file.path()), entry);
+            for (var decl : declarations)
+                declaringEntries.computeIfAbsent(decl, k -> new ArrayList<>()).add(entry);
+            for (var term : entry.terms)
+                documentFrequencies.merge(term, 1, Integer::sum);
+        }
+        for (var entry : entries) {
+            var m = IDENTIFIER.matcher(entry.file.content());
+            var seen = new HashSet<String>();
+            while (m.find()) {
+                var name = m.group();
+                if (seen.add(name) && !entry.declarations.contains(name)) {
+                    var declaring = declaringEntries.get(name);
+                    if (declaring != null && declaring.size() <= MAX_DECLARING_FILES)
+                        entry.references.addAll(declaring);
+                }
+            }
+            if (isTypeScript(entry.file)) {
+                var im = TS_IMPORT.matcher(entry.file.content());
+                while (im.find()) {
+                    var target = resolveImport(entry.file.path(), im.group(1), byPath);
+                    if (target != null && target != entry)
+                        entry.references.add(target);
+                }
+            }
+        }
+    }
+
+    List<Entry> getEntries() {
+        return entries;
+    }
+
+    /**
+     * Scores files by the terms they share with the query, weighted by rarity, with extra weight for declared
+     * names, file names and paths mentioned in the query. Half the best score among the files a file refers to,
+     * or is referred to by, is then added to its own.
+     */
+    Map<Entry, Double> rank(String query) {
+        var queryTerms = terms(query);
+        var n = entries.size();
+        var direct = new HashMap<Entry, Double>();
+        for (var entry : entries) {
+            var score = 0.0;
+            for (var term : queryTerms) {
+                if (entry.terms.contains(term))
+                    score += idf(term, n);
+            }
+            for (var decl : entry.declarations) {
+                if (queryTerms.contains(decl.toLowerCase()))
+                    score += idf(decl.toLowerCase(), n);
+            }
+            if (queryTerms.contains(entry.stem()))
+                score += 2 * Math.log(1 + n);
+            if (query.contains(normalize(entry.file.path())))
+                score += 10 * Math.log(1 + n);
+            direct.put(entry, score);
+        }
+        var neighbourScores = new HashMap<Entry, Double>();
+        for (var entry : entries) {
+            for (var ref : entry.references) {
+                neighbourScores.merge(entry, direct.get(ref), Math::max);
+                neighbourScores.merge(ref, direct.get(entry), Math::max);
+            }
+        }
+        var scores = new HashMap<Entry, Double>();
+        for (var entry : entries)
+            scores.put(entry, direct.get(entry) + 0.5 * neighbourScores.getOrDefault(entry, 0.0));
+        return scores;
+    }
+
+    private double idf(String term, int n) {
+        return Math.log(1 + (double) n / documentFrequencies.getOrDefault(term, 1));
+    }
+
+    /**
+     * Lower-cased identifiers and their camel case parts, plus bigrams of Chinese text, which has no spaces.
+     */
+    static Set<String> terms(String text) {
+        var terms = new HashSet<String>();
+        var m = IDENTIFIER.matcher(text);
+        while (m.find()) {
+            var word = m.group();
+            if (word.length() >= 3)
+                terms.add(word.toLowerCase());
+            for (var part : word.split("_|(?<=[a-z0-9])(?=[A-Z])")) {
+                if (part.length() >= 3)
+                    terms.add(part.toLowerCase());
+            }
+        }
+        var hm = HAN.matcher(text);
+        while (hm.find()) {
+            var run = hm.group();
+            if (run.length() == 1)
+                terms.add(run);
+            for (int i = 0; i + 1 < run.length(); i++)
+                terms.add(run.substring(i, i + 2));
+        }
+        return terms;
+    }
+
+    private static boolean isLocal(String kind, String line) {
+        // Fields and local variables of Kiwi classes are indented; top-level values are not.
+        return (kind.equals("val") || kind.equals("var")) && !line.isEmpty() && Character.isWhitespace(line.charAt(0))
+                && !line.contains("static");
+    }
+
+    private static String toSignature(String line) {
+        var s = line.strip();
+        if (s.endsWith("{"))
+            s = s.substring(0, s.length() - 1).stripTrailing();
+        var eq = s.indexOf(" = ");
+        if (eq > 0 && !s.startsWith("type "))
+            s = s.substring(0, eq);
+        return s;
+    }
+
+    private static Entry resolveImport(Path from, String spec, Map<String, Entry> byPath) {
+        String base;
+        if (spec.startsWith("@/"))
+            base = "src/" + spec.substring(2);
+        else {
+            var dir = from.getParent();
+            base = normalize((dir != null ? dir.resolve(spec) : Path.of(spec)).normalize());
+        }
+        var entry = byPath.get(base);
+        if (entry != null)
+            return entry;
+        for (var ext : TS_EXTENSIONS) {
+            entry = byPath.get(base + ext);
+            if (entry != null)
+                return entry;
+        }
+        return null;
+    }
+
+    static String normalize(Path path) {
+        return path.toString().replace('\\', '/');
+    }
+
+    private static boolean isKiwi(SourceFile file) {
+        return file.path().toString().endsWith(".kiwi");
+    }
+
+    private static boolean isTypeScript(SourceFile file) {
+        var name = file.path().toString();
+        return name.endsWith(".ts") || name.endsWith(".tsx");
+    }
+
+}
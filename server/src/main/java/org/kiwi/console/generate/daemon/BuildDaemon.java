@@ -0,0 +1,143 @@
+package org.kiwi.console.generate.daemon;
+
+import lombok.extern.slf4j.Slf4j;
+import org.kiwi.console.util.BusinessException;
+import org.kiwi.console.util.ErrorCode;
+import org.kiwi.console.util.ProcessRunner;
+import org.kiwi.console.util.Utils;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * A long-lived compiler process that runs builds on request, so that its runtime and caches stay warm.
+ * <p>
+ * The protocol is line based. For every build, the daemon reads a JSON object from its standard input, such as
+ * <pre>{"dir": "/works/1000", "command": ["manul", "build", "--sense-lint"]}</pre>
+ * and runs the command in that directory the way it would run as a process of its own. It writes the output of
+ * the build to its standard output, followed by the line {@code __BUILD_EXIT__ <exit code>}. The daemon exits
+ * when its standard input is closed.
+ */
+@Slf4j
+class BuildDaemon implements Closeable {
+
+    static final String EXIT_MARKER = "__BUILD_EXIT__ ";
+    private static final long POLL_MILLIS = 200;
+
+    private final Process process;
+    private final BufferedWriter input;
+    private final BufferedReader output;
+    private int builds;
+    private volatile boolean timedOut;
+
+    BuildDaemon(List<String> command) throws IOException {
+        process = new ProcessBuilder(command).redirectErrorStream(true).start();
+        input = new BufferedWriter(new OutputStreamWriter(process.getOutputStream(), StandardCharsets.UTF_8));
+        output = new BufferedReader(new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8));
+        log.info("Started build daemon {} (pid {})", String.join(" ", command), process.pid());
+    }
+
+    /**
+     * Runs a build, killing the daemon if it takes longer than {@code timeoutMillis}, in which case the build fails
+     * and {@link #isTimedOut()} is set, or if the abort controller of the calling thread is aborted.
+     *
+     * @throws IOException        if the daemon died or broke the protocol
+     * @throws BusinessException  with {@link ErrorCode#TASK_CANCELLED} if the build was cancelled
+     */
+    Utils.CommandResult execute(Path dir, List<String> command, long timeoutMillis) throws IOException {
+        builds++;
+        var abortController = ProcessRunner.getAbortController();
+        var cancelled = new AtomicBoolean();
+        var watchdog = Thread.ofVirtual().start(() -> {
+            var deadline = System.currentTimeMillis() + timeoutMillis;
+            try {
+                while (true) {
+                    Thread.sleep(POLL_MILLIS);
+                    if (abortController != null && abortController.isAborted()) {
+                        log.info("Build on daemon {} cancelled, killing it", process.pid());
+                        cancelled.set(true);
+                        kill();
+                        return;
+                    }
+                    if (System.currentTimeMillis() > deadline) {
+                        log.warn("Build daemon {} timed out after {} ms, killing it", process.pid(), timeoutMillis);
+                        timedOut = true;
+                        kill();
+                        return;
+                    }
+                }
+            } catch (InterruptedException ignored) {
+            }
+        });
+        var buf = ProcessRunner.createOutputBuffer();
+        try {
+            input.write(Utils.getObjectMapper().writeValueAsString(new Request(dir.toAbsolutePath().toString(), command)));
+            input.newLine();
+            input.flush();
+            String line;
+            while ((line = output.readLine()) != null) {
+                if (line.startsWith(EXIT_MARKER)) {
+                    try {
+                        return new Utils.CommandResult(Integer.parseInt(line.substring(EXIT_MARKER.length()).trim()),
+                                buf.toString());
+                    } catch (NumberFormatException e) {
+                        throw new IOException("Malformed exit line from build daemon: " + line);
+                    }
+                }
+                buf.append(line + System.lineSeparator());
+            }
+        } catch (IOException e) {
+            if (!cancelled.get() && !timedOut)
+                throw e;
+        } finally {
+            watchdog.interrupt();
+        }
+        if (cancelled.get())
+            throw new BusinessException(ErrorCode.TASK_CANCELLED);
+        if (timedOut) {
+            buf.append("Build timed out after " + timeoutMillis / 1000 + " seconds" + System.lineSeparator());
+            return new Utils.CommandResult(-1, buf.toString());
+        }
+        throw new IOException("Build daemon exited with output: " + buf);
+    }
+
+    boolean isTimedOut() {
+        return timedOut;
+    }
+
+    private void kill() {
+        process.descendants().forEach(ProcessHandle::destroyForcibly);
+        process.destroyForcibly();
+    }
+
+    boolean isAlive() {
+        return process.isAlive();
+    }
+
+    int getBuilds() {
+        return builds;
+    }
+
+    /**
+     * @return the resident memory of the daemon process in bytes, or -1 where it cannot be read
+     */
+    long getRss() {
+        return ProcessRunner.getRss(process.pid());
+    }
+
+    @Override
+    public void close() {
+        try {
+            input.close();
+        } catch (IOException ignored) {
+        }
+        process.destroy();
+    }
+
+    private record Request(String dir, List<String> command) {
+    }
+
+}
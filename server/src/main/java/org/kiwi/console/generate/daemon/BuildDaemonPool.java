@@ -0,0 +1,216 @@
+package org.kiwi.console.generate.daemon;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.Timer;
+import lombok.SneakyThrows;
+import lombok.extern.slf4j.Slf4j;
+import org.kiwi.console.util.BusinessException;
+import org.kiwi.console.util.ErrorCode;
+import org.kiwi.console.util.ProcessRunner;
+import org.kiwi.console.util.Utils;
+
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Runs builds on warm {@link BuildDaemon}s shared by all projects of a compiler, one build per daemon at a time.
+ * A daemon is recycled after {@code maxBuilds} builds, once its resident memory exceeds {@code maxRssBytes}, or
+ * when it crashes, times out or is killed by cancellation. Builds that a daemon cannot run, because it failed to
+ * start or died unexpectedly during the build, run as one-shot processes instead. A build that times out fails.
+ * <p>
+ * Builds are cancelled, also while waiting for a daemon, once the abort controller bound to the calling thread with
+ * {@link ProcessRunner#withAbortController} is aborted.
+ */
+@Slf4j
+public class BuildDaemonPool {
+
+    private static final long POLL_MILLIS = 200;
+
+    /**
+     * @param command     starts a daemon
+     * @param maxRssBytes zero for no limit
+     */
+    public record Settings(List<String> command,
+                           int maxDaemons,
+                           long maxRssBytes,
+                           int maxBuilds,
+                           long timeoutMillis) {
+    }
+
+    private final String name;
+    private final Settings settings;
+    private final Deque<BuildDaemon> idle = new ArrayDeque<>();
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition released = lock.newCondition();
+    private int daemons;
+    private boolean closed;
+    private final Timer daemonTimer;
+    private final Timer oneShotTimer;
+
+    public BuildDaemonPool(String name, Settings settings) {
+        this.name = name;
+        this.settings = settings;
+        daemonTimer = buildTimer("daemon");
+        oneShotTimer = buildTimer("one-shot");
+    }
+
+    private Timer buildTimer(String mode) {
+        return Timer.builder("generation.build.time")
+                .description("Time of builds, by whether they ran on a daemon")
+                .tag("compiler", name)
+                .tag("mode", mode)
+                .register(Metrics.globalRegistry);
+    }
+
+    public Utils.CommandResult execute(Path dir, List<String> command) {
+        var daemon = acquire();
+        if (daemon != null) {
+            var sample = Timer.start();
+            try {
+                var r = daemon.execute(dir, command, settings.timeoutMillis());
+                sample.stop(daemonTimer);
+                if (daemon.isTimedOut())
+                    discard(daemon, "timeout");
+                else
+                    release(daemon);
+                return r;
+            } catch (IOException e) {
+                log.warn("Build daemon of {} failed, running {} as a process", name, String.join(" ", command), e);
+                discard(daemon, "crash");
+            } catch (BusinessException e) {
+                discard(daemon, "cancelled");
+                throw e;
+            }
+        }
+        var sample = Timer.start();
+        var r = Utils.executeCommand(dir, command);
+        sample.stop(oneShotTimer);
+        return r;
+    }
+
+    public void close() {
+        lock.lock();
+        try {
+            closed = true;
+            idle.forEach(BuildDaemon::close);
+            daemons -= idle.size();
+            idle.clear();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    int getDaemons() {
+        lock.lock();
+        try {
+            return daemons;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return null if no daemon could be started
+     */
+    @SneakyThrows
+    private @Nullable BuildDaemon acquire() {
+        lock.lock();
+        try {
+            while (true) {
+                if (closed)
+                    return null;
+                var daemon = idle.pollFirst();
+                if (daemon != null) {
+                    if (daemon.isAlive())
+                        return daemon;
+                    daemons--;
+                    recycled("crash");
+                    continue;
+                }
+                if (daemons < settings.maxDaemons()) {
+                    daemons++;
+                    break;
+                }
+                if (isCancelled())
+                    throw new BusinessException(ErrorCode.TASK_CANCELLED);
+                released.await(POLL_MILLIS, TimeUnit.MILLISECONDS);
+            }
+        } finally {
+            lock.unlock();
+        }
+        try {
+            return new BuildDaemon(settings.command());
+        } catch (IOException e) {
+            log.warn("Failed to start build daemon of {}", name, e);
+            lock.lock();
+            try {
+                daemons--;
+                released.signal();
+            } finally {
+                lock.unlock();
+            }
+            return null;
+        }
+    }
+
+    private static boolean isCancelled() {
+        var abortController = ProcessRunner.getAbortController();
+        return abortController != null && abortController.isAborted();
+    }
+
+    private void release(BuildDaemon daemon) {
+        String reason = null;
+        if (!daemon.isAlive())
+            reason = "crash";
+        else if (settings.maxBuilds() > 0 && daemon.getBuilds() >= settings.maxBuilds())
+            reason = "builds";
+        else if (settings.maxRssBytes() > 0 && daemon.getRss() > settings.maxRssBytes())
+            reason = "memory";
+        if (reason != null) {
+            discard(daemon, reason);
+            return;
+        }
+        lock.lock();
+        try {
+            if (closed) {
+                daemon.close();
+                daemons--;
+            } else
+                idle.addFirst(daemon);
+            released.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void discard(BuildDaemon daemon, String reason) {
+        log.info("Recycling build daemon of {} after {} builds ({})", name, daemon.getBuilds(), reason);
+        daemon.close();
+        recycled(reason);
+        lock.lock();
+        try {
+            daemons--;
+            released.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void recycled(String reason) {
+        Counter.builder("generation.build.daemon.recycles")
+                .description("Build daemons stopped and replaced")
+                .tag("compiler", name)
+                .tag("reason", reason)
+                .register(Metrics.globalRegistry)
+                .increment();
+    }
+
+}
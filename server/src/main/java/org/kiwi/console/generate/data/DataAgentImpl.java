@@ -4,12 +4,9 @@ import lombok.SneakyThrows;
 import lombok.extern.slf4j.Slf4j;
 import org.kiwi.console.generate.*;
 import org.kiwi.console.patch.PatchReader;
+import org.kiwi.console.util.ProcessRunner;
 import org.kiwi.console.util.Utils;
 
-import java.io.BufferedReader;
-import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.OutputStreamWriter;
 import java.nio.file.Path;
 import java.util.List;
 
@@ -33,7 +30,7 @@ public class DataAgentImpl implements DataAgent {
         log.info("Data Manipulation Prompt\n{}", prompt);
         listener.onAttemptStart();
         var script = CodeSanitizer.sanitizeCode(Models.generateContent(chat, prompt, List.of(), request.abortController()));
-        var r = executeScript(script);
+        var r = executeScript(script, request.abortController());
         log.info("Exit code: {}, output\n{}", r.exitCode(), r.output());
         if (r.exitCode() == 0) {
             listener.onAttemptSuccess();
@@ -44,7 +41,7 @@ public class DataAgentImpl implements DataAgent {
         for (var i = 0; i < MAX_RETRIES; i++) {
             listener.onAttemptStart();
             script = fix(chat, request.fixPromptTemplate(), errorMsg, request.abortController());
-            var r1 = executeScript(script);
+            var r1 = executeScript(script, request.abortController());
             log.info("Exit code: {}, output\n{}", r1.exitCode(), r1.output());
             if (r1.exitCode() == 0) {
                 listener.onAttemptSuccess();
@@ -61,39 +58,12 @@ public class DataAgentImpl implements DataAgent {
         return CodeSanitizer.sanitizeCode(Models.generateContent(chat, prompt, List.of(), abortController));
     }
 
-    public static Utils.CommandResult executeScript(String javascriptCode) throws IOException, InterruptedException {
-        ProcessBuilder processBuilder = new ProcessBuilder("node");
-
-        // *** THIS IS THE KEY LINE ***
-        // Redirect the process's error stream to its standard output stream.
-        processBuilder.redirectErrorStream(true);
-
-        Process process = processBuilder.start();
-
-        // Write the JavaScript code to the process's standard input.
-        try (OutputStreamWriter writer = new OutputStreamWriter(process.getOutputStream())) {
-            writer.write(javascriptCode);
-        }
-
-        // Read the combined output from the single input stream.
-        StringBuilder combinedOutput = new StringBuilder();
-        try (BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream()))) {
-            String line;
-            while ((line = reader.readLine()) != null) {
-                combinedOutput.append(line).append(System.lineSeparator());
-            }
-        }
-
-        // Wait for the process to complete and check its exit code.
-        int exitCode = process.waitFor();
-//        if (exitCode != 0) {
-//            // The process failed. The combinedOutput will contain the error message.
-//            throw new IOException(
-//                    "Node.js process exited with code " + exitCode + ". Combined output:\n" + combinedOutput
-//            );
-//        }
-
-        return new Utils.CommandResult(exitCode, combinedOutput.toString());
+    /**
+     * Runs the script with Node.js, which reads it from its standard input.
+     */
+    public static Utils.CommandResult executeScript(String javascriptCode, AbortController abortController) {
+        return ProcessRunner.run(Path.of("."), List.of("node"),
+                ProcessRunner.Options.DEFAULT.withInput(javascriptCode).withAbortController(abortController));
     }
 
     @SneakyThrows
@@ -0,0 +1,316 @@
+package org.kiwi.console.generate.event;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.kiwi.console.generate.rest.ExchangeDTO;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Decouples generation from the delivery of its events. Every subscriber gets a bounded queue that is drained
+ * by its own writer task, so publishing never blocks the generator and a slow client only delays itself.
+ * <p>
+ * A queued progress snapshot is superseded by a newer one. When a queue is full, the oldest event is dropped.
+ * A subscriber whose listener fails is closed and ignores further events. Otherwise it stays open, and counts as
+ * such in {@code generation.events.subscribers}, until it is {@link GenerationListener#close() closed}, which
+ * happens once generation ends or the listener is removed. For a listener consuming progress
+ * patches, queued progress events are never merged; instead, once one is dropped, the next progress event it
+ * receives is turned into a snapshot.
+ * <p>
+ * Thought and content tokens are only delivered to listeners that {@link GenerationListener#isTokenStreaming()
+ * stream tokens}. Consecutive tokens of the same kind are merged into one chunk, which the writer holds back
+ * for up to {@code tokenBatchMillis} or until it reaches {@code tokenBatchChars}, so that clients don't receive
+ * one frame per token.
+ */
+@Slf4j
+public class GenerationEventHub {
+
+    private final Executor writerExecutor;
+    private final int queueCapacity;
+    private final long tokenBatchNanos;
+    private final int tokenBatchChars;
+    private final AtomicInteger queued = new AtomicInteger();
+    private final AtomicInteger subscribers = new AtomicInteger();
+    private final Counter dropped;
+    private final Counter coalesced;
+
+    public GenerationEventHub(Executor writerExecutor, int queueCapacity, long tokenBatchMillis, int tokenBatchChars,
+                              MeterRegistry meterRegistry) {
+        if (queueCapacity < 1)
+            throw new IllegalArgumentException("Queue capacity must be positive: " + queueCapacity);
+        this.writerExecutor = writerExecutor;
+        this.queueCapacity = queueCapacity;
+        this.tokenBatchNanos = TimeUnit.MILLISECONDS.toNanos(tokenBatchMillis);
+        this.tokenBatchChars = tokenBatchChars;
+        Gauge.builder("generation.events.queued", queued, AtomicInteger::get)
+                .description("Generation events waiting to be written to subscribers")
+                .register(meterRegistry);
+        Gauge.builder("generation.events.subscribers", subscribers, AtomicInteger::get)
+                .description("Open generation event subscribers")
+                .register(meterRegistry);
+        dropped = Counter.builder("generation.events.dropped")
+                .description("Generation events dropped because a subscriber queue was full")
+                .register(meterRegistry);
+        coalesced = Counter.builder("generation.events.coalesced")
+                .description("Progress snapshots superseded before being written")
+                .register(meterRegistry);
+    }
+
+    /**
+     * Wraps the listener into a subscriber whose methods return without waiting for the listener.
+     */
+    public GenerationListener subscribe(GenerationListener listener) {
+        return subscribe(listener, false);
+    }
+
+    /**
+     * @param resuming whether the listener continues from a progress event it received on an earlier
+     *                 connection, in which case it doesn't need to start with a snapshot
+     */
+    public GenerationListener subscribe(GenerationListener listener, boolean resuming) {
+        if (listener instanceof Subscriber s && s.hub() == this)
+            return s;
+        subscribers.incrementAndGet();
+        return new Subscriber(listener, !resuming);
+    }
+
+    public int getQueuedCount() {
+        return queued.get();
+    }
+
+    public double getDroppedCount() {
+        return dropped.count();
+    }
+
+    private sealed interface Event permits Tokens, Progress, Close {}
+
+    private enum TokenKind {
+        THOUGHT,
+        CONTENT
+    }
+
+    private static final class Tokens implements Event {
+        private final TokenKind kind;
+        private final StringBuilder text = new StringBuilder();
+        private final long createdAt = System.nanoTime();
+
+        private Tokens(TokenKind kind) {
+            this.kind = kind;
+        }
+    }
+
+    private record Progress(ProgressEvent event) implements Event {}
+
+    private record Close() implements Event {}
+
+    private class Subscriber implements GenerationListener {
+
+        private final GenerationListener listener;
+        private final ReentrantLock lock = new ReentrantLock();
+        private final Condition tokensGrown = lock.newCondition();
+        private final Deque<Event> queue = new ArrayDeque<>();
+        private final boolean tokenStreaming;
+        private final boolean incrementalProgress;
+        private boolean needsSnapshot;
+        private boolean draining;
+        private volatile boolean closed;
+
+        private Subscriber(GenerationListener listener, boolean needsSnapshot) {
+            this.listener = listener;
+            this.needsSnapshot = needsSnapshot;
+            tokenStreaming = listener.isTokenStreaming();
+            incrementalProgress = listener.isIncrementalProgress();
+        }
+
+        @Override
+        public void onThought(String thoughtChunk) {
+            publishTokens(TokenKind.THOUGHT, thoughtChunk);
+        }
+
+        @Override
+        public void onContent(String contentChunk) {
+            publishTokens(TokenKind.CONTENT, contentChunk);
+        }
+
+        @Override
+        public void onProgress(ExchangeDTO exchange) {
+            publish(new Progress(ProgressEvent.snapshot(null, 0, exchange)));
+        }
+
+        @Override
+        public void onProgress(ProgressEvent event) {
+            publish(new Progress(event));
+        }
+
+        @Override
+        public void close() {
+            if (listener.isClosed())
+                terminate();
+            else
+                publish(new Close());
+        }
+
+        @Override
+        public boolean isClosed() {
+            return closed || listener.isClosed();
+        }
+
+        @Override
+        public boolean isTokenStreaming() {
+            return tokenStreaming;
+        }
+
+        @Override
+        public boolean isIncrementalProgress() {
+            return incrementalProgress;
+        }
+
+        private void publishTokens(TokenKind kind, String chunk) {
+            if (!tokenStreaming)
+                return;
+            lock.lock();
+            try {
+                if (closed)
+                    return;
+                if (queue.peekLast() instanceof Tokens last && last.kind == kind && last.text.length() < tokenBatchChars) {
+                    last.text.append(chunk);
+                    tokensGrown.signal();
+                    return;
+                }
+            } finally {
+                lock.unlock();
+            }
+            var tokens = new Tokens(kind);
+            tokens.text.append(chunk);
+            publish(tokens);
+        }
+
+        private void publish(Event event) {
+            boolean startWriter;
+            lock.lock();
+            try {
+                if (closed)
+                    return;
+                if (!queue.isEmpty())
+                    tokensGrown.signal();
+                if (event instanceof Progress && !incrementalProgress && queue.removeIf(e -> e instanceof Progress)) {
+                    queued.decrementAndGet();
+                    coalesced.increment();
+                }
+                if (queue.size() >= queueCapacity) {
+                    if (queue.removeFirst() instanceof Progress)
+                        needsSnapshot = true;
+                    queued.decrementAndGet();
+                    dropped.increment();
+                }
+                queue.addLast(event);
+                queued.incrementAndGet();
+                startWriter = !draining;
+                draining = true;
+            } finally {
+                lock.unlock();
+            }
+            if (startWriter) {
+                try {
+                    writerExecutor.execute(this::drain);
+                } catch (RejectedExecutionException e) {
+                    log.error("Failed to start generation event writer", e);
+                    terminate();
+                }
+            }
+        }
+
+        private void drain() {
+            for (;;) {
+                Event event;
+                lock.lock();
+                try {
+                    awaitTokenBatch();
+                    event = queue.pollFirst();
+                    if (event == null || closed) {
+                        draining = false;
+                        return;
+                    }
+                    queued.decrementAndGet();
+                    if (event instanceof Progress(ProgressEvent progress)) {
+                        if (!incrementalProgress || needsSnapshot) {
+                            event = new Progress(progress.toSnapshot());
+                            needsSnapshot = false;
+                        } else if (!progress.isSnapshot() && progress.patch().isEmpty())
+                            continue;
+                    }
+                } finally {
+                    lock.unlock();
+                }
+                try {
+                    switch (event) {
+                        case Tokens tokens -> {
+                            if (tokens.kind == TokenKind.THOUGHT)
+                                listener.onThought(tokens.text.toString());
+                            else
+                                listener.onContent(tokens.text.toString());
+                        }
+                        case Progress(ProgressEvent progress) -> listener.onProgress(progress);
+                        case Close() -> {
+                            terminate();
+                            listener.close();
+                            return;
+                        }
+                    }
+                } catch (Exception e) {
+                    log.warn("Failed to deliver generation event, closing subscriber", e);
+                    terminate();
+                    return;
+                }
+            }
+        }
+
+        /**
+         * Holds back a token chunk at the head of the queue until its batch window closes, it's full, or other
+         * events queue up behind it.
+         */
+        private void awaitTokenBatch() {
+            while (queue.size() == 1 && queue.peekFirst() instanceof Tokens tokens && !closed
+                    && tokens.text.length() < tokenBatchChars) {
+                var remaining = tokens.createdAt + tokenBatchNanos - System.nanoTime();
+                if (remaining <= 0)
+                    return;
+                try {
+                    tokensGrown.awaitNanos(remaining);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+
+        private void terminate() {
+            lock.lock();
+            try {
+                if (closed)
+                    return;
+                closed = true;
+                draining = false;
+                queued.addAndGet(-queue.size());
+                queue.clear();
+            } finally {
+                lock.unlock();
+            }
+            subscribers.decrementAndGet();
+        }
+
+        private GenerationEventHub hub() {
+            return GenerationEventHub.this;
+        }
+    }
+
+}
@@ -10,7 +10,30 @@ public interface GenerationListener {
 
     void onProgress(ExchangeDTO exchange);
 
+    default void onProgress(ProgressEvent event) {
+        onProgress(event.exchange());
+    }
+
     default void close() {
     }
 
+    default boolean isClosed() {
+        return false;
+    }
+
+    /**
+     * Whether thought and content tokens should be delivered to this listener.
+     */
+    default boolean isTokenStreaming() {
+        return false;
+    }
+
+    /**
+     * Whether this listener consumes progress patches. Such a listener receives a snapshot first and after
+     * every gap, and patches otherwise.
+     */
+    default boolean isIncrementalProgress() {
+        return false;
+    }
+
 }
@@ -0,0 +1,39 @@
+package org.kiwi.console.generate.event;
+
+import org.kiwi.console.generate.rest.ExchangeDTO;
+import org.kiwi.console.util.JsonDiff;
+
+import javax.annotation.Nullable;
+import java.util.List;
+
+/**
+ * A sequenced progress update of an exchange.
+ *
+ * @param streamId identifies the {@link ProgressStream} that produced the event, null if not sequenced
+ * @param seq      increases by one with every change of the exchange
+ * @param exchange the state of the exchange after the change
+ * @param patch    the change relative to the state at {@code seq - 1}, or null for a snapshot
+ */
+public record ProgressEvent(@Nullable String streamId, long seq, ExchangeDTO exchange,
+                            @Nullable List<JsonDiff.Op> patch) {
+
+    public static ProgressEvent snapshot(@Nullable String streamId, long seq, ExchangeDTO exchange) {
+        return new ProgressEvent(streamId, seq, exchange, null);
+    }
+
+    public ProgressEvent toSnapshot() {
+        return patch == null ? this : snapshot(streamId, seq, exchange);
+    }
+
+    public boolean isSnapshot() {
+        return patch == null;
+    }
+
+    /**
+     * The SSE event id, {@code <streamId>:<seq>}.
+     */
+    public @Nullable String id() {
+        return streamId != null ? streamId + ":" + seq : null;
+    }
+
+}
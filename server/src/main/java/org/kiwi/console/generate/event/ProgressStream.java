@@ -0,0 +1,112 @@
+package org.kiwi.console.generate.event;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import org.kiwi.console.generate.rest.ExchangeDTO;
+import org.kiwi.console.util.JsonDiff;
+import org.kiwi.console.util.Utils;
+
+import javax.annotation.Nullable;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Turns the successive states of an exchange into sequenced progress events, each carrying a JSON patch
+ * against the previous state. An unchanged state keeps the sequence number and yields an empty patch.
+ * <p>
+ * The last {@code replayCapacity} events are kept so that a reconnecting client can catch up from the id of
+ * the last event it received.
+ */
+public class ProgressStream {
+
+    private final String id = UUID.randomUUID().toString().substring(0, 8);
+    private final int replayCapacity;
+    private final Deque<ProgressEvent> history = new ArrayDeque<>();
+    private final ReentrantLock lock = new ReentrantLock();
+    private long seq;
+    private @Nullable JsonNode last;
+    private @Nullable ProgressEvent latest;
+
+    public ProgressStream(int replayCapacity) {
+        this.replayCapacity = replayCapacity;
+    }
+
+    public ProgressEvent next(ExchangeDTO exchange) {
+        JsonNode node = Utils.getObjectMapper().valueToTree(exchange);
+        lock.lock();
+        try {
+            if (last == null) {
+                last = node;
+                return record(ProgressEvent.snapshot(id, ++seq, exchange));
+            }
+            var patch = JsonDiff.diff(last, node);
+            if (patch.isEmpty())
+                return new ProgressEvent(id, seq, exchange, patch);
+            last = node;
+            return record(new ProgressEvent(id, ++seq, exchange, patch));
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private ProgressEvent record(ProgressEvent event) {
+        latest = event;
+        if (replayCapacity > 0) {
+            if (history.size() >= replayCapacity)
+                history.removeFirst();
+            history.addLast(event);
+        }
+        return event;
+    }
+
+    /**
+     * Returns the events that followed the event with the given id.
+     *
+     * @return null if the id belongs to another stream or the events are no longer retained
+     */
+    public @Nullable List<ProgressEvent> replay(String lastEventId) {
+        var sep = lastEventId.lastIndexOf(':');
+        if (sep < 0 || !id.equals(lastEventId.substring(0, sep)))
+            return null;
+        long lastSeq;
+        try {
+            lastSeq = Long.parseLong(lastEventId.substring(sep + 1));
+        } catch (NumberFormatException e) {
+            return null;
+        }
+        lock.lock();
+        try {
+            if (lastSeq > seq)
+                return null;
+            if (lastSeq == seq)
+                return List.of();
+            var first = history.peekFirst();
+            if (first == null || first.seq() > lastSeq + 1)
+                return null;
+            var events = new ArrayList<ProgressEvent>();
+            for (var event : history) {
+                if (event.seq() > lastSeq)
+                    events.add(event);
+            }
+            return events;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns a snapshot of the latest state, or null if nothing has been published yet.
+     */
+    public @Nullable ProgressEvent snapshot() {
+        lock.lock();
+        try {
+            return latest != null ? latest.toSnapshot() : null;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+}
@@ -1,4 +0,0 @@
-package org.kiwi.console.generate.k2;
-
-public record Delta(String content) {
-}
@@ -6,25 +6,17 @@ import okhttp3.MediaType;
 import okhttp3.OkHttpClient;
 import okhttp3.Request;
 import okhttp3.RequestBody;
-import okhttp3.sse.EventSource;
-import okhttp3.sse.EventSourceListener;
-import okhttp3.sse.EventSources;
-import org.jetbrains.annotations.NotNull;
+import org.kiwi.console.generate.ChatController;
+import org.kiwi.console.generate.ChatStreamListener;
+import org.kiwi.console.generate.sse.OpenAiDialect;
+import org.kiwi.console.generate.sse.SseStream;
+import org.kiwi.console.util.HttpClients;
 import org.kiwi.console.util.Utils;
 
-import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.List;
-import java.util.Spliterator;
-import java.util.Spliterators;
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.TimeUnit;
-import java.util.concurrent.atomic.AtomicReference;
-import java.util.function.Consumer;
-import java.util.stream.Stream;
-import java.util.stream.StreamSupport;
 
 public class K2Client {
 
@@ -38,7 +30,7 @@ public class K2Client {
 
     public K2Client(String apikey) {
         this.apikey = apikey;
-        this.httpClient = new OkHttpClient.Builder()
+        this.httpClient = HttpClients.get(URL).newBuilder()
                 .connectTimeout(30, TimeUnit.SECONDS)
                 .readTimeout(5, TimeUnit.MINUTES)
                 .writeTimeout(5, TimeUnit.MINUTES)
@@ -46,8 +38,11 @@ public class K2Client {
         objectMapper = Utils.getObjectMapper();
     }
 
+    /**
+     * @return the text of the response
+     */
     @SneakyThrows
-    public Stream<Response> send(List<Message> messages) {
+    public String send(List<Message> messages, ChatStreamListener listener, ChatController ctrl) {
         var request = new org.kiwi.console.generate.k2.Request(MODEL, messages, 131072, true, true);
         var json = objectMapper.writeValueAsString(request);
         var httpReq = new Request.Builder()
@@ -58,104 +53,23 @@ public class K2Client {
                 .header("Cache-Control", "no-cache")
                 .post(RequestBody.create(json, JSON))
                 .build();
-
-        BlockingQueue<Response> queue = new LinkedBlockingQueue<>();
-        AtomicReference<Throwable> streamError = new AtomicReference<>();
-
-        var listener = createStreamListener(queue, streamError);
-
-        var eventSource = EventSources.createFactory(httpClient).newEventSource(httpReq, listener);
-
-        var spliterator = new Spliterators.AbstractSpliterator<Response>(Long.MAX_VALUE, Spliterator.ORDERED) {
-            @Override
-            public boolean tryAdvance(Consumer<? super Response> action) {
-                if (streamError.get() != null) {
-                    throw new RuntimeException("Stream failed with an exception", streamError.get());
-                }
-
-                try {
-                    var event = queue.take();
-
-                    if (event == POISON_PILL) {
-                        if (streamError.get() != null) {
-                            throw new RuntimeException("Stream failed with an exception", streamError.get());
-                        }
-                        return false;
-                    }
-
-                    action.accept(event);
-                    return true;
-                } catch (InterruptedException e) {
-                    Thread.currentThread().interrupt();
-                    streamError.set(e);
-                    throw new RuntimeException("Stream consumption was interrupted", e);
-                }
-            }
-        };
-
-        return StreamSupport.stream(spliterator, false).onClose(eventSource::cancel);
+        return SseStream.execute(httpClient, httpReq, OpenAiDialect.INSTANCE, listener, ctrl);
     }
 
-    private static final Response POISON_PILL = new Response(null, List.of());
-
-    private EventSourceListener createStreamListener(BlockingQueue<Response> queue, AtomicReference<Throwable> streamError) {
-        return new EventSourceListener() {
-            private final StringBuilder fullResponse = new StringBuilder();
-
-            @Override
-            public void onEvent(@NotNull EventSource eventSource, String id, String type, @NotNull String data) {
-                try {
-                    if ("error".equals(type)) {
-                        var error = new RuntimeException("Received error event from API: " + data);
-                        streamError.set(error);
-                        queue.offer(POISON_PILL);
-                        return;
-                    }
-                    if ("[DONE]".equals(data)) {
-                        queue.offer(POISON_PILL);
-                        return;
-                    }
-
-                    var response = objectMapper.readValue(data, Response.class);
-                    queue.offer(response);
-                } catch (Exception e) {
-                    streamError.set(e);
-                    queue.offer(POISON_PILL);
-                }
-            }
-
+    @SneakyThrows
+    public static void main(String[] args) {
+        var apikey = Files.readString(Path.of("/Users/leen/develop/qwen_apikey")).trim();
+        var client = new K2Client(apikey);
+        client.send(List.of(new Message("user", List.of(new TextContent("Who are you")))), new ChatStreamListener() {
             @Override
-            public void onClosed(@NotNull EventSource eventSource) {
-                queue.offer(POISON_PILL);
-                queue.offer(POISON_PILL);
+            public void onThought(String thoughtChunk) {
             }
 
             @Override
-            public void onFailure(@NotNull EventSource eventSource, Throwable t, okhttp3.Response response) {
-                Throwable finalError;
-                if (response != null) {
-                    try {
-                        finalError = new RuntimeException("Stream failed with HTTP " + response.code() + ": " + response.body().string(), t);
-                    } catch (IOException e) {
-                        finalError = new RuntimeException("Stream failed with HTTP " + response.code() + ", could not read body", t);
-                    }
-                } else {
-                    finalError = t;
-                }
-                streamError.set(finalError);
-                queue.offer(POISON_PILL);
+            public void onContent(String contentChunk) {
+                System.out.print(contentChunk);
             }
-        };
-    }
-
-
-    @SneakyThrows
-    public static void main(String[] args) {
-        var apikey = Files.readString(Path.of("/Users/leen/develop/qwen_apikey")).trim();
-        var client = new K2Client(apikey);
-        try (var s = client.send(List.of(new Message("user", List.of(new TextContent("Who are you")))))) {
-            s.forEach(resp -> System.out.print(resp.choices().getFirst().delta().content()));
-        }
+        }, () -> false);
 
         System.out.println();
         System.out.println("Done");
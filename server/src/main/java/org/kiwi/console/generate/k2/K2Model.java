@@ -25,6 +25,16 @@ public class K2Model implements Model {
         return new k2Chat();
     }
 
+    @Override
+    public Chat createChat(boolean outputThought, List<ChatTurn> history) {
+        var chat = new k2Chat();
+        for (var turn : history) {
+            chat.history.add(new Message("user", toContents(turn.text(), turn.attachments())));
+            chat.history.add(new Message("assistant", List.of(new TextContent(turn.response()))));
+        }
+        return chat;
+    }
+
     @Override
     public String getName() {
         return "k2";
@@ -36,38 +46,26 @@ public class K2Model implements Model {
 
         @Override
         public void send(String text, List<File> attachments, ChatStreamListener listener, ChatController ctrl) {
-            var contents = new ArrayList<Content>();
-            contents.add(new TextContent(text));
-            for (File attachment : attachments) {
-                var mimeType = attachment.mimeType();
-                if (mimeType.startsWith("text/") || mimeType.equals("application/json"))
-                    contents.add(new TextContent(new String(attachment.bytes(), StandardCharsets.UTF_8)));
-                else
-                    throw new BusinessException(ErrorCode.UNSUPPORTED_ATTACHMENT, attachment.mimeType());
-            }
-            var msg = new Message("user", contents);
+            var msg = new Message("user", toContents(text, attachments));
+            var messages = new ArrayList<>(history);
+            messages.add(msg);
+            var content = client.send(messages, listener, ctrl);
             history.add(msg);
-            var respContent = new StringBuilder();
-            try (var stream = client.send(history)) {
-                var it = stream.iterator();
-                while (it.hasNext()) {
-                    if (ctrl.isAborted())
-                        throw new AgentException("Aborted");
-                    var resp = it.next();
-                    resp.choices().stream()
-                            .filter(c -> c.index() == 0)
-                            .findFirst()
-                            .ifPresent(firstChoice -> {
-                                var chunk = firstChoice.delta().content();
-                                if (chunk != null) {
-                                    listener.onContent(chunk);
-                                    respContent.append(chunk);
-                                }
-                            });
-                }
-            }
-            history.add(new Message("assistant", List.of(new TextContent(respContent.toString()))));
+            history.add(new Message("assistant", List.of(new TextContent(content))));
+        }
+    }
+
+    private static List<Content> toContents(String text, List<File> attachments) {
+        var contents = new ArrayList<Content>();
+        contents.add(new TextContent(text));
+        for (File attachment : attachments) {
+            var mimeType = attachment.mimeType();
+            if (mimeType.startsWith("text/") || mimeType.equals("application/json"))
+                contents.add(new TextContent(new String(attachment.bytes(), StandardCharsets.UTF_8)));
+            else
+                throw new BusinessException(ErrorCode.UNSUPPORTED_ATTACHMENT, attachment.mimeType());
         }
+        return contents;
     }
 
     @SneakyThrows
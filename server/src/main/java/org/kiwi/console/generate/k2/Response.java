@@ -1,6 +0,0 @@
-package org.kiwi.console.generate.k2;
-
-import java.util.List;
-
-public record Response(String id, List<Choice> choices) {
-}
@@ -0,0 +1,137 @@
+package org.kiwi.console.generate.limit;
+
+import lombok.extern.slf4j.Slf4j;
+import org.kiwi.console.file.File;
+import org.kiwi.console.generate.*;
+
+import java.util.List;
+
+/**
+ * Sends the messages of a model through its {@link RateGovernor}. A message the provider refuses for its rate
+ * limits is sent again once the provider's pause is over, as long as the retries have not waited longer than
+ * {@link RateGovernor.Settings#maxRetryWaitMillis()} in total.
+ */
+@Slf4j
+public class GovernedModel implements Model {
+
+    private static final int CHARS_PER_TOKEN = 4;
+    private static final int TOKENS_PER_ATTACHMENT = 1500;
+
+    private final Model model;
+    private final RateGovernor governor;
+
+    public GovernedModel(Model model, RateGovernor governor) {
+        this.model = model;
+        this.governor = governor;
+    }
+
+    @Override
+    public Chat createChat(boolean outputThought) {
+        return new GovernedChat(model.createChat(outputThought), 0);
+    }
+
+    @Override
+    public Chat createChat(boolean outputThought, List<ChatTurn> history) {
+        var tokens = 0L;
+        for (var turn : history)
+            tokens += estimateTokens(turn.text(), turn.attachments()) + estimateTokens(turn.response(), List.of());
+        return new GovernedChat(model.createChat(outputThought, history), tokens);
+    }
+
+    @Override
+    public String getName() {
+        return model.getName();
+    }
+
+    static long estimateTokens(String text, List<File> attachments) {
+        return (text.length() + CHARS_PER_TOKEN - 1) / CHARS_PER_TOKEN + (long) attachments.size() * TOKENS_PER_ATTACHMENT;
+    }
+
+    private class GovernedChat implements Chat {
+
+        private final Chat chat;
+        /**
+         * Tokens of the conversation so far, which every message sends again
+         */
+        private long historyTokens;
+
+        private GovernedChat(Chat chat, long historyTokens) {
+            this.chat = chat;
+            this.historyTokens = historyTokens;
+        }
+
+        @Override
+        public void send(String text, List<File> attachments, ChatStreamListener listener, ChatController ctrl) {
+            send(text, 0, attachments, listener, ctrl);
+        }
+
+        @Override
+        public void send(String text, int cachePrefixLength, List<File> attachments, ChatStreamListener listener,
+                         ChatController ctrl) {
+            var estimate = historyTokens + estimateTokens(text, attachments);
+            var waited = 0L;
+            while (true) {
+                var permit = governor.acquire(ctrl.getPriority(), estimate, ctrl);
+                var meter = new Meter(listener);
+                var refused = false;
+                try {
+                    chat.send(text, cachePrefixLength, attachments, meter, ctrl);
+                    historyTokens = meter.usage != null ?
+                            meter.usage.inputTokens() + meter.usage.outputTokens() - meter.usage.thoughtTokens() :
+                            estimate + meter.chars / CHARS_PER_TOKEN;
+                    return;
+                } catch (RateLimitedException e) {
+                    refused = true;
+                    if (meter.received || waited >= governor.getSettings().maxRetryWaitMillis())
+                        throw e;
+                    waited += governor.onRejected(e.getRetryAfterMillis());
+                    log.info("Retrying message to {} after it was refused for rate limits", getName());
+                } finally {
+                    // A refused request has not used any tokens
+                    permit.release(meter.usage != null ? meter.usage.inputTokens() + meter.usage.outputTokens() :
+                            refused ? 0 : estimate);
+                }
+            }
+        }
+
+    }
+
+    private class Meter implements ChatStreamListener {
+
+        private final ChatStreamListener listener;
+        private TokenUsage usage;
+        private long chars;
+        private boolean received;
+
+        private Meter(ChatStreamListener listener) {
+            this.listener = listener;
+        }
+
+        @Override
+        public void onThought(String thoughtChunk) {
+            received = true;
+            listener.onThought(thoughtChunk);
+        }
+
+        @Override
+        public void onContent(String contentChunk) {
+            received = true;
+            chars += contentChunk.length();
+            listener.onContent(contentChunk);
+        }
+
+        @Override
+        public void onUsage(TokenUsage usage) {
+            this.usage = this.usage != null ? this.usage.plus(usage) : usage;
+            listener.onUsage(usage);
+        }
+
+        @Override
+        public void onRateLimits(RateLimits limits) {
+            governor.update(limits);
+            listener.onRateLimits(limits);
+        }
+
+    }
+
+}
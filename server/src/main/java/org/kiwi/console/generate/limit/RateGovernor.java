@@ -0,0 +1,196 @@
+package org.kiwi.console.generate.limit;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.Timer;
+import lombok.extern.slf4j.Slf4j;
+import org.kiwi.console.generate.AgentException;
+import org.kiwi.console.generate.ChatController;
+import org.kiwi.console.generate.ChatPriority;
+import org.kiwi.console.generate.RateLimits;
+
+import java.time.Duration;
+import java.util.Comparator;
+import java.util.EnumMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Admits the requests to one provider within its requests per minute, tokens per minute and concurrent streams.
+ * Waiting requests are admitted by priority, then in arrival order, and one at a time, so that a large request at
+ * the head of the queue is not starved by smaller ones behind it. Limits the provider reports replace the
+ * configured ones when they are lower, and a refused request pauses the provider for as long as it asked.
+ */
+@Slf4j
+public class RateGovernor {
+
+    /**
+     * Zero means unlimited.
+     *
+     * @param maxRetryWaitMillis how long a message may wait in total for retries after being refused
+     */
+    public record Settings(int requestsPerMinute,
+                           int tokensPerMinute,
+                           int maxConcurrent,
+                           long maxRetryWaitMillis) {
+
+        public static final Settings UNLIMITED = new Settings(0, 0, 0, 120_000);
+
+    }
+
+    private static final long POLL_MILLIS = 500;
+    private static final long DEFAULT_RETRY_MILLIS = 5_000;
+
+    private final String name;
+    private final Settings settings;
+    private final TokenBucket requests;
+    private final TokenBucket tokens;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition changed = lock.newCondition();
+    private final PriorityQueue<Waiter> queue = new PriorityQueue<>(
+            Comparator.comparing(Waiter::priority).thenComparingLong(Waiter::seq));
+    private long seq;
+    private int active;
+    private long pausedUntil;
+    private final Map<ChatPriority, Timer> waitTimers = new EnumMap<>(ChatPriority.class);
+    private final Counter rejections;
+
+    public RateGovernor(String name, Settings settings) {
+        this.name = name;
+        this.settings = settings;
+        var now = System.currentTimeMillis();
+        requests = new TokenBucket(settings.requestsPerMinute(), now);
+        tokens = new TokenBucket(settings.tokensPerMinute(), now);
+        for (var priority : ChatPriority.values()) {
+            waitTimers.put(priority, Timer.builder("generation.limit.wait")
+                    .description("Time messages waited for a model's rate limits")
+                    .tag("model", name)
+                    .tag("priority", priority.name().toLowerCase(Locale.ROOT))
+                    .register(Metrics.globalRegistry));
+        }
+        rejections = Counter.builder("generation.limit.rejections")
+                .description("Requests the model refused for exceeding its rate limits")
+                .tag("model", name)
+                .register(Metrics.globalRegistry);
+    }
+
+    /**
+     * Waits until the request may be sent.
+     *
+     * @param estimatedTokens tokens the request is expected to use, corrected on release
+     * @throws AgentException if aborted while waiting
+     */
+    public Permit acquire(ChatPriority priority, long estimatedTokens, ChatController ctrl) {
+        var start = System.nanoTime();
+        lock.lock();
+        var waiter = new Waiter(priority, seq++);
+        queue.add(waiter);
+        try {
+            while (true) {
+                if (ctrl.isAborted())
+                    throw new AgentException("Aborted");
+                var wait = POLL_MILLIS;
+                if (queue.peek() == waiter) {
+                    var now = System.currentTimeMillis();
+                    var delay = Math.max(pausedUntil - now,
+                            Math.max(requests.waitMillis(1, now), tokens.waitMillis(estimatedTokens, now)));
+                    if (delay <= 0 && (settings.maxConcurrent() <= 0 || active < settings.maxConcurrent())) {
+                        requests.take(1, now);
+                        tokens.take(estimatedTokens, now);
+                        active++;
+                        waitTimers.get(priority).record(Duration.ofNanos(System.nanoTime() - start));
+                        return new Permit(estimatedTokens);
+                    }
+                    if (delay > 0)
+                        wait = Math.min(wait, delay);
+                }
+                changed.await(wait, TimeUnit.MILLISECONDS);
+            }
+        } catch (InterruptedException e) {
+            throw new AgentException("Interrupted", e);
+        } finally {
+            queue.remove(waiter);
+            changed.signalAll();
+            lock.unlock();
+        }
+    }
+
+    public void update(RateLimits limits) {
+        lock.lock();
+        try {
+            var now = System.currentTimeMillis();
+            requests.sync(limits.requestLimit(), limits.requestsRemaining(), limits.requestsResetMillis(), now);
+            tokens.sync(limits.tokenLimit(), limits.tokensRemaining(), limits.tokensResetMillis(), now);
+            changed.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Pauses the provider after it refused a request.
+     *
+     * @return the pause in milliseconds
+     */
+    public long onRejected(long retryAfterMillis) {
+        rejections.increment();
+        var pause = retryAfterMillis > 0 ? retryAfterMillis : DEFAULT_RETRY_MILLIS;
+        lock.lock();
+        try {
+            pausedUntil = Math.max(pausedUntil, System.currentTimeMillis() + pause);
+        } finally {
+            lock.unlock();
+        }
+        log.warn("{} refused a request for exceeding its rate limits, pausing for {} ms", name, pause);
+        return pause;
+    }
+
+    public Settings getSettings() {
+        return settings;
+    }
+
+    int getActive() {
+        lock.lock();
+        try {
+            return active;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private record Waiter(ChatPriority priority, long seq) {
+    }
+
+    public class Permit {
+
+        private final long estimatedTokens;
+        private boolean released;
+
+        private Permit(long estimatedTokens) {
+            this.estimatedTokens = estimatedTokens;
+        }
+
+        /**
+         * @param usedTokens tokens the request actually used
+         */
+        public void release(long usedTokens) {
+            lock.lock();
+            try {
+                if (released)
+                    return;
+                released = true;
+                active--;
+                tokens.adjust(estimatedTokens - usedTokens);
+                changed.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+    }
+
+}
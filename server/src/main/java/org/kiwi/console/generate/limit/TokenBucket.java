@@ -0,0 +1,90 @@
+package org.kiwi.console.generate.limit;
+
+/**
+ * A per-minute budget that refills continuously. The level may drop below zero when a response used more tokens
+ * than estimated, in which case later requests wait until it has recovered. A capacity of zero means unlimited.
+ * Not thread safe.
+ */
+class TokenBucket {
+
+    private final long configuredPerMinute;
+    private long capacity;
+    private double level;
+    private long refilledAt;
+    private long blockedUntil;
+
+    TokenBucket(long perMinute, long now) {
+        configuredPerMinute = perMinute;
+        capacity = perMinute;
+        level = perMinute;
+        refilledAt = now;
+    }
+
+    boolean isUnlimited() {
+        return capacity <= 0;
+    }
+
+    /**
+     * @return how long to wait before {@code amount} can be taken, 0 if it can be taken now. A request larger
+     * than the capacity waits for a full bucket.
+     */
+    long waitMillis(long amount, long now) {
+        if (now < blockedUntil)
+            return blockedUntil - now;
+        if (isUnlimited())
+            return 0;
+        refill(now);
+        var needed = Math.min(amount, capacity);
+        if (level >= needed)
+            return 0;
+        return (long) Math.ceil((needed - level) * 60_000 / capacity);
+    }
+
+    void take(long amount, long now) {
+        if (isUnlimited())
+            return;
+        refill(now);
+        level -= amount;
+    }
+
+    /**
+     * Gives back what was taken in excess, or takes what was missing, once the real cost is known.
+     */
+    void adjust(long delta) {
+        if (!isUnlimited())
+            level = Math.min(capacity, level + delta);
+    }
+
+    /**
+     * Follows the limit the provider reported, or the configured one if that is lower, and its count of what
+     * is left, which also covers requests made by other processes sharing the key.
+     */
+    void sync(long limit, long remaining, long resetMillis, long now) {
+        refill(now);
+        var wasUnlimited = isUnlimited();
+        if (limit > 0)
+            capacity = configuredPerMinute > 0 ? Math.min(configuredPerMinute, limit) : limit;
+        if (isUnlimited()) {
+            if (remaining == 0 && resetMillis > 0)
+                blockedUntil = now + resetMillis;
+        } else if (remaining >= 0)
+            level = wasUnlimited ? Math.min(remaining, capacity) : Math.min(level, remaining);
+        else if (wasUnlimited)
+            level = capacity;
+    }
+
+    double getLevel() {
+        return level;
+    }
+
+    long getCapacity() {
+        return capacity;
+    }
+
+    private void refill(long now) {
+        if (now > refilledAt && !isUnlimited())
+            level = Math.min(capacity, level + (double) (now - refilledAt) * capacity / 60_000);
+        refilledAt = now;
+    }
+
+}
@@ -1,6 +0,0 @@
-package org.kiwi.console.generate.qwen;
-
-import com.fasterxml.jackson.annotation.JsonProperty;
-
-public record Choice(Delta delta, int index, @JsonProperty("finish_reason") String finishReason) {
-}
@@ -1,4 +0,0 @@
-package org.kiwi.console.generate.qwen;
-
-public record Delta(String content) {
-}
@@ -25,6 +25,16 @@ public class QwenModel implements Model {
         return new QwenChat();
     }
 
+    @Override
+    public Chat createChat(boolean outputThought, List<ChatTurn> history) {
+        var chat = new QwenChat();
+        for (var turn : history) {
+            chat.history.add(new Message("user", List.copyOf(toContents(turn.text(), 0, turn.attachments()))));
+            chat.history.add(new Message("assistant", List.of(new TextContent(turn.response()))));
+        }
+        return chat;
+    }
+
     @Override
     public String getName() {
         return "qwen3-coder";
@@ -36,36 +46,45 @@ public class QwenModel implements Model {
 
         @Override
         public void send(String text, List<File> attachments, ChatStreamListener listener, ChatController ctrl) {
-            var contents = new ArrayList<Content>();
+            send(text, 0, attachments, listener, ctrl);
+        }
+
+        /**
+         * Marks the cacheable prefix and the end of the new message for the explicit cache, the same way as
+         * the Claude chat does.
+         */
+        @Override
+        public void send(String text, int cachePrefixLength, List<File> attachments, ChatStreamListener listener,
+                         ChatController ctrl) {
+            var contents = toContents(text, cachePrefixLength, attachments);
+            var split = contents.size() > attachments.size() + 1;
+            var tagged = new ArrayList<Content>(contents);
+            if (split)
+                tagged.set(0, contents.getFirst().cached());
+            tagged.set(tagged.size() - 1, contents.getLast().cached());
+            var messages = new ArrayList<>(history);
+            messages.add(new Message("user", tagged));
+            var content = client.send(messages, listener, ctrl);
+            history.add(new Message("user", List.copyOf(contents)));
+            history.add(new Message("assistant", List.of(new TextContent(content))));
+        }
+    }
+
+    private static List<TextContent> toContents(String text, int cachePrefixLength, List<File> attachments) {
+        var contents = new ArrayList<TextContent>();
+        if (cachePrefixLength > 0 && cachePrefixLength < text.length()) {
+            contents.add(new TextContent(text.substring(0, cachePrefixLength)));
+            contents.add(new TextContent(text.substring(cachePrefixLength)));
+        } else
             contents.add(new TextContent(text));
-            for (File attachment : attachments) {
-                var mimeType = attachment.mimeType();
-                if (mimeType.startsWith("text/") || mimeType.equals("application/json"))
-                    contents.add(new TextContent(new String(attachment.bytes(), StandardCharsets.UTF_8)));
-                else
-                    throw new BusinessException(ErrorCode.UNSUPPORTED_ATTACHMENT, attachment.mimeType());
-            }
-            var msg = new Message("user", contents);
-            history.add(msg);
-            var respContent = new StringBuilder();
-            try (var stream = client.send(history)) {
-                var it = stream.iterator();
-                while (it.hasNext()) {
-                    if (ctrl.isAborted())
-                        throw new AgentException("Aborted");
-                    var resp = it.next();
-                    resp.choices().stream()
-                            .filter(c -> c.index() == 0)
-                            .findFirst()
-                            .ifPresent(firstChoice -> {
-                                var chunk = firstChoice.delta().content();
-                                listener.onContent(chunk);
-                                respContent.append(chunk);
-                            });
-                }
-            }
-            history.add(new Message("assistant", List.of(new TextContent(respContent.toString()))));
+        for (File attachment : attachments) {
+            var mimeType = attachment.mimeType();
+            if (mimeType.startsWith("text/") || mimeType.equals("application/json"))
+                contents.add(new TextContent(new String(attachment.bytes(), StandardCharsets.UTF_8)));
+            else
+                throw new BusinessException(ErrorCode.UNSUPPORTED_ATTACHMENT, attachment.mimeType());
         }
+        return contents;
     }
 
     @SneakyThrows
@@ -8,7 +8,10 @@ public record Request(
         String model,
         List<Message> messages,
         boolean stream,
+        @JsonProperty("stream_options") StreamOptions streamOptions,
         @JsonProperty("enable_thinking") boolean enableThinking
 
 ) {
-}
\ No newline at end of file
+}
+
+record StreamOptions(@JsonProperty("include_usage") boolean includeUsage) {}
@@ -1,8 +1,32 @@
 package org.kiwi.console.generate.qwen;
 
-public record TextContent(String text) implements Content {
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+import javax.annotation.Nullable;
+
+@JsonInclude(JsonInclude.Include.NON_NULL)
+public record TextContent(String text, @JsonProperty("cache_control") @Nullable CacheControl cacheControl) implements Content {
+
+    public TextContent(String text) {
+        this(text, null);
+    }
+
+    /**
+     * Returns a copy marked as the end of a prefix for the explicit cache.
+     */
+    public TextContent cached() {
+        return new TextContent(text, CacheControl.EPHEMERAL);
+    }
+
     @Override
     public String getType() {
         return "text";
     }
 }
+
+record CacheControl(String type) {
+
+    static final CacheControl EPHEMERAL = new CacheControl("ephemeral");
+
+}
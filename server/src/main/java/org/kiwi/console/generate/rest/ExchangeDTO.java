@@ -16,6 +16,8 @@ public record ExchangeDTO(
         List<String> attachmentUrls,
         List<ExchangeTaskDTO> tasks,
         String testPageId,
-        int chainDepth
+        int chainDepth,
+        @Nullable Integer queuePosition,
+        @Nullable UsageDTO usage
 ) {
 }
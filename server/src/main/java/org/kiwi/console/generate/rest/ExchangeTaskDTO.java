@@ -1,10 +1,13 @@
 package org.kiwi.console.generate.rest;
 
+import jakarta.annotation.Nullable;
+
 public record ExchangeTaskDTO(
         String id,
         String moduleId,
         String moduleName,
         String type,
-        String status
+        String status,
+        @Nullable UsageDTO usage
 ) {
 }
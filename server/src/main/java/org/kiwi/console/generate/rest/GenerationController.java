@@ -6,6 +6,7 @@ import org.kiwi.console.file.UploadV2Result;
 import org.kiwi.console.generate.AttachmentService;
 import org.kiwi.console.generate.GenerationService;
 import org.kiwi.console.generate.event.GenerationListener;
+import org.kiwi.console.generate.event.ProgressEvent;
 import org.kiwi.console.kiwi.*;
 import org.kiwi.console.util.BusinessException;
 import org.kiwi.console.util.ErrorCode;
@@ -42,7 +43,7 @@ public class GenerationController {
         if (request.appId() != null)
             ensureApplicationAuthorized(userId, request.appId());
         var sseEmitter = new SseEmitter(Long.MAX_VALUE);
-        generationService.generate(request, userId, new Emitter(sseEmitter));
+        generationService.generate(request, userId, new Emitter(sseEmitter, request.streamTokens(), request.incrementalProgress()));
         return sseEmitter;
     }
 
@@ -63,10 +64,16 @@ public class GenerationController {
     }
 
     @GetMapping("/reconnect")
-    public SseEmitter reconnect(@AuthenticationPrincipal String userId, @RequestParam("exchange-id") String exchangeId) {
+    public SseEmitter reconnect(@AuthenticationPrincipal String userId,
+                                @RequestParam("exchange-id") String exchangeId,
+                                @RequestParam(value = "stream-tokens", defaultValue = "false") boolean streamTokens,
+                                @RequestParam(value = "incremental-progress", defaultValue = "false") boolean incrementalProgress,
+                                @RequestParam(value = "last-event-id", required = false) String lastEventIdParam,
+                                @RequestHeader(value = "Last-Event-ID", required = false) String lastEventId) {
         ensureExchangeAuthorized(userId, exchangeId);
         var sseEmitter = new SseEmitter(Long.MAX_VALUE);
-        generationService.reconnect(exchangeId, new Emitter(sseEmitter));
+        generationService.reconnect(exchangeId, new Emitter(sseEmitter, streamTokens, incrementalProgress),
+                lastEventId != null ? lastEventId : lastEventIdParam);
         return sseEmitter;
     }
 
@@ -80,7 +87,7 @@ public class GenerationController {
     public SseEmitter retry(@AuthenticationPrincipal String userId, @RequestBody RetryRequest request) {
         var sseEmitter = new SseEmitter(Long.MAX_VALUE);
         ensureExchangeAuthorized(userId, request.exchangeId());
-        generationService.retry(userId, request, new Emitter(sseEmitter));
+        generationService.retry(userId, request, new Emitter(sseEmitter, request.streamTokens(), request.incrementalProgress()));
         return sseEmitter;
     }
 
@@ -124,14 +131,24 @@ public class GenerationController {
         }
     }
 
-    private record Emitter(SseEmitter sseEmitter) implements GenerationListener {
+    private record Emitter(SseEmitter sseEmitter, boolean streamTokens, boolean incrementalProgress)
+            implements GenerationListener {
 
+        @SneakyThrows
         @Override
         public void onThought(String thoughtChunk) {
+            sseEmitter.send(SseEmitter.event().name("thought").data(new TokenDTO(thoughtChunk)));
         }
 
+        @SneakyThrows
         @Override
         public void onContent(String contentChunk) {
+            sseEmitter.send(SseEmitter.event().name("content").data(new TokenDTO(contentChunk)));
+        }
+
+        @Override
+        public boolean isTokenStreaming() {
+            return streamTokens;
         }
 
         @SneakyThrows
@@ -140,6 +157,23 @@ public class GenerationController {
             sseEmitter.send(SseEmitter.event().name("generation").data(exchange));
         }
 
+        @SneakyThrows
+        @Override
+        public void onProgress(ProgressEvent event) {
+            var sseEvent = SseEmitter.event();
+            if (event.id() != null)
+                sseEvent.id(event.id());
+            if (!incrementalProgress || event.isSnapshot())
+                sseEmitter.send(sseEvent.name("generation").data(event.exchange()));
+            else
+                sseEmitter.send(sseEvent.name("generation-patch").data(new ProgressPatchDTO(event.seq(), event.patch())));
+        }
+
+        @Override
+        public boolean isIncrementalProgress() {
+            return incrementalProgress;
+        }
+
         @Override
         public void close() {
             try {
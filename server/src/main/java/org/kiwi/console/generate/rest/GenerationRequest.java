@@ -6,10 +6,12 @@ public record GenerationRequest(
         String appId,
         String prompt,
         List<String> attachmentUrls,
-        boolean skipPageGeneration) {
+        boolean skipPageGeneration,
+        boolean streamTokens,
+        boolean incrementalProgress) {
 
     public static GenerationRequest create(String appId, String prompt) {
-        return new GenerationRequest(appId, prompt, List.of(), false);
+        return new GenerationRequest(appId, prompt, List.of(), false, false, false);
     }
 
 }
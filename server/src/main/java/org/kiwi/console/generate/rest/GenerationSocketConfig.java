@@ -0,0 +1,27 @@
+package org.kiwi.console.generate.rest;
+
+import org.springframework.web.socket.config.annotation.WebSocketConfigurer;
+import org.springframework.web.socket.config.annotation.WebSocketHandlerRegistry;
+
+import java.util.List;
+
+/**
+ * Registers the generation WebSocket. Handshakes are only accepted from {@code allowedOrigins}, or from the
+ * server's own origin if none are configured, so other sites can't open connections with a visitor's login.
+ */
+public class GenerationSocketConfig implements WebSocketConfigurer {
+
+    private final GenerationSocketHandler generationSocketHandler;
+    private final List<String> allowedOrigins;
+
+    public GenerationSocketConfig(GenerationSocketHandler generationSocketHandler, List<String> allowedOrigins) {
+        this.generationSocketHandler = generationSocketHandler;
+        this.allowedOrigins = allowedOrigins;
+    }
+
+    @Override
+    public void registerWebSocketHandlers(WebSocketHandlerRegistry registry) {
+        registry.addHandler(generationSocketHandler, "/generate/ws").setAllowedOrigins(allowedOrigins.toArray(String[]::new));
+    }
+
+}
@@ -0,0 +1,269 @@
+package org.kiwi.console.generate.rest;
+
+import lombok.SneakyThrows;
+import lombok.extern.slf4j.Slf4j;
+import org.kiwi.console.generate.GenerationService;
+import org.kiwi.console.generate.event.GenerationListener;
+import org.kiwi.console.generate.event.ProgressEvent;
+import org.kiwi.console.kiwi.AppClient;
+import org.kiwi.console.kiwi.ExchangeClient;
+import org.kiwi.console.util.BusinessException;
+import org.kiwi.console.util.ErrorCode;
+import org.kiwi.console.util.Result;
+import org.kiwi.console.util.Utils;
+import org.springframework.web.socket.*;
+import org.springframework.web.socket.handler.ConcurrentWebSocketSessionDecorator;
+import org.springframework.web.socket.handler.TextWebSocketHandler;
+import org.springframework.web.util.UriComponentsBuilder;
+
+import javax.annotation.Nullable;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Multiplexes the progress of any number of exchanges, along with control commands, over a single
+ * WebSocket connection. See {@link SocketCommand} and {@link SocketFrame} for the frame formats.
+ * <p>
+ * Clients connecting with {@code compress=gzip} receive frames of at least {@code compressThreshold} bytes
+ * as gzipped binary messages.
+ */
+@Slf4j
+public class GenerationSocketHandler extends TextWebSocketHandler {
+
+    private static final int SEND_TIME_LIMIT_MILLIS = 10_000;
+
+    private final GenerationService generationService;
+    private final AppClient appClient;
+    private final ExchangeClient exchangeClient;
+    private final int compressThreshold;
+    private final int sendBufferLimit;
+    private final Map<String, Connection> connections = new ConcurrentHashMap<>();
+
+    public GenerationSocketHandler(GenerationService generationService, AppClient appClient, ExchangeClient exchangeClient,
+                                   int compressThreshold, int sendBufferLimit) {
+        this.generationService = generationService;
+        this.appClient = appClient;
+        this.exchangeClient = exchangeClient;
+        this.compressThreshold = compressThreshold;
+        this.sendBufferLimit = sendBufferLimit;
+    }
+
+    @Override
+    public void afterConnectionEstablished(WebSocketSession session) throws IOException {
+        if (session.getPrincipal() == null) {
+            session.close(CloseStatus.POLICY_VIOLATION.withReason(ErrorCode.LOGIN_REQUIRED.getMessage()));
+            return;
+        }
+        var params = UriComponentsBuilder.fromUri(session.getUri()).build().getQueryParams();
+        var compress = "gzip".equals(params.getFirst("compress"));
+        connections.put(session.getId(), new Connection(
+                session.getPrincipal().getName(),
+                new ConcurrentWebSocketSessionDecorator(session, SEND_TIME_LIMIT_MILLIS, sendBufferLimit),
+                compress
+        ));
+    }
+
+    @Override
+    protected void handleTextMessage(WebSocketSession session, TextMessage message) {
+        var conn = connections.get(session.getId());
+        if (conn == null)
+            return;
+        SocketCommand command = null;
+        try {
+            command = Utils.getObjectMapper().readValue(message.getPayload(), SocketCommand.class);
+            switch (command.type()) {
+                case "subscribe" -> subscribe(conn, command);
+                case "unsubscribe" -> conn.unsubscribe(command.exchangeId());
+                case "cancel" -> cancel(conn, command);
+                default -> throw new BusinessException(ErrorCode.BAD_REQUEST);
+            }
+            conn.send(new SocketFrame("ack", command.exchangeId(), command.id(), null));
+        } catch (BusinessException e) {
+            log.warn("Business exception: {}", e.getMessage());
+            conn.trySend(errorFrame(command, Result.failure(e.getErrorCode(), e.getArgs())));
+        } catch (IOException e) {
+            conn.trySend(errorFrame(command, Result.failure(ErrorCode.BAD_REQUEST)));
+        } catch (Exception e) {
+            log.error("Failed to handle WebSocket command", e);
+            conn.trySend(errorFrame(command, Result.failure(ErrorCode.INTERNAL_SERVER_ERROR)));
+        }
+    }
+
+    private SocketFrame errorFrame(@Nullable SocketCommand command, Result<?> result) {
+        return command != null ? new SocketFrame("error", command.exchangeId(), command.id(), result)
+                : new SocketFrame("error", null, null, result);
+    }
+
+    private void subscribe(Connection conn, SocketCommand command) {
+        List<String> exchangeIds;
+        if (command.exchangeId() != null) {
+            ensureExchangeAuthorized(conn.userId, command.exchangeId());
+            exchangeIds = List.of(command.exchangeId());
+        } else
+            exchangeIds = generationService.getRunningExchangeIds(conn.userId);
+        for (var exchangeId : exchangeIds) {
+            var sub = new Subscription(conn, exchangeId, command.streamTokens(), command.incrementalProgress());
+            var existing = conn.subscriptions.put(exchangeId, sub);
+            if (existing != null)
+                existing.closed = true;
+            try {
+                generationService.reconnect(exchangeId, sub, command.lastEventId());
+            } catch (RuntimeException e) {
+                conn.subscriptions.remove(exchangeId, sub);
+                throw e;
+            }
+        }
+    }
+
+    private void cancel(Connection conn, SocketCommand command) {
+        if (command.exchangeId() == null)
+            throw new BusinessException(ErrorCode.BAD_REQUEST);
+        ensureExchangeAuthorized(conn.userId, command.exchangeId());
+        generationService.cancel(new CancelRequest(command.exchangeId()));
+    }
+
+    @Override
+    public void handleTransportError(WebSocketSession session, Throwable exception) {
+        log.debug("WebSocket transport error on session {}", session.getId(), exception);
+    }
+
+    @Override
+    public void afterConnectionClosed(WebSocketSession session, CloseStatus status) {
+        var conn = connections.remove(session.getId());
+        if (conn != null)
+            conn.unsubscribe(null);
+    }
+
+    private void ensureExchangeAuthorized(String userId, String exchangeId) {
+        var exchange = exchangeClient.get(exchangeId);
+        var app = appClient.get(exchange.getAppId());
+        if (!app.getMemberIds().contains(userId))
+            throw new BusinessException(ErrorCode.FORBIDDEN);
+    }
+
+    private class Connection {
+        private final String userId;
+        private final WebSocketSession session;
+        private final boolean compress;
+        private final Map<String, Subscription> subscriptions = new ConcurrentHashMap<>();
+
+        private Connection(String userId, WebSocketSession session, boolean compress) {
+            this.userId = userId;
+            this.session = session;
+            this.compress = compress;
+        }
+
+        void unsubscribe(@Nullable String exchangeId) {
+            if (exchangeId != null) {
+                var sub = subscriptions.remove(exchangeId);
+                if (sub != null)
+                    sub.closed = true;
+            } else {
+                subscriptions.values().forEach(s -> s.closed = true);
+                subscriptions.clear();
+            }
+        }
+
+        void send(SocketFrame frame) throws IOException {
+            var bytes = Utils.getObjectMapper().writeValueAsBytes(frame);
+            if (compress && bytes.length >= compressThreshold)
+                session.sendMessage(new BinaryMessage(gzip(bytes)));
+            else
+                session.sendMessage(new TextMessage(new String(bytes, StandardCharsets.UTF_8)));
+        }
+
+        void trySend(SocketFrame frame) {
+            try {
+                send(frame);
+            } catch (Exception e) {
+                log.debug("Failed to send WebSocket frame", e);
+            }
+        }
+
+        boolean isOpen() {
+            return session.isOpen();
+        }
+    }
+
+    private static byte[] gzip(byte[] bytes) throws IOException {
+        var out = new ByteArrayOutputStream(bytes.length / 4);
+        try (var gzip = new GZIPOutputStream(out)) {
+            gzip.write(bytes);
+        }
+        return out.toByteArray();
+    }
+
+    private static class Subscription implements GenerationListener {
+        private final Connection conn;
+        private final String exchangeId;
+        private final boolean streamTokens;
+        private final boolean incrementalProgress;
+        private volatile boolean closed;
+
+        private Subscription(Connection conn, String exchangeId, boolean streamTokens, boolean incrementalProgress) {
+            this.conn = conn;
+            this.exchangeId = exchangeId;
+            this.streamTokens = streamTokens;
+            this.incrementalProgress = incrementalProgress;
+        }
+
+        @Override
+        public void onThought(String thoughtChunk) {
+            send("thought", null, new TokenDTO(thoughtChunk));
+        }
+
+        @Override
+        public void onContent(String contentChunk) {
+            send("content", null, new TokenDTO(contentChunk));
+        }
+
+        @Override
+        public void onProgress(ExchangeDTO exchange) {
+            send("generation", null, exchange);
+        }
+
+        @Override
+        public void onProgress(ProgressEvent event) {
+            if (!incrementalProgress || event.isSnapshot())
+                send("generation", event.id(), event.exchange());
+            else
+                send("generation-patch", event.id(), new ProgressPatchDTO(event.seq(), event.patch()));
+        }
+
+        @SneakyThrows
+        private void send(String type, @Nullable String id, Object data) {
+            if (!isClosed())
+                conn.send(new SocketFrame(type, exchangeId, id, data));
+        }
+
+        @Override
+        public void close() {
+            if (closed)
+                return;
+            closed = true;
+            conn.subscriptions.remove(exchangeId, this);
+            conn.trySend(new SocketFrame("closed", exchangeId, null, null));
+        }
+
+        @Override
+        public boolean isClosed() {
+            return closed || !conn.isOpen();
+        }
+
+        @Override
+        public boolean isTokenStreaming() {
+            return streamTokens;
+        }
+
+        @Override
+        public boolean isIncrementalProgress() {
+            return incrementalProgress;
+        }
+    }
+
+}
@@ -0,0 +1,8 @@
+package org.kiwi.console.generate.rest;
+
+import org.kiwi.console.util.JsonDiff;
+
+import java.util.List;
+
+public record ProgressPatchDTO(long seq, List<JsonDiff.Op> ops) {
+}
@@ -1,4 +1,9 @@
 package org.kiwi.console.generate.rest;
 
-public record RetryRequest(String exchangeId) {
+public record RetryRequest(String exchangeId, boolean streamTokens, boolean incrementalProgress) {
+
+    public RetryRequest(String exchangeId) {
+        this(exchangeId, false, false);
+    }
+
 }
@@ -0,0 +1,19 @@
+package org.kiwi.console.generate.rest;
+
+import javax.annotation.Nullable;
+
+/**
+ * A control frame sent by a client over the generation WebSocket.
+ *
+ * @param id         echoed in the {@code ack} or {@code error} frame that answers the command
+ * @param type       {@code subscribe}, {@code unsubscribe} or {@code cancel}
+ * @param exchangeId the targeted exchange; for {@code subscribe} and {@code unsubscribe} null means all of
+ *                   the user's running exchanges
+ */
+public record SocketCommand(@Nullable String id,
+                            String type,
+                            @Nullable String exchangeId,
+                            @Nullable String lastEventId,
+                            boolean streamTokens,
+                            boolean incrementalProgress) {
+}
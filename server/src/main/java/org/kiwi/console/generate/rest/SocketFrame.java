@@ -0,0 +1,16 @@
+package org.kiwi.console.generate.rest;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+
+import javax.annotation.Nullable;
+
+/**
+ * A frame sent by the server over the generation WebSocket. {@code type} takes the SSE event names
+ * ({@code generation}, {@code generation-patch}, {@code thought}, {@code content}) plus {@code closed},
+ * {@code ack} and {@code error}.
+ *
+ * @param id the progress event id for progress frames, the command id for {@code ack} and {@code error}
+ */
+@JsonInclude(JsonInclude.Include.NON_NULL)
+public record SocketFrame(String type, @Nullable String exchangeId, @Nullable String id, @Nullable Object data) {
+}
@@ -0,0 +1,4 @@
+package org.kiwi.console.generate.rest;
+
+public record TokenDTO(String text) {
+}
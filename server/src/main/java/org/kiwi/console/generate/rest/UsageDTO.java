@@ -0,0 +1,14 @@
+package org.kiwi.console.generate.rest;
+
+public record UsageDTO(
+        int calls,
+        long inputTokens,
+        long outputTokens,
+        long thoughtTokens,
+        long cacheReadTokens,
+        long cacheWriteTokens,
+        long avgFirstTokenMillis,
+        long streamMillis,
+        long bytes
+) {
+}
@@ -0,0 +1,182 @@
+package org.kiwi.console.generate.route;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.Timer;
+import lombok.extern.slf4j.Slf4j;
+import org.kiwi.console.generate.Model;
+
+import java.time.Duration;
+import java.util.Arrays;
+
+/**
+ * Rolling time-to-first-token and outcome windows of a model, shared by every route that uses it, together with
+ * its circuit breaker. The breaker opens when the error rate of the outcome window reaches the threshold, lets a
+ * single trial request through once {@code openMillis} have passed, and closes again when that request succeeds.
+ */
+@Slf4j
+public class ProviderHealth {
+
+    public record Settings(int windowSize,
+                           int minSamples,
+                           long defaultHedgeDelayMillis,
+                           long minHedgeDelayMillis,
+                           double errorRateThreshold,
+                           long openMillis) {
+
+        public static final Settings DEFAULT = new Settings(100, 10, 30_000, 2_000, 0.5, 30_000);
+
+    }
+
+    private enum State {
+        CLOSED,
+        OPEN,
+        HALF_OPEN
+    }
+
+    private final Model model;
+    private final Settings settings;
+    private final long[] ttfts;
+    private int ttftCount;
+    private final boolean[] failures;
+    private int outcomeCount;
+    private State state = State.CLOSED;
+    private long openedAt;
+    private final Timer ttftTimer;
+    private final Timer censoredTtftTimer;
+    private final Counter errorCounter;
+    private final Counter tripCounter;
+
+    public ProviderHealth(Model model, Settings settings) {
+        this.model = model;
+        this.settings = settings;
+        ttfts = new long[settings.windowSize()];
+        failures = new boolean[settings.windowSize()];
+        ttftTimer = Timer.builder("generation.route.ttft")
+                .description("Time to the first token of model responses")
+                .tag("model", model.getName())
+                .register(Metrics.globalRegistry);
+        censoredTtftTimer = Timer.builder("generation.route.ttft.censored")
+                .description("Time waited for the first token by model requests cancelled before receiving it")
+                .tag("model", model.getName())
+                .register(Metrics.globalRegistry);
+        errorCounter = Counter.builder("generation.route.errors")
+                .description("Model requests that failed")
+                .tag("model", model.getName())
+                .register(Metrics.globalRegistry);
+        tripCounter = Counter.builder("generation.route.breaker.trips")
+                .description("Times the circuit breaker of a model opened")
+                .tag("model", model.getName())
+                .register(Metrics.globalRegistry);
+    }
+
+    public Model getModel() {
+        return model;
+    }
+
+    public String getName() {
+        return model.getName();
+    }
+
+    /**
+     * Whether a request may be sent. In the half-open state, this admits the trial request and refuses the rest.
+     */
+    synchronized boolean tryAcquire() {
+        switch (state) {
+            case CLOSED -> {
+                return true;
+            }
+            case OPEN -> {
+                if (System.currentTimeMillis() - openedAt < settings.openMillis())
+                    return false;
+                state = State.HALF_OPEN;
+                log.info("Circuit breaker of {} is half open", getName());
+                return true;
+            }
+            default -> {
+                return false;
+            }
+        }
+    }
+
+    /**
+     * How long to wait for the first token before hedging: the 95th percentile of the window, or the default
+     * while there are too few samples.
+     */
+    synchronized long getHedgeDelayMillis() {
+        var n = Math.min(ttftCount, ttfts.length);
+        if (n < settings.minSamples())
+            return settings.defaultHedgeDelayMillis();
+        var sorted = Arrays.copyOf(ttfts, n);
+        Arrays.sort(sorted);
+        return Math.max(settings.minHedgeDelayMillis(), sorted[(int) Math.ceil(n * 0.95) - 1]);
+    }
+
+    synchronized void recordTtft(long millis) {
+        ttfts[ttftCount++ % ttfts.length] = millis;
+        ttftTimer.record(Duration.ofMillis(millis));
+    }
+
+    /**
+     * For a request cancelled before its first token, e.g. because it lost a hedge race. The time it had waited
+     * is only a lower bound of its time to the first token. A wait of at least the hedge delay still goes into the
+     * window, as a sample known to be that slow: dropping it would leave only the responses faster than the delay,
+     * and the delay would ratchet down with every recomputation. A shorter wait, such as that of a hedge that
+     * quickly lost, says nothing about the tail and is left out.
+     */
+    synchronized void recordTtftCensored(long millis) {
+        censoredTtftTimer.record(Duration.ofMillis(millis));
+        if (millis >= getHedgeDelayMillis())
+            ttfts[ttftCount++ % ttfts.length] = millis;
+    }
+
+    synchronized void recordSuccess() {
+        recordOutcome(false);
+        if (state == State.HALF_OPEN) {
+            state = State.CLOSED;
+            outcomeCount = 0;
+            log.info("Circuit breaker of {} closed", getName());
+        }
+    }
+
+    synchronized void recordFailure() {
+        errorCounter.increment();
+        recordOutcome(true);
+        if (state == State.HALF_OPEN)
+            open();
+        else if (state == State.CLOSED) {
+            var n = Math.min(outcomeCount, failures.length);
+            if (n >= settings.minSamples()) {
+                var failed = 0;
+                for (int i = 0; i < n; i++) {
+                    if (failures[i])
+                        failed++;
+                }
+                if (failed >= n * settings.errorRateThreshold())
+                    open();
+            }
+        }
+    }
+
+    /**
+     * For requests that ended without saying anything about the provider. A trial request that ends this way
+     * leaves the next request to be the trial.
+     */
+    synchronized void recordCancelled() {
+        if (state == State.HALF_OPEN)
+            state = State.OPEN;
+    }
+
+    private void recordOutcome(boolean failed) {
+        failures[outcomeCount++ % failures.length] = failed;
+    }
+
+    private void open() {
+        state = State.OPEN;
+        openedAt = System.currentTimeMillis();
+        outcomeCount = 0;
+        tripCounter.increment();
+        log.warn("Circuit breaker of {} opened", getName());
+    }
+
+}
@@ -0,0 +1,361 @@
+package org.kiwi.console.generate.route;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Metrics;
+import lombok.extern.slf4j.Slf4j;
+import org.kiwi.console.file.File;
+import org.kiwi.console.generate.*;
+import org.kiwi.console.util.BusinessException;
+
+import javax.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Sends each message to the first of its providers whose circuit breaker admits it. When no token has arrived
+ * by the 95th percentile of that provider's time to first token, the message is also sent to the next provider,
+ * and the first of the two to produce a token wins; the other one is aborted. A provider that fails before its
+ * first token is replaced by the next one. Failures after the first token are passed on, since part of the
+ * response has already reached the listener.
+ * <p>
+ * Later messages of a chat go to the provider that answered the previous one. Any other provider starts from a
+ * chat created from the turns so far.
+ */
+@Slf4j
+public class RoutingModel implements Model {
+
+    private static final long POLL_MILLIS = 1000;
+
+    private final String name;
+    private final List<ProviderHealth> providers;
+
+    public RoutingModel(String name, List<ProviderHealth> providers) {
+        if (providers.isEmpty())
+            throw new IllegalArgumentException("Route " + name + " has no providers");
+        this.name = name;
+        this.providers = providers;
+    }
+
+    @Override
+    public Chat createChat(boolean outputThought) {
+        return new RoutingChat(outputThought, List.of());
+    }
+
+    @Override
+    public Chat createChat(boolean outputThought, List<ChatTurn> history) {
+        return new RoutingChat(outputThought, history);
+    }
+
+    @Override
+    public String getName() {
+        return name;
+    }
+
+    private static Counter hedges(String model) {
+        return Counter.builder("generation.route.hedges")
+                .description("Messages also sent to another model because the first one was slow")
+                .tag("model", model)
+                .register(Metrics.globalRegistry);
+    }
+
+    private static Counter failovers(String model) {
+        return Counter.builder("generation.route.failovers")
+                .description("Messages sent to another model because the previous one failed")
+                .tag("model", model)
+                .register(Metrics.globalRegistry);
+    }
+
+    private class RoutingChat implements Chat {
+
+        private final boolean outputThought;
+        private final List<ChatTurn> turns;
+        private @Nullable ProviderHealth current;
+        private @Nullable Chat chat;
+
+        private RoutingChat(boolean outputThought, List<ChatTurn> history) {
+            this.outputThought = outputThought;
+            this.turns = new ArrayList<>(history);
+        }
+
+        @Override
+        public void send(String text, List<File> attachments, ChatStreamListener listener, ChatController ctrl) {
+            send(text, 0, attachments, listener, ctrl);
+        }
+
+        @Override
+        public void send(String text, int cachePrefixLength, List<File> attachments, ChatStreamListener listener,
+                         ChatController ctrl) {
+            var race = new Race(text, cachePrefixLength, attachments, listener, ctrl);
+            var winner = race.run();
+            turns.add(new ChatTurn(text, attachments, winner.content.toString()));
+            current = winner.provider;
+            chat = winner.chat;
+        }
+
+        private List<ProviderHealth> getCandidates() {
+            if (current == null)
+                return providers;
+            var candidates = new ArrayList<ProviderHealth>();
+            candidates.add(current);
+            for (var provider : providers) {
+                if (provider != current)
+                    candidates.add(provider);
+            }
+            return candidates;
+        }
+
+        private Chat getChat(ProviderHealth provider) {
+            if (provider == current && chat != null)
+                return chat;
+            var model = provider.getModel();
+            return turns.isEmpty() ? model.createChat(outputThought) : model.createChat(outputThought, turns);
+        }
+
+        /**
+         * The attempts at answering one message. Listener calls are made under the lock, so the listener only
+         * ever sees one attempt, and never two threads at once.
+         */
+        private class Race {
+
+            private final String text;
+            private final int cachePrefixLength;
+            private final List<File> attachments;
+            private final ChatStreamListener listener;
+            private final ChatController ctrl;
+            private final List<ProviderHealth> candidates = new ArrayList<>(getCandidates());
+            private final List<Attempt> attempts = new ArrayList<>();
+            private final ReentrantLock lock = new ReentrantLock();
+            private final Condition changed = lock.newCondition();
+            private @Nullable Attempt winner;
+            private int running;
+            private @Nullable RuntimeException lastError;
+
+            private Race(String text, int cachePrefixLength, List<File> attachments, ChatStreamListener listener,
+                         ChatController ctrl) {
+                this.text = text;
+                this.cachePrefixLength = cachePrefixLength;
+                this.attachments = attachments;
+                this.listener = listener;
+                this.ctrl = ctrl;
+            }
+
+            private Attempt run() {
+                lock.lock();
+                try {
+                    var primary = next();
+                    if (primary == null) {
+                        // Every breaker is open. Trying the preferred provider beats failing outright.
+                        primary = getCandidates().getFirst();
+                        log.warn("All providers of route {} are unavailable, trying {}", name, primary.getName());
+                    }
+                    start(primary);
+                    var hedgeDeadline = System.currentTimeMillis() + primary.getHedgeDelayMillis();
+                    var hedged = false;
+                    while (true) {
+                        if (winner != null) {
+                            if (winner.done) {
+                                if (winner.error != null)
+                                    throw winner.error;
+                                return winner;
+                            }
+                        } else if (running == 0) {
+                            if (ctrl.isAborted())
+                                throw lastError;
+                            var next = next();
+                            if (next == null)
+                                throw lastError;
+                            failovers(next.getName()).increment();
+                            log.info("Route {} failing over to {}", name, next.getName(), lastError);
+                            start(next);
+                            hedgeDeadline = System.currentTimeMillis() + next.getHedgeDelayMillis();
+                            continue;
+                        } else if (!hedged && System.currentTimeMillis() >= hedgeDeadline) {
+                            hedged = true;
+                            var next = next();
+                            if (next != null) {
+                                hedges(next.getName()).increment();
+                                log.info("No token from {} in time, also sending to {}",
+                                        attempts.getLast().provider.getName(), next.getName());
+                                start(next);
+                            }
+                            continue;
+                        }
+                        var wait = winner == null && !hedged ?
+                                Math.min(POLL_MILLIS, hedgeDeadline - System.currentTimeMillis()) : POLL_MILLIS;
+                        if (wait > 0)
+                            changed.await(wait, TimeUnit.MILLISECONDS);
+                    }
+                } catch (InterruptedException e) {
+                    throw new AgentException("Interrupted", e);
+                } finally {
+                    winner = winner != null ? winner : Attempt.NONE;
+                    lock.unlock();
+                }
+            }
+
+            private @Nullable ProviderHealth next() {
+                while (!candidates.isEmpty()) {
+                    var candidate = candidates.removeFirst();
+                    if (candidate.tryAcquire())
+                        return candidate;
+                }
+                return null;
+            }
+
+            private void start(ProviderHealth provider) {
+                var attempt = new Attempt(this, provider, getChat(provider));
+                attempts.add(attempt);
+                running++;
+                Thread.ofVirtual().name("route-" + provider.getName()).start(attempt);
+            }
+
+            private boolean isLoser(Attempt attempt) {
+                return winner != null && winner != attempt;
+            }
+
+        }
+
+    }
+
+    private static class Attempt implements Runnable, ChatStreamListener, ChatController {
+
+        private static final Attempt NONE = new Attempt(null, null, null);
+
+        private final RoutingChat.Race race;
+        private final ProviderHealth provider;
+        private final Chat chat;
+        private final long startedAt = System.currentTimeMillis();
+        private final StringBuilder content = new StringBuilder();
+        private boolean started;
+        private boolean done;
+        private @Nullable RuntimeException error;
+
+        private Attempt(RoutingChat.Race race, ProviderHealth provider, Chat chat) {
+            this.race = race;
+            this.provider = provider;
+            this.chat = chat;
+        }
+
+        @Override
+        public void run() {
+            try {
+                chat.send(race.text, race.cachePrefixLength, race.attachments, this, this);
+                race.lock.lock();
+                try {
+                    if (race.winner == null)
+                        race.winner = this;
+                    if (race.winner == this)
+                        provider.recordSuccess();
+                    else
+                        cancelled();
+                    done = true;
+                    race.running--;
+                    race.changed.signalAll();
+                } finally {
+                    race.lock.unlock();
+                }
+            } catch (RuntimeException e) {
+                race.lock.lock();
+                try {
+                    // Aborts by the caller or by losing the race say nothing about the provider's health, and
+                    // neither do business errors such as unsupported attachments.
+                    if (!race.isLoser(this) && !race.ctrl.isAborted() && !(e instanceof BusinessException))
+                        provider.recordFailure();
+                    else
+                        cancelled();
+                    error = e;
+                    race.lastError = e;
+                    done = true;
+                    race.running--;
+                    race.changed.signalAll();
+                } finally {
+                    race.lock.unlock();
+                }
+            }
+        }
+
+        /**
+         * An attempt cancelled before its first token only tells that the token took longer than it waited.
+         */
+        private void cancelled() {
+            provider.recordCancelled();
+            if (!started && (race.isLoser(this) || race.ctrl.isAborted()))
+                provider.recordTtftCensored(System.currentTimeMillis() - startedAt);
+        }
+
+        @Override
+        public void onThought(String thoughtChunk) {
+            race.lock.lock();
+            try {
+                if (claim())
+                    race.listener.onThought(thoughtChunk);
+            } finally {
+                race.lock.unlock();
+            }
+        }
+
+        @Override
+        public void onContent(String contentChunk) {
+            race.lock.lock();
+            try {
+                if (claim()) {
+                    content.append(contentChunk);
+                    race.listener.onContent(contentChunk);
+                }
+            } finally {
+                race.lock.unlock();
+            }
+        }
+
+        @Override
+        public void onUsage(TokenUsage usage) {
+            // Losers are billed too
+            race.lock.lock();
+            try {
+                race.listener.onUsage(usage);
+            } finally {
+                race.lock.unlock();
+            }
+        }
+
+        /**
+         * Records the first token and, if no attempt has won yet, makes this one the winner.
+         */
+        private boolean claim() {
+            if (!started) {
+                started = true;
+                provider.recordTtft(System.currentTimeMillis() - startedAt);
+            }
+            if (race.winner == null) {
+                race.winner = this;
+                race.changed.signalAll();
+            }
+            return race.winner == this;
+        }
+
+        @Override
+        public boolean isAborted() {
+            return race.ctrl.isAborted() || race.isLoser(this);
+        }
+
+        @Override
+        public boolean isCompleted() {
+            return race.ctrl.isCompleted();
+        }
+
+        @Override
+        public boolean isCacheBypassed() {
+            return race.ctrl.isCacheBypassed();
+        }
+
+        @Override
+        public ChatPriority getPriority() {
+            return race.ctrl.getPriority();
+        }
+
+    }
+
+}
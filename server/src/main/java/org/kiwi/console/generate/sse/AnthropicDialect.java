@@ -0,0 +1,74 @@
+package org.kiwi.console.generate.sse;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonToken;
+import org.kiwi.console.generate.AgentException;
+import org.kiwi.console.generate.ChatStreamListener;
+import org.kiwi.console.generate.TokenUsage;
+import org.kiwi.console.util.Utils;
+
+import javax.annotation.Nullable;
+import java.io.IOException;
+
+/**
+ * The Anthropic Messages API stream. Text deltas are delivered as content and thinking deltas as thoughts. Usage is
+ * reported in two parts: the prompt side with {@code message_start} and the output tokens with
+ * {@code message_delta}.
+ */
+public class AnthropicDialect implements SseDialect {
+
+    public static final AnthropicDialect INSTANCE = new AnthropicDialect();
+
+    private final JsonFactory jsonFactory = Utils.getObjectMapper().getFactory();
+
+    @Override
+    public boolean onEvent(@Nullable String event, byte[] data, ChatStreamListener listener) throws IOException {
+        if (event == null)
+            return true;
+        switch (event) {
+            case "content_block_delta" -> onDelta(data, listener);
+            case "message_start" -> {
+                var usage = Utils.getObjectMapper().readTree(data).path("message").path("usage");
+                var cacheRead = usage.path("cache_read_input_tokens").asLong();
+                var cacheWrite = usage.path("cache_creation_input_tokens").asLong();
+                listener.onUsage(new TokenUsage(usage.path("input_tokens").asLong() + cacheRead + cacheWrite,
+                        0, cacheRead, cacheWrite));
+            }
+            case "message_delta" -> {
+                var usage = Utils.getObjectMapper().readTree(data).path("usage");
+                listener.onUsage(new TokenUsage(0, usage.path("output_tokens").asLong(), 0, 0));
+            }
+            case "message_stop" -> {
+                return false;
+            }
+            case "error" -> throw new AgentException("Received error event from API: " + SseStream.toString(data));
+            default -> {}
+        }
+        return true;
+    }
+
+    private void onDelta(byte[] data, ChatStreamListener listener) throws IOException {
+        try (var parser = jsonFactory.createParser(data)) {
+            if (parser.nextToken() != JsonToken.START_OBJECT)
+                return;
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                var name = parser.currentName();
+                var token = parser.nextToken();
+                if (name.equals("delta") && token == JsonToken.START_OBJECT) {
+                    while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                        var field = parser.currentName();
+                        parser.nextToken();
+                        switch (field) {
+                            case "text" -> listener.onContent(parser.getText());
+                            case "thinking" -> listener.onThought(parser.getText());
+                            default -> parser.skipChildren();
+                        }
+                    }
+                    return;
+                }
+                parser.skipChildren();
+            }
+        }
+    }
+
+}
@@ -0,0 +1,104 @@
+package org.kiwi.console.generate.sse;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.JsonNode;
+import org.kiwi.console.generate.AgentException;
+import org.kiwi.console.generate.ChatStreamListener;
+import org.kiwi.console.generate.TokenUsage;
+import org.kiwi.console.util.Utils;
+
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * The OpenAI-compatible chat completions stream, as served by Qwen and Kimi. Only the first choice is
+ * delivered; {@code reasoning_content} deltas are delivered as thoughts. Usage is read from the chunk that carries
+ * it, whether at the top level or, as Kimi sends it, inside the choice.
+ */
+public class OpenAiDialect implements SseDialect {
+
+    public static final OpenAiDialect INSTANCE = new OpenAiDialect();
+
+    private static final byte[] DONE = "[DONE]".getBytes();
+
+    private final JsonFactory jsonFactory = Utils.getObjectMapper().getFactory();
+
+    @Override
+    public boolean onEvent(@Nullable String event, byte[] data, ChatStreamListener listener) throws IOException {
+        if (Arrays.equals(data, DONE))
+            return false;
+        if ("error".equals(event))
+            throw new AgentException("Received error event from API: " + SseStream.toString(data));
+        try (var parser = jsonFactory.createParser(data)) {
+            if (parser.nextToken() != JsonToken.START_OBJECT)
+                return true;
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                var name = parser.currentName();
+                var token = parser.nextToken();
+                if (name.equals("choices") && token == JsonToken.START_ARRAY) {
+                    while (parser.nextToken() == JsonToken.START_OBJECT)
+                        onChoice(parser, listener);
+                } else if (name.equals("usage") && token == JsonToken.START_OBJECT)
+                    onUsage(parser, listener);
+                else if (name.equals("error"))
+                    throw new AgentException("Received error from API: " + SseStream.toString(data));
+                else
+                    parser.skipChildren();
+            }
+        }
+        return true;
+    }
+
+    private void onChoice(JsonParser parser, ChatStreamListener listener) throws IOException {
+        var index = 0;
+        String content = null;
+        String reasoning = null;
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            var name = parser.currentName();
+            var token = parser.nextToken();
+            if (name.equals("index"))
+                index = parser.getIntValue();
+            else if (name.equals("delta") && token == JsonToken.START_OBJECT) {
+                while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                    var field = parser.currentName();
+                    var valueToken = parser.nextToken();
+                    if (valueToken == JsonToken.VALUE_STRING && field.equals("content"))
+                        content = parser.getText();
+                    else if (valueToken == JsonToken.VALUE_STRING && field.equals("reasoning_content"))
+                        reasoning = parser.getText();
+                    else
+                        parser.skipChildren();
+                }
+            } else if (name.equals("usage") && token == JsonToken.START_OBJECT)
+                onUsage(parser, listener);
+            else
+                parser.skipChildren();
+        }
+        if (index != 0)
+            return;
+        if (reasoning != null && !reasoning.isEmpty())
+            listener.onThought(reasoning);
+        if (content != null && !content.isEmpty())
+            listener.onContent(content);
+    }
+
+    /**
+     * Cache hits are reported as {@code prompt_tokens_details.cached_tokens} by Qwen and as {@code cached_tokens} by
+     * Kimi. Qwen also reports the tokens written to its explicit cache.
+     */
+    private void onUsage(JsonParser parser, ChatStreamListener listener) throws IOException {
+        JsonNode usage = parser.readValueAsTree();
+        var details = usage.path("prompt_tokens_details");
+        listener.onUsage(new TokenUsage(
+                usage.path("prompt_tokens").asLong(),
+                usage.path("completion_tokens").asLong(),
+                details.path("cached_tokens").asLong(usage.path("cached_tokens").asLong()),
+                details.path("cache_creation_input_tokens").asLong(),
+                usage.path("completion_tokens_details").path("reasoning_tokens").asLong()
+        ));
+    }
+
+}
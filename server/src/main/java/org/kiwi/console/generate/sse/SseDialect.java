@@ -0,0 +1,20 @@
+package org.kiwi.console.generate.sse;
+
+import org.kiwi.console.generate.ChatStreamListener;
+
+import javax.annotation.Nullable;
+import java.io.IOException;
+
+/**
+ * Extracts the text deltas of a provider's streaming format from SSE events.
+ */
+public interface SseDialect {
+
+    /**
+     * @param event the event name, null if the event has none
+     * @param data  the UTF-8 bytes of the event data
+     * @return false if the event ends the response
+     */
+    boolean onEvent(@Nullable String event, byte[] data, ChatStreamListener listener) throws IOException;
+
+}
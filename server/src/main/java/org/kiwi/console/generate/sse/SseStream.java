@@ -0,0 +1,134 @@
+package org.kiwi.console.generate.sse;
+
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okio.BufferedSource;
+import okio.ByteString;
+import org.kiwi.console.generate.AgentException;
+import org.kiwi.console.generate.ChatController;
+import org.kiwi.console.generate.ChatStreamListener;
+import org.kiwi.console.generate.RateLimitedException;
+import org.kiwi.console.generate.RateLimits;
+import org.kiwi.console.generate.TokenUsage;
+
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Streams a server-sent events response on the calling thread. Lines are taken straight from the response
+ * buffer and handed to an {@link SseDialect} as bytes, so reading never runs ahead of the consumer by more
+ * than the socket buffers, and closing the response on abort or completion cancels the upstream request.
+ */
+public class SseStream {
+
+    private static final ByteString DATA = ByteString.encodeUtf8("data:");
+    private static final ByteString EVENT = ByteString.encodeUtf8("event:");
+
+    /**
+     * @return the concatenated content deltas
+     */
+    public static String execute(OkHttpClient client, Request request, SseDialect dialect,
+                                 ChatStreamListener listener, ChatController ctrl) {
+        var call = client.newCall(request);
+        try (var response = call.execute()) {
+            var body = response.body();
+            var limits = RateLimits.parse(response::header, System.currentTimeMillis());
+            if (limits != null)
+                listener.onRateLimits(limits);
+            if (response.code() == 429 || response.code() == 529) {
+                throw new RateLimitedException("Rate limited with HTTP " + response.code() + ": "
+                        + (body != null ? body.string() : ""), limits != null ? limits.retryAfterMillis() : -1);
+            }
+            if (!response.isSuccessful() || body == null) {
+                throw new AgentException("Stream failed with HTTP " + response.code() + ": "
+                        + (body != null ? body.string() : ""));
+            }
+            var content = new StringBuilder();
+            read(body.source(), dialect, new ChatStreamListener() {
+                @Override
+                public void onThought(String thoughtChunk) {
+                    listener.onThought(thoughtChunk);
+                }
+
+                @Override
+                public void onContent(String contentChunk) {
+                    content.append(contentChunk);
+                    listener.onContent(contentChunk);
+                }
+
+                @Override
+                public void onUsage(TokenUsage usage) {
+                    listener.onUsage(usage);
+                }
+            }, ctrl);
+            return content.toString();
+        } catch (IOException e) {
+            throw new AgentException("Stream failed", e);
+        } finally {
+            call.cancel();
+        }
+    }
+
+    public static void read(BufferedSource source, SseDialect dialect, ChatStreamListener listener,
+                            ChatController ctrl) throws IOException {
+        String event = null;
+        byte[] data = null;
+        while (!source.exhausted()) {
+            var eol = source.indexOf((byte) '\n');
+            var terminated = eol != -1;
+            if (!terminated)
+                eol = source.getBuffer().size();
+            var len = eol > 0 && source.getBuffer().getByte(eol - 1) == '\r' ? eol - 1 : eol;
+            var next = terminated ? eol + 1 : eol;
+            if (len == 0) {
+                source.skip(next);
+                if (data != null) {
+                    if (!dispatch(event, data, dialect, listener, ctrl))
+                        return;
+                    data = null;
+                }
+                event = null;
+                continue;
+            }
+            if (source.rangeEquals(0, DATA)) {
+                var offset = skipSpace(source, DATA.size(), len);
+                source.skip(offset);
+                var line = source.readByteArray(len - offset);
+                data = data == null ? line : join(data, line);
+            } else if (source.rangeEquals(0, EVENT)) {
+                var offset = skipSpace(source, EVENT.size(), len);
+                source.skip(offset);
+                event = source.readUtf8(len - offset);
+            } else
+                source.skip(len);
+            source.skip(next - len);
+        }
+        if (data != null)
+            dispatch(event, data, dialect, listener, ctrl);
+    }
+
+    private static boolean dispatch(@Nullable String event, byte[] data, SseDialect dialect,
+                                    ChatStreamListener listener, ChatController ctrl) throws IOException {
+        if (ctrl.isAborted())
+            throw new AgentException("Aborted");
+        return dialect.onEvent(event, data, listener) && !ctrl.isCompleted();
+    }
+
+    private static long skipSpace(BufferedSource source, long offset, long limit) {
+        return offset < limit && source.getBuffer().getByte(offset) == ' ' ? offset + 1 : offset;
+    }
+
+    private static byte[] join(byte[] data, byte[] line) {
+        var joined = new byte[data.length + 1 + line.length];
+        System.arraycopy(data, 0, joined, 0, data.length);
+        joined[data.length] = '\n';
+        System.arraycopy(line, 0, joined, data.length + 1, line.length);
+        return joined;
+    }
+
+    static String toString(byte[] data) {
+        return new String(data, StandardCharsets.UTF_8);
+    }
+
+}
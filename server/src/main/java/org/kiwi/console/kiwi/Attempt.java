@@ -4,15 +4,18 @@ import lombok.AllArgsConstructor;
 import lombok.Data;
 import org.kiwi.console.util.TextWriter;
 
+import javax.annotation.Nullable;
+
 @Data
 @AllArgsConstructor
 public class Attempt {
     private String id;
     private AttemptStatus status;
     private String errorMessage;
+    private @Nullable Usage usage;
 
     public static Attempt create() {
-        return new Attempt(null, AttemptStatus.RUNNING, null);
+        return new Attempt(null, AttemptStatus.RUNNING, null, null);
     }
 
     public void write(TextWriter writer) {
@@ -30,6 +30,7 @@ public class Exchange {
     private int chainDepth;
     private boolean testOnly;
     private List<ExchangeTask> tasks;
+    private @Nullable Usage usage;
 
     public static Exchange create(String appId,
                                   String userId,
@@ -56,7 +57,8 @@ public class Exchange {
                 parentExchangeId,
                 chainDepth,
                 testOnly,
-                new ArrayList<>()
+                new ArrayList<>(),
+                null
         );
     }
 
@@ -106,6 +108,10 @@ public class Exchange {
     }
 
     public ExchangeDTO toDTO(@Nullable String testPageId) {
+        return toDTO(testPageId, null);
+    }
+
+    public ExchangeDTO toDTO(@Nullable String testPageId, @Nullable Integer queuePosition) {
         return new ExchangeDTO(
                 id,
                 appId,
@@ -118,7 +124,9 @@ public class Exchange {
                 attachmentUrls,
                 Utils.map(tasks, ExchangeTask::toDTO),
                 testPageId,
-                chainDepth
+                chainDepth,
+                queuePosition,
+                usage != null ? usage.toDTO() : null
         );
     }
 
@@ -26,6 +26,10 @@ public interface ExchangeClient {
     @Headers("Content-Type: application/json")
     void update(@Param("id") String id, Exchange exchange);
 
+    @RequestLine("PATCH /exchanges/{id}")
+    @Headers("Content-Type: application/json")
+    void patch(@Param("id") String id, ExchangePatch patch);
+
     default String save(Exchange exchange) {
         if (exchange.getId() != null) {
             update(exchange.getId(), exchange);
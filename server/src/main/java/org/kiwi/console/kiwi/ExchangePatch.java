@@ -0,0 +1,195 @@
+package org.kiwi.console.kiwi;
+
+import javax.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * Partial update of an exchange. Absent fields are left untouched. Tasks and attempts are matched by id; an
+ * unchanged child is sent as its id only, and a child without id is created.
+ */
+public record ExchangePatch(
+        @Nullable ExchangeStatus status,
+        @Nullable String productURL,
+        @Nullable String managementURL,
+        @Nullable String sourceCodeURL,
+        @Nullable String errorMessage,
+        @Nullable Long lastHeartBeatAt,
+        @Nullable List<TaskPatch> tasks,
+        @Nullable Usage usage
+) {
+
+    /**
+     * Computes the patch that turns {@code saved} into {@code current}.
+     *
+     * @return null if the change can't be expressed as a patch, i.e. a field was cleared or a child was removed
+     */
+    public static @Nullable ExchangePatch diff(Exchange saved, Exchange current) {
+        if (isCleared(saved.getProductURL(), current.getProductURL())
+                || isCleared(saved.getManagementURL(), current.getManagementURL())
+                || isCleared(saved.getSourceCodeURL(), current.getSourceCodeURL())
+                || isCleared(saved.getErrorMessage(), current.getErrorMessage()))
+            return null;
+        var savedTasks = saved.getTasks();
+        var currentTasks = current.getTasks();
+        if (currentTasks.size() < savedTasks.size())
+            return null;
+        List<TaskPatch> tasks = null;
+        for (int i = 0; i < currentTasks.size(); i++) {
+            var task = currentTasks.get(i);
+            if (i >= savedTasks.size()) {
+                if (task.getId() != null)
+                    return null;
+                if (tasks == null)
+                    tasks = initTasks(savedTasks);
+                tasks.add(TaskPatch.create(task));
+                continue;
+            }
+            var savedTask = savedTasks.get(i);
+            if (!Objects.equals(savedTask.getId(), task.getId()))
+                return null;
+            if (savedTask.equals(task))
+                continue;
+            var taskPatch = TaskPatch.diff(savedTask, task);
+            if (taskPatch == null)
+                return null;
+            if (tasks == null)
+                tasks = initTasks(savedTasks);
+            tasks.set(i, taskPatch);
+        }
+        return new ExchangePatch(
+                changed(saved.getStatus(), current.getStatus()),
+                changed(saved.getProductURL(), current.getProductURL()),
+                changed(saved.getManagementURL(), current.getManagementURL()),
+                changed(saved.getSourceCodeURL(), current.getSourceCodeURL()),
+                changed(saved.getErrorMessage(), current.getErrorMessage()),
+                saved.getLastHeartBeatAt() != current.getLastHeartBeatAt() ? current.getLastHeartBeatAt() : null,
+                tasks,
+                changed(saved.getUsage(), current.getUsage())
+        );
+    }
+
+    private static List<TaskPatch> initTasks(List<ExchangeTask> savedTasks) {
+        var tasks = new ArrayList<TaskPatch>(savedTasks.size() + 1);
+        for (var t : savedTasks) {
+            tasks.add(TaskPatch.reference(t.getId()));
+        }
+        return tasks;
+    }
+
+    public boolean isEmpty() {
+        return status == null && productURL == null && managementURL == null && sourceCodeURL == null
+                && errorMessage == null && lastHeartBeatAt == null && tasks == null && usage == null;
+    }
+
+    private static <T> @Nullable T changed(@Nullable T saved, @Nullable T current) {
+        return Objects.equals(saved, current) ? null : current;
+    }
+
+    private static boolean isCleared(@Nullable Object saved, @Nullable Object current) {
+        return saved != null && current == null;
+    }
+
+    public record TaskPatch(
+            @Nullable String id,
+            @Nullable String moduleId,
+            @Nullable String moduleName,
+            @Nullable ExchangeTaskType type,
+            @Nullable ExchangeTaskStatus status,
+            @Nullable String errorMessage,
+            @Nullable List<AttemptPatch> attempts,
+            @Nullable Usage usage
+    ) {
+
+        static TaskPatch reference(String id) {
+            return new TaskPatch(id, null, null, null, null, null, null, null);
+        }
+
+        static TaskPatch create(ExchangeTask task) {
+            return new TaskPatch(
+                    null,
+                    task.getModuleId(),
+                    task.getModuleName(),
+                    task.getType(),
+                    task.getStatus(),
+                    task.getErrorMessage(),
+                    task.getAttempts().stream().map(AttemptPatch::create).toList(),
+                    task.getUsage()
+            );
+        }
+
+        static @Nullable TaskPatch diff(ExchangeTask saved, ExchangeTask current) {
+            if (isCleared(saved.getErrorMessage(), current.getErrorMessage())
+                    || !Objects.equals(saved.getModuleId(), current.getModuleId())
+                    || saved.getType() != current.getType())
+                return null;
+            var savedAttempts = saved.getAttempts();
+            var currentAttempts = current.getAttempts();
+            if (currentAttempts.size() < savedAttempts.size())
+                return null;
+            List<AttemptPatch> attempts = null;
+            for (int i = 0; i < currentAttempts.size(); i++) {
+                var attempt = currentAttempts.get(i);
+                AttemptPatch attemptPatch;
+                if (i >= savedAttempts.size()) {
+                    if (attempt.getId() != null)
+                        return null;
+                    attemptPatch = AttemptPatch.create(attempt);
+                } else {
+                    var savedAttempt = savedAttempts.get(i);
+                    if (!Objects.equals(savedAttempt.getId(), attempt.getId())
+                            || isCleared(savedAttempt.getErrorMessage(), attempt.getErrorMessage()))
+                        return null;
+                    if (savedAttempt.equals(attempt))
+                        continue;
+                    attemptPatch = new AttemptPatch(
+                            attempt.getId(),
+                            changed(savedAttempt.getStatus(), attempt.getStatus()),
+                            changed(savedAttempt.getErrorMessage(), attempt.getErrorMessage()),
+                            changed(savedAttempt.getUsage(), attempt.getUsage())
+                    );
+                }
+                if (attempts == null) {
+                    attempts = new ArrayList<>(currentAttempts.size());
+                    for (var a : savedAttempts) {
+                        attempts.add(AttemptPatch.reference(a.getId()));
+                    }
+                }
+                if (i < attempts.size())
+                    attempts.set(i, attemptPatch);
+                else
+                    attempts.add(attemptPatch);
+            }
+            return new TaskPatch(
+                    current.getId(),
+                    null,
+                    changed(saved.getModuleName(), current.getModuleName()),
+                    null,
+                    changed(saved.getStatus(), current.getStatus()),
+                    changed(saved.getErrorMessage(), current.getErrorMessage()),
+                    attempts,
+                    changed(saved.getUsage(), current.getUsage())
+            );
+        }
+
+    }
+
+    public record AttemptPatch(
+            @Nullable String id,
+            @Nullable AttemptStatus status,
+            @Nullable String errorMessage,
+            @Nullable Usage usage
+    ) {
+
+        static AttemptPatch reference(String id) {
+            return new AttemptPatch(id, null, null, null);
+        }
+
+        static AttemptPatch create(Attempt attempt) {
+            return new AttemptPatch(null, attempt.getStatus(), attempt.getErrorMessage(), attempt.getUsage());
+        }
+
+    }
+
+}
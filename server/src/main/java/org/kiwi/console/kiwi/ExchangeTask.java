@@ -5,6 +5,7 @@ import lombok.Data;
 import org.kiwi.console.generate.rest.ExchangeTaskDTO;
 import org.kiwi.console.util.TextWriter;
 
+import javax.annotation.Nullable;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
@@ -20,6 +21,7 @@ public class ExchangeTask {
     private ExchangeTaskStatus status = ExchangeTaskStatus.GENERATING;
     private String errorMessage;
     private List<Attempt> attempts;
+    private @Nullable Usage usage;
 
     public ExchangeTask(String moduleId, String moduleName, ExchangeTaskType type) {
         this.moduleId = moduleId;
@@ -68,6 +70,7 @@ public class ExchangeTask {
     }
 
     public ExchangeTaskDTO toDTO() {
-        return new ExchangeTaskDTO(id, moduleId, moduleName, type.name(), status.name());
+        return new ExchangeTaskDTO(id, moduleId, moduleName, type.name(), status.name(),
+                usage != null ? usage.toDTO() : null);
     }
 }
@@ -3,6 +3,7 @@ package org.kiwi.console.kiwi;
 import org.kiwi.console.util.SearchResult;
 import org.kiwi.console.util.Utils;
 
+import javax.annotation.Nullable;
 import java.util.*;
 
 public class MockExchangeClient implements ExchangeClient {
@@ -20,12 +21,12 @@ public class MockExchangeClient implements ExchangeClient {
     }
 
     @Override
-    public Exchange get(String id) {
+    public synchronized Exchange get(String id) {
         return copy(exchanges.get(id));
     }
 
     @Override
-    public String create(Exchange exchange) {
+    public synchronized String create(Exchange exchange) {
         exchange = copy(exchange);
         exchange.setId(UUID.randomUUID().toString());
         put(exchange);
@@ -33,12 +34,79 @@ public class MockExchangeClient implements ExchangeClient {
     }
 
     @Override
-    public void update(String id, Exchange exchange) {
+    public synchronized void update(String id, Exchange exchange) {
         exchange = copy(exchange);
         put(exchange);
         exchanges.put(exchange.getId(), exchange);
     }
 
+    @Override
+    public synchronized void patch(String id, ExchangePatch patch) {
+        var exch = Objects.requireNonNull(exchanges.get(id), "Exchange not found: " + id);
+        if (patch.status() != null)
+            exch.setStatus(patch.status());
+        if (patch.productURL() != null)
+            exch.setProductURL(patch.productURL());
+        if (patch.managementURL() != null)
+            exch.setManagementURL(patch.managementURL());
+        if (patch.sourceCodeURL() != null)
+            exch.setSourceCodeURL(patch.sourceCodeURL());
+        if (patch.errorMessage() != null)
+            exch.setErrorMessage(patch.errorMessage());
+        if (patch.lastHeartBeatAt() != null)
+            exch.setLastHeartBeatAt(patch.lastHeartBeatAt());
+        if (patch.usage() != null)
+            exch.setUsage(patch.usage());
+        if (patch.tasks() != null) {
+            var tasks = new ArrayList<ExchangeTask>();
+            for (var taskPatch : patch.tasks()) {
+                if (taskPatch.id() == null) {
+                    var task = new ExchangeTask(taskPatch.moduleId(), taskPatch.moduleName(), taskPatch.type());
+                    task.setStatus(taskPatch.status());
+                    task.setErrorMessage(taskPatch.errorMessage());
+                    task.setUsage(taskPatch.usage());
+                    tasks.add(task);
+                    patchAttempts(task, taskPatch.attempts());
+                } else {
+                    var task = Utils.findRequired(exch.getTasks(), t -> t.getId().equals(taskPatch.id()));
+                    if (taskPatch.moduleName() != null)
+                        task.setModuleName(taskPatch.moduleName());
+                    if (taskPatch.status() != null)
+                        task.setStatus(taskPatch.status());
+                    if (taskPatch.errorMessage() != null)
+                        task.setErrorMessage(taskPatch.errorMessage());
+                    if (taskPatch.usage() != null)
+                        task.setUsage(taskPatch.usage());
+                    patchAttempts(task, taskPatch.attempts());
+                    tasks.add(task);
+                }
+            }
+            exch.setTasks(tasks);
+        }
+        put(exch);
+    }
+
+    private void patchAttempts(ExchangeTask task, @Nullable List<ExchangePatch.AttemptPatch> attemptPatches) {
+        if (attemptPatches == null)
+            return;
+        var attempts = new ArrayList<Attempt>();
+        for (var attemptPatch : attemptPatches) {
+            if (attemptPatch.id() == null)
+                attempts.add(new Attempt(null, attemptPatch.status(), attemptPatch.errorMessage(), attemptPatch.usage()));
+            else {
+                var attempt = Utils.findRequired(task.getAttempts(), a -> a.getId().equals(attemptPatch.id()));
+                if (attemptPatch.status() != null)
+                    attempt.setStatus(attemptPatch.status());
+                if (attemptPatch.errorMessage() != null)
+                    attempt.setErrorMessage(attemptPatch.errorMessage());
+                if (attemptPatch.usage() != null)
+                    attempt.setUsage(attemptPatch.usage());
+                attempts.add(attempt);
+            }
+        }
+        task.setAttempts(attempts);
+    }
+
     private void put(Exchange exchange) {
         for (ExchangeTask task : exchange.getTasks()) {
             if (task.getId() == null)
@@ -69,7 +137,8 @@ public class MockExchangeClient implements ExchangeClient {
                 exchange.getParentExchangeId(),
                 exchange.getChainDepth(),
                 exchange.isTestOnly(),
-                Utils.map(exchange.getTasks(), this::copyTask)
+                Utils.map(exchange.getTasks(), this::copyTask),
+                exchange.getUsage()
         );
     }
 
@@ -81,7 +150,8 @@ public class MockExchangeClient implements ExchangeClient {
                 exchangeTask.getType(),
                 exchangeTask.getStatus(),
                 exchangeTask.getErrorMessage(),
-                Utils.map(exchangeTask.getAttempts(), this::copyAttempt)
+                Utils.map(exchangeTask.getAttempts(), this::copyAttempt),
+                exchangeTask.getUsage()
         );
     }
 
@@ -98,23 +168,24 @@ public class MockExchangeClient implements ExchangeClient {
         return new Attempt(
                 attempt.getId(),
                 attempt.getStatus(),
-                attempt.getErrorMessage()
+                attempt.getErrorMessage(),
+                attempt.getUsage()
         );
     }
 
     @Override
-    public void delete(String id) {
+    public synchronized void delete(String id) {
         exchanges.remove(id);
     }
 
     @Override
-    public void cancel(String id) {
+    public synchronized void cancel(String id) {
         var exch = exchanges.get(id);
         exch.setStatus(ExchangeStatus.CANCELLED);
     }
 
     @Override
-    public void retry(String id) {
+    public synchronized void retry(String id) {
         var exch = exchanges.get(id);
         if (exch.getStatus() != ExchangeStatus.FAILED)
             throw new IllegalStateException("Exchange is not in FAILED state");
@@ -122,7 +193,7 @@ public class MockExchangeClient implements ExchangeClient {
     }
 
     @Override
-    public void revert(ExchangeIdRequest request) {
+    public synchronized void revert(ExchangeIdRequest request) {
         var exch = exchanges.get(request.exchangeId());
         if (!exch.hasSuccessfulTasks()) {
             throw new RuntimeException("Cannot revert an exchange with no successful stages");
@@ -141,7 +212,7 @@ public class MockExchangeClient implements ExchangeClient {
     }
 
     @Override
-    public List<String> failExpiredExchanges() {
+    public synchronized List<String> failExpiredExchanges() {
         var expired = new ArrayList<String>();
         exchanges.values().forEach(exch -> {
             if (exch.isRunning() && exch.getLastHeartBeatAt() < System.currentTimeMillis() - TIMEOUT) {
@@ -153,7 +224,7 @@ public class MockExchangeClient implements ExchangeClient {
     }
 
     @Override
-    public void sendHeartBeat(String id) {
+    public synchronized void sendHeartBeat(String id) {
         var exch = Objects.requireNonNull(exchanges.get(id), "Exchange not found: " + id);
         if (exch.isRunning())
             throw new IllegalStateException("Exchange is not running: " + id +
@@ -162,7 +233,7 @@ public class MockExchangeClient implements ExchangeClient {
     }
 
     @Override
-    public boolean isGenerating(IsGeneratingRequest request) {
+    public synchronized boolean isGenerating(IsGeneratingRequest request) {
         for (Exchange exch : exchanges.values()) {
             if (exch.getAppId().equals(request.appId()) && exch.isRunning())
                 return true;
@@ -170,11 +241,11 @@ public class MockExchangeClient implements ExchangeClient {
         return false;
     }
 
-    public Exchange getFirst() {
+    public synchronized Exchange getFirst() {
         return copy(exchanges.values().stream().findFirst().orElseThrow());
     }
 
-    public Exchange getLast() {
+    public synchronized Exchange getLast() {
         if (exchanges.isEmpty())
             throw new NoSuchElementException("No exchanges found");
         Exchange last = null;
@@ -0,0 +1,45 @@
+package org.kiwi.console.kiwi;
+
+import org.kiwi.console.generate.rest.UsageDTO;
+
+/**
+ * Model usage summed over a number of calls. {@code firstTokenMillis} and {@code streamMillis} are totals as well;
+ * divide {@code streamMillis} by {@code calls} and {@code firstTokenMillis} by {@code firstTokenCalls}, the calls
+ * that received a token, for averages. {@code bytes} counts the UTF-8 text received, thoughts included.
+ */
+public record Usage(
+        int calls,
+        long inputTokens,
+        long outputTokens,
+        long thoughtTokens,
+        long cacheReadTokens,
+        long cacheWriteTokens,
+        int firstTokenCalls,
+        long firstTokenMillis,
+        long streamMillis,
+        long bytes
+) {
+
+    public static final Usage ZERO = new Usage(0, 0, 0, 0, 0, 0, 0, 0, 0, 0);
+
+    public Usage plus(Usage that) {
+        return new Usage(
+                calls + that.calls,
+                inputTokens + that.inputTokens,
+                outputTokens + that.outputTokens,
+                thoughtTokens + that.thoughtTokens,
+                cacheReadTokens + that.cacheReadTokens,
+                cacheWriteTokens + that.cacheWriteTokens,
+                firstTokenCalls + that.firstTokenCalls,
+                firstTokenMillis + that.firstTokenMillis,
+                streamMillis + that.streamMillis,
+                bytes + that.bytes
+        );
+    }
+
+    public UsageDTO toDTO() {
+        return new UsageDTO(calls, inputTokens, outputTokens, thoughtTokens, cacheReadTokens, cacheWriteTokens,
+                firstTokenCalls > 0 ? firstTokenMillis / firstTokenCalls : 0, streamMillis, bytes);
+    }
+
+}
@@ -46,7 +46,7 @@ public class PatchReader {
         return new Patch(files, removeFiles);
     }
 
-    private boolean isHeader(String line) {
+    static boolean isHeader(String line) {
         for (int i = 0; i < line.length(); i++) {
             var c = line.charAt(i);
             switch (c) {
@@ -62,9 +62,9 @@ public class PatchReader {
         return false;
     }
 
-    private record Header(Path path, boolean removal) {}
+    record Header(Path path, boolean removal) {}
 
-    private Header parseHeader(String line) {
+    static Header parseHeader(String line) {
         line = line.trim();
         if (line.length() <= 4 || !line.startsWith("@@"))
             throw new MalformedHunkException(line, 0);
@@ -0,0 +1,67 @@
+package org.kiwi.console.patch;
+
+import org.kiwi.console.generate.MalformedHunkException;
+import org.kiwi.console.generate.SourceFile;
+
+import javax.annotation.Nullable;
+import java.util.function.Consumer;
+
+/**
+ * Reads a patch while it is being generated and reports each added file as soon as the header of the next
+ * section shows that the file is complete. The last section, removals and malformed headers are left to
+ * {@link PatchReader}, which reads the full text afterward.
+ */
+public class StreamingPatchReader {
+
+    private final Consumer<SourceFile> onFile;
+    private final StringBuilder line = new StringBuilder();
+    private final StringBuilder buf = new StringBuilder();
+    private @Nullable PatchReader.Header header;
+    private boolean afterCr;
+    private boolean malformed;
+
+    public StreamingPatchReader(Consumer<SourceFile> onFile) {
+        this.onFile = onFile;
+    }
+
+    public void accept(String chunk) {
+        for (int i = 0; i < chunk.length(); i++) {
+            var c = chunk.charAt(i);
+            if (afterCr) {
+                afterCr = false;
+                if (c == '\n')
+                    continue;
+            }
+            switch (c) {
+                case '\n' -> onLine();
+                case '\r' -> {
+                    onLine();
+                    afterCr = true;
+                }
+                default -> line.append(c);
+            }
+        }
+    }
+
+    private void onLine() {
+        var ln = line.toString();
+        line.setLength(0);
+        if (malformed)
+            return;
+        try {
+            if (header == null) {
+                if (ln.trim().startsWith("@@"))
+                    header = PatchReader.parseHeader(ln);
+            } else if (PatchReader.isHeader(ln)) {
+                if (!header.removal())
+                    onFile.accept(new SourceFile(header.path(), buf.toString()));
+                header = PatchReader.parseHeader(ln);
+                buf.setLength(0);
+            } else
+                buf.append(ln).append('\n');
+        } catch (MalformedHunkException e) {
+            malformed = true;
+        }
+    }
+
+}
@@ -1,14 +1,26 @@
 package org.kiwi.console.util;
 
+import io.micrometer.core.instrument.MeterRegistry;
 import org.kiwi.console.browser.Browser;
 import org.kiwi.console.browser.PlaywrightBrowser;
 import org.kiwi.console.file.UrlFetcher;
 import org.kiwi.console.generate.*;
+import org.kiwi.console.generate.cache.CachingModel;
+import org.kiwi.console.generate.cache.ResponseCache;
 import org.kiwi.console.generate.claude.ClaudeModel;
+import org.kiwi.console.generate.context.ContextBuilder;
 import org.kiwi.console.generate.data.DataAgent;
 import org.kiwi.console.generate.data.DataAgentImpl;
+import org.kiwi.console.generate.event.GenerationEventHub;
+import org.kiwi.console.generate.rest.GenerationSocketConfig;
+import org.kiwi.console.generate.rest.GenerationSocketHandler;
+import org.kiwi.console.generate.daemon.BuildDaemonPool;
 import org.kiwi.console.generate.k2.K2Model;
+import org.kiwi.console.generate.limit.GovernedModel;
+import org.kiwi.console.generate.limit.RateGovernor;
 import org.kiwi.console.generate.qwen.QwenModel;
+import org.kiwi.console.generate.route.ProviderHealth;
+import org.kiwi.console.generate.route.RoutingModel;
 import org.kiwi.console.kiwi.*;
 import org.kiwi.console.file.FileService;
 import org.kiwi.console.object.ObjectClient;
@@ -19,16 +31,27 @@ import org.springframework.boot.web.server.ConfigurableWebServerFactory;
 import org.springframework.boot.web.server.WebServerFactoryCustomizer;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Primary;
+import org.springframework.core.task.SimpleAsyncTaskExecutor;
 import org.springframework.core.task.TaskExecutor;
 import org.springframework.stereotype.Component;
 import org.yaml.snakeyaml.Yaml;
 import org.yaml.snakeyaml.error.YAMLException;
 
+import javax.annotation.Nullable;
 import java.io.FileInputStream;
 import java.net.http.HttpClient;
 import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Objects;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
 
 @Component
 @Configurable
@@ -42,6 +65,7 @@ public class ConsoleConfig {
     private final UrlTemplates urlTemplates;
     private final UploadConfig uploadConfig;
     private final TestConfig testConfig;
+    private final GeneratorConfig generatorConfig;
 
     public ConsoleConfig() {
         var config = getConfig();
@@ -52,7 +76,10 @@ public class ConsoleConfig {
         urlTemplates = buildUrlTemplates(config);
         uploadConfig = buildUploadConfig(config);
         testConfig = buildTestConfig(config);
+        generatorConfig = buildGeneratorConfig(config);
         configProxy(config);
+        configHttpClients(config);
+        configProcessRunner(config);
     }
 
     private TestConfig buildTestConfig(YmlConfig config) {
@@ -63,6 +90,108 @@ public class ConsoleConfig {
         );
     }
 
+    private GeneratorConfig buildGeneratorConfig(YmlConfig config) {
+        var moduleParallelism = Objects.requireNonNullElse(config.tryGetInt("generation", "module-parallelism"), 4);
+        var pipelineModules = config.getBooleanOrDefault("generation", "pipeline-modules", false);
+        var virtualThreads = config.getBooleanOrDefault("generation", "virtual-threads", false);
+        var saveDelayMillis = Objects.requireNonNullElse(config.tryGetInt("generation", "save-delay-millis"), 200);
+        var deltaSaves = config.getBooleanOrDefault("generation", "delta-saves", false);
+        var eventQueueCapacity = Objects.requireNonNullElse(config.tryGetInt("generation", "event-queue-capacity"), 256);
+        var tokenBatchMillis = Objects.requireNonNullElse(config.tryGetInt("generation", "token-batch-millis"), 100);
+        var tokenBatchChars = Objects.requireNonNullElse(config.tryGetInt("generation", "token-batch-chars"), 4096);
+        var progressReplayCapacity = Objects.requireNonNullElse(config.tryGetInt("generation", "progress-replay-capacity"), 256);
+        var wsCompressThreshold = Objects.requireNonNullElse(config.tryGetInt("generation", "ws-compress-threshold"), 1024);
+        var wsSendBufferLimit = Objects.requireNonNullElse(config.tryGetInt("generation", "ws-send-buffer-limit"), 1024 * 1024);
+        List<String> wsAllowedOrigins = List.of();
+        var origins = config.tryGet("generation", "ws-allowed-origins");
+        if (origins instanceof List<?> list)
+            wsAllowedOrigins = Utils.map(list, Object::toString);
+        else if (origins != null)
+            throw new ConfigException("Invalid configuration for: generation.ws-allowed-origins, expected List");
+        var maxRunning = Objects.requireNonNullElse(config.tryGetInt("generation", "max-running"), 8);
+        var maxRunningPerUser = Objects.requireNonNullElse(config.tryGetInt("generation", "max-running-per-user"), 2);
+        var maxQueued = Objects.requireNonNullElse(config.tryGetInt("generation", "max-queued"), 100);
+        var maxQueuedPerUser = Objects.requireNonNullElse(config.tryGetInt("generation", "max-queued-per-user"), 5);
+        var responseCacheDir = config.tryGetString("generation", "response-cache-dir");
+        var responseCacheMaxMb = Objects.requireNonNullElse(config.tryGetInt("generation", "response-cache-max-mb"), 1024);
+        var responseCacheTtlHours = Objects.requireNonNullElse(config.tryGetInt("generation", "response-cache-ttl-hours"), 168);
+        var routeHedgeDelayMillis = Objects.requireNonNullElse(config.tryGetInt("generation", "route-hedge-delay-millis"), 30_000);
+        var routeMinHedgeDelayMillis = Objects.requireNonNullElse(config.tryGetInt("generation", "route-min-hedge-delay-millis"), 2_000);
+        var routeErrorPercent = Objects.requireNonNullElse(config.tryGetInt("generation", "route-error-percent"), 50);
+        var routeBreakerOpenSeconds = Objects.requireNonNullElse(config.tryGetInt("generation", "route-breaker-open-seconds"), 30);
+        var contextTokenBudget = Objects.requireNonNullElse(config.tryGetInt("generation", "context-token-budget"), ContextBuilder.DEFAULT_TOKEN_BUDGET);
+        var routes = new LinkedHashMap<String, List<String>>();
+        if (config.tryGet("generation", "routes") instanceof Map<?, ?> routeMap) {
+            routeMap.forEach((route, providers) -> {
+                if (providers instanceof List<?> list && !list.isEmpty())
+                    routes.put(route.toString(), Utils.map(list, Object::toString));
+                else
+                    throw new ConfigException("Invalid configuration for: generation.routes." + route + ", expected non-empty List");
+            });
+        }
+        var rateLimitRetryWaitSeconds = Objects.requireNonNullElse(config.tryGetInt("generation", "rate-limit-retry-wait-seconds"), 120);
+        var rateLimits = new HashMap<String, RateGovernor.Settings>();
+        if (config.tryGet("generation", "rate-limits") instanceof Map<?, ?> limitMap) {
+            limitMap.forEach((model, limits) -> {
+                if (limits instanceof Map<?, ?> m) {
+                    rateLimits.put(model.toString(), new RateGovernor.Settings(
+                            getLimit(m, model, "requests-per-minute"),
+                            getLimit(m, model, "tokens-per-minute"),
+                            getLimit(m, model, "max-concurrent"),
+                            rateLimitRetryWaitSeconds * 1000L
+                    ));
+                } else
+                    throw new ConfigException("Invalid configuration for: generation.rate-limits." + model + ", expected Map");
+            });
+        }
+        var workspacePoolSize = Objects.requireNonNullElse(config.tryGetInt("generation", "workspace-pool-size"), 0);
+        var workspacePoolCheckSeconds = Objects.requireNonNullElse(config.tryGetInt("generation", "workspace-pool-check-seconds"), 300);
+        var buildDaemons = new HashMap<String, BuildDaemonPool.Settings>();
+        if (config.tryGet("generation", "build-daemons") instanceof Map<?, ?> daemonMap) {
+            daemonMap.forEach((tech, daemon) -> {
+                if (daemon instanceof Map<?, ?> m && m.get("command") instanceof List<?> command && !command.isEmpty()) {
+                    buildDaemons.put(tech.toString(), new BuildDaemonPool.Settings(
+                            Utils.map(command, Object::toString),
+                            Objects.requireNonNullElse(getInt(m, "build-daemons." + tech, "max-daemons"), 2),
+                            Objects.requireNonNullElse(getInt(m, "build-daemons." + tech, "max-rss-mb"), 0) * 1024L * 1024L,
+                            Objects.requireNonNullElse(getInt(m, "build-daemons." + tech, "max-builds"), 500),
+                            Objects.requireNonNullElse(getInt(m, "build-daemons." + tech, "timeout-seconds"), 120) * 1000L
+                    ));
+                } else
+                    throw new ConfigException("Invalid configuration for: generation.build-daemons." + tech + ", expected Map with a non-empty command");
+            });
+        }
+        var userWeights = new HashMap<String, Integer>();
+        if (config.tryGet("generation", "user-weights") instanceof Map<?, ?> weights) {
+            weights.forEach((userId, weight) -> {
+                if (weight instanceof Integer w)
+                    userWeights.put(userId.toString(), w);
+                else
+                    throw new ConfigException("Invalid configuration for: generation.user-weights." + userId + ", expected Integer");
+            });
+        }
+        return new GeneratorConfig(moduleParallelism, pipelineModules, virtualThreads, saveDelayMillis, deltaSaves, eventQueueCapacity,
+                tokenBatchMillis, tokenBatchChars, progressReplayCapacity, wsCompressThreshold, wsSendBufferLimit, wsAllowedOrigins,
+                maxRunning, maxRunningPerUser, maxQueued, maxQueuedPerUser, Map.copyOf(userWeights),
+                responseCacheDir, responseCacheMaxMb, responseCacheTtlHours, routes,
+                new ProviderHealth.Settings(100, 10, routeHedgeDelayMillis, routeMinHedgeDelayMillis,
+                        routeErrorPercent / 100.0, routeBreakerOpenSeconds * 1000L),
+                contextTokenBudget, Map.copyOf(rateLimits),
+                new RateGovernor.Settings(0, 0, 0, rateLimitRetryWaitSeconds * 1000L),
+                workspacePoolSize, workspacePoolCheckSeconds, Map.copyOf(buildDaemons));
+    }
+
+    private static int getLimit(Map<?, ?> limits, Object model, String key) {
+        return Objects.requireNonNullElse(getInt(limits, "rate-limits." + model, key), 0);
+    }
+
+    private static @Nullable Integer getInt(Map<?, ?> map, String path, String key) {
+        var value = map.get(key);
+        if (value == null || value instanceof Integer)
+            return (Integer) value;
+        throw new ConfigException("Invalid configuration for: generation." + path + "." + key + ", expected Integer");
+    }
+
     private UploadConfig buildUploadConfig(YmlConfig config) {
         return new UploadConfig(
                 config.getString("upload", "dir"),
@@ -71,7 +200,7 @@ public class ConsoleConfig {
     }
 
     private PageConfig buildPageConfig(YmlConfig config) {
-        return new PageConfig(config.getString("page", "works-dir"));
+        return new PageConfig(config.getString("page", "works-dir"), config.tryGetString("page", "store-dir"));
     }
 
     private void configProxy(YmlConfig config) {
@@ -80,6 +209,43 @@ public class ConsoleConfig {
             ProxyUtils.setupPacProxy(pacFileUrl);
     }
 
+    private void configHttpClients(YmlConfig config) {
+        var defaults = HttpClients.Settings.DEFAULT;
+        HttpClients.configure(new HttpClients.Settings(
+                Objects.requireNonNullElse(config.tryGetInt("http", "max-requests"), defaults.maxRequests()),
+                Objects.requireNonNullElse(config.tryGetInt("http", "max-idle-connections"), defaults.maxIdleConnections()),
+                Objects.requireNonNullElse(config.tryGetInt("http", "keep-alive-seconds"), defaults.keepAliveSeconds()),
+                Objects.requireNonNullElse(config.tryGetInt("http", "ping-interval-seconds"), defaults.pingIntervalSeconds())
+        ));
+    }
+
+    private void configProcessRunner(YmlConfig config) {
+        var defaults = ProcessRunner.Settings.DEFAULT;
+        var timeout = config.tryGetInt("process", "timeout-seconds");
+        var timeouts = new HashMap<String, Duration>();
+        getIntMap(config, "timeouts").forEach((type, seconds) -> timeouts.put(type, Duration.ofSeconds(seconds)));
+        var maxOutputKb = config.tryGetInt("process", "max-output-kb");
+        ProcessRunner.configure(new ProcessRunner.Settings(
+                timeout != null ? Duration.ofSeconds(timeout) : defaults.defaultTimeout(),
+                Map.copyOf(timeouts),
+                getIntMap(config, "max-concurrent"),
+                maxOutputKb != null ? maxOutputKb * 1024 : defaults.maxOutputBytes()
+        ));
+    }
+
+    private static Map<String, Integer> getIntMap(YmlConfig config, String key) {
+        var result = new HashMap<String, Integer>();
+        if (config.tryGet("process", key) instanceof Map<?, ?> map) {
+            map.forEach((k, v) -> {
+                if (v instanceof Integer i)
+                    result.put(k.toString(), i);
+                else
+                    throw new ConfigException("Invalid configuration for: process." + key + "." + k + ", expected Integer");
+            });
+        }
+        return Map.copyOf(result);
+    }
+
     private ApiKeys buildApiKeys(YmlConfig config) {
         return new ApiKeys(
                 config.getString("apikeys", "gemini"),
@@ -133,23 +299,28 @@ public class ConsoleConfig {
     }
 
     @Bean
-    public WebTestTaskFactory webTestRunnerFactory(Browser browser, PageCompiler pageCompiler) {
-        return new WebTestTaskFactory(browser, pageCompiler, Path.of(testConfig.envDir), Path.of(testConfig.logDir), testConfig.logOn());
+    public WebTestTaskFactory webTestRunnerFactory(Browser browser, PageCompiler pageCompiler, ContextBuilder contextBuilder) {
+        return new WebTestTaskFactory(browser, pageCompiler, contextBuilder, Path.of(testConfig.envDir), Path.of(testConfig.logDir), testConfig.logOn());
+    }
+
+    @Bean
+    public ContextBuilder contextBuilder() {
+        return new ContextBuilder(generatorConfig.contextTokenBudget);
     }
 
     @Bean
-    public PlanAgent planAgent() {
-        return new PlanAgent();
+    public PlanAgent planAgent(ContextBuilder contextBuilder) {
+        return new PlanAgent(contextBuilder);
     }
 
     @Bean
-    public KiwiAgent kiwiAgent(KiwiCompiler kiwiCompiler) {
-        return new KiwiAgent(kiwiCompiler);
+    public KiwiAgent kiwiAgent(KiwiCompiler kiwiCompiler, ContextBuilder contextBuilder) {
+        return new KiwiAgent(kiwiCompiler, contextBuilder);
     }
 
     @Bean
-    public WebAgent webAgent(PageCompiler pageCompiler) {
-        return new WebAgent(pageCompiler);
+    public WebAgent webAgent(PageCompiler pageCompiler, ContextBuilder contextBuilder) {
+        return new WebAgent(pageCompiler, contextBuilder);
     }
 
     @Bean
@@ -185,7 +356,22 @@ public class ConsoleConfig {
                                                AppConfigClient appConfigClient,
                                                PlanConfigClient planConfigClient,
                                                UrlFetcher urlFetcher,
-                                               @Qualifier("applicationTaskExecutor") TaskExecutor taskExecutor) {
+                                               GenerationScheduler generationScheduler,
+                                               @Qualifier("moduleExecutor") Executor moduleExecutor,
+                                               @Qualifier("exchangeSaveScheduler") ScheduledExecutorService exchangeSaveScheduler,
+                                               GenerationEventHub generationEventHub) {
+        models = Utils.map(models, m -> new GovernedModel(m, new RateGovernor(m.getName(),
+                generatorConfig.rateLimits.getOrDefault(m.getName(), generatorConfig.defaultRateLimits))));
+        if (!generatorConfig.routes.isEmpty())
+            models = buildRoutes(models);
+        if (generatorConfig.responseCacheDir != null) {
+            var cache = new ResponseCache(
+                    Path.of(generatorConfig.responseCacheDir),
+                    generatorConfig.responseCacheMaxMb * 1024L * 1024L,
+                    Duration.ofHours(generatorConfig.responseCacheTtlHours)
+            );
+            models = Utils.map(models, m -> new CachingModel(m, cache));
+        }
         return new GenerationService(
                 models,
                 planAgent,
@@ -200,7 +386,83 @@ public class ConsoleConfig {
                 planConfigClient,
                 urlTemplates.product,
                 urlTemplates.management, urlTemplates.sourceCode,
-                urlFetcher, taskExecutor);
+                urlFetcher, generationScheduler,
+                moduleExecutor, generatorConfig.moduleParallelism, generatorConfig.pipelineModules,
+                exchangeSaveScheduler, generatorConfig.saveDelayMillis, generatorConfig.deltaSaves, generationEventHub,
+                generatorConfig.progressReplayCapacity);
+    }
+
+    /**
+     * A route named after a model replaces it, so that module types configured with that model use the route.
+     */
+    private List<Model> buildRoutes(List<Model> models) {
+        var health = new HashMap<String, ProviderHealth>();
+        for (var model : models)
+            health.put(model.getName(), new ProviderHealth(model, generatorConfig.routeSettings));
+        var routed = new LinkedHashMap<String, Model>();
+        for (var model : models)
+            routed.put(model.getName(), model);
+        generatorConfig.routes.forEach((route, providers) -> routed.put(route, new RoutingModel(route,
+                Utils.map(providers, p -> Objects.requireNonNull(health.get(p),
+                        () -> "Unknown model in route " + route + ": " + p)))));
+        return new ArrayList<>(routed.values());
+    }
+
+    @Bean
+    public GenerationSocketHandler generationSocketHandler(GenerationService generationService,
+                                                           AppClient appClient,
+                                                           ExchangeClient exchangeClient) {
+        return new GenerationSocketHandler(generationService, appClient, exchangeClient,
+                generatorConfig.wsCompressThreshold, generatorConfig.wsSendBufferLimit);
+    }
+
+    @Bean
+    public GenerationSocketConfig generationSocketConfig(GenerationSocketHandler generationSocketHandler) {
+        return new GenerationSocketConfig(generationSocketHandler, generatorConfig.wsAllowedOrigins);
+    }
+
+    @Bean
+    public GenerationScheduler generationScheduler(@Qualifier("applicationTaskExecutor") TaskExecutor taskExecutor) {
+        TaskExecutor executor = taskExecutor;
+        if (generatorConfig.virtualThreads) {
+            var virtualExecutor = new SimpleAsyncTaskExecutor("generation-");
+            virtualExecutor.setVirtualThreads(true);
+            executor = virtualExecutor;
+        }
+        return new GenerationScheduler(
+                executor,
+                generatorConfig.maxRunning,
+                generatorConfig.maxRunningPerUser,
+                generatorConfig.maxQueued,
+                generatorConfig.maxQueuedPerUser,
+                userId -> generatorConfig.userWeights.getOrDefault(userId, 1)
+        );
+    }
+
+    @Bean(destroyMethod = "shutdown")
+    public ExecutorService moduleExecutor() {
+        if (generatorConfig.virtualThreads)
+            return Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name("module-", 0).factory());
+        return Executors.newCachedThreadPool();
+    }
+
+    @Bean(destroyMethod = "shutdown")
+    public ExecutorService generationEventWriter() {
+        if (generatorConfig.virtualThreads)
+            return Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name("generation-event-", 0).factory());
+        return Executors.newCachedThreadPool();
+    }
+
+    @Bean
+    public GenerationEventHub generationEventHub(@Qualifier("generationEventWriter") ExecutorService generationEventWriter,
+                                                 MeterRegistry meterRegistry) {
+        return new GenerationEventHub(generationEventWriter, generatorConfig.eventQueueCapacity,
+                generatorConfig.tokenBatchMillis, generatorConfig.tokenBatchChars, meterRegistry);
+    }
+
+    @Bean(destroyMethod = "shutdown")
+    public ScheduledExecutorService exchangeSaveScheduler() {
+        return Executors.newScheduledThreadPool(2);
     }
 
     @Bean
@@ -208,14 +470,35 @@ public class ConsoleConfig {
         return new FileService(Path.of(uploadConfig.dir));
     }
 
-    @Bean
+    @Bean(destroyMethod = "close")
     public KiwiCompiler kiwiCompiler(DeployService deployService) {
-        return new DefaultKiwiCompiler(Path.of(kiwiConfig.worksDir), deployService);
+        var compiler = new DefaultKiwiCompiler(Path.of(kiwiConfig.worksDir), deployService);
+        enableWorkspacePool(compiler);
+        enableBuildDaemons(compiler, "kiwi");
+        return compiler;
     }
 
-    @Bean
+    @Bean(destroyMethod = "close")
     public PageCompiler pageCompiler() {
-        return new DefaultPageCompiler(Path.of(pageConfig.worksDir));
+        var worksDir = Path.of(pageConfig.worksDir);
+        var compiler = new DefaultPageCompiler(worksDir,
+                pageConfig.storeDir != null ? Path.of(pageConfig.storeDir) : worksDir.resolve(".pnpm-store"));
+        enableWorkspacePool(compiler);
+        enableBuildDaemons(compiler, "web");
+        return compiler;
+    }
+
+    private void enableBuildDaemons(AbstractCompiler compiler, String tech) {
+        var settings = generatorConfig.buildDaemons.get(tech);
+        if (settings != null)
+            compiler.enableBuildDaemons(tech, settings);
+    }
+
+    private void enableWorkspacePool(AbstractCompiler compiler) {
+        if (generatorConfig.workspacePoolSize > 0) {
+            compiler.enableWorkspacePool(generatorConfig.workspacePoolSize,
+                    Duration.ofSeconds(generatorConfig.workspacePoolCheckSeconds));
+        }
     }
 
     @Primary
@@ -314,7 +597,8 @@ public class ConsoleConfig {
     private record KiwiConfig(String host, long chatAppId, String worksDir) {}
 
     public record PageConfig(
-            String worksDir
+            String worksDir,
+            @Nullable String storeDir
     ) {}
 
     private record UrlTemplates(
@@ -328,6 +612,37 @@ public class ConsoleConfig {
         String sourcemapDir
     ) {}
 
+    private record GeneratorConfig(
+            int moduleParallelism,
+            boolean pipelineModules,
+            boolean virtualThreads,
+            int saveDelayMillis,
+            boolean deltaSaves,
+            int eventQueueCapacity,
+            int tokenBatchMillis,
+            int tokenBatchChars,
+            int progressReplayCapacity,
+            int wsCompressThreshold,
+            int wsSendBufferLimit,
+            List<String> wsAllowedOrigins,
+            int maxRunning,
+            int maxRunningPerUser,
+            int maxQueued,
+            int maxQueuedPerUser,
+            Map<String, Integer> userWeights,
+            @Nullable String responseCacheDir,
+            int responseCacheMaxMb,
+            int responseCacheTtlHours,
+            Map<String, List<String>> routes,
+            ProviderHealth.Settings routeSettings,
+            int contextTokenBudget,
+            Map<String, RateGovernor.Settings> rateLimits,
+            RateGovernor.Settings defaultRateLimits,
+            int workspacePoolSize,
+            int workspacePoolCheckSeconds,
+            Map<String, BuildDaemonPool.Settings> buildDaemons
+    ) {}
+
     private record TestConfig(
         String envDir,
         boolean logOn,
@@ -38,6 +38,7 @@ public enum ErrorCode {
     AUTO_TEST_ALREADY_STARTED(4012, "Auto test already started"),
     OBJECT_NOT_FOUND(4013, "{} {} not found"),
     DEPENDENCY_CIRCLE(4014, "Dependency circle detected"),
+    GENERATION_QUEUE_FULL(4015, "Too many generation requests, please try again later"),
     INTERNAL_SERVER_ERROR(5000, "An unexpected internal error occurred.");
 
 
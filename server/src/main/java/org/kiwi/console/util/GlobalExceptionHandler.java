@@ -1,6 +1,7 @@
 package org.kiwi.console.util;
 
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.ControllerAdvice;
@@ -27,6 +28,14 @@ public class GlobalExceptionHandler {
         return new ResponseEntity<>(failureResult, status);
     }
 
+    @ExceptionHandler(ThrottledException.class)
+    public ResponseEntity<Result<?>> handleThrottledException(ThrottledException ex) {
+        log.warn("Request throttled: {}", ex.getMessage());
+        return ResponseEntity.status(HttpStatus.TOO_MANY_REQUESTS)
+                .header(HttpHeaders.RETRY_AFTER, Long.toString(ex.getRetryAfterSeconds()))
+                .body(Result.failure(ex.getErrorCode(), ex.getArgs()));
+    }
+
     // Handler for all other unexpected exceptions
     @ExceptionHandler(Exception.class)
     @ResponseStatus(HttpStatus.INTERNAL_SERVER_ERROR) // Ensures a 500 status code
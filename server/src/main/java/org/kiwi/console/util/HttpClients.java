@@ -0,0 +1,136 @@
+package org.kiwi.console.util;
+
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.Tags;
+import io.micrometer.core.instrument.binder.okhttp3.OkHttpConnectionPoolMetrics;
+import io.micrometer.core.instrument.binder.okhttp3.OkHttpMetricsEventListener;
+import okhttp3.*;
+import okio.ForwardingSource;
+import okio.Okio;
+
+import javax.annotation.Nonnull;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Registry of the OkHttp clients used for model providers and Kiwi. There is one client per upstream host,
+ * with its own connection pool and a bound on concurrent calls; all of them share the dispatcher threads.
+ * The dispatcher only bounds asynchronous calls, while Feign and the model streams execute synchronously, so the
+ * bound is enforced by an interceptor that holds a permit until the response body is closed.
+ * <p>
+ * HTTP/2 is negotiated over TLS where the upstream supports it, responses are transparently gunzipped, and
+ * request latency and pool usage are reported as {@code http.client.upstream} and {@code okhttp.pool.*} metrics
+ * tagged with the upstream host.
+ * <p>
+ * Callers needing other timeouts derive a client with {@link OkHttpClient#newBuilder()}, which keeps the pool
+ * and dispatcher.
+ */
+public class HttpClients {
+
+    private static final ExecutorService dispatcherExecutor = Executors.newCachedThreadPool(r -> {
+        var thread = new Thread(r, "http-dispatcher");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private static final Map<String, OkHttpClient> clients = new ConcurrentHashMap<>();
+    private static volatile Settings settings = Settings.DEFAULT;
+
+    /**
+     * Applies to the clients created afterward.
+     */
+    public static void configure(Settings settings) {
+        HttpClients.settings = settings;
+    }
+
+    public static OkHttpClient get(String url) {
+        return clients.computeIfAbsent(HttpUrl.get(url.trim()).host(), HttpClients::create);
+    }
+
+    private static OkHttpClient create(String host) {
+        var s = settings;
+        var dispatcher = new Dispatcher(dispatcherExecutor);
+        dispatcher.setMaxRequests(s.maxRequests);
+        dispatcher.setMaxRequestsPerHost(s.maxRequests);
+        var pool = new ConnectionPool(s.maxIdleConnections, s.keepAliveSeconds, TimeUnit.SECONDS);
+        var tags = Tags.of("upstream", host);
+        new OkHttpConnectionPoolMetrics(pool, "okhttp.pool", tags).bindTo(Metrics.globalRegistry);
+        return new OkHttpClient.Builder()
+                .dispatcher(dispatcher)
+                .addInterceptor(new ConcurrencyLimit(s.maxRequests))
+                .connectionPool(pool)
+                .pingInterval(s.pingIntervalSeconds, TimeUnit.SECONDS)
+                .eventListener(OkHttpMetricsEventListener.builder(Metrics.globalRegistry, "http.client.upstream")
+                        .tags(tags)
+                        .build())
+                .build();
+    }
+
+    private static class ConcurrencyLimit implements Interceptor {
+
+        private final Semaphore permits;
+
+        ConcurrencyLimit(int maxRequests) {
+            permits = new Semaphore(maxRequests, true);
+        }
+
+        @Nonnull
+        @Override
+        public Response intercept(@Nonnull Chain chain) throws IOException {
+            try {
+                permits.acquire();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for a connection slot");
+            }
+            var released = new AtomicBoolean();
+            Runnable release = () -> {
+                if (released.compareAndSet(false, true))
+                    permits.release();
+            };
+            Response response;
+            try {
+                response = chain.proceed(chain.request());
+            } catch (IOException | RuntimeException e) {
+                release.run();
+                throw e;
+            }
+            var body = response.body();
+            if (body == null) {
+                release.run();
+                return response;
+            }
+            var source = new ForwardingSource(body.source()) {
+                @Override
+                public void close() throws IOException {
+                    try {
+                        super.close();
+                    } finally {
+                        release.run();
+                    }
+                }
+            };
+            return response.newBuilder()
+                    .body(ResponseBody.create(Okio.buffer(source), body.contentType(), body.contentLength()))
+                    .build();
+        }
+
+    }
+
+    /**
+     * @param maxRequests         concurrent calls per upstream, streaming ones counting until their body is closed
+     * @param pingIntervalSeconds HTTP/2 keep-alive ping interval, 0 to disable
+     */
+    public record Settings(int maxRequests, int maxIdleConnections, int keepAliveSeconds, int pingIntervalSeconds) {
+
+        public static final Settings DEFAULT = new Settings(64, 16, 300, 30);
+
+    }
+
+}
@@ -0,0 +1,61 @@
+package org.kiwi.console.util;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.databind.JsonNode;
+
+import javax.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+
+/**
+ * Computes RFC 6902 JSON patches. Arrays are compared by index, which suits lists that mostly grow at the end.
+ */
+public class JsonDiff {
+
+    public static List<Op> diff(JsonNode source, JsonNode target) {
+        var ops = new ArrayList<Op>();
+        diff("", source, target, ops);
+        return ops;
+    }
+
+    private static void diff(String path, JsonNode source, JsonNode target, List<Op> ops) {
+        if (source.equals(target))
+            return;
+        if (source.isObject() && target.isObject()) {
+            var names = new HashSet<String>();
+            source.fieldNames().forEachRemaining(names::add);
+            for (var it = target.fieldNames(); it.hasNext(); ) {
+                var name = it.next();
+                var childPath = path + "/" + escape(name);
+                if (names.remove(name))
+                    diff(childPath, source.get(name), target.get(name), ops);
+                else
+                    ops.add(new Op("add", childPath, target.get(name)));
+            }
+            for (String name : names) {
+                ops.add(new Op("remove", path + "/" + escape(name), null));
+            }
+        } else if (source.isArray() && target.isArray()) {
+            var common = Math.min(source.size(), target.size());
+            for (int i = 0; i < common; i++) {
+                diff(path + "/" + i, source.get(i), target.get(i), ops);
+            }
+            for (int i = common; i < target.size(); i++) {
+                ops.add(new Op("add", path + "/" + i, target.get(i)));
+            }
+            for (int i = source.size() - 1; i >= common; i--) {
+                ops.add(new Op("remove", path + "/" + i, null));
+            }
+        } else
+            ops.add(new Op("replace", path, target));
+    }
+
+    private static String escape(String name) {
+        return name.replace("~", "~0").replace("/", "~1");
+    }
+
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    public record Op(String op, String path, @Nullable JsonNode value) {}
+
+}
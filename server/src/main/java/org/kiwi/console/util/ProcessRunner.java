@@ -0,0 +1,415 @@
+package org.kiwi.console.util;
+
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.Timer;
+import lombok.extern.slf4j.Slf4j;
+import org.kiwi.console.generate.AbortController;
+
+import javax.annotation.Nullable;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+/**
+ * Runs external commands with a timeout, a bounded output buffer and cancellation. Standard error is merged into
+ * standard output, of which the last {@code maxOutputBytes} are kept. A command that times out or is cancelled is
+ * killed together with the processes it started.
+ * <p>
+ * Commands are typed by the file name of their executable, e.g. {@code git} or {@code pnpm}, which selects their
+ * timeout and concurrency limit. Wall time and peak resident memory of the process tree are reported as
+ * {@code process.time} and {@code process.peak-rss} metrics tagged with the command type.
+ * <p>
+ * A command is cancelled when the {@link AbortController} bound to the calling thread with {@link #withAbortController}
+ * is aborted, or when the future returned by {@link #start} is cancelled.
+ */
+@Slf4j
+public class ProcessRunner {
+
+    private static final long POLL_MILLIS = 200;
+    private static final long DRAIN_MILLIS = 5000;
+    private static final ThreadLocal<AbortController> abortController = new ThreadLocal<>();
+    private static volatile Settings settings = Settings.DEFAULT;
+    private static volatile Map<String, Semaphore> semaphores = Map.of();
+
+    public static void configure(Settings settings) {
+        var semaphores = new HashMap<String, Semaphore>();
+        settings.maxConcurrent.forEach((type, max) -> semaphores.put(type, new Semaphore(max, true)));
+        ProcessRunner.settings = settings;
+        ProcessRunner.semaphores = semaphores;
+    }
+
+    /**
+     * Runs {@code action} with commands started on the current thread being cancelled once {@code controller}
+     * is aborted.
+     */
+    public static <R> R withAbortController(AbortController controller, Supplier<R> action) {
+        var previous = abortController.get();
+        abortController.set(controller);
+        try {
+            return action.get();
+        } finally {
+            if (previous != null)
+                abortController.set(previous);
+            else
+                abortController.remove();
+        }
+    }
+
+    public static void withAbortController(AbortController controller, Runnable action) {
+        withAbortController(controller, () -> {
+            action.run();
+            return null;
+        });
+    }
+
+    /**
+     * @return the controller bound to the calling thread with {@link #withAbortController}, if any
+     */
+    public static @Nullable AbortController getAbortController() {
+        return abortController.get();
+    }
+
+    /**
+     * @return a buffer keeping as much output as a command run by this class keeps
+     */
+    public static TailBuffer createOutputBuffer() {
+        return new TailBuffer(settings.maxOutputBytes);
+    }
+
+    /**
+     * Runs the command on the calling thread.
+     *
+     * @throws BusinessException with {@link ErrorCode#TASK_CANCELLED} if the command was cancelled
+     * @throws RuntimeException  if the command could not be started or timed out
+     */
+    public static Utils.CommandResult run(Path dir, List<String> command, Options options) {
+        return new Execution(dir, command, options, abortController.get(), null).run();
+    }
+
+    public static Utils.CommandResult run(Path dir, List<String> command) {
+        return run(dir, command, Options.DEFAULT);
+    }
+
+    /**
+     * Runs the command on a thread of its own. The future fails the same way {@link #run} throws.
+     */
+    public static CompletableFuture<Utils.CommandResult> start(Path dir, List<String> command, Options options) {
+        var future = new CompletableFuture<Utils.CommandResult>();
+        var execution = new Execution(dir, command, options, abortController.get(), future);
+        Thread.ofVirtual().name("process-" + execution.type).start(() -> {
+            try {
+                future.complete(execution.run());
+            } catch (Throwable e) {
+                future.completeExceptionally(e);
+            }
+        });
+        return future;
+    }
+
+    public static CompletableFuture<Utils.CommandResult> start(Path dir, List<String> command) {
+        return start(dir, command, Options.DEFAULT);
+    }
+
+    /**
+     * @return the resident memory of the process in bytes, or -1 where it cannot be read
+     */
+    public static long getRss(long pid) {
+        try {
+            for (var line : Files.readAllLines(Path.of("/proc", Long.toString(pid), "status"))) {
+                if (line.startsWith("VmRSS:"))
+                    return Long.parseLong(line.substring(6).trim().split("\\s+")[0]) * 1024;
+            }
+        } catch (IOException | RuntimeException ignored) {
+        }
+        return -1;
+    }
+
+    static String getType(List<String> command) {
+        return Path.of(command.getFirst()).getFileName().toString();
+    }
+
+    private static class Execution {
+
+        private final Path dir;
+        private final List<String> command;
+        private final Options options;
+        private final @Nullable AbortController abortController;
+        private final @Nullable Future<?> future;
+        private final String type;
+        private final Duration timeout;
+        private final TailBuffer output;
+        private final Map<Long, ProcessHandle> tree = new HashMap<>();
+        private long peakRss;
+
+        Execution(Path dir, List<String> command, Options options, @Nullable AbortController abortController,
+                  @Nullable Future<?> future) {
+            var s = settings;
+            this.dir = dir;
+            this.command = List.copyOf(command);
+            this.options = options;
+            this.abortController = options.abortController != null ? options.abortController : abortController;
+            this.future = future;
+            type = getType(command);
+            timeout = options.timeout != null ? options.timeout : s.timeouts.getOrDefault(type, s.defaultTimeout);
+            output = new TailBuffer(s.maxOutputBytes);
+        }
+
+        Utils.CommandResult run() {
+            var semaphore = semaphores.get(type);
+            if (semaphore != null)
+                acquire(semaphore);
+            try {
+                return execute();
+            } finally {
+                if (semaphore != null)
+                    semaphore.release();
+            }
+        }
+
+        private void acquire(Semaphore semaphore) {
+            try {
+                while (!semaphore.tryAcquire(POLL_MILLIS, TimeUnit.MILLISECONDS)) {
+                    if (isCancelled())
+                        throw new BusinessException(ErrorCode.TASK_CANCELLED);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException(e);
+            }
+        }
+
+        private Utils.CommandResult execute() {
+            log.info("Executing command {} in working dir {}", String.join(" ", command), dir);
+            var sample = Timer.start();
+            Process process;
+            try {
+                process = new ProcessBuilder(command).directory(dir.toFile()).redirectErrorStream(true).start();
+            } catch (IOException e) {
+                record(sample, "error");
+                throw new RuntimeException(e);
+            }
+            var reader = Thread.ofVirtual().name("process-output-" + type).start(() -> read(process.getInputStream()));
+            writeInput(process);
+            var deadline = System.nanoTime() + timeout.toNanos();
+            try {
+                while (!process.waitFor(POLL_MILLIS, TimeUnit.MILLISECONDS)) {
+                    sampleTree(process);
+                    if (isCancelled()) {
+                        kill(process, reader);
+                        record(sample, "cancelled");
+                        throw new BusinessException(ErrorCode.TASK_CANCELLED);
+                    }
+                    if (System.nanoTime() - deadline > 0) {
+                        kill(process, reader);
+                        record(sample, "timeout");
+                        throw new RuntimeException("Command " + String.join(" ", command) + " timed out after "
+                                + timeout.toSeconds() + " seconds, output:\n" + output);
+                    }
+                }
+                // Processes left behind may keep the output open
+                reader.join(DRAIN_MILLIS);
+                if (reader.isAlive())
+                    kill(process, reader);
+            } catch (InterruptedException e) {
+                kill(process, reader);
+                record(sample, "cancelled");
+                Thread.currentThread().interrupt();
+                throw new RuntimeException(e);
+            }
+            record(sample, "exit");
+            return new Utils.CommandResult(process.exitValue(), output.toString());
+        }
+
+        private boolean isCancelled() {
+            return abortController != null && abortController.isAborted() || future != null && future.isCancelled();
+        }
+
+        private void writeInput(Process process) {
+            if (options.input == null) {
+                try {
+                    process.getOutputStream().close();
+                } catch (IOException ignored) {
+                }
+                return;
+            }
+            Thread.ofVirtual().name("process-input-" + type).start(() -> {
+                try (var in = process.getOutputStream()) {
+                    in.write(options.input.getBytes(StandardCharsets.UTF_8));
+                } catch (IOException e) {
+                    log.debug("Failed to write the input of {}", type, e);
+                }
+            });
+        }
+
+        private void read(InputStream in) {
+            var buf = new byte[8192];
+            var line = options.lineListener != null ? new ByteArrayOutputStream() : null;
+            try (in) {
+                int n;
+                while ((n = in.read(buf)) != -1) {
+                    output.write(buf, n);
+                    if (line != null) {
+                        for (int i = 0; i < n; i++) {
+                            if (buf[i] == '\n') {
+                                emitLine(line);
+                            } else if (line.size() < settings.maxOutputBytes)
+                                line.write(buf[i]);
+                        }
+                    }
+                }
+                if (line != null && line.size() > 0)
+                    emitLine(line);
+            } catch (IOException e) {
+                log.debug("Output of {} closed", type, e);
+            }
+        }
+
+        private void emitLine(ByteArrayOutputStream line) {
+            var s = line.toString(StandardCharsets.UTF_8);
+            line.reset();
+            try {
+                Objects.requireNonNull(options.lineListener).accept(s.endsWith("\r") ? s.substring(0, s.length() - 1) : s);
+            } catch (RuntimeException e) {
+                log.warn("Output listener of {} failed", type, e);
+            }
+        }
+
+        private void sampleTree(Process process) {
+            long rss = Math.max(0, getRss(process.pid()));
+            for (var it = process.descendants().iterator(); it.hasNext(); ) {
+                var p = it.next();
+                tree.put(p.pid(), p);
+                rss += Math.max(0, getRss(p.pid()));
+            }
+            peakRss = Math.max(peakRss, rss);
+        }
+
+        private void kill(Process process, Thread reader) {
+            log.warn("Killing command {} (pid {})", String.join(" ", command), process.pid());
+            process.descendants().forEach(p -> tree.put(p.pid(), p));
+            process.destroyForcibly();
+            tree.values().forEach(ProcessHandle::destroyForcibly);
+            try {
+                reader.join(DRAIN_MILLIS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        private void record(Timer.Sample sample, String outcome) {
+            sample.stop(Timer.builder("process.time")
+                    .description("Wall time of external commands")
+                    .tag("command", type)
+                    .tag("outcome", outcome)
+                    .register(Metrics.globalRegistry));
+            if (peakRss > 0) {
+                DistributionSummary.builder("process.peak-rss")
+                        .description("Peak resident memory of external commands and their children")
+                        .baseUnit("bytes")
+                        .tag("command", type)
+                        .register(Metrics.globalRegistry)
+                        .record(peakRss);
+            }
+        }
+
+    }
+
+    /**
+     * Keeps the last {@code capacity} bytes written.
+     */
+    public static class TailBuffer {
+
+        private final byte[] buf;
+        private long written;
+
+        TailBuffer(int capacity) {
+            buf = new byte[capacity];
+        }
+
+        public void append(String s) {
+            var bytes = s.getBytes(StandardCharsets.UTF_8);
+            write(bytes, bytes.length);
+        }
+
+        public synchronized void write(byte[] bytes, int len) {
+            int off = 0;
+            if (len > buf.length) {
+                written += len - buf.length;
+                off = len - buf.length;
+                len = buf.length;
+            }
+            int pos = (int) (written % buf.length);
+            int first = Math.min(len, buf.length - pos);
+            System.arraycopy(bytes, off, buf, pos, first);
+            System.arraycopy(bytes, off + first, buf, 0, len - first);
+            written += len;
+        }
+
+        @Override
+        public synchronized String toString() {
+            if (written <= buf.length)
+                return new String(buf, 0, (int) written, StandardCharsets.UTF_8);
+            int pos = (int) (written % buf.length);
+            var tail = new byte[buf.length];
+            System.arraycopy(buf, pos, tail, 0, buf.length - pos);
+            System.arraycopy(buf, 0, tail, buf.length - pos, pos);
+            return "[" + (written - buf.length) + " bytes of output truncated]" + System.lineSeparator()
+                    + new String(tail, StandardCharsets.UTF_8);
+        }
+
+    }
+
+    /**
+     * @param input           written to the standard input of the command, which is closed right away when null
+     * @param timeout         overrides the timeout of the command type
+     * @param lineListener    receives the output line by line as it is produced
+     * @param abortController overrides the one bound to the calling thread
+     */
+    public record Options(@Nullable String input,
+                          @Nullable Duration timeout,
+                          @Nullable Consumer<String> lineListener,
+                          @Nullable AbortController abortController) {
+
+        public static final Options DEFAULT = new Options(null, null, null, null);
+
+        public Options withInput(String input) {
+            return new Options(input, timeout, lineListener, abortController);
+        }
+
+        public Options withTimeout(Duration timeout) {
+            return new Options(input, timeout, lineListener, abortController);
+        }
+
+        public Options withLineListener(Consumer<String> lineListener) {
+            return new Options(input, timeout, lineListener, abortController);
+        }
+
+        public Options withAbortController(AbortController abortController) {
+            return new Options(input, timeout, lineListener, abortController);
+        }
+
+    }
+
+    /**
+     * @param timeouts      per command type, {@code defaultTimeout} for the others
+     * @param maxConcurrent per command type, unlimited for the others
+     */
+    public record Settings(Duration defaultTimeout,
+                           Map<String, Duration> timeouts,
+                           Map<String, Integer> maxConcurrent,
+                           int maxOutputBytes) {
+
+        public static final Settings DEFAULT = new Settings(Duration.ofMinutes(10), Map.of(), Map.of(), 1024 * 1024);
+
+    }
+
+}
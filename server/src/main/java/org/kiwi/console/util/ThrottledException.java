@@ -0,0 +1,18 @@
+package org.kiwi.console.util;
+
+/**
+ * Rejection of a request because the server is saturated. The client may retry after the given delay.
+ */
+public class ThrottledException extends BusinessException {
+
+    private final long retryAfterSeconds;
+
+    public ThrottledException(ErrorCode errorCode, long retryAfterSeconds, Object... args) {
+        super(errorCode, args);
+        this.retryAfterSeconds = retryAfterSeconds;
+    }
+
+    public long getRetryAfterSeconds() {
+        return retryAfterSeconds;
+    }
+}
@@ -25,10 +25,8 @@ import lombok.extern.slf4j.Slf4j;
 import org.kiwi.console.generate.GenerationService;
 import org.kiwi.console.schema.dto.*;
 
-import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
 import java.lang.reflect.Type;
 import java.net.URI;
 import java.net.URISyntaxException;
@@ -40,7 +38,6 @@ import java.nio.file.Paths;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
 import java.util.*;
-import java.util.concurrent.TimeUnit;
 import java.util.function.Function;
 import java.util.function.Predicate;
 import java.util.function.Supplier;
@@ -170,48 +167,7 @@ public class Utils {
     }
 
     public static CommandResult executeCommand(Path directory, List<String> commands) {
-        log.info("Executing command {} in working dir {}",
-                String.join(" ", commands), directory.toString());
-        ProcessBuilder processBuilder = new ProcessBuilder(commands);
-
-        // Set the working directory for the command
-        processBuilder.directory(directory.toFile());
-
-        // Merge the standard output and standard error streams.
-        // This makes it easier to capture all output.
-        processBuilder.redirectErrorStream(true);
-
-        Process process;
-        try {
-            process = processBuilder.start();
-        } catch (IOException e) {
-            throw new RuntimeException(e);
-        }
-
-        // Use a StringBuilder to capture the command's output
-        StringBuilder output = new StringBuilder();
-        try (BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream()))) {
-            String line;
-            while ((line = reader.readLine()) != null) {
-                output.append(line).append(System.lineSeparator());
-            }
-        } catch (IOException e) {
-            throw new RuntimeException(e);
-        }
-
-        // Wait for the process to complete (with a timeout)
-        boolean finished;
-        try {
-            finished = process.waitFor(60, TimeUnit.SECONDS);
-        } catch (InterruptedException e) {
-            throw new RuntimeException(e);
-        }
-        if (!finished) {
-            process.destroyForcibly();
-            throw new RuntimeException("Command timed out.");
-        }
-
-        return new CommandResult(process.exitValue(), output.toString());
+        return ProcessRunner.run(directory, commands);
     }
 
     public static void require(boolean condition) {
@@ -285,7 +241,7 @@ public class Utils {
 
     public static <T> T createFeignClient(String url, Class<T> type, @Nullable RequestInterceptor interceptor) {
         var builder = Feign.builder()
-                .client(new OkHttpClient())
+                .client(new OkHttpClient(HttpClients.get(url)))
                 .encoder(gsonEncoder)
                 .decoder(gsonDecoder)
                 .queryMapEncoder(new FieldQueryMapEncoder())
@@ -0,0 +1,66 @@
+package org.kiwi.console.auth;
+
+import jakarta.servlet.DispatcherType;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import junit.framework.TestCase;
+import org.springframework.security.core.context.SecurityContextHolder;
+
+import java.lang.reflect.Proxy;
+import java.util.Map;
+
+public class AuthenticateFilterTest extends TestCase {
+
+    private SocketTicketService tickets;
+    private AuthenticateFilter filter;
+
+    @Override
+    protected void setUp() {
+        tickets = new SocketTicketService();
+        // Handshakes never reach the Kiwi clients, only bearer tokens do
+        filter = new AuthenticateFilter(null, null, tickets);
+        SecurityContextHolder.clearContext();
+    }
+
+    @Override
+    protected void tearDown() {
+        SecurityContextHolder.clearContext();
+    }
+
+    public void testHandshakeWithTicket() throws Exception {
+        filter.doFilter(request("/generate/ws", Map.of("ticket", tickets.issue("user"))), response(), (req, resp) -> {});
+        assertEquals("user", SecurityContextHolder.getContext().getAuthentication().getPrincipal());
+    }
+
+    public void testHandshakeWithoutTicketIsRejected() throws Exception {
+        filter.doFilter(request("/generate/ws", Map.of()), response(), (req, resp) -> {});
+        assertNull(SecurityContextHolder.getContext().getAuthentication());
+        // Tokens are no longer accepted in the URL
+        filter.doFilter(request("/generate/ws", Map.of("access_token", "token")), response(), (req, resp) -> {});
+        assertNull(SecurityContextHolder.getContext().getAuthentication());
+        filter.doFilter(request("/generate/ws", Map.of("ticket", "forged")), response(), (req, resp) -> {});
+        assertNull(SecurityContextHolder.getContext().getAuthentication());
+    }
+
+    public void testTicketOnlyOnHandshake() throws Exception {
+        filter.doFilter(request("/generate/history", Map.of("ticket", tickets.issue("user"))), response(), (req, resp) -> {});
+        assertNull(SecurityContextHolder.getContext().getAuthentication());
+    }
+
+    private static HttpServletRequest request(String servletPath, Map<String, String> params) {
+        return (HttpServletRequest) Proxy.newProxyInstance(AuthenticateFilterTest.class.getClassLoader(),
+                new Class<?>[] {HttpServletRequest.class}, (proxy, method, args) -> switch (method.getName()) {
+                    case "getServletPath" -> servletPath;
+                    case "getParameter" -> params.get((String) args[0]);
+                    case "getDispatcherType" -> DispatcherType.REQUEST;
+                    case "getRemoteAddr" -> "127.0.0.1";
+                    default -> null;
+                });
+    }
+
+    private static HttpServletResponse response() {
+        return (HttpServletResponse) Proxy.newProxyInstance(AuthenticateFilterTest.class.getClassLoader(),
+                new Class<?>[] {HttpServletResponse.class}, (proxy, method, args) -> null);
+    }
+
+}
@@ -0,0 +1,22 @@
+package org.kiwi.console.auth;
+
+import junit.framework.TestCase;
+
+public class SocketTicketServiceTest extends TestCase {
+
+    public void testSingleUse() {
+        var service = new SocketTicketService();
+        var ticket = service.issue("user");
+        assertEquals("user", service.redeem(ticket));
+        assertNull(service.redeem(ticket));
+        assertNull(service.redeem("unknown"));
+    }
+
+    public void testExpiry() throws InterruptedException {
+        var service = new SocketTicketService(10);
+        var ticket = service.issue("user");
+        Thread.sleep(20);
+        assertNull(service.redeem(ticket));
+    }
+
+}
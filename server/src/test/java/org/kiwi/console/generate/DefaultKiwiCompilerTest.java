@@ -0,0 +1,76 @@
+package org.kiwi.console.generate;
+
+import junit.framework.TestCase;
+import org.kiwi.console.util.Utils;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+public class DefaultKiwiCompilerTest extends TestCase {
+
+    private Path baseDir;
+
+    @Override
+    protected void setUp() throws Exception {
+        baseDir = Files.createTempDirectory("kiwi-compiler");
+    }
+
+    @Override
+    protected void tearDown() {
+        Utils.executeCommand(Path.of("."), "rm", "-rf", baseDir.toString());
+    }
+
+    public void testApiCache() throws Exception {
+        var compiler = new CountingCompiler(baseDir);
+        var src = baseDir.resolve("app").resolve("src");
+        Files.createDirectories(src);
+        Files.writeString(src.resolve("main.kiwi"), "class Foo");
+        assertEquals("api 1", compiler.generateApi("app"));
+        assertEquals("api 1", compiler.generateApi("app"));
+
+        // Files outside the sources do not affect the API
+        Files.writeString(baseDir.resolve("app").resolve("README.md"), "readme");
+        assertEquals("api 1", compiler.generateApi("app"));
+
+        Files.writeString(src.resolve("main.kiwi"), "class Bar");
+        assertEquals("api 2", compiler.generateApi("app"));
+        Files.writeString(baseDir.resolve("app").resolve(".version"), "2");
+        assertEquals("api 3", compiler.generateApi("app"));
+        assertEquals("api 3", compiler.generateApi("app"));
+
+        compiler.delete("app");
+        assertFalse(Files.exists(src));
+        Files.createDirectories(src);
+        Files.writeString(src.resolve("main.kiwi"), "class Bar");
+        Files.writeString(baseDir.resolve("app").resolve(".version"), "2");
+        assertEquals("api 4", compiler.generateApi("app"));
+    }
+
+    public void testHashSources() throws Exception {
+        var compiler = new CountingCompiler(baseDir);
+        var wd = WorkDir.from(baseDir, "app");
+        Files.createDirectories(wd.getSrcPath().resolve("a"));
+        Files.writeString(wd.getSrcPath().resolve("a").resolve("b.kiwi"), "c");
+        var hash = compiler.hashSources(wd);
+        // Moving content between the path and the file must change the hash
+        Files.delete(wd.getSrcPath().resolve("a").resolve("b.kiwi"));
+        Files.writeString(wd.getSrcPath().resolve("a").resolve("b.kiwic"), "");
+        assertFalse(hash.equals(compiler.hashSources(wd)));
+    }
+
+    private static class CountingCompiler extends DefaultKiwiCompiler {
+
+        private int generations;
+
+        CountingCompiler(Path baseDir) {
+            super(baseDir, new MockDeployService());
+        }
+
+        @Override
+        String runGenApi(WorkDir workDir) {
+            return "api " + ++generations;
+        }
+
+    }
+
+}
@@ -0,0 +1,27 @@
+package org.kiwi.console.generate;
+
+import junit.framework.TestCase;
+import org.kiwi.console.util.Utils;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+public class DefaultPageCompilerTest extends TestCase {
+
+    public void testMeasureSharedFiles() throws Exception {
+        var root = Files.createTempDirectory("page-compiler");
+        try {
+            var store = Files.createDirectories(root.resolve("store"));
+            var nodeModules = Files.createDirectories(root.resolve("node_modules").resolve("pkg"));
+            var stored = Files.writeString(store.resolve("index.js"), "x".repeat(100));
+            Files.createLink(nodeModules.resolve("index.js"), stored);
+            Files.writeString(nodeModules.resolve("own.js"), "y".repeat(10));
+            Files.createSymbolicLink(nodeModules.resolve("link.js"), stored);
+            var usage = DefaultPageCompiler.measure(root.resolve("node_modules"));
+            assertEquals(new DefaultPageCompiler.DiskUsage(100, 10), usage);
+        } finally {
+            Utils.executeCommand(Path.of("."), "rm", "-rf", root.toString());
+        }
+    }
+
+}
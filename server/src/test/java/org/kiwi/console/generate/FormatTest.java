@@ -23,4 +23,11 @@ public class FormatTest extends TestCase {
         );
     }
 
-}
\ No newline at end of file
+    public void testPrefixLength() {
+        var template = "Head {} middle {} tail {}";
+        assertEquals("Head ".length(), Format.prefixLength(template, 0, "a", "bb", "ccc"));
+        assertEquals("Head a middle bb".length(), Format.prefixLength(template, 2, "a", "bb", "ccc"));
+        assertEquals("Head a middle bb tail ccc".length(), Format.prefixLength(template, 5, "a", "bb", "ccc"));
+    }
+
+}
@@ -0,0 +1,134 @@
+package org.kiwi.console.generate;
+
+import junit.framework.TestCase;
+import org.kiwi.console.util.ErrorCode;
+import org.kiwi.console.util.ThrottledException;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.RejectedExecutionException;
+
+public class GenerationSchedulerTest extends TestCase {
+
+    private List<Runnable> pending;
+    private List<String> started;
+    private Map<String, Integer> positions;
+    private List<String> rejected;
+
+    @Override
+    protected void setUp() {
+        pending = new ArrayList<>();
+        started = new ArrayList<>();
+        positions = new HashMap<>();
+        rejected = new ArrayList<>();
+    }
+
+    public void testFairness() {
+        var scheduler = new GenerationScheduler(pending::add, 1, 1, 100, 10, u -> 1);
+        submit(scheduler, "a1", "alice");
+        submit(scheduler, "a2", "alice");
+        submit(scheduler, "a3", "alice");
+        submit(scheduler, "b1", "bob");
+        submit(scheduler, "b2", "bob");
+        runAll();
+        assertEquals(List.of("a1", "b1", "a2", "b2", "a3"), started);
+    }
+
+    public void testWeights() {
+        var scheduler = new GenerationScheduler(pending::add, 1, 1, 100, 10, u -> u.equals("alice") ? 2 : 1);
+        submit(scheduler, "running", "carol");
+        submit(scheduler, "a1", "alice");
+        submit(scheduler, "a2", "alice");
+        submit(scheduler, "a3", "alice");
+        submit(scheduler, "a4", "alice");
+        submit(scheduler, "b1", "bob");
+        submit(scheduler, "b2", "bob");
+        runAll();
+        assertEquals(List.of("running", "a1", "a2", "b1", "a3", "a4", "b2"), started);
+    }
+
+    public void testPerUserConcurrency() {
+        var scheduler = new GenerationScheduler(pending::add, 4, 1, 100, 10, u -> 1);
+        submit(scheduler, "a1", "alice");
+        submit(scheduler, "a2", "alice");
+        submit(scheduler, "b1", "bob");
+        assertEquals(List.of("a1", "b1"), started);
+        assertEquals(1, scheduler.getQueuedCount());
+        runAll();
+        assertEquals(List.of("a1", "b1", "a2"), started);
+    }
+
+    public void testQueuePosition() {
+        var scheduler = new GenerationScheduler(pending::add, 1, 1, 100, 10, u -> 1);
+        submit(scheduler, "a1", "alice");
+        submit(scheduler, "b1", "bob");
+        submit(scheduler, "c1", "carol");
+        assertEquals(Integer.valueOf(1), positions.get("b1"));
+        assertEquals(Integer.valueOf(2), positions.get("c1"));
+        assertTrue(scheduler.cancel("b1"));
+        assertEquals(Integer.valueOf(1), positions.get("c1"));
+        assertNull(scheduler.getQueuePosition("b1"));
+        runAll();
+        assertEquals(List.of("a1", "c1"), started);
+        assertNull(positions.get("c1"));
+    }
+
+    public void testRejection() {
+        var scheduler = new GenerationScheduler(pending::add, 1, 1, 2, 1, u -> 1);
+        submit(scheduler, "a1", "alice");
+        submit(scheduler, "a2", "alice");
+        try {
+            submit(scheduler, "a3", "alice");
+            fail("Should reject when the user's queue is full");
+        } catch (ThrottledException e) {
+            assertSame(ErrorCode.GENERATION_QUEUE_FULL, e.getErrorCode());
+            assertTrue(e.getRetryAfterSeconds() > 0);
+        }
+        submit(scheduler, "b1", "bob");
+        try {
+            scheduler.ensureAdmissible("carol");
+            fail("Should reject when the queue is full");
+        } catch (ThrottledException e) {
+            assertSame(ErrorCode.GENERATION_QUEUE_FULL, e.getErrorCode());
+        }
+    }
+
+    public void testExecutorRejection() {
+        var accept = new boolean[] {true};
+        var scheduler = new GenerationScheduler(r -> {
+            if (!accept[0])
+                throw new RejectedExecutionException("Shut down");
+            pending.add(r);
+        }, 1, 1, 100, 10, u -> 1);
+        submit(scheduler, "a1", "alice");
+        submit(scheduler, "b1", "bob");
+        accept[0] = false;
+        // Finishing a1 dispatches bob's job, which is failed rather than thrown at alice's worker
+        runAll();
+        assertEquals(List.of("b1"), rejected);
+        assertEquals(0, scheduler.getRunningCount());
+        assertEquals(0, scheduler.getQueuedCount());
+        submit(scheduler, "c1", "carol");
+        assertEquals(List.of("b1", "c1"), rejected);
+        accept[0] = true;
+        submit(scheduler, "c2", "carol");
+        assertEquals(1, scheduler.getRunningCount());
+    }
+
+    private void submit(GenerationScheduler scheduler, String id, String userId) {
+        scheduler.submit(new GenerationScheduler.Job(id, userId, () -> {}, p -> {
+            if (p == null && !started.contains(id))
+                started.add(id);
+            positions.put(id, p);
+        }, e -> rejected.add(id)));
+    }
+
+    private void runAll() {
+        while (!pending.isEmpty()) {
+            pending.removeFirst().run();
+        }
+    }
+
+}
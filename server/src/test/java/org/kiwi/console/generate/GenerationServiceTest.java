@@ -1,11 +1,13 @@
 package org.kiwi.console.generate;
 
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
 import junit.framework.TestCase;
 import lombok.extern.slf4j.Slf4j;
 import org.kiwi.console.file.UrlFetcher;
 import org.kiwi.console.file.UrlResource;
 import org.kiwi.console.generate.data.DataAgent;
 import org.kiwi.console.generate.data.DataManipulationRequest;
+import org.kiwi.console.generate.event.GenerationEventHub;
 import org.kiwi.console.generate.event.GenerationListener;
 import org.kiwi.console.generate.rest.CancelRequest;
 import org.kiwi.console.generate.rest.ExchangeDTO;
@@ -23,6 +25,14 @@ import javax.annotation.Nonnull;
 import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.Consumer;
 
 import static org.kiwi.console.util.Constants.APP_TSX;
@@ -43,9 +53,13 @@ public class GenerationServiceTest extends TestCase {
     private MockAppConfigClient appConfigClient;
     private ModuleTypeClient moduleTypeClient;
     private TaskExecutor taskExecutor;
+    private ExecutorService moduleExecutor;
+    private ScheduledExecutorService saveScheduler;
     private UrlFetcher urlFetcher;
     private String userId;
     private Model model;
+    private boolean pipelineModules;
+    private boolean deltaSaves;
 
     @Override
     protected void setUp() {
@@ -62,6 +76,8 @@ public class GenerationServiceTest extends TestCase {
         appClient = new MockAppClient(userClient, appConfigClient);
         userId = userClient.register(new RegisterRequest("kiwi", "123456"));
         taskExecutor = new SyncTaskExecutor();
+        moduleExecutor = Executors.newCachedThreadPool();
+        saveScheduler = Executors.newSingleThreadScheduledExecutor();
         model = new MockModel();
         urlFetcher = new UrlFetcher(Constants.CHAT_HOST) {
 
@@ -72,6 +88,12 @@ public class GenerationServiceTest extends TestCase {
         };
     }
 
+    @Override
+    protected void tearDown() {
+        moduleExecutor.shutdownNow();
+        saveScheduler.shutdownNow();
+    }
+
     public void testGeneration() {
         var genService = createGenerationService();
         var prompt = """
@@ -138,6 +160,104 @@ public class GenerationServiceTest extends TestCase {
 
     }
 
+    public void testPipelinedModules() throws InterruptedException {
+        pipelineModules = true;
+        var webStarted = new CountDownLatch(1);
+        var startedDuringDeploy = new AtomicBoolean();
+        kiwiAgent = new KiwiAgent(new MockCompiler() {
+            @Override
+            public DeployResult run(long appId, String projectName, List<SourceFile> sourceFiles, List<Path> removedFiles, boolean deploySource, boolean noBackup, Runnable onBuilt) {
+                var r = run(appId, projectName, sourceFiles, removedFiles, deploySource, noBackup);
+                if (r.successful()) {
+                    onBuilt.run();
+                    // Still deploying
+                    startedDuringDeploy.set(await(webStarted));
+                }
+                return r;
+            }
+        });
+        webAgent = new WebAgent(new MockPageCompiler() {
+            @Override
+            public DeployResult run(long appId, String projectName, List<SourceFile> sourceFiles, List<Path> removedFiles, boolean deploySource, boolean noBackup, Runnable onBuilt) {
+                webStarted.countDown();
+                return super.run(appId, projectName, sourceFiles, removedFiles, deploySource, noBackup, onBuilt);
+            }
+        });
+        var genService = createGenerationService();
+        genService.generate(GenerationRequest.create(null, "class Foo{}"), userId, discardListener);
+        assertTrue(startedDuringDeploy.get());
+        assertSame(ExchangeStatus.SUCCESSFUL, exchangeClient.getLast().getStatus());
+    }
+
+    private static boolean await(CountDownLatch latch) {
+        try {
+            return latch.await(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    public void testPipelinedDeployAbort() {
+        pipelineModules = true;
+        kiwiAgent = new KiwiAgent(new MockCompiler() {
+            boolean aborted;
+
+            @Override
+            public DeployResult run(long appId, String projectName, List<SourceFile> sourceFiles, List<Path> removedFiles, boolean deploySource, boolean noBackup, Runnable onBuilt) {
+                if (!aborted) {
+                    aborted = true;
+                    onBuilt.run();
+                    return new DeployResult(false, "Deploy aborted");
+                }
+                return super.run(appId, projectName, sourceFiles, removedFiles, deploySource, noBackup, onBuilt);
+            }
+        });
+        var genService = createGenerationService();
+        genService.generate(GenerationRequest.create(null, "class Foo{}"), userId, discardListener);
+        var exch = exchangeClient.getLast();
+        assertSame(ExchangeStatus.SUCCESSFUL, exch.getStatus());
+        var kiwiAppId = appClient.get(exch.getAppId()).getKiwiAppId();
+        assertEquals("class Foo{}\n", kiwiAgent.getCode(kiwiAppId + "", MAIN_KIWI));
+        assertEquals("// Test App\nclass Foo{}\n", webAgent.getCode(kiwiAppId + "", APP_TSX));
+        var kiwiTask = exch.getTasks().getFirst();
+        assertEquals(2, kiwiTask.getAttempts().size());
+        assertSame(AttemptStatus.FAILED, kiwiTask.getAttempts().getFirst().getStatus());
+    }
+
+    public void testDeltaSaves() {
+        var genService = createGenerationService();
+        genService.generate(GenerationRequest.create(null, "class Foo{}"), userId, discardListener);
+        var expected = exchangeClient.getLast().toString();
+
+        deltaSaves = true;
+        var patches = new AtomicInteger();
+        exchangeClient = new MockExchangeClient() {
+            @Override
+            public synchronized void patch(String id, ExchangePatch patch) {
+                patches.incrementAndGet();
+                super.patch(id, patch);
+            }
+        };
+        genService = createGenerationService();
+        genService.generate(GenerationRequest.create(null, "class Foo{}"), userId, discardListener);
+        assertTrue(patches.get() > 0);
+        var kiwiAppId = appClient.get(exchangeClient.getLast().getAppId()).getKiwiAppId();
+        assertEquals(expected.replaceAll("\\d+\\.metavm", kiwiAppId + ".metavm"), exchangeClient.getLast().toString());
+    }
+
+    public void testRejectedExecution() {
+        taskExecutor = t -> {
+            throw new RejectedExecutionException("Shut down");
+        };
+        var genService = createGenerationService();
+        var listener = new ProgressListener();
+        genService.generate(GenerationRequest.create(null, "class Foo{}"), userId, listener);
+        var exch = exchangeClient.getFirst();
+        assertSame(ExchangeStatus.FAILED, exch.getStatus());
+        assertTrue(listener.closed);
+        assertTrue(genService.getRunningExchangeIds(userId).isEmpty());
+    }
+
     public void testCancel() {
         taskExecutor = new DelayedTaskExecutor();
         var generationService = createGenerationService();
@@ -160,6 +280,14 @@ public class GenerationServiceTest extends TestCase {
         genService.generate(GenerationRequest.create(null, "class Foo {}"), userId, listener);
     }
 
+    public void testListenerClosedAfterGeneration() {
+        var genService = createGenerationService();
+        var listener = new ProgressListener();
+        genService.generate(GenerationRequest.create(null, "class Foo {}"), userId, listener);
+        assertTrue(listener.closed);
+        assertEquals(ExchangeStatus.SUCCESSFUL.name(), listener.exchanges.getLast().status());
+    }
+
     public void testRetry() {
         var failing = new Object() {
             boolean value = true;
@@ -345,7 +473,15 @@ public class GenerationServiceTest extends TestCase {
                 "https://{}.metavm.test",
                 "https://metavm.test/{}", "https://admin.metavm.test/source-{}.zip",
                 urlFetcher,
-                taskExecutor);
+                new GenerationScheduler(taskExecutor, 8, 2, 100, 5, u -> 1),
+                moduleExecutor,
+                4,
+                pipelineModules,
+                saveScheduler,
+                50,
+                deltaSaves,
+                new GenerationEventHub(Runnable::run, 256, 100, 4096, new SimpleMeterRegistry()),
+                256);
 
     }
 
@@ -646,12 +782,18 @@ public class GenerationServiceTest extends TestCase {
     private static class ProgressListener implements GenerationListener {
 
         final List<ExchangeDTO> exchanges = new ArrayList<>();
+        boolean closed;
 
         @Override
         public void onThought(String thoughtChunk) {
 
         }
 
+        @Override
+        public void close() {
+            closed = true;
+        }
+
         @Override
         public void onContent(String contentChunk) {
 
@@ -0,0 +1,292 @@
+package org.kiwi.console.generate;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import junit.framework.TestCase;
+import org.kiwi.console.file.UrlFetcher;
+import org.kiwi.console.file.UrlResource;
+import org.kiwi.console.generate.event.GenerationEventHub;
+import org.kiwi.console.generate.event.GenerationListener;
+import org.kiwi.console.generate.rest.ExchangeDTO;
+import org.kiwi.console.generate.rest.GenerationRequest;
+import org.kiwi.console.generate.rest.GenerationSocketHandler;
+import org.kiwi.console.kiwi.*;
+import org.kiwi.console.util.Constants;
+import org.kiwi.console.util.ErrorCode;
+import org.kiwi.console.util.Utils;
+import org.springframework.http.HttpHeaders;
+import org.springframework.web.socket.*;
+
+import javax.annotation.Nonnull;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.security.Principal;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+
+public class GenerationSocketHandlerTest extends TestCase {
+
+    private MockExchangeClient exchangeClient;
+    private AppClient appClient;
+    private UserClient userClient;
+    private ExecutorService moduleExecutor;
+    private ScheduledExecutorService saveScheduler;
+    private final List<Runnable> pendingTasks = new ArrayList<>();
+    private GenerationService generationService;
+    private GenerationSocketHandler handler;
+    private String userId;
+
+    @Override
+    protected void setUp() {
+        exchangeClient = new MockExchangeClient();
+        var planConfigClient = new MockPlanConfigClient();
+        var moduleTypeClient = new MockModuleTypeClient();
+        var appConfigClient = new MockAppConfigClient(planConfigClient, moduleTypeClient);
+        userClient = new MockUserClient(appConfigClient);
+        appClient = new MockAppClient(userClient, appConfigClient);
+        userId = userClient.register(new RegisterRequest("kiwi", "123456"));
+        moduleExecutor = Executors.newCachedThreadPool();
+        saveScheduler = Executors.newSingleThreadScheduledExecutor();
+        generationService = new GenerationService(List.of(new MockModel()),
+                new PlanAgent(),
+                List.of(new KiwiAgent(new MockCompiler()), new WebAgent(new MockPageCompiler())),
+                new MockDataAgent(),
+                List.of(new MockTestTaskFactory()),
+                exchangeClient,
+                appClient,
+                appConfigClient,
+                userClient,
+                moduleTypeClient,
+                planConfigClient,
+                "https://{}.metavm.test",
+                "https://metavm.test/{}", "https://admin.metavm.test/source-{}.zip",
+                new UrlFetcher(Constants.CHAT_HOST) {
+                    @Override
+                    public UrlResource fetch(String urlOrPath) {
+                        throw new UnsupportedOperationException();
+                    }
+                },
+                new GenerationScheduler(pendingTasks::add, 8, 2, 100, 5, u -> 1),
+                moduleExecutor,
+                4,
+                false,
+                saveScheduler,
+                50,
+                false,
+                new GenerationEventHub(Runnable::run, 256, 0, 4096, new SimpleMeterRegistry()),
+                256);
+        handler = new GenerationSocketHandler(generationService, appClient, exchangeClient, 1024, 1024 * 1024);
+    }
+
+    @Override
+    protected void tearDown() {
+        moduleExecutor.shutdownNow();
+        saveScheduler.shutdownNow();
+    }
+
+    public void testSubscribe() throws Exception {
+        var exchangeId = startGeneration();
+        var session = connect(userId);
+        send(session, "{\"id\":\"1\",\"type\":\"subscribe\",\"exchangeId\":\"" + exchangeId + "\"}");
+        // The current state comes first
+        assertEquals(List.of("generation", "ack"), session.types());
+        runPendingTasks();
+        var types = session.types();
+        assertEquals("closed", types.getLast());
+        assertTrue(types.contains("generation"));
+        // Patches are only sent on request
+        assertFalse(types.contains("generation-patch"));
+        var last = session.frames.get(types.lastIndexOf("generation"));
+        assertEquals(ExchangeStatus.SUCCESSFUL.name(), ((Map<?, ?>) last.get("data")).get("status"));
+    }
+
+    public void testIncrementalProgress() throws Exception {
+        var exchangeId = startGeneration();
+        var session = connect(userId);
+        send(session, "{\"type\":\"subscribe\",\"exchangeId\":\"" + exchangeId + "\",\"incrementalProgress\":true}");
+        assertEquals(List.of("generation", "ack"), session.types());
+        runPendingTasks();
+        var types = session.types();
+        assertTrue(types.subList(2, types.size() - 1).stream().allMatch("generation-patch"::equals));
+        assertTrue(types.size() > 3);
+        assertEquals("closed", types.getLast());
+    }
+
+    public void testSubscribeToAllRunning() throws Exception {
+        var exchangeId = startGeneration();
+        var session = connect(userId);
+        send(session, "{\"type\":\"subscribe\"}");
+        runPendingTasks();
+        assertEquals(exchangeId, session.frames.getLast().get("exchangeId"));
+        assertEquals("closed", session.types().getLast());
+    }
+
+    public void testCancel() throws Exception {
+        var exchangeId = startGeneration();
+        var session = connect(userId);
+        send(session, "{\"id\":\"2\",\"type\":\"cancel\",\"exchangeId\":\"" + exchangeId + "\"}");
+        assertEquals("ack", session.types().getLast());
+        assertEquals("2", session.frames.getLast().get("id"));
+        assertSame(ExchangeStatus.CANCELLED, exchangeClient.get(exchangeId).getStatus());
+    }
+
+    public void testCancelOthersExchange() throws Exception {
+        var exchangeId = startGeneration();
+        var otherUserId = userClient.register(new RegisterRequest("other", "123456"));
+        var session = connect(otherUserId);
+        send(session, "{\"id\":\"3\",\"type\":\"cancel\",\"exchangeId\":\"" + exchangeId + "\"}");
+        assertEquals("error", session.types().getLast());
+        var result = (Map<?, ?>) session.frames.getLast().get("data");
+        assertEquals(ErrorCode.FORBIDDEN.getCode(), result.get("code"));
+        assertTrue(exchangeClient.get(exchangeId).isRunning());
+    }
+
+    public void testRejectUnauthenticated() throws Exception {
+        var session = new FakeSession(null);
+        handler.afterConnectionEstablished(session);
+        assertEquals(CloseStatus.POLICY_VIOLATION.getCode(), session.closeStatus.getCode());
+        send(session, "{\"type\":\"subscribe\"}");
+        assertTrue(session.frames.isEmpty());
+    }
+
+    private String startGeneration() {
+        generationService.generate(GenerationRequest.create(null, "class Foo{}"), userId, new GenerationListener() {
+            @Override
+            public void onThought(String thoughtChunk) {
+            }
+
+            @Override
+            public void onContent(String contentChunk) {
+            }
+
+            @Override
+            public void onProgress(ExchangeDTO exchange) {
+            }
+        });
+        return exchangeClient.getFirst().getId();
+    }
+
+    private void runPendingTasks() {
+        var tasks = new ArrayList<>(pendingTasks);
+        pendingTasks.clear();
+        tasks.forEach(Runnable::run);
+    }
+
+    private FakeSession connect(String userId) throws Exception {
+        var session = new FakeSession(() -> userId);
+        handler.afterConnectionEstablished(session);
+        return session;
+    }
+
+    private void send(FakeSession session, String command) throws Exception {
+        handler.handleMessage(session, new TextMessage(command));
+    }
+
+    private static class FakeSession implements WebSocketSession {
+
+        private final Principal principal;
+        private final Map<String, Object> attributes = new HashMap<>();
+        final List<Map<?, ?>> frames = new ArrayList<>();
+        CloseStatus closeStatus;
+
+        FakeSession(Principal principal) {
+            this.principal = principal;
+        }
+
+        List<String> types() {
+            return Utils.map(frames, f -> (String) f.get("type"));
+        }
+
+        @Nonnull
+        @Override
+        public String getId() {
+            return "session";
+        }
+
+        @Override
+        public URI getUri() {
+            return URI.create("ws://localhost/generate/ws");
+        }
+
+        @Nonnull
+        @Override
+        public HttpHeaders getHandshakeHeaders() {
+            return new HttpHeaders();
+        }
+
+        @Nonnull
+        @Override
+        public Map<String, Object> getAttributes() {
+            return attributes;
+        }
+
+        @Override
+        public Principal getPrincipal() {
+            return principal;
+        }
+
+        @Override
+        public InetSocketAddress getLocalAddress() {
+            return null;
+        }
+
+        @Override
+        public InetSocketAddress getRemoteAddress() {
+            return null;
+        }
+
+        @Override
+        public String getAcceptedProtocol() {
+            return null;
+        }
+
+        @Override
+        public void setTextMessageSizeLimit(int messageSizeLimit) {
+        }
+
+        @Override
+        public int getTextMessageSizeLimit() {
+            return 0;
+        }
+
+        @Override
+        public void setBinaryMessageSizeLimit(int messageSizeLimit) {
+        }
+
+        @Override
+        public int getBinaryMessageSizeLimit() {
+            return 0;
+        }
+
+        @Nonnull
+        @Override
+        public List<WebSocketExtension> getExtensions() {
+            return List.of();
+        }
+
+        @Override
+        public synchronized void sendMessage(@Nonnull WebSocketMessage<?> message) throws java.io.IOException {
+            frames.add(Utils.getObjectMapper().readValue(((TextMessage) message).getPayload(), Map.class));
+        }
+
+        @Override
+        public boolean isOpen() {
+            return closeStatus == null;
+        }
+
+        @Override
+        public void close() {
+            close(CloseStatus.NORMAL);
+        }
+
+        @Override
+        public void close(@Nonnull CloseStatus status) {
+            closeStatus = status;
+        }
+    }
+
+}
@@ -13,7 +13,7 @@ class MockCompiler implements KiwiCompiler, PageCompiler {
     private final List<Commit> commits = new ArrayList<>();
 
     @Override
-    public DeployResult run(long appId, String projectName, List<SourceFile> sourceFiles, List<Path> removedFiles, boolean deploySource, boolean noBackup) {
+    public synchronized DeployResult run(long appId, String projectName, List<SourceFile> sourceFiles, List<Path> removedFiles, boolean deploySource, boolean noBackup) {
         var files = getWorkdir(projectName);
         sourceFiles.forEach(f -> files.put(f.path().toString(), f.content()));
         for (Path removedFile : removedFiles) {
@@ -25,6 +25,23 @@ class MockCompiler implements KiwiCompiler, PageCompiler {
             return new DeployResult(true, null);
     }
 
+    @Override
+    public synchronized void apply(String projectName, List<SourceFile> sourceFiles, List<Path> removedFiles) {
+        var files = getWorkdir(projectName);
+        sourceFiles.forEach(f -> files.put(f.path().toString(), f.content()));
+        for (Path removedFile : removedFiles) {
+            files.remove(removedFile.toString());
+        }
+    }
+
+    @Override
+    public DeployResult run(long appId, String projectName, List<SourceFile> sourceFiles, List<Path> removedFiles, boolean deploySource, boolean noBackup, Runnable onBuilt) {
+        var r = run(appId, projectName, sourceFiles, removedFiles, deploySource, noBackup);
+        if (r.successful())
+            onBuilt.run();
+        return r;
+    }
+
     private Map<String, String> getWorkdir(String projectName) {
         var wd = working.get(projectName);
         if (wd == null) {
@@ -39,7 +56,7 @@ class MockCompiler implements KiwiCompiler, PageCompiler {
     }
 
     @Override
-    public List<SourceFile> getSourceFiles(String projectName) {
+    public synchronized List<SourceFile> getSourceFiles(String projectName) {
         var files = getWorkdir(projectName);
         var sourceFiles = new ArrayList<SourceFile>();
         files.forEach((path, content) -> sourceFiles.add(new SourceFile(Path.of(path), content)));
@@ -47,34 +64,39 @@ class MockCompiler implements KiwiCompiler, PageCompiler {
     }
 
     @Override
-    public void addFile(String projectName, SourceFile file) {
+    public synchronized @Nullable String readFile(String projectName, Path path) {
+        return getWorkdir(projectName).get(path.toString());
+    }
+
+    @Override
+    public synchronized void addFile(String projectName, SourceFile file) {
         getWorkdir(projectName).put(file.path().toString(), file.content());
     }
 
     @Override
-    public DeployResult deploy(long appId, String projectName, boolean deploySource, boolean noBackup) {
+    public synchronized DeployResult deploy(long appId, String projectName, boolean deploySource, boolean noBackup) {
         return new DeployResult(true, "");
     }
 
     @Override
-    public void commit(String projectName, String message) {
+    public synchronized void commit(String projectName, String message) {
         commits.add(new Commit(copyMap(working.get(projectName)), message));
     }
 
     @Nullable
-    public String getLastCommitMessage() {
+    public synchronized String getLastCommitMessage() {
         return commits.isEmpty() ? null : commits.getLast().message();
     }
 
     @Override
-    public void reset(String projectName, String templateRepo, String branch) {
+    public synchronized void reset(String projectName, String templateRepo, String branch) {
         if (commits.isEmpty())
             working = new HashMap<>();
         else
             working.put(projectName, copyMap(commits.getLast().map()));
     }
 
-    boolean isEmpty() {
+    synchronized boolean isEmpty() {
         return commits.isEmpty();
     }
 
@@ -83,12 +105,12 @@ class MockCompiler implements KiwiCompiler, PageCompiler {
     }
 
     @Override
-    public void delete(String projectName) {
+    public synchronized void delete(String projectName) {
         working.remove(projectName);
     }
 
     @Override
-    public void revert(long appId, String projectName, boolean deploySource) {
+    public synchronized void revert(long appId, String projectName, boolean deploySource) {
         if (commits.isEmpty())
             throw new IllegalStateException("No commits to revert to.");
         if (commits.size() == 1)
@@ -98,16 +120,16 @@ class MockCompiler implements KiwiCompiler, PageCompiler {
     }
 
     @Override
-    public String generateApi(String projectName) {
+    public synchronized String generateApi(String projectName) {
         return "api";
     }
 
-    public String getCode(String projectName, String path) {
+    public synchronized String getCode(String projectName, String path) {
         return getWorkdir(projectName).get(path);
     }
 
     @Override
-    public @Nullable Path getSourceMapPath(String projectName) {
+    public synchronized @Nullable Path getSourceMapPath(String projectName) {
         return null;
     }
 
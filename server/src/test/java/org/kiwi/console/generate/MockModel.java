@@ -1,5 +1,7 @@
 package org.kiwi.console.generate;
 
+import java.util.List;
+
 class MockModel implements Model {
 
     @Override
@@ -7,6 +9,11 @@ class MockModel implements Model {
         return new MockChat();
     }
 
+    @Override
+    public Chat createChat(boolean outputThought, List<ChatTurn> history) {
+        return new MockChat();
+    }
+
     @Override
     public String getName() {
         return "mock";
@@ -5,7 +5,7 @@ import java.nio.file.Path;
 public class MockPageCompiler extends MockCompiler {
 
     @Override
-    public void reset(String projectName, String templateRepo, String branch) {
+    public synchronized void reset(String projectName, String templateRepo, String branch) {
         var empty = isEmpty();
         super.reset(projectName, templateRepo, branch);
         if (empty) {
@@ -0,0 +1,49 @@
+package org.kiwi.console.generate;
+
+import junit.framework.TestCase;
+
+import java.util.List;
+
+public class ModelsTest extends TestCase {
+
+    public void testStopAtEndMarker() {
+        var chat = new ChunkedChat(List.of("Hello\n", "world\n@@", "@@\n", "Trailing chatter", " never read"));
+        assertEquals("Hello\nworld\n", Models.generateContent(chat, "prompt", List.of(), () -> false));
+        assertEquals(3, chat.sent);
+    }
+
+    public void testEndMarkerWithinChunk() {
+        var chat = new ChunkedChat(List.of("code\n  @@@@ \nmore", " text"));
+        assertEquals("code\n  ", Models.generateContent(chat, "prompt", List.of(), () -> false));
+        assertEquals(1, chat.sent);
+    }
+
+    public void testMarkerNotOnOwnLine() {
+        var chat = new ChunkedChat(List.of("@@ src/main.kiwi @@\n", "class Foo {}@@@@\n", "@@@@@\n"));
+        assertEquals("@@ src/main.kiwi @@\nclass Foo {}@@@@\n@",
+                Models.generateContent(chat, "prompt", List.of(), () -> false));
+        assertEquals(3, chat.sent);
+    }
+
+    private static class ChunkedChat implements Chat {
+
+        private final List<String> chunks;
+        private int sent;
+
+        private ChunkedChat(List<String> chunks) {
+            this.chunks = chunks;
+        }
+
+        @Override
+        public void send(String text, List<org.kiwi.console.file.File> attachments, ChatStreamListener listener,
+                         ChatController ctrl) {
+            for (var chunk : chunks) {
+                if (ctrl.isCompleted())
+                    return;
+                sent++;
+                listener.onContent(chunk);
+            }
+        }
+    }
+
+}
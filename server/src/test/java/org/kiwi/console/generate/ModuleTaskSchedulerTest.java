@@ -0,0 +1,156 @@
+package org.kiwi.console.generate;
+
+import junit.framework.TestCase;
+import org.kiwi.console.util.BusinessException;
+import org.kiwi.console.util.ErrorCode;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class ModuleTaskSchedulerTest extends TestCase {
+
+    private ExecutorService executor;
+
+    @Override
+    protected void setUp() {
+        executor = Executors.newCachedThreadPool();
+    }
+
+    @Override
+    protected void tearDown() {
+        executor.shutdownNow();
+    }
+
+    public void testIndependentTasksRunInParallel() {
+        var latch = new CountDownLatch(2);
+        var scheduler = new ModuleTaskScheduler(executor, 2, () -> false);
+        var nodes = List.of(
+                node(0, "Web", () -> await(latch)),
+                node(1, "Admin-Web", () -> await(latch))
+        );
+        scheduler.run(nodes);
+        assertEquals(0, latch.getCount());
+    }
+
+    public void testDependencyOrder() {
+        var order = Collections.synchronizedList(new ArrayList<String>());
+        var scheduler = new ModuleTaskScheduler(executor, 4, () -> false);
+        var kiwi = node(0, "Kiwi", () -> order.add("Kiwi"));
+        var web = node(1, "Web", () -> order.add("Web"));
+        var admin = node(2, "Admin-Web", () -> order.add("Admin-Web"));
+        web.addDependency(kiwi);
+        admin.addDependency(kiwi);
+        scheduler.run(List.of(kiwi, web, admin));
+        assertEquals(3, order.size());
+        assertEquals("Kiwi", order.getFirst());
+    }
+
+    public void testPipelinedDependency() {
+        var webStarted = new CountDownLatch(1);
+        var scheduler = new ModuleTaskScheduler(executor, 2, () -> false);
+        var kiwi = new ModuleTaskScheduler.Node(0, "Kiwi", n -> () -> {
+            n.release();
+            try {
+                if (!webStarted.await(5, TimeUnit.SECONDS))
+                    throw new IllegalStateException("Dependent was not started after release");
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+        });
+        var web = node(1, "Web", webStarted::countDown);
+        web.addPipelinedDependency(kiwi);
+        scheduler.run(List.of(kiwi, web));
+        assertEquals(0, webStarted.getCount());
+    }
+
+    public void testParallelismCap() {
+        var running = new AtomicInteger();
+        var peak = new AtomicInteger();
+        var scheduler = new ModuleTaskScheduler(executor, 2, () -> false);
+        var nodes = new ArrayList<ModuleTaskScheduler.Node>();
+        for (int i = 0; i < 6; i++) {
+            nodes.add(node(i, "Module" + i, () -> {
+                peak.accumulateAndGet(running.incrementAndGet(), Math::max);
+                sleep(20);
+                running.decrementAndGet();
+            }));
+        }
+        scheduler.run(nodes);
+        assertTrue(peak.get() <= 2);
+    }
+
+    public void testStartOrder() {
+        var started = new ArrayList<String>();
+        var scheduler = new ModuleTaskScheduler(executor, 4, () -> false);
+        var nodes = new ArrayList<ModuleTaskScheduler.Node>();
+        for (int i = 0; i < 4; i++) {
+            var name = "Module" + i;
+            nodes.add(new ModuleTaskScheduler.Node(i, name, n -> {
+                started.add(name);
+                return () -> {};
+            }));
+        }
+        scheduler.run(nodes);
+        assertEquals(List.of("Module0", "Module1", "Module2", "Module3"), started);
+    }
+
+    public void testFailure() {
+        var dependentRan = new AtomicBoolean();
+        var scheduler = new ModuleTaskScheduler(executor, 2, () -> false);
+        var kiwi = node(0, "Kiwi", () -> {
+            throw new AgentException("Failed");
+        });
+        var web = node(1, "Web", () -> dependentRan.set(true));
+        web.addDependency(kiwi);
+        try {
+            scheduler.run(List.of(kiwi, web));
+            fail("Should have failed");
+        } catch (AgentException e) {
+            assertEquals("Failed", e.getMessage());
+        }
+        assertFalse(dependentRan.get());
+    }
+
+    public void testAbort() {
+        var aborted = new AtomicBoolean();
+        var scheduler = new ModuleTaskScheduler(executor, 1, aborted::get);
+        var kiwi = node(0, "Kiwi", () -> aborted.set(true));
+        var web = node(1, "Web", () -> fail("Should not run after abort"));
+        try {
+            scheduler.run(List.of(kiwi, web));
+            fail("Should have been cancelled");
+        } catch (BusinessException e) {
+            assertSame(ErrorCode.TASK_CANCELLED, e.getErrorCode());
+        }
+    }
+
+    private static ModuleTaskScheduler.Node node(int index, String name, Runnable body) {
+        return new ModuleTaskScheduler.Node(index, name, n -> body);
+    }
+
+    private static void await(CountDownLatch latch) {
+        latch.countDown();
+        try {
+            if (!latch.await(5, TimeUnit.SECONDS))
+                throw new IllegalStateException("Tasks did not run in parallel");
+        } catch (InterruptedException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+}
@@ -0,0 +1,37 @@
+package org.kiwi.console.generate;
+
+import junit.framework.TestCase;
+
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Set;
+
+public class StreamingPatchWriterTest extends TestCase {
+
+    public void testRestore() {
+        var compiler = new MockCompiler();
+        compiler.addFile("app", new SourceFile(Path.of("src/order.kiwi"), "class Order\n"));
+        try (var writer = new StreamingPatchWriter(compiler, "app")) {
+            writer.accept("@@ src/order.kiwi @@\nclass Order(var amount: double)\n@@ src/product.kiwi @@\nclass Product\n");
+            writer.accept("@@ src/cart.kiwi @@\nclass Ca");
+            assertEquals("class Order(var amount: double)\n", compiler.readFile("app", Path.of("src/order.kiwi")));
+            assertEquals("class Product\n", compiler.readFile("app", Path.of("src/product.kiwi")));
+            // The stream breaks off
+            writer.restore(Set.of());
+        }
+        assertEquals("class Order\n", compiler.readFile("app", Path.of("src/order.kiwi")));
+        assertNull(compiler.readFile("app", Path.of("src/product.kiwi")));
+        assertEquals(List.of(Path.of("src/order.kiwi")), compiler.getSourceFiles("app").stream().map(SourceFile::path).toList());
+    }
+
+    public void testRestoreKeepsCompletePatchFiles() {
+        var compiler = new MockCompiler();
+        try (var writer = new StreamingPatchWriter(compiler, "app")) {
+            writer.accept("@@ src/order.kiwi @@\nclass Order\n@@ src/product.kiwi @@\nclass Product\n@@ src/cart.kiwi @@\n");
+            writer.restore(Set.of(Path.of("src/order.kiwi")));
+        }
+        assertEquals("class Order\n", compiler.readFile("app", Path.of("src/order.kiwi")));
+        assertNull(compiler.readFile("app", Path.of("src/product.kiwi")));
+    }
+
+}
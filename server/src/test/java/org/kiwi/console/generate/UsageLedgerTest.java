@@ -0,0 +1,121 @@
+package org.kiwi.console.generate;
+
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import junit.framework.TestCase;
+import org.kiwi.console.generate.cache.CachingModel;
+import org.kiwi.console.generate.cache.ResponseCache;
+
+import java.nio.file.Files;
+import java.time.Duration;
+import java.util.List;
+
+public class UsageLedgerTest extends TestCase {
+
+    private SimpleMeterRegistry registry;
+
+    @Override
+    protected void setUp() {
+        registry = new SimpleMeterRegistry();
+        Metrics.globalRegistry.add(registry);
+    }
+
+    @Override
+    protected void tearDown() {
+        Metrics.globalRegistry.remove(registry);
+        registry.close();
+    }
+
+    public void testFirstToken() {
+        var ledger = new UsageLedger(null);
+        send(ledger.wrap(new EchoModel()).createChat(false), "hello");
+        var usage = ledger.getUsage();
+        assertEquals(1, usage.calls());
+        assertEquals(1, usage.firstTokenCalls());
+        assertEquals(1, registry.get("generation.model.first-token").timer().count());
+    }
+
+    public void testNoFirstTokenOnFailure() {
+        var ledger = new UsageLedger(null);
+        Chat failing = (text, attachments, listener, ctrl) -> {
+            throw new RuntimeException("Connection reset");
+        };
+        var model = ledger.wrap(new Model() {
+            @Override
+            public Chat createChat(boolean outputThought) {
+                return failing;
+            }
+
+            @Override
+            public Chat createChat(boolean outputThought, List<ChatTurn> history) {
+                return failing;
+            }
+
+            @Override
+            public String getName() {
+                return "failing";
+            }
+        });
+        try {
+            send(model.createChat(false), "hello");
+            fail("Should propagate the failure");
+        } catch (RuntimeException ignored) {
+        }
+        var usage = ledger.getUsage();
+        assertEquals(1, usage.calls());
+        assertEquals(0, usage.firstTokenCalls());
+        assertEquals(0, usage.firstTokenMillis());
+        assertNull(registry.find("generation.model.first-token").tag("model", "failing").timer());
+    }
+
+    public void testReplaysAreNotCalls() throws Exception {
+        var dir = Files.createTempDirectory("response-cache");
+        try {
+            var model = new CachingModel(new EchoModel(), new ResponseCache(dir, 1024 * 1024, Duration.ofHours(1)));
+            var ledger = new UsageLedger(null);
+            var metered = ledger.wrap(model);
+            send(metered.createChat(false), "hello");
+            send(metered.createChat(false), "hello");
+            assertEquals(1, ledger.getUsage().calls());
+            assertEquals(1, registry.get("generation.model.first-token").tag("model", "echo").timer().count());
+            assertEquals(1.0, registry.get("generation.model.replays").tag("model", "echo").counter().count());
+        } finally {
+            try (var files = Files.list(dir)) {
+                for (var file : files.toList())
+                    Files.delete(file);
+            }
+            Files.delete(dir);
+        }
+    }
+
+    private static void send(Chat chat, String text) {
+        chat.send(text, List.of(), new ChatStreamListener() {
+            @Override
+            public void onThought(String thoughtChunk) {
+            }
+
+            @Override
+            public void onContent(String contentChunk) {
+            }
+        }, () -> false);
+    }
+
+    private static class EchoModel implements Model {
+
+        @Override
+        public Chat createChat(boolean outputThought) {
+            return (text, attachments, listener, ctrl) -> listener.onContent(text);
+        }
+
+        @Override
+        public Chat createChat(boolean outputThought, List<ChatTurn> history) {
+            return createChat(outputThought);
+        }
+
+        @Override
+        public String getName() {
+            return "echo";
+        }
+    }
+
+}
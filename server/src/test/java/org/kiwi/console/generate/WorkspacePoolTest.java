@@ -0,0 +1,81 @@
+package org.kiwi.console.generate;
+
+import junit.framework.TestCase;
+import org.kiwi.console.util.Utils;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.function.BooleanSupplier;
+
+public class WorkspacePoolTest extends TestCase {
+
+    private Path root;
+    private Path template;
+
+    @Override
+    protected void setUp() throws Exception {
+        root = Files.createTempDirectory("workspace-pool");
+        template = root.resolve("template");
+        Files.createDirectories(template);
+        git(template, "init", "-q", "-b", "main");
+        commit("a.txt", "a");
+    }
+
+    @Override
+    protected void tearDown() {
+        Utils.executeCommand(Path.of("."), "rm", "-rf", root.toString());
+    }
+
+    public void testClaimAndStaleness() throws Exception {
+        var pool = new WorkspacePool(root.resolve("works").resolve(".pool"), 1, Duration.ofMillis(200),
+                (dir, repo, branch) -> {
+                    git(dir.getParent(), "clone", "-q", repo, dir.getFileName().toString());
+                    git(dir, "checkout", "-q", branch);
+                });
+        try {
+            var repo = template.toString();
+            var first = root.resolve("works").resolve("1");
+            assertFalse(pool.claim(repo, "main", first));
+            waitFor(() -> pool.getReadyCount(repo, "main") == 1);
+            assertTrue(pool.claim(repo, "main", first));
+            assertTrue(Files.isRegularFile(first.resolve("a.txt")));
+            // The pool refills after the claim, then replaces the workspace once the branch moves
+            waitFor(() -> pool.getReadyCount(repo, "main") == 1);
+            commit("b.txt", "b");
+            var second = root.resolve("works").resolve("2");
+            var deadline = System.currentTimeMillis() + 20_000;
+            while (!pool.claim(repo, "main", second) || !Files.isRegularFile(second.resolve("b.txt"))) {
+                // Claimed before the stale workspace was discarded
+                Utils.executeCommand(Path.of("."), "rm", "-rf", second.toString());
+                assertTrue(System.currentTimeMillis() < deadline);
+                Thread.sleep(50);
+            }
+        } finally {
+            pool.close();
+        }
+    }
+
+    private void commit(String file, String content) throws Exception {
+        Files.writeString(template.resolve(file), content);
+        git(template, "add", file);
+        git(template, "-c", "user.name=test", "-c", "user.email=test@example.com", "commit", "-q", "-m", file);
+    }
+
+    private static void git(Path dir, String... args) {
+        var command = new String[args.length + 1];
+        command[0] = "git";
+        System.arraycopy(args, 0, command, 1, args.length);
+        var r = Utils.executeCommand(dir, command);
+        assertEquals(r.output(), 0, r.exitCode());
+    }
+
+    private static void waitFor(BooleanSupplier condition) throws InterruptedException {
+        var deadline = System.currentTimeMillis() + 20_000;
+        while (!condition.getAsBoolean()) {
+            assertTrue(System.currentTimeMillis() < deadline);
+            Thread.sleep(50);
+        }
+    }
+
+}
@@ -0,0 +1,149 @@
+package org.kiwi.console.generate.cache;
+
+import junit.framework.TestCase;
+import org.kiwi.console.file.File;
+import org.kiwi.console.generate.*;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+public class CachingModelTest extends TestCase {
+
+    private Path dir;
+
+    @Override
+    protected void setUp() throws Exception {
+        dir = Files.createTempDirectory("response-cache");
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        try (var files = Files.walk(dir)) {
+            for (var file : files.sorted(Comparator.reverseOrder()).toList())
+                Files.delete(file);
+        }
+    }
+
+    public void testReplay() {
+        var model = new CountingModel();
+        var cachingModel = new CachingModel(model, new ResponseCache(dir, 1024 * 1024, Duration.ofHours(1)));
+        var attachments = List.of(new File("a".getBytes(StandardCharsets.UTF_8), "text/plain"));
+        assertEquals("think:hello|content:reply-1 to hello|",
+                send(cachingModel.createChat(true), "hello", attachments, () -> false));
+        assertEquals("think:hello|content:reply-1 to hello|",
+                send(cachingModel.createChat(true), "hello", attachments, () -> false));
+        assertEquals(1, model.calls);
+
+        var otherAttachments = List.of(new File("b".getBytes(StandardCharsets.UTF_8), "text/plain"));
+        send(cachingModel.createChat(true), "hello", otherAttachments, () -> false);
+        assertEquals(2, model.calls);
+
+        send(cachingModel.createChat(true), "hello", attachments, new ChatController() {
+            @Override
+            public boolean isAborted() {
+                return false;
+            }
+
+            @Override
+            public boolean isCacheBypassed() {
+                return true;
+            }
+        });
+        assertEquals(3, model.calls);
+    }
+
+    public void testContinueAfterReplayedTurns() {
+        var model = new CountingModel();
+        var cachingModel = new CachingModel(model, new ResponseCache(dir, 1024 * 1024, Duration.ofHours(1)));
+        var chat = cachingModel.createChat(false);
+        send(chat, "first", List.of(), () -> false);
+
+        chat = cachingModel.createChat(false);
+        assertEquals("content:reply-1 to first|", send(chat, "first", List.of(), () -> false));
+        assertEquals(1, model.calls);
+        assertEquals("content:reply-2 to second|content: after 1 turns|", send(chat, "second", List.of(), () -> false));
+        assertEquals(List.of("first"), model.resumedWith);
+    }
+
+    public void testEviction() throws IOException {
+        var model = new CountingModel();
+        // Room for two responses
+        var cache = new ResponseCache(dir, 200, Duration.ofHours(1));
+        var cachingModel = new CachingModel(model, cache);
+        for (var text : List.of("one", "two", "three"))
+            send(cachingModel.createChat(false), text, List.of(), () -> false);
+        try (var files = Files.list(dir)) {
+            assertEquals(2, files.count());
+        }
+        send(cachingModel.createChat(false), "one", List.of(), () -> false);
+        assertEquals(4, model.calls);
+    }
+
+    public void testExpiry() {
+        var model = new CountingModel();
+        var cachingModel = new CachingModel(model, new ResponseCache(dir, 1024 * 1024, Duration.ZERO));
+        send(cachingModel.createChat(false), "hello", List.of(), () -> false);
+        try {
+            Thread.sleep(5);
+        } catch (InterruptedException e) {
+            throw new RuntimeException(e);
+        }
+        send(cachingModel.createChat(false), "hello", List.of(), () -> false);
+        assertEquals(2, model.calls);
+    }
+
+    private static String send(Chat chat, String text, List<File> attachments, ChatController ctrl) {
+        var sb = new StringBuilder();
+        chat.send(text, attachments, new ChatStreamListener() {
+            @Override
+            public void onThought(String thoughtChunk) {
+                sb.append("think:").append(thoughtChunk).append('|');
+            }
+
+            @Override
+            public void onContent(String contentChunk) {
+                sb.append("content:").append(contentChunk).append('|');
+            }
+        }, ctrl);
+        return sb.toString();
+    }
+
+    private static class CountingModel implements Model {
+
+        private int calls;
+        private List<String> resumedWith = List.of();
+
+        @Override
+        public Chat createChat(boolean outputThought) {
+            return createChat(outputThought, List.of());
+        }
+
+        @Override
+        public Chat createChat(boolean outputThought, List<ChatTurn> history) {
+            if (!history.isEmpty())
+                resumedWith = history.stream().map(ChatTurn::text).toList();
+            var turns = new ArrayList<>(history);
+            return (text, attachments, listener, ctrl) -> {
+                calls++;
+                if (outputThought)
+                    listener.onThought(text);
+                listener.onContent("reply-" + calls + " to " + text);
+                if (!turns.isEmpty())
+                    listener.onContent(" after " + turns.size() + " turns");
+                turns.add(new ChatTurn(text, attachments, ""));
+            };
+        }
+
+        @Override
+        public String getName() {
+            return "counting";
+        }
+    }
+
+}
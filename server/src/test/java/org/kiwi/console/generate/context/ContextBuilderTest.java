@@ -0,0 +1,120 @@
+package org.kiwi.console.generate.context;
+
+import junit.framework.TestCase;
+import org.kiwi.console.generate.SourceFile;
+import org.kiwi.console.patch.PatchReader;
+
+import java.nio.file.Path;
+import java.util.List;
+
+public class ContextBuilderTest extends TestCase {
+
+    private static final List<SourceFile> files = List.of(
+            new SourceFile(Path.of("src/domain/coupon.kiwi"), """
+                    package domain
+
+                    class Coupon(
+                        val title: string,
+                        val discount: Money
+                    ) {
+
+                        var redeemed = false
+
+                        fn redeem() -> Money {
+                            require(!redeemed, "优惠券已使用")
+                            redeemed = true
+                            return discount
+                        }
+
+                    }
+                    """),
+            new SourceFile(Path.of("src/domain/money.kiwi"), """
+                    package domain
+
+                    value class Money(
+                        val amount: double,
+                        val currency: Currency
+                    ) {
+
+                        fn add(that: Money) -> Money {
+                            return Money(amount + that.amount, currency)
+                        }
+
+                    }
+                    """),
+            new SourceFile(Path.of("src/domain/product.kiwi"), """
+                    package domain
+
+                    class Product(
+                        var name: string,
+                        var price: Money,
+                        var stock: int
+                    ) {
+
+                        fn reduceStock(quantity: int) {
+                            require(stock >= quantity, "库存不足")
+                            stock -= quantity
+                        }
+
+                        fn restock(quantity: int) {
+                            stock += quantity
+                        }
+
+                    }
+                    """),
+            new SourceFile(Path.of("src/service/product_service.kiwi"), """
+                    package service
+
+                    import domain.Product
+
+                    @Bean
+                    class ProductService {
+
+                        fn findProducts(name: string) -> Product[] {
+                            val products = Product.nameIdx.query(name)
+                            return products
+                        }
+
+                    }
+                    """)
+    );
+
+    public void testWholeProjectWithinBudget() {
+        var context = new ContextBuilder(100_000).build(files, "优惠券");
+        assertEquals(PatchReader.buildCode(files), context.getCode());
+        assertTrue(context.getOmitted().isEmpty());
+    }
+
+    public void testSelection() {
+        var builder = new ContextBuilder(200);
+        var context = builder.build(files, "核销优惠券时检查 coupon 是否已使用");
+        var code = context.getCode();
+        assertTrue(code.contains("@@ src/domain/coupon.kiwi @@"));
+        assertTrue(code.contains(ContextBuilder.OMITTED_HEADER));
+        assertTrue(code.contains("# src/service/product_service.kiwi\n"));
+        assertTrue(code.contains("    fn findProducts(name: string) -> Product[]\n"));
+        assertFalse(code.contains("val products"));
+        var omitted = context.getOmitted().stream().map(SourceFile::path).toList();
+        assertFalse(omitted.contains(Path.of("src/domain/coupon.kiwi")));
+        assertTrue(omitted.contains(Path.of("src/service/product_service.kiwi")));
+    }
+
+    public void testReferencedFilesRankHigher() {
+        var index = new SourceIndex(files);
+        var scores = index.rank("coupon");
+        var byPath = new java.util.HashMap<String, Double>();
+        scores.forEach((entry, score) -> byPath.put(entry.file.path().toString(), score));
+        // Money is referenced by Coupon, Product is not
+        assertTrue(byPath.get("src/domain/money.kiwi") > byPath.get("src/domain/product.kiwi"));
+    }
+
+    public void testExpand() {
+        var context = new ContextBuilder(200).build(files, "coupon");
+        var error = "src/service/product_service.kiwi:8: Cannot resolve symbol nameIdx";
+        var expanded = context.expand(error);
+        assertTrue(expanded.startsWith(error));
+        assertTrue(expanded.contains("@@ src/service/product_service.kiwi @@\n"));
+        assertEquals(error, context.expand(error));
+    }
+
+}
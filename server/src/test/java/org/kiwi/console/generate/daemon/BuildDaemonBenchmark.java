@@ -0,0 +1,61 @@
+package org.kiwi.console.generate.daemon;
+
+import org.kiwi.console.util.Utils;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Compares fix-loop latency of one-shot builds with builds on a daemon. Every round touches a source file, the way
+ * a fix attempt does, and rebuilds.
+ * <p>
+ * Usage: {@code BuildDaemonBenchmark <work-dir> <file-to-touch> <rounds> <build command...> -- <daemon command...>},
+ * e.g. {@code /tmp/page-works/1000 src/App.tsx 10 pnpm run build -- node dist/src/main/scripts/page-build-daemon.mjs}
+ */
+public class BuildDaemonBenchmark {
+
+    public static void main(String[] args) {
+        var workDir = Path.of(args[0]);
+        var touched = workDir.resolve(args[1]);
+        var rounds = Integer.parseInt(args[2]);
+        var separator = Arrays.asList(args).indexOf("--");
+        var buildCommand = List.of(args).subList(3, separator);
+        var daemonCommand = List.of(args).subList(separator + 1, args.length);
+        var oneShot = new ArrayList<Long>();
+        for (int i = 0; i < rounds; i++) {
+            touch(touched);
+            var start = System.nanoTime();
+            Utils.executeCommand(workDir, buildCommand);
+            oneShot.add((System.nanoTime() - start) / 1_000_000);
+        }
+        var pool = new BuildDaemonPool("benchmark", new BuildDaemonPool.Settings(daemonCommand, 1, 0, 0, 600_000));
+        var daemon = new ArrayList<Long>();
+        try {
+            for (int i = 0; i < rounds; i++) {
+                touch(touched);
+                var start = System.nanoTime();
+                pool.execute(workDir, buildCommand);
+                daemon.add((System.nanoTime() - start) / 1_000_000);
+            }
+        } finally {
+            pool.close();
+        }
+        report("one-shot", oneShot);
+        report("daemon", daemon);
+    }
+
+    private static void touch(Path file) {
+        if (!file.toFile().setLastModified(System.currentTimeMillis()))
+            throw new IllegalStateException("Failed to touch " + file);
+    }
+
+    private static void report(String mode, List<Long> millis) {
+        var sorted = millis.stream().sorted().toList();
+        System.out.printf("%-8s first %6d ms, median %6d ms, max %6d ms, mean %6d ms%n", mode,
+                millis.getFirst(), sorted.get(sorted.size() / 2), sorted.getLast(),
+                (long) millis.stream().mapToLong(Long::longValue).average().orElse(0));
+    }
+
+}
@@ -0,0 +1,100 @@
+package org.kiwi.console.generate.daemon;
+
+import junit.framework.TestCase;
+
+import org.kiwi.console.util.BusinessException;
+import org.kiwi.console.util.ErrorCode;
+import org.kiwi.console.util.ProcessRunner;
+
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+public class BuildDaemonPoolTest extends TestCase {
+
+    private static final List<String> COUNTING_DAEMON = List.of("sh", "-c",
+            "n=0; while IFS= read -r line; do n=$((n+1)); echo \"build $n\"; echo '__BUILD_EXIT__ 0'; done");
+
+    public void testReuse() {
+        var pool = new BuildDaemonPool("test", new BuildDaemonPool.Settings(COUNTING_DAEMON, 1, 0, 0, 10_000));
+        try {
+            assertEquals("build 1", pool.execute(Path.of("."), List.of("build")).output().trim());
+            var r = pool.execute(Path.of("."), List.of("build"));
+            assertEquals(0, r.exitCode());
+            assertEquals("build 2", r.output().trim());
+            assertEquals(1, pool.getDaemons());
+        } finally {
+            pool.close();
+        }
+    }
+
+    public void testRecycleAfterMaxBuilds() {
+        var pool = new BuildDaemonPool("test", new BuildDaemonPool.Settings(COUNTING_DAEMON, 1, 0, 1, 10_000));
+        try {
+            assertEquals("build 1", pool.execute(Path.of("."), List.of("build")).output().trim());
+            assertEquals("build 1", pool.execute(Path.of("."), List.of("build")).output().trim());
+            assertEquals(0, pool.getDaemons());
+        } finally {
+            pool.close();
+        }
+    }
+
+    public void testFallbackOnCrash() {
+        var crashing = List.of("sh", "-c", "read line; echo dying; exit 1");
+        var pool = new BuildDaemonPool("test", new BuildDaemonPool.Settings(crashing, 1, 0, 0, 10_000));
+        try {
+            var r = pool.execute(Path.of("."), List.of("echo", "one-shot"));
+            assertEquals(0, r.exitCode());
+            assertEquals("one-shot", r.output().trim());
+            assertEquals(0, pool.getDaemons());
+        } finally {
+            pool.close();
+        }
+    }
+
+    public void testTimeoutFailsBuild() {
+        var hanging = List.of("sh", "-c", "read line; echo started; sleep 30");
+        var pool = new BuildDaemonPool("test", new BuildDaemonPool.Settings(hanging, 1, 0, 0, 300));
+        try {
+            var start = System.currentTimeMillis();
+            var r = pool.execute(Path.of("."), List.of("echo", "one-shot"));
+            assertTrue(r.exitCode() != 0);
+            assertTrue(r.output(), r.output().startsWith("started"));
+            assertFalse(r.output().contains("one-shot"));
+            assertTrue(System.currentTimeMillis() - start < 10_000);
+            assertEquals(0, pool.getDaemons());
+        } finally {
+            pool.close();
+        }
+    }
+
+    public void testCancellation() throws Exception {
+        var hanging = List.of("sh", "-c", "read line; sleep 30");
+        var pool = new BuildDaemonPool("test", new BuildDaemonPool.Settings(hanging, 1, 0, 0, 60_000));
+        var aborted = new AtomicBoolean();
+        try {
+            var first = CompletableFuture.supplyAsync(() -> ProcessRunner.withAbortController(aborted::get,
+                    () -> pool.execute(Path.of("."), List.of("build"))));
+            // Waits for the only daemon
+            var second = CompletableFuture.supplyAsync(() -> ProcessRunner.withAbortController(aborted::get,
+                    () -> pool.execute(Path.of("."), List.of("build"))));
+            Thread.sleep(300);
+            aborted.set(true);
+            for (var future : List.of(first, second)) {
+                try {
+                    future.get(10, TimeUnit.SECONDS);
+                    fail("Should have been cancelled");
+                } catch (ExecutionException e) {
+                    assertEquals(ErrorCode.TASK_CANCELLED, ((BusinessException) e.getCause()).getErrorCode());
+                }
+            }
+            assertEquals(0, pool.getDaemons());
+        } finally {
+            pool.close();
+        }
+    }
+
+}
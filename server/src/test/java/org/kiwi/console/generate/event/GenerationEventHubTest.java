@@ -0,0 +1,249 @@
+package org.kiwi.console.generate.event;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import junit.framework.TestCase;
+import org.kiwi.console.generate.rest.ExchangeDTO;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+public class GenerationEventHubTest extends TestCase {
+
+    private ExecutorService executor;
+
+    @Override
+    protected void setUp() {
+        executor = Executors.newCachedThreadPool();
+    }
+
+    @Override
+    protected void tearDown() {
+        executor.shutdownNow();
+    }
+
+    public void testSlowSubscriberDoesNotBlockPublisher() throws InterruptedException {
+        var release = new CountDownLatch(1);
+        var hub = new GenerationEventHub(executor, 16, 0, 4096, new SimpleMeterRegistry());
+        var slow = new RecordingListener(release);
+        var fast = new RecordingListener(null);
+        var slowSub = hub.subscribe(slow);
+        var fastSub = hub.subscribe(fast);
+        for (int i = 0; i < 40; i++)
+            publishToken(slowSub, i);
+        for (int i = 0; i < 10; i++)
+            publishToken(fastSub, i);
+        fast.awaitCount(10);
+        assertEquals(10, fast.events.size());
+        assertTrue(hub.getDroppedCount() > 0);
+        release.countDown();
+        slow.awaitCount(17);
+        assertEquals("content:c39", slow.events.getLast());
+    }
+
+    public void testProgressIsCoalesced() throws InterruptedException {
+        var release = new CountDownLatch(1);
+        var hub = new GenerationEventHub(executor, 16, 0, 4096, new SimpleMeterRegistry());
+        var listener = new RecordingListener(release);
+        var sub = hub.subscribe(listener);
+        sub.onContent("first");
+        sub.onProgress(exchange("PLANNING"));
+        sub.onProgress(exchange("GENERATING"));
+        sub.onProgress(exchange("SUCCESSFUL"));
+        release.countDown();
+        listener.awaitCount(2);
+        assertEquals(List.of("content:first", "progress:SUCCESSFUL"), listener.events);
+        assertEquals(0, hub.getQueuedCount());
+    }
+
+    public void testSubscriberCount() {
+        var registry = new SimpleMeterRegistry();
+        var hub = new GenerationEventHub(Runnable::run, 16, 0, 4096, registry);
+        var gauge = registry.get("generation.events.subscribers").gauge();
+        var listener = new RecordingListener(null);
+        var sub = hub.subscribe(listener);
+        var gone = hub.subscribe(new RecordingListener(null) {
+            @Override
+            public boolean isClosed() {
+                return true;
+            }
+        });
+        assertEquals(2.0, gauge.value());
+        sub.onProgress(exchange("SUCCESSFUL"));
+        sub.close();
+        assertTrue(sub.isClosed());
+        assertEquals(List.of("progress:SUCCESSFUL"), listener.events);
+        gone.close();
+        assertEquals(0.0, gauge.value());
+        sub.close();
+        assertEquals(0.0, gauge.value());
+    }
+
+    public void testFailingSubscriberIsClosed() {
+        var hub = new GenerationEventHub(Runnable::run, 16, 0, 4096, new SimpleMeterRegistry());
+        var sub = hub.subscribe(new RecordingListener(null) {
+            @Override
+            public void onProgress(ExchangeDTO exchange) {
+                throw new IllegalStateException("Connection reset");
+            }
+        });
+        sub.onProgress(exchange("GENERATING"));
+        assertTrue(sub.isClosed());
+        sub.onProgress(exchange("SUCCESSFUL"));
+        assertEquals(0, hub.getQueuedCount());
+    }
+
+    public void testTokenBatching() throws InterruptedException {
+        var hub = new GenerationEventHub(executor, 16, 200, 4096, new SimpleMeterRegistry());
+        var listener = new RecordingListener(null);
+        var sub = hub.subscribe(listener);
+        sub.onContent("Hello");
+        sub.onContent(", ");
+        sub.onContent("world");
+        listener.awaitCount(1);
+        assertEquals(List.of("content:Hello, world"), listener.events);
+    }
+
+    public void testTokensAreOptIn() {
+        var hub = new GenerationEventHub(Runnable::run, 16, 0, 4096, new SimpleMeterRegistry());
+        var listener = new RecordingListener(null) {
+            @Override
+            public boolean isTokenStreaming() {
+                return false;
+            }
+        };
+        var sub = hub.subscribe(listener);
+        sub.onContent("Hello");
+        sub.onProgress(exchange("GENERATING"));
+        assertEquals(List.of("progress:GENERATING"), listener.events);
+    }
+
+    public void testNonIncrementalProgressIsSnapshots() {
+        var hub = new GenerationEventHub(Runnable::run, 16, 0, 4096, new SimpleMeterRegistry());
+        var progressEvents = new ArrayList<ProgressEvent>();
+        var listener = new RecordingListener(null) {
+            @Override
+            public void onProgress(ProgressEvent event) {
+                super.onProgress(event);
+                progressEvents.add(event);
+            }
+        };
+        var sub = hub.subscribe(listener);
+        var stream = new ProgressStream(16);
+        sub.onProgress(stream.next(exchange("PLANNING")));
+        sub.onProgress(stream.next(exchange("GENERATING")));
+        // Unchanged, so an empty patch
+        sub.onProgress(stream.next(exchange("GENERATING")));
+        assertEquals(List.of("progress:PLANNING", "progress:GENERATING", "progress:GENERATING"), listener.events);
+        assertTrue(progressEvents.stream().allMatch(ProgressEvent::isSnapshot));
+        assertEquals(List.of(1L, 2L, 2L), progressEvents.stream().map(ProgressEvent::seq).toList());
+    }
+
+    public void testIncrementalProgressResyncsAfterDrop() throws InterruptedException {
+        var release = new CountDownLatch(1);
+        var hub = new GenerationEventHub(executor, 2, 0, 4096, new SimpleMeterRegistry());
+        var progressEvents = new ArrayList<ProgressEvent>();
+        var sub = hub.subscribe(new RecordingListener(release) {
+            @Override
+            public void onProgress(ProgressEvent event) {
+                super.onProgress(event);
+                synchronized (progressEvents) {
+                    progressEvents.add(event);
+                }
+            }
+
+            @Override
+            public boolean isIncrementalProgress() {
+                return true;
+            }
+        });
+        var stream = new ProgressStream(16);
+        for (var status : List.of("PLANNING", "GENERATING", "GENERATING", "FAILED", "SUCCESSFUL"))
+            sub.onProgress(stream.next(exchange(status)));
+        release.countDown();
+        var deadline = System.currentTimeMillis() + 5000;
+        while (System.currentTimeMillis() < deadline) {
+            synchronized (progressEvents) {
+                if (!progressEvents.isEmpty() && progressEvents.getLast().seq() == 4)
+                    break;
+            }
+            Thread.sleep(10);
+        }
+        synchronized (progressEvents) {
+            assertTrue(progressEvents.getFirst().isSnapshot());
+            var last = progressEvents.getLast();
+            assertEquals(4, last.seq());
+            assertFalse(last.isSnapshot());
+            var resync = progressEvents.get(progressEvents.size() - 2);
+            assertEquals(3, resync.seq());
+            assertTrue(resync.isSnapshot());
+        }
+    }
+
+    private static void publishToken(GenerationListener listener, int i) {
+        if (i % 2 == 0)
+            listener.onThought("t" + i);
+        else
+            listener.onContent("c" + i);
+    }
+
+    private static ExchangeDTO exchange(String status) {
+        return new ExchangeDTO("e1", "app", "prompt", status, null, null, null, null,
+                List.of(), List.of(), null, 0, null, null);
+    }
+
+    private static class RecordingListener implements GenerationListener {
+
+        private final CountDownLatch release;
+        final List<String> events = new ArrayList<>();
+
+        RecordingListener(CountDownLatch release) {
+            this.release = release;
+        }
+
+        @Override
+        public void onThought(String thoughtChunk) {
+            record("thought:" + thoughtChunk);
+        }
+
+        @Override
+        public void onContent(String contentChunk) {
+            record("content:" + contentChunk);
+        }
+
+        @Override
+        public void onProgress(ExchangeDTO exchange) {
+            record("progress:" + exchange.status());
+        }
+
+        @Override
+        public boolean isTokenStreaming() {
+            return true;
+        }
+
+        private void record(String event) {
+            try {
+                if (release != null && !release.await(5, TimeUnit.SECONDS))
+                    throw new IllegalStateException("Not released");
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+            synchronized (events) {
+                events.add(event);
+                events.notifyAll();
+            }
+        }
+
+        void awaitCount(int count) throws InterruptedException {
+            var deadline = System.currentTimeMillis() + 5000;
+            synchronized (events) {
+                while (events.size() < count && System.currentTimeMillis() < deadline)
+                    events.wait(100);
+            }
+        }
+    }
+
+}
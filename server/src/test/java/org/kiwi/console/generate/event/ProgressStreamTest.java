@@ -0,0 +1,55 @@
+package org.kiwi.console.generate.event;
+
+import junit.framework.TestCase;
+import org.kiwi.console.generate.rest.ExchangeDTO;
+
+import java.util.List;
+
+public class ProgressStreamTest extends TestCase {
+
+    public void testSequencing() {
+        var stream = new ProgressStream(8);
+        var first = stream.next(exchange("PLANNING"));
+        assertTrue(first.isSnapshot());
+        assertEquals(1, first.seq());
+        var second = stream.next(exchange("GENERATING"));
+        assertEquals(2, second.seq());
+        assertEquals(1, second.patch().size());
+        assertEquals("/status", second.patch().getFirst().path());
+        var unchanged = stream.next(exchange("GENERATING"));
+        assertEquals(2, unchanged.seq());
+        assertTrue(unchanged.patch().isEmpty());
+    }
+
+    public void testReplay() {
+        var stream = new ProgressStream(8);
+        var first = stream.next(exchange("PLANNING"));
+        stream.next(exchange("GENERATING"));
+        var last = stream.next(exchange("SUCCESSFUL"));
+        var missed = stream.replay(first.id());
+        assertNotNull(missed);
+        assertEquals(List.of(2L, 3L), missed.stream().map(ProgressEvent::seq).toList());
+        assertEquals(List.of(), stream.replay(last.id()));
+        assertNull(stream.replay("other:1"));
+        assertNull(stream.replay(first.streamId() + ":4"));
+        assertEquals("SUCCESSFUL", stream.snapshot().exchange().status());
+    }
+
+    public void testReplayAfterWrap() {
+        var stream = new ProgressStream(2);
+        var first = stream.next(exchange("PLANNING"));
+        var second = stream.next(exchange("GENERATING"));
+        stream.next(exchange("FAILED"));
+        stream.next(exchange("SUCCESSFUL"));
+        assertNull(stream.replay(first.id()));
+        var missed = stream.replay(second.id());
+        assertNotNull(missed);
+        assertEquals(2, missed.size());
+    }
+
+    private static ExchangeDTO exchange(String status) {
+        return new ExchangeDTO("e1", "app", "prompt", status, null, null, null, null,
+                List.of(), List.of(), null, 0, null, null);
+    }
+
+}
@@ -0,0 +1,133 @@
+package org.kiwi.console.generate.limit;
+
+import junit.framework.TestCase;
+import org.kiwi.console.generate.*;
+
+import java.time.Instant;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class RateGovernorTest extends TestCase {
+
+    public void testParseHeaders() {
+        var now = System.currentTimeMillis();
+        var openAi = RateLimits.parse(Map.of(
+                "x-ratelimit-limit-requests", "500",
+                "x-ratelimit-remaining-requests", "499",
+                "x-ratelimit-reset-requests", "120ms",
+                "x-ratelimit-limit-tokens", "30000",
+                "x-ratelimit-remaining-tokens", "29000",
+                "x-ratelimit-reset-tokens", "1m2.5s"
+        )::get, now);
+        assertEquals(new RateLimits(500, 499, 120, 30000, 29000, 62_500, -1), openAi);
+        var anthropic = RateLimits.parse(Map.of(
+                "anthropic-ratelimit-requests-limit", "50",
+                "anthropic-ratelimit-requests-remaining", "0",
+                "anthropic-ratelimit-requests-reset", Instant.ofEpochMilli(now + 3000).toString(),
+                "retry-after", "3"
+        )::get, now);
+        assertNotNull(anthropic);
+        assertEquals(50, anthropic.requestLimit());
+        assertEquals(0, anthropic.requestsRemaining());
+        assertEquals(3000, anthropic.requestsResetMillis());
+        assertEquals(-1, anthropic.tokenLimit());
+        assertEquals(3000, anthropic.retryAfterMillis());
+        assertNull(RateLimits.parse(Map.<String, String>of()::get, now));
+    }
+
+    public void testTokenBucket() {
+        var bucket = new TokenBucket(600, 0);
+        assertEquals(0, bucket.waitMillis(600, 0));
+        bucket.take(600, 0);
+        // 10 tokens a second
+        assertEquals(1000, bucket.waitMillis(10, 0));
+        assertEquals(0, bucket.waitMillis(10, 1000));
+        // A lower limit reported by the provider wins over the configured one
+        bucket.sync(300, 0, -1, 1000);
+        assertEquals(300, bucket.getCapacity());
+        assertEquals(2000, bucket.waitMillis(10, 1000));
+        bucket.sync(1200, -1, -1, 1000);
+        assertEquals(600, bucket.getCapacity());
+        var learned = new TokenBucket(0, 0);
+        assertTrue(learned.isUnlimited());
+        learned.sync(60, 30, -1, 0);
+        assertEquals(60, learned.getCapacity());
+        assertEquals(30.0, learned.getLevel());
+    }
+
+    public void testPriority() throws InterruptedException {
+        var governor = new RateGovernor("test", new RateGovernor.Settings(0, 0, 1, 0));
+        var first = governor.acquire(ChatPriority.INTERACTIVE, 1, () -> false);
+        var order = new CopyOnWriteArrayList<ChatPriority>();
+        var background = Thread.ofVirtual().start(() -> admit(governor, ChatPriority.BACKGROUND, order));
+        Thread.sleep(100);
+        var interactive = Thread.ofVirtual().start(() -> admit(governor, ChatPriority.INTERACTIVE, order));
+        Thread.sleep(100);
+        assertTrue(order.isEmpty());
+        first.release(1);
+        background.join(5000);
+        interactive.join(5000);
+        assertEquals(List.of(ChatPriority.INTERACTIVE, ChatPriority.BACKGROUND), order);
+        assertEquals(0, governor.getActive());
+    }
+
+    public void testAbortWhileWaiting() {
+        var governor = new RateGovernor("test", new RateGovernor.Settings(0, 0, 1, 0));
+        governor.acquire(ChatPriority.INTERACTIVE, 1, () -> false);
+        try {
+            governor.acquire(ChatPriority.INTERACTIVE, 1, () -> true);
+            fail();
+        } catch (AgentException e) {
+            assertEquals("Aborted", e.getMessage());
+        }
+    }
+
+    public void testRetryAfterRejection() {
+        var calls = new AtomicInteger();
+        var model = new GovernedModel(new Model() {
+            @Override
+            public Chat createChat(boolean outputThought) {
+                return (text, attachments, listener, ctrl) -> {
+                    if (calls.incrementAndGet() == 1) {
+                        listener.onRateLimits(new RateLimits(-1, -1, -1, -1, -1, -1, 50));
+                        throw new RateLimitedException("Rate limited", 50);
+                    }
+                    listener.onContent("hi");
+                    listener.onUsage(new TokenUsage(10, 2, 0, 0));
+                };
+            }
+
+            @Override
+            public Chat createChat(boolean outputThought, List<ChatTurn> history) {
+                return createChat(outputThought);
+            }
+
+            @Override
+            public String getName() {
+                return "test";
+            }
+        }, new RateGovernor("test", new RateGovernor.Settings(0, 0, 1, 1000)));
+        var content = new StringBuilder();
+        model.createChat(false).send("hello", List.of(), new ChatStreamListener() {
+            @Override
+            public void onThought(String thoughtChunk) {
+            }
+
+            @Override
+            public void onContent(String contentChunk) {
+                content.append(contentChunk);
+            }
+        }, () -> false);
+        assertEquals("hi", content.toString());
+        assertEquals(2, calls.get());
+    }
+
+    private static void admit(RateGovernor governor, ChatPriority priority, List<ChatPriority> order) {
+        var permit = governor.acquire(priority, 1, () -> false);
+        order.add(priority);
+        permit.release(1);
+    }
+
+}
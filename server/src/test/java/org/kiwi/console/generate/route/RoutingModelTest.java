@@ -0,0 +1,185 @@
+package org.kiwi.console.generate.route;
+
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import junit.framework.TestCase;
+import org.kiwi.console.generate.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class RoutingModelTest extends TestCase {
+
+    private static final ProviderHealth.Settings SETTINGS = new ProviderHealth.Settings(10, 4, 50, 10, 0.5, 60_000);
+
+    public void testHedge() {
+        var slow = new FakeModel("slow", false);
+        var fast = new FakeModel("fast", false);
+        slow.hang = true;
+        var model = new RoutingModel("route", List.of(health(slow), health(fast)));
+        assertEquals("fast:hello", send(model.createChat(false), "hello"));
+        waitFor(slow.aborted);
+        assertEquals(1, slow.calls.get());
+        assertEquals(1, fast.calls.get());
+    }
+
+    public void testLostRaceIsCensoredTtft() {
+        var registry = new SimpleMeterRegistry();
+        Metrics.addRegistry(registry);
+        try {
+            var slow = new FakeModel("slow-censored", false);
+            var fast = new FakeModel("fast-censored", false);
+            slow.hang = true;
+            var settings = new ProviderHealth.Settings(10, 1, 50, 10, 0.5, 60_000);
+            var slowHealth = new ProviderHealth(slow, settings);
+            var model = new RoutingModel("route", List.of(slowHealth, new ProviderHealth(fast, settings)));
+            assertEquals("fast-censored:hello", send(model.createChat(false), "hello"));
+            // The loser records its wait once it has stopped
+            var censored = registry.get("generation.route.ttft.censored").tag("model", "slow-censored").timer();
+            var deadline = System.currentTimeMillis() + 5000;
+            while (censored.count() == 0) {
+                assertTrue(System.currentTimeMillis() < deadline);
+                sleep();
+            }
+            assertEquals(1, censored.count());
+            // The slow provider waited out its hedge delay, so it is known to be at least that slow
+            assertTrue(slowHealth.getHedgeDelayMillis() >= 50);
+            assertEquals(0, registry.get("generation.route.ttft").tag("model", "slow-censored").timer().count());
+        } finally {
+            Metrics.removeRegistry(registry);
+        }
+    }
+
+    public void testLostRacesKeepHedgeDelay() {
+        var health = new ProviderHealth(new FakeModel("tail", false), new ProviderHealth.Settings(20, 5, 1000, 10, 0.5, 60_000));
+        for (int i = 0; i < 100; i++) {
+            if (i % 5 == 0) {
+                // Slower than the delay, so hedged, and the hedge won
+                health.recordTtftCensored(health.getHedgeDelayMillis());
+            } else
+                health.recordTtft(100);
+        }
+        assertEquals(1000, health.getHedgeDelayMillis());
+        // A hedge that lost quickly says nothing about the tail
+        for (int i = 0; i < 20; i++)
+            health.recordTtftCensored(5);
+        assertEquals(1000, health.getHedgeDelayMillis());
+    }
+
+    public void testFailover() {
+        var failing = new FakeModel("failing", true);
+        var backup = new FakeModel("backup", false);
+        var model = new RoutingModel("route", List.of(health(failing), health(backup)));
+        assertEquals("backup:hello", send(model.createChat(false), "hello"));
+    }
+
+    public void testCircuitBreaker() {
+        var failing = new FakeModel("failing", true);
+        var backup = new FakeModel("backup", false);
+        var model = new RoutingModel("route", List.of(health(failing), health(backup)));
+        for (int i = 0; i < 6; i++)
+            send(model.createChat(false), "hello");
+        // Opened after the fourth failure
+        assertEquals(4, failing.calls.get());
+        assertEquals(6, backup.calls.get());
+    }
+
+    public void testStickyProviderAndHistory() {
+        var first = new FakeModel("first", false);
+        var second = new FakeModel("second", false);
+        var model = new RoutingModel("route", List.of(health(first), health(second)));
+        var chat = model.createChat(false);
+        assertEquals("first:one", send(chat, "one"));
+        first.failing = true;
+        assertEquals("second:two after 1 turns", send(chat, "two"));
+        first.failing = false;
+        assertEquals("second:three after 2 turns", send(chat, "three"));
+        assertEquals(List.of("one"), second.resumedWith);
+    }
+
+    private static ProviderHealth health(Model model) {
+        return new ProviderHealth(model, SETTINGS);
+    }
+
+    private static String send(Chat chat, String text) {
+        var sb = new StringBuilder();
+        chat.send(text, List.of(), new ChatStreamListener() {
+            @Override
+            public void onThought(String thoughtChunk) {
+            }
+
+            @Override
+            public void onContent(String contentChunk) {
+                sb.append(contentChunk);
+            }
+        }, () -> false);
+        return sb.toString();
+    }
+
+    private static void waitFor(AtomicBoolean flag) {
+        var deadline = System.currentTimeMillis() + 5000;
+        while (!flag.get()) {
+            assertTrue(System.currentTimeMillis() < deadline);
+            sleep();
+        }
+    }
+
+    private static void sleep() {
+        try {
+            Thread.sleep(1);
+        } catch (InterruptedException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static class FakeModel implements Model {
+
+        private final String name;
+        private final AtomicInteger calls = new AtomicInteger();
+        private final AtomicBoolean aborted = new AtomicBoolean();
+        private volatile boolean failing;
+        private volatile boolean hang;
+        private volatile List<String> resumedWith = List.of();
+
+        private FakeModel(String name, boolean failing) {
+            this.name = name;
+            this.failing = failing;
+        }
+
+        @Override
+        public Chat createChat(boolean outputThought) {
+            return createChat(outputThought, List.of());
+        }
+
+        @Override
+        public Chat createChat(boolean outputThought, List<ChatTurn> history) {
+            if (!history.isEmpty())
+                resumedWith = history.stream().map(ChatTurn::text).toList();
+            var turns = new ArrayList<>(history);
+            return (text, attachments, listener, ctrl) -> {
+                calls.incrementAndGet();
+                if (failing)
+                    throw new AgentException(name + " failed");
+                while (hang) {
+                    if (ctrl.isAborted()) {
+                        aborted.set(true);
+                        throw new AgentException("Aborted");
+                    }
+                    sleep();
+                }
+                listener.onContent(name + ":" + text);
+                if (!turns.isEmpty())
+                    listener.onContent(" after " + turns.size() + " turns");
+                turns.add(new ChatTurn(text, attachments, ""));
+            };
+        }
+
+        @Override
+        public String getName() {
+            return name;
+        }
+    }
+
+}
@@ -0,0 +1,55 @@
+package org.kiwi.console.generate.sse;
+
+import okio.Buffer;
+import org.kiwi.console.generate.ChatStreamListener;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+
+/**
+ * Measures events per second and bytes allocated per token of the SSE dialects on a synthetic stream.
+ */
+public class SseStreamBenchmark {
+
+    private static final int EVENTS = 200_000;
+    private static final int ROUNDS = 10;
+
+    public static void main(String[] args) throws IOException {
+        run("anthropic", AnthropicDialect.INSTANCE,
+                "event: content_block_delta\ndata: {\"type\":\"content_block_delta\",\"index\":1,\"delta\":{\"type\":\"text_delta\",\"text\":\"token \"}}\n\n");
+        run("openai", OpenAiDialect.INSTANCE,
+                "data: {\"id\":\"chatcmpl-1\",\"object\":\"chat.completion.chunk\",\"choices\":[{\"index\":0,\"delta\":{\"content\":\"token \"},\"finish_reason\":null}]}\n\n");
+    }
+
+    private static void run(String name, SseDialect dialect, String event) throws IOException {
+        var payload = new Buffer();
+        for (int i = 0; i < EVENTS; i++)
+            payload.writeUtf8(event);
+        var threadBean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        var threadId = Thread.currentThread().threadId();
+        var listener = new ChatStreamListener() {
+            long chars;
+
+            @Override
+            public void onThought(String thoughtChunk) {
+                chars += thoughtChunk.length();
+            }
+
+            @Override
+            public void onContent(String contentChunk) {
+                chars += contentChunk.length();
+            }
+        };
+        for (int round = 0; round < ROUNDS; round++) {
+            var source = payload.clone();
+            var allocatedBefore = threadBean.getThreadAllocatedBytes(threadId);
+            var start = System.nanoTime();
+            SseStream.read(source, dialect, listener, () -> false);
+            var elapsed = System.nanoTime() - start;
+            var allocated = threadBean.getThreadAllocatedBytes(threadId) - allocatedBefore;
+            System.out.printf("%s round %d: %.0f events/s, %d bytes/token%n", name, round,
+                    EVENTS * 1e9 / elapsed, allocated / EVENTS);
+        }
+    }
+
+}
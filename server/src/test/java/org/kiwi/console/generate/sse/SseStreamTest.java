@@ -0,0 +1,147 @@
+package org.kiwi.console.generate.sse;
+
+import junit.framework.TestCase;
+import okio.Buffer;
+import org.kiwi.console.generate.AgentException;
+import org.kiwi.console.generate.ChatStreamListener;
+import org.kiwi.console.generate.TokenUsage;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+public class SseStreamTest extends TestCase {
+
+    public void testAnthropic() throws IOException {
+        var listener = new RecordingListener();
+        SseStream.read(new Buffer().writeUtf8("""
+                event: message_start
+                data: {"type": "message_start", "message": {"id": "msg_1", "content": []}}
+
+                event: ping
+                data: {"type": "ping"}
+
+                event: content_block_delta
+                data: {"type": "content_block_delta", "index": 0, "delta": {"type": "thinking_delta", "thinking": "Let me"}}
+
+                event: content_block_delta\r
+                data: {"type": "content_block_delta", "index": 1, "delta": {"type": "text_delta", "text": "Hello\\n"}}\r
+                \r
+                event: content_block_delta
+                data:{"type": "content_block_delta", "index": 1, "delta": {"text": "world", "type": "text_delta"}}
+
+                event: message_stop
+                data: {"type": "message_stop"}
+
+                event: content_block_delta
+                data: {"type": "content_block_delta", "index": 1, "delta": {"type": "text_delta", "text": "ignored"}}
+
+                """), AnthropicDialect.INSTANCE, listener, () -> false);
+        assertEquals(List.of("thought:Let me", "content:Hello\n", "content:world"), listener.events);
+    }
+
+    public void testOpenAi() throws IOException {
+        var listener = new RecordingListener();
+        SseStream.read(new Buffer().writeUtf8("""
+                : keep-alive
+
+                data: {"id": "1", "choices": [{"delta": {"role": "assistant", "content": ""}, "index": 0}]}
+
+                data: {"id": "1", "choices": [{"delta": {"reasoning_content": "Hmm"}, "index": 0, "finish_reason": null}]}
+
+                data: {"id": "1", "choices": [{"index": 1, "delta": {"content": "other"}}, {"delta": {"content": "Hi"}, "index": 0}]}
+
+                data: {"id": "1", "choices": [{"delta": {"content": null}, "index": 0, "finish_reason": "stop"}], "usage": {"total_tokens": 3}}
+
+                data: [DONE]
+
+                """), OpenAiDialect.INSTANCE, listener, () -> false);
+        assertEquals(List.of("thought:Hmm", "content:Hi"), listener.events);
+    }
+
+    public void testMultiLineDataAndMissingTrailingBlankLine() throws IOException {
+        var listener = new RecordingListener();
+        SseStream.read(new Buffer().writeUtf8("""
+                data: {"choices": [{"index": 0,
+                data: "delta": {"content": "split"}}]}"""), OpenAiDialect.INSTANCE, listener, () -> false);
+        assertEquals(List.of("content:split"), listener.events);
+    }
+
+    public void testErrorEvent() {
+        try {
+            SseStream.read(new Buffer().writeUtf8("""
+                    event: error
+                    data: {"type": "error", "error": {"type": "overloaded_error"}}
+
+                    """), AnthropicDialect.INSTANCE, new RecordingListener(), () -> false);
+            fail("Error event should fail the stream");
+        } catch (AgentException | IOException e) {
+            assertTrue(e.getMessage().contains("overloaded_error"));
+        }
+    }
+
+    public void testAbort() throws IOException {
+        var listener = new RecordingListener();
+        try {
+            SseStream.read(new Buffer().writeUtf8("""
+                    data: {"choices": [{"index": 0, "delta": {"content": "a"}}]}
+
+                    data: {"choices": [{"index": 0, "delta": {"content": "b"}}]}
+
+                    """), OpenAiDialect.INSTANCE, listener, () -> !listener.events.isEmpty());
+            fail("Stream should be aborted");
+        } catch (AgentException e) {
+            assertEquals("Aborted", e.getMessage());
+        }
+        assertEquals(List.of("content:a"), listener.events);
+    }
+
+    public void testUsage() throws IOException {
+        var anthropic = new RecordingListener();
+        SseStream.read(new Buffer().writeUtf8("""
+                event: message_start
+                data: {"type": "message_start", "message": {"usage": {"input_tokens": 10, "cache_creation_input_tokens": 200, "cache_read_input_tokens": 3000, "output_tokens": 1}}}
+
+                event: message_delta
+                data: {"type": "message_delta", "delta": {"stop_reason": "end_turn"}, "usage": {"output_tokens": 42}}
+
+                """), AnthropicDialect.INSTANCE, anthropic, () -> false);
+        assertEquals(new TokenUsage(3210, 42, 3000, 200), anthropic.usage);
+
+        var qwen = new RecordingListener();
+        SseStream.read(new Buffer().writeUtf8("""
+                data: {"choices": [], "usage": {"prompt_tokens": 5000, "completion_tokens": 30, "prompt_tokens_details": {"cached_tokens": 4096}}}
+
+                """), OpenAiDialect.INSTANCE, qwen, () -> false);
+        assertEquals(new TokenUsage(5000, 30, 4096, 0), qwen.usage);
+
+        var kimi = new RecordingListener();
+        SseStream.read(new Buffer().writeUtf8("""
+                data: {"choices": [{"index": 0, "delta": {}, "finish_reason": "stop", "usage": {"prompt_tokens": 800, "completion_tokens": 7, "cached_tokens": 512}}]}
+
+                """), OpenAiDialect.INSTANCE, kimi, () -> false);
+        assertEquals(new TokenUsage(800, 7, 512, 0), kimi.usage);
+    }
+
+    private static class RecordingListener implements ChatStreamListener {
+
+        private final List<String> events = new ArrayList<>();
+        private TokenUsage usage = TokenUsage.ZERO;
+
+        @Override
+        public void onThought(String thoughtChunk) {
+            events.add("thought:" + thoughtChunk);
+        }
+
+        @Override
+        public void onContent(String contentChunk) {
+            events.add("content:" + contentChunk);
+        }
+
+        @Override
+        public void onUsage(TokenUsage usage) {
+            this.usage = this.usage.plus(usage);
+        }
+    }
+
+}
@@ -0,0 +1,83 @@
+package org.kiwi.console.kiwi;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.List;
+
+public class ExchangePatchTest extends TestCase {
+
+    public void testUnchanged() {
+        var exch = exchange();
+        var patch = ExchangePatch.diff(exch, exchange());
+        assertNotNull(patch);
+        assertTrue(patch.isEmpty());
+    }
+
+    public void testOnlyChangedAttempts() {
+        var saved = exchange();
+        var current = exchange();
+        current.setStatus(ExchangeStatus.GENERATING);
+        current.getTasks().getFirst().setAttempts(List.of(
+                new Attempt("a1", AttemptStatus.FAILED, "Build error", null),
+                new Attempt("a2", AttemptStatus.SUCCESSFUL, null, null)
+        ));
+        var patch = ExchangePatch.diff(saved, current);
+        assertNotNull(patch);
+        assertSame(ExchangeStatus.GENERATING, patch.status());
+        assertNull(patch.productURL());
+        assertEquals(2, patch.tasks().size());
+        var taskPatch = patch.tasks().getFirst();
+        assertEquals("t1", taskPatch.id());
+        assertNull(taskPatch.status());
+        assertEquals(new ExchangePatch.AttemptPatch("a1", null, null, null), taskPatch.attempts().getFirst());
+        assertEquals(new ExchangePatch.AttemptPatch("a2", AttemptStatus.SUCCESSFUL, null, null), taskPatch.attempts().get(1));
+        assertEquals(new ExchangePatch.TaskPatch("t2", null, null, null, null, null, null, null), patch.tasks().get(1));
+    }
+
+    public void testNewTask() {
+        var saved = exchange();
+        var current = exchange();
+        current.addTask(new ExchangeTask("m3", "Admin", ExchangeTaskType.GENERATION));
+        var patch = ExchangePatch.diff(saved, current);
+        assertNotNull(patch);
+        assertEquals(3, patch.tasks().size());
+        var created = patch.tasks().getLast();
+        assertNull(created.id());
+        assertEquals("m3", created.moduleId());
+        assertSame(ExchangeTaskStatus.GENERATING, created.status());
+    }
+
+    public void testUsage() {
+        var saved = exchange();
+        var current = exchange();
+        var usage = new Usage(1, 1000, 200, 50, 800, 0, 1, 1500, 9000, 4096);
+        current.setUsage(usage);
+        current.getTasks().getFirst().setUsage(usage);
+        current.getTasks().getFirst().getAttempts().get(1).setUsage(usage);
+        var patch = ExchangePatch.diff(saved, current);
+        assertNotNull(patch);
+        assertEquals(usage, patch.usage());
+        var taskPatch = patch.tasks().getFirst();
+        assertEquals(usage, taskPatch.usage());
+        assertEquals(new ExchangePatch.AttemptPatch("a2", null, null, usage), taskPatch.attempts().get(1));
+    }
+
+    public void testClearedField() {
+        var saved = exchange();
+        saved.setErrorMessage("Failed");
+        assertNull(ExchangePatch.diff(saved, exchange()));
+    }
+
+    private Exchange exchange() {
+        var tasks = new ArrayList<ExchangeTask>();
+        tasks.add(new ExchangeTask("t1", "m1", "Kiwi", ExchangeTaskType.GENERATION, ExchangeTaskStatus.GENERATING,
+                null, List.of(new Attempt("a1", AttemptStatus.FAILED, "Build error", null),
+                new Attempt("a2", AttemptStatus.RUNNING, null, null)), null));
+        tasks.add(new ExchangeTask("t2", "m2", "Web", ExchangeTaskType.GENERATION, ExchangeTaskStatus.SUCCESSFUL,
+                null, List.of(new Attempt("a3", AttemptStatus.SUCCESSFUL, null, null)), null));
+        return new Exchange("e1", "app", "user", "Build a shop", List.of(), ExchangeStatus.PLANNING,
+                null, null, null, null, true, false, 0, null, 0, false, tasks, null);
+    }
+
+}
@@ -0,0 +1,35 @@
+package org.kiwi.console.patch;
+
+import junit.framework.TestCase;
+import org.kiwi.console.generate.SourceFile;
+
+import java.util.ArrayList;
+import java.util.List;
+
+public class StreamingPatchReaderTest extends TestCase {
+
+    public void testEmitOnNextHeader() {
+        var files = new ArrayList<SourceFile>();
+        var reader = new StreamingPatchReader(files::add);
+        for (var chunk : List.of("@@ src/order.kiwi @@\nclass Or", "der\n", "@@ --src/old.kiwi", " @@\n@@ src/product.kiwi @@\n",
+                "class Product\n"))
+            reader.accept(chunk);
+        assertEquals(1, files.size());
+        assertEquals("src/order.kiwi", files.getFirst().path().toString());
+        assertEquals("class Order\n", files.getFirst().content());
+        reader.accept("@@@@\n");
+        assertEquals(2, files.size());
+        assertEquals("src/product.kiwi", files.get(1).path().toString());
+        assertEquals("class Product\n", files.get(1).content());
+    }
+
+    public void testCrLf() {
+        var files = new ArrayList<SourceFile>();
+        var reader = new StreamingPatchReader(files::add);
+        reader.accept("Intro\r\n@@ src/main.kiwi @@\r");
+        reader.accept("\nclass Foo\r\n@@ src/bar.kiwi @@\r\n");
+        assertEquals(1, files.size());
+        assertEquals("class Foo\n", files.getFirst().content());
+    }
+
+}
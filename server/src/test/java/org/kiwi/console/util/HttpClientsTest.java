@@ -0,0 +1,84 @@
+package org.kiwi.console.util;
+
+import com.sun.net.httpserver.HttpServer;
+import junit.framework.TestCase;
+import okhttp3.Request;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class HttpClientsTest extends TestCase {
+
+    @Override
+    protected void tearDown() {
+        HttpClients.configure(HttpClients.Settings.DEFAULT);
+    }
+
+    public void testClientPerUpstream() {
+        var client = HttpClients.get("https://api.anthropic.com/v1");
+        assertSame(client, HttpClients.get("https://api.anthropic.com/v1/messages"));
+        assertSame(client, HttpClients.get(" https://api.anthropic.com"));
+        var other = HttpClients.get("http://localhost:8080");
+        assertNotSame(client, other);
+        assertNotSame(client.connectionPool(), other.connectionPool());
+        assertNotSame(client.dispatcher(), other.dispatcher());
+    }
+
+    public void testDerivedClientSharesPool() {
+        var client = HttpClients.get("https://api.moonshot.cn/v1/chat/completions");
+        var streaming = client.newBuilder().readTimeout(5, TimeUnit.MINUTES).build();
+        assertSame(client.connectionPool(), streaming.connectionPool());
+        assertSame(client.dispatcher(), streaming.dispatcher());
+    }
+
+    public void testMaxRequestsBoundsSynchronousCalls() throws Exception {
+        var active = new AtomicInteger();
+        var maxActive = new AtomicInteger();
+        var server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        var executor = Executors.newCachedThreadPool();
+        server.setExecutor(executor);
+        server.createContext("/", exchange -> {
+            maxActive.accumulateAndGet(active.incrementAndGet(), Math::max);
+            try {
+                Thread.sleep(100);
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+            active.decrementAndGet();
+            var bytes = "ok".getBytes();
+            exchange.sendResponseHeaders(200, bytes.length);
+            try (var out = exchange.getResponseBody()) {
+                out.write(bytes);
+            }
+        });
+        server.start();
+        try {
+            HttpClients.configure(new HttpClients.Settings(2, 16, 300, 0));
+            var url = "http://127.0.0.1:" + server.getAddress().getPort() + "/";
+            var client = HttpClients.get(url);
+            var futures = new ArrayList<CompletableFuture<String>>();
+            for (int i = 0; i < 6; i++) {
+                futures.add(CompletableFuture.supplyAsync(() -> {
+                    try (var response = client.newCall(new Request.Builder().url(url).build()).execute()) {
+                        return response.body().string();
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                }, executor));
+            }
+            for (var future : futures)
+                assertEquals("ok", future.get(10, TimeUnit.SECONDS));
+            assertEquals(2, maxActive.get());
+        } finally {
+            server.stop(0);
+            executor.shutdownNow();
+        }
+    }
+
+}
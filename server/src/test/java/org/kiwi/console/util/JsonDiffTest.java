@@ -0,0 +1,39 @@
+package org.kiwi.console.util;
+
+import junit.framework.TestCase;
+
+import java.util.List;
+
+public class JsonDiffTest extends TestCase {
+
+    public void testDiff() throws Exception {
+        var mapper = Utils.getObjectMapper();
+        var source = mapper.readTree("""
+                {"status": "GENERATING", "productURL": null, "a/b": 1, "removed": true,
+                 "tasks": [{"id": "t1", "status": "GENERATING"}, {"id": "t2"}]}
+                """);
+        var target = mapper.readTree("""
+                {"status": "GENERATING", "productURL": "https://x.metavm.tech", "a/b": 2,
+                 "tasks": [{"id": "t1", "status": "SUCCESSFUL"}, {"id": "t2"}, {"id": "t3"}]}
+                """);
+        var ops = JsonDiff.diff(source, target);
+        assertEquals(List.of(
+                new JsonDiff.Op("replace", "/productURL", mapper.readTree("\"https://x.metavm.tech\"")),
+                new JsonDiff.Op("replace", "/a~1b", mapper.readTree("2")),
+                new JsonDiff.Op("replace", "/tasks/0/status", mapper.readTree("\"SUCCESSFUL\"")),
+                new JsonDiff.Op("add", "/tasks/2", mapper.readTree("{\"id\": \"t3\"}")),
+                new JsonDiff.Op("remove", "/removed", null)
+        ), ops);
+        assertTrue(JsonDiff.diff(source, source.deepCopy()).isEmpty());
+    }
+
+    public void testShrinkingArray() throws Exception {
+        var mapper = Utils.getObjectMapper();
+        var ops = JsonDiff.diff(mapper.readTree("[1, 2, 3]"), mapper.readTree("[1]"));
+        assertEquals(List.of(
+                new JsonDiff.Op("remove", "/2", null),
+                new JsonDiff.Op("remove", "/1", null)
+        ), ops);
+    }
+
+}
@@ -0,0 +1,87 @@
+package org.kiwi.console.util;
+
+import junit.framework.TestCase;
+
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+public class ProcessRunnerTest extends TestCase {
+
+    private static final Path DIR = Path.of(".");
+
+    @Override
+    protected void tearDown() {
+        ProcessRunner.configure(ProcessRunner.Settings.DEFAULT);
+    }
+
+    public void testOutputAndInput() {
+        var lines = Collections.synchronizedList(new ArrayList<String>());
+        var r = ProcessRunner.run(DIR, List.of("sh", "-c", "cat; echo err >&2; exit 3"),
+                ProcessRunner.Options.DEFAULT.withInput("a\nb\n").withLineListener(lines::add));
+        assertEquals(3, r.exitCode());
+        assertEquals("a\nb\nerr\n", r.output());
+        assertEquals(List.of("a", "b", "err"), lines);
+    }
+
+    public void testTimeoutKillsTree() {
+        var start = System.currentTimeMillis();
+        try {
+            // The grandchild keeps the output open, so it has to be killed as well
+            ProcessRunner.run(DIR, List.of("sh", "-c", "sleep 30 & sleep 30"),
+                    ProcessRunner.Options.DEFAULT.withTimeout(Duration.ofMillis(500)));
+            fail("Should have timed out");
+        } catch (RuntimeException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("timed out"));
+        }
+        assertTrue(System.currentTimeMillis() - start < 10_000);
+    }
+
+    public void testTailRetention() {
+        ProcessRunner.configure(new ProcessRunner.Settings(Duration.ofMinutes(1), Map.of(), Map.of(), 16));
+        var r = ProcessRunner.run(DIR, List.of("sh", "-c", "printf 0123456789abcdefghijklmnopqrstuvwxyz"));
+        assertEquals("[20 bytes of output truncated]" + System.lineSeparator() + "klmnopqrstuvwxyz", r.output());
+    }
+
+    public void testCancellation() throws Exception {
+        var aborted = new AtomicBoolean();
+        var future = ProcessRunner.withAbortController(aborted::get,
+                () -> ProcessRunner.start(DIR, List.of("sleep", "30")));
+        Thread.sleep(300);
+        aborted.set(true);
+        try {
+            future.get(10, TimeUnit.SECONDS);
+            fail("Should have been cancelled");
+        } catch (ExecutionException e) {
+            var cause = (BusinessException) e.getCause();
+            assertEquals(ErrorCode.TASK_CANCELLED, cause.getErrorCode());
+        }
+    }
+
+    public void testConcurrencyLimit() throws Exception {
+        ProcessRunner.configure(new ProcessRunner.Settings(Duration.ofMinutes(1), Map.of(), Map.of("sleep", 1), 1024));
+        var start = System.currentTimeMillis();
+        var futures = new ArrayList<CompletableFuture<Utils.CommandResult>>();
+        for (int i = 0; i < 3; i++)
+            futures.add(ProcessRunner.start(DIR, List.of("sleep", "0.3")));
+        for (var future : futures)
+            assertEquals(0, future.get(10, TimeUnit.SECONDS).exitCode());
+        assertTrue(System.currentTimeMillis() - start >= 900);
+    }
+
+    public void testTailBufferWraps() {
+        var buf = new ProcessRunner.TailBuffer(4);
+        buf.write("ab".getBytes(), 2);
+        buf.write("cde".getBytes(), 3);
+        buf.write("f".getBytes(), 1);
+        assertEquals("[2 bytes of output truncated]" + System.lineSeparator() + "cdef", buf.toString());
+    }
+
+}